@@ -21,6 +21,7 @@
 #include <jni.h>
 #include <linux/filter.h>
 #include <linux/if_arp.h>
+#include <linux/if_packet.h>
 #include <net/if.h>
 #include <netinet/ether.h>
 #include <netinet/icmp6.h>
@@ -229,6 +230,44 @@ static void network_stack_utils_attachControlPacketFilter(
     }
 }
 
+// fd is a "socket(AF_PACKET, SOCK_RAW, ETH_P_ALL)"
+static void network_stack_utils_attachHostPacketSamplingFilter(
+        JNIEnv *env, jclass clazz, jobject javaFd, jint samplingInterval, jint snapLen) {
+    if (samplingInterval <= 0 || snapLen <= 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Invalid sampling interval or snap length");
+        return;
+    }
+    // Accept one in samplingInterval of the packets received by the host, chosen at random and
+    // truncated to snapLen bytes, so that the packets that are not sampled are never copied to
+    // userspace. Reject the packets sent by the host.
+    sock_filter filter_code[] = {
+        // Reject outgoing packets.
+        BPF_STMT(BPF_LD  | BPF_B    | BPF_ABS, SKF_AD_OFF + SKF_AD_PKTTYPE),
+        BPF_JUMP(BPF_JMP | BPF_JEQ  | BPF_K,   PACKET_OUTGOING, 4, 0),
+
+        // Sample the others.
+        BPF_STMT(BPF_LD  | BPF_W    | BPF_ABS, SKF_AD_OFF + SKF_AD_RANDOM),
+        BPF_STMT(BPF_ALU | BPF_MOD  | BPF_K,   static_cast<uint32_t>(samplingInterval)),
+        BPF_JUMP(BPF_JMP | BPF_JEQ  | BPF_K,   0, 0, 1),
+
+        // Accept.
+        BPF_STMT(BPF_RET | BPF_K,              static_cast<uint32_t>(snapLen)),
+
+        // Reject.
+        BPF_STMT(BPF_RET | BPF_K,              0)
+    };
+    const sock_fprog filter = {
+        sizeof(filter_code) / sizeof(filter_code[0]),
+        filter_code,
+    };
+
+    int fd = netjniutils::GetNativeFileDescriptor(env, javaFd);
+    if (setsockopt(fd, SOL_SOCKET, SO_ATTACH_FILTER, &filter, sizeof(filter)) != 0) {
+        jniThrowErrnoException(env, "setsockopt(SO_ATTACH_FILTER)", errno);
+    }
+}
+
 /*
  * JNI registration.
  */
@@ -238,6 +277,7 @@ static const JNINativeMethod gNetworkStackUtilsMethods[] = {
     { "attachDhcpFilter", "(Ljava/io/FileDescriptor;)V", (void*) network_stack_utils_attachDhcpFilter },
     { "attachRaFilter", "(Ljava/io/FileDescriptor;)V", (void*) network_stack_utils_attachRaFilter },
     { "attachControlPacketFilter", "(Ljava/io/FileDescriptor;)V", (void*) network_stack_utils_attachControlPacketFilter },
+    { "attachHostPacketSamplingFilter", "(Ljava/io/FileDescriptor;II)V", (void*) network_stack_utils_attachHostPacketSamplingFilter },
 };
 
 extern "C" jint JNI_OnLoad(JavaVM* vm, void*) {
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which optional filters fit in the space left in an APF program, such as RA filters
+ * and keepalive filters, weighing what each filter costs in bytes against the packets that it
+ * drops.
+ *
+ * The benefit of a filter is measured by its per-rule counter. Filters are considered in this
+ * order, and each filter that fits in the remaining space is included, so a large filter that
+ * does not fit does not prevent smaller ones from being included:
+ * <ol>
+ * <li>Filters whose hits have not been measured yet, in the order they were added, so that new
+ *     filters get a chance to show their benefit.
+ * <li>Filters that matched packets, by decreasing number of hits per byte.
+ * <li>Filters that matched no packets, in the order they were added.
+ * </ol>
+ * Without per-rule counters, filters are considered in the order they were added.
+ *
+ * Filters may share code, such as checks that a group of filters emits only once. The size of
+ * that code is declared once with {@link #addSharedCost}, and charged along with the first filter
+ * chosen that needs it, so that the size of each filter is only what it adds to the others.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <T> the type of the filters.
+ * @hide
+ */
+public class ApfBudgetAllocator<T> {
+    private static final int TIER_UNMEASURED = 0;
+    private static final int TIER_USED = 1;
+    private static final int TIER_UNUSED = 2;
+
+    private static class Candidate<T> {
+        final T filter;
+        final int size;
+        final int tier;
+        final long hits;
+        final Object[] sharedCostKeys;
+
+        Candidate(T filter, int size, int tier, long hits, Object[] sharedCostKeys) {
+            this.filter = filter;
+            this.size = size;
+            this.tier = tier;
+            this.hits = hits;
+            this.sharedCostKeys = sharedCostKeys;
+        }
+    }
+
+    @Nullable
+    private final ApfRuleCounterTracker mRuleCounterTracker;
+    private final ArrayList<Candidate<T>> mCandidates = new ArrayList<>();
+    private final Map<Object, Integer> mSharedCosts = new HashMap<>();
+    private int mNumSkipped;
+
+    /**
+     * @param ruleCounterTracker the tracker of the per-rule counters, or null if they are
+     *                           disabled.
+     */
+    public ApfBudgetAllocator(@Nullable ApfRuleCounterTracker ruleCounterTracker) {
+        mRuleCounterTracker = ruleCounterTracker;
+    }
+
+    /**
+     * Declares code that several filters share, and that is emitted once if any of them is
+     * included.
+     *
+     * @param key identifies the shared code in {@link #add}.
+     * @param sizeOverEstimate an upper bound on the number of bytes of the shared code.
+     */
+    public void addSharedCost(@NonNull Object key, int sizeOverEstimate) {
+        mSharedCosts.put(key, sizeOverEstimate);
+    }
+
+    /**
+     * Adds a filter to choose from.
+     *
+     * @param filter the filter.
+     * @param sizeOverEstimate an upper bound on the number of bytes that including the filter
+     *                         adds to the program, including its per-rule counter, if any, but
+     *                         excluding the code it shares with other filters.
+     * @param ruleCounterKey the rule whose per-rule counter counts the packets that the filter
+     *                       matches, or null.
+     * @param sharedCostKeys the keys passed to {@link #addSharedCost} for the shared code that
+     *                       the filter needs.
+     */
+    public void add(@NonNull T filter, int sizeOverEstimate, @Nullable String ruleCounterKey,
+            @NonNull Object... sharedCostKeys) {
+        for (Object key : sharedCostKeys) {
+            if (!mSharedCosts.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown shared cost " + key);
+            }
+        }
+        int tier = TIER_UNMEASURED;
+        long hits = 0;
+        if (mRuleCounterTracker != null && ruleCounterKey != null
+                && mRuleCounterTracker.hasBeenRead(ruleCounterKey)) {
+            hits = mRuleCounterTracker.getHits(ruleCounterKey);
+            tier = hits > 0 ? TIER_USED : TIER_UNUSED;
+        }
+        mCandidates.add(new Candidate<>(filter, sizeOverEstimate, tier, hits, sharedCostKeys));
+    }
+
+    /**
+     * Chooses the filters to include in the program.
+     *
+     * @param budget the number of bytes available for the filters.
+     * @return the chosen filters, in the order they were considered.
+     */
+    @NonNull
+    public List<T> allocate(int budget) {
+        final ArrayList<Candidate<T>> candidates = new ArrayList<>(mCandidates);
+        // The sort is stable, so filters in the same tier keep the order they were added in,
+        // unless their hits per byte differ.
+        candidates.sort((a, b) -> {
+            if (a.tier != b.tier) return Integer.compare(a.tier, b.tier);
+            if (a.tier != TIER_USED) return 0;
+            // a.hits / a.size > b.hits / b.size, without dividing. Sizes are positive.
+            return Long.compare(b.hits * a.size, a.hits * b.size);
+        });
+
+        final ArrayList<T> chosen = new ArrayList<>();
+        final Set<Object> chargedSharedCosts = new HashSet<>();
+        int remaining = budget;
+        mNumSkipped = 0;
+        for (Candidate<T> candidate : candidates) {
+            int size = candidate.size;
+            for (Object key : candidate.sharedCostKeys) {
+                if (!chargedSharedCosts.contains(key)) size += mSharedCosts.get(key);
+            }
+            if (size > remaining) {
+                mNumSkipped++;
+                continue;
+            }
+            remaining -= size;
+            Collections.addAll(chargedSharedCosts, candidate.sharedCostKeys);
+            chosen.add(candidate.filter);
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the number of filters left out by the last call to {@link #allocate}.
+     */
+    public int getNumSkipped() {
+        return mNumSkipped;
+    }
+}
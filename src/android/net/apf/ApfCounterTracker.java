@@ -16,11 +16,14 @@
 
 package android.net.apf;
 
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -82,7 +85,10 @@ public class ApfCounterTracker {
         DROPPED_MDNS,
         DROPPED_IPV4_TCP_PORT7_UNICAST,
         DROPPED_ARP_NON_IPV4,
-        DROPPED_ARP_UNKNOWN;
+        DROPPED_ARP_UNKNOWN,
+        DROPPED_ARP_REQUEST_REPLIED,
+        DROPPED_IPV6_NS_REPLIED,
+        DROPPED_MDNS_REPLIED;
 
         /**
          * Returns the negative byte offset from the end of the APF data segment for
@@ -106,13 +112,90 @@ public class ApfCounterTracker {
         public static int totalSize() {
             return (Counter.class.getEnumConstants().length - 1) * 4;
         }
+
+        /**
+         * Returns whether the counter counts packets, as opposed to storing a value such as the
+         * byte order or the age of the filter.
+         */
+        public boolean countsPackets() {
+            return this != RESERVED_OOB && this != ENDIANNESS && this != FILTER_AGE_SECONDS
+                    && this != FILTER_AGE_16384THS;
+        }
+
+        /**
+         * Returns whether the counter counts dropped packets.
+         */
+        public boolean countsDroppedPackets() {
+            return name().startsWith("DROPPED_");
+        }
+    }
+
+    /**
+     * The increase of the packet counters between two consecutive data snapshots.
+     */
+    public static class CounterDeltas {
+        /** The time the first snapshot was read, in milliseconds of elapsed realtime. */
+        public final long startTimeMs;
+        /** The time the second snapshot was read, in milliseconds of elapsed realtime. */
+        public final long endTimeMs;
+        // Indexed by Counter#value().
+        private final long[] mDeltas;
+
+        CounterDeltas(long startTimeMs, long endTimeMs, long[] deltas) {
+            this.startTimeMs = startTimeMs;
+            this.endTimeMs = endTimeMs;
+            mDeltas = deltas;
+        }
+
+        /**
+         * Returns the increase of {@code counter} during the interval.
+         */
+        public long getDelta(Counter counter) {
+            return mDeltas[counter.value()];
+        }
+
+        /**
+         * Returns the rate at which {@code counter} increased during the interval, in packets per
+         * second.
+         */
+        public double getRate(Counter counter) {
+            return toRate(getDelta(counter), endTimeMs - startTimeMs);
+        }
+
+        /**
+         * Returns the number of packets dropped during the interval, for any reason.
+         */
+        public long getTotalDropped() {
+            long total = 0;
+            for (Counter counter : Counter.class.getEnumConstants()) {
+                if (counter.countsDroppedPackets()) total += mDeltas[counter.value()];
+            }
+            return total;
+        }
+
+        private static double toRate(long delta, long durationMs) {
+            return durationMs > 0 ? delta * 1000.0 / durationMs : 0;
+        }
     }
 
     private static final String TAG = ApfCounterTracker.class.getSimpleName();
+    private static final int NUM_COUNTERS = Counter.class.getEnumConstants().length;
+
+    // The number of intervals kept by getCounterDeltas(). With the default polling interval of
+    // 5 minutes, this covers the last hour.
+    @VisibleForTesting
+    public static final int MAX_COUNTER_DELTAS = 12;
 
     private final List<Counter> mCounterList;
     // Store the counters' value
     private final Map<Counter, Long> mCounters = new ArrayMap<>();
+    // The counter values of the last data snapshot, indexed by Counter#value(), or null if no
+    // snapshot was read yet.
+    private long[] mLastValues;
+    private long mLastSnapshotTimeMs;
+    private final ArrayDeque<CounterDeltas> mCounterDeltas = new ArrayDeque<>();
+    private int mNumSnapshots = 0;
+    private long mMaxDroppedPacketsPerMinute = 0;
 
     public ApfCounterTracker() {
         Counter[] counters = Counter.class.getEnumConstants();
@@ -124,28 +207,55 @@ public class ApfCounterTracker {
      */
     public static long getCounterValue(byte[] data, Counter counter)
             throws ArrayIndexOutOfBoundsException {
+        return getCounterValue(data, counter.offset());
+    }
+
+    /**
+     * Get the value of the 32bit counter at the specified negative byte offset from the end of
+     * APF data. Counters that are not in {@link Counter} use the same byte order.
+     */
+    public static long getCounterValue(byte[] data, int counterOffset)
+            throws ArrayIndexOutOfBoundsException {
+        // Follow the same wrap-around addressing scheme of the interpreter.
+        return decodeCounter(data, data.length + counterOffset, isBigEndian(data));
+    }
+
+    /**
+     * Decode the first {@code numCounters} 32bit counters at the end of APF data, indexed like
+     * {@link Counter#value()}. Unlike {@link #getCounterValue}, the byte order is only read once,
+     * and counters that do not fit in {@code data} are 0.
+     */
+    public static long[] decodeCounters(byte[] data, int numCounters) {
+        final long[] values = new long[numCounters];
+        if (data.length < -Counter.ENDIANNESS.offset()) return values;
+        final boolean isBe = isBigEndian(data);
+        // Index 0 is out of bounds, see Counter#RESERVED_OOB.
+        for (int i = 1; i < numCounters && i * 4 <= data.length; i++) {
+            values[i] = decodeCounter(data, data.length - i * 4, isBe);
+        }
+        return values;
+    }
+
+    private static boolean isBigEndian(byte[] data) throws ArrayIndexOutOfBoundsException {
         int offset = data.length + Counter.ENDIANNESS.offset();
         int endianness = 0;
         for (int i = 0; i < 4; i++) {
             endianness = endianness << 8 | (data[offset + i] & 0xff);
         }
-        // Follow the same wrap-around addressing scheme of the interpreter.
-        offset = data.length + counter.offset();
-
-        boolean isBe = true;
         switch (endianness) {
             case 0:
             case 0x12345678:
-                isBe = true;
-                break;
+                return true;
             case 0x78563412:
-                isBe = false;
-                break;
+                return false;
             default:
                 Log.wtf(TAG, "Unknown endianness: 0x" + Integer.toHexString(endianness));
+                return true;
         }
+    }
 
-        // Decode 32bit big-endian integer into a long so we can count up beyond 2^31.
+    private static long decodeCounter(byte[] data, int offset, boolean isBe) {
+        // Decode 32bit integer into a long so we can count up beyond 2^31.
         long value = 0;
         for (int i = 0; i < 4; i++) {
             value = value << 8 | (data[offset + (isBe ? i : 3 - i)] & 0xff);
@@ -154,23 +264,59 @@ public class ApfCounterTracker {
     }
 
     /**
-     * Update counters from APF data.
+     * Update counters from APF data read now.
      */
     public void updateCountersFromData(byte[] data) {
+        updateCountersFromData(data, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Update counters from APF data, and record their increase since the previous data snapshot.
+     *
+     * @param data the APF data.
+     * @param timeMs the time the data was read, in milliseconds of elapsed realtime.
+     */
+    public void updateCountersFromData(byte[] data, long timeMs) {
         if (data == null) return;
+        final long[] values = decodeCounters(data, NUM_COUNTERS);
         for (Counter counter : mCounterList) {
-            long value;
-            try {
-                value = getCounterValue(data, counter);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                value = 0;
-            }
+            long value = values[counter.value()];
             long oldValue = mCounters.getOrDefault(counter, 0L);
             // All counters are increamental
             if (value > oldValue) {
                 mCounters.put(counter, value);
             }
         }
+        mNumSnapshots++;
+        if (mLastValues != null) {
+            // Keep the older baseline if snapshots are read within the same millisecond, so that
+            // no increase is lost.
+            if (timeMs <= mLastSnapshotTimeMs) return;
+            addCounterDeltas(computeDeltas(mLastValues, values), timeMs);
+        }
+        mLastValues = values;
+        mLastSnapshotTimeMs = timeMs;
+    }
+
+    private long[] computeDeltas(long[] oldValues, long[] values) {
+        final long[] deltas = new long[values.length];
+        for (Counter counter : mCounterList) {
+            if (!counter.countsPackets()) continue;
+            final int i = counter.value();
+            // The counters decrease if the APF memory was cleared, in which case they counted up
+            // from 0.
+            deltas[i] = values[i] >= oldValues[i] ? values[i] - oldValues[i] : values[i];
+        }
+        return deltas;
+    }
+
+    private void addCounterDeltas(long[] deltas, long timeMs) {
+        final CounterDeltas counterDeltas = new CounterDeltas(mLastSnapshotTimeMs, timeMs, deltas);
+        if (mCounterDeltas.size() == MAX_COUNTER_DELTAS) mCounterDeltas.removeFirst();
+        mCounterDeltas.addLast(counterDeltas);
+        final long droppedPerMinute = (long) (CounterDeltas.toRate(
+                counterDeltas.getTotalDropped(), timeMs - counterDeltas.startTimeMs) * 60);
+        mMaxDroppedPacketsPerMinute = Math.max(mMaxDroppedPacketsPerMinute, droppedPerMinute);
     }
 
     /**
@@ -179,4 +325,27 @@ public class ApfCounterTracker {
     public Map<Counter, Long> getCounters() {
         return mCounters;
     }
+
+    /**
+     * Get the increase of the counters between consecutive data snapshots, oldest first. Only the
+     * last {@link #MAX_COUNTER_DELTAS} intervals are kept.
+     */
+    public List<CounterDeltas> getCounterDeltas() {
+        return new ArrayList<>(mCounterDeltas);
+    }
+
+    /**
+     * Get the number of data snapshots read so far.
+     */
+    public int getNumSnapshots() {
+        return mNumSnapshots;
+    }
+
+    /**
+     * Get the highest rate of dropped packets seen in any interval between data snapshots, in
+     * packets per minute.
+     */
+    public long getMaxDroppedPacketsPerMinute() {
+        return mMaxDroppedPacketsPerMinute;
+    }
 }
@@ -16,6 +16,7 @@
 
 package android.net.apf;
 
+import static android.net.apf.BaseApfGenerator.MIN_APF_VERSION_IN_DEV;
 import static android.net.apf.BaseApfGenerator.Register.R0;
 import static android.net.apf.BaseApfGenerator.Register.R1;
 import static android.net.util.SocketUtils.makePacketSocketAddress;
@@ -26,36 +27,46 @@ import static android.system.OsConstants.ARPHRD_ETHER;
 import static android.system.OsConstants.ETH_P_ARP;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IFA_F_TENTATIVE;
 import static android.system.OsConstants.IPPROTO_ICMPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_CLOEXEC;
 import static android.system.OsConstants.SOCK_RAW;
 
+import static com.android.net.module.util.NetworkStackConstants.ETHER_ADDR_LEN;
 import static com.android.net.module.util.NetworkStackConstants.ETHER_BROADCAST;
 import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ECHO_REQUEST_TYPE;
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ND_OPTION_TLLA;
 import static com.android.net.module.util.NetworkStackConstants.ICMPV6_NEIGHBOR_ADVERTISEMENT;
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_NEIGHBOR_SOLICITATION;
 import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ROUTER_ADVERTISEMENT;
-import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ROUTER_SOLICITATION;
+import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_LEN;
 import static com.android.net.module.util.NetworkStackConstants.IPV6_ADDR_LEN;
+import static com.android.net.module.util.NetworkStackConstants.NEIGHBOR_ADVERTISEMENT_FLAG_OVERRIDE;
+import static com.android.net.module.util.NetworkStackConstants.NEIGHBOR_ADVERTISEMENT_FLAG_SOLICITED;
 
+import android.app.AlarmManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
+import android.net.MacAddress;
 import android.net.NattKeepalivePacketDataParcelable;
 import android.net.TcpKeepalivePacketDataParcelable;
 import android.net.apf.ApfCounterTracker.Counter;
 import android.net.apf.BaseApfGenerator.IllegalInstructionException;
 import android.net.ip.IpClient.IpClientCallbacksWrapper;
+import android.os.Handler;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.stats.connectivity.NetworkQuirkEvent;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.text.format.DateUtils;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -69,8 +80,8 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.TokenBucket;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.net.module.util.CollectionUtils;
-import com.android.net.module.util.ConnectivityUtils;
 import com.android.net.module.util.InterfaceParams;
+import com.android.net.module.util.PacketBuilder;
 import com.android.net.module.util.SocketUtils;
 import com.android.networkstack.metrics.ApfSessionInfoMetrics;
 import com.android.networkstack.metrics.IpClientRaInfoMetrics;
@@ -88,12 +99,17 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * For networks that support packet filtering via APF programs, {@code ApfFilter}
@@ -109,7 +125,17 @@ import java.util.Map;
  *    - setMulticastFilter(), which can cause an APF program to be generated.
  *    - dump(), which dumps mRas among other things.
  *    - shutdown(), which clears mRas.
- * So access to mRas is synchronized.
+ * - the IpClient Handler from ApfConfiguration#handler, which generates deferred APF programs:
+ *   those coalesced within ApfConfiguration#installCoalescingWindowMs, and those for RAs received
+ *   while RA-triggered installs are rate limited, and those for changes in the joined multicast
+ *   groups, which it reads without holding the lock.
+ * - the main thread, which generates a new APF program when the first RA filter in the installed
+ *   program expires.
+ * So access to mRas is synchronized. To keep RA floods from blocking those callers,
+ * ReceiveThread parses RAs and looks for a matching RA in mRasSnapshot, an immutable copy of mRas,
+ * without holding the lock, and only takes it to update mRas and install the new program.
+ * mRasSnapshot indexes the RAs by a hash of fields that matching RAs share, so looking up the RA
+ * that a new RA refreshes does not depend on the number of known RAs.
  *
  * @hide
  */
@@ -125,6 +151,21 @@ public class ApfFilter implements AndroidPacketFilter {
         public int acceptRaMinLft;
         public boolean shouldHandleLightDoze;
         public long minMetricsSessionDurationMs;
+        public boolean shouldMergeRaFilters;
+        public boolean shouldOptimizeProgram;
+        public int maxRas;
+        public long installCoalescingWindowMs;
+        public boolean shouldOffloadArp;
+        public boolean shouldOffloadNs;
+        public boolean shouldOffloadMdns;
+        public boolean shouldCountRules;
+        public boolean shouldReorderFilters;
+        public boolean shouldFilterMulticastByGroup;
+        public boolean shouldSampleHostPackets;
+        public boolean shouldGenerateV6Program;
+        // The Handler of the IpClient thread, which runs deferred work such as coalesced program
+        // installs. If null, programs are installed synchronously.
+        public Handler handler;
     }
 
     /** A wrapper class of {@link SystemClock} to be mocked in unit tests. */
@@ -140,17 +181,163 @@ public class ApfFilter implements AndroidPacketFilter {
     /**
      * When APFv4 is supported, loads R1 with the offset of the specified counter.
      */
-    private void maybeSetupCounter(ApfV4Generator gen, Counter c) {
+    private void maybeSetupCounter(ApfV4GeneratorBase<?> gen, Counter c) {
         if (mApfCapabilities.hasDataAccess()) {
             gen.addLoadImmediate(R1, c.offset());
         }
     }
 
     // When APFv4 is supported, these point to the trampolines generated by emitEpilogue().
-    // Otherwise, they're just aliases for PASS_LABEL and DROP_LABEL.
+    // Otherwise, they're just aliases for PASS_LABEL and DROP_LABEL. Unused on APFv6.
     private final String mCountAndPassLabel;
     private final String mCountAndDropLabel;
 
+    // Whether the program uses the APFv6 instructions, which requires the flag and an interpreter
+    // that supports them. If so, the program is generated by ApfV6Generator, and counters are
+    // incremented by the count-and-pass and count-and-drop instructions instead of the
+    // trampolines.
+    private final boolean mIsApfV6;
+
+    // On APFv6, the counters that conditional jumps in the prologue count before passing or
+    // dropping the packet. emitEpilogue() appends one count-and-pass or count-and-drop instruction
+    // for each, labeled by getCountAndPassLabel() or getCountAndDropLabel().
+    private static final String COUNT_AND_PASS_LABEL_PREFIX = "countAndPass_";
+    private static final String COUNT_AND_DROP_LABEL_PREFIX = "countAndDrop_";
+    @GuardedBy("this")
+    private final EnumSet<Counter> mProloguePassCounters = EnumSet.noneOf(Counter.class);
+    @GuardedBy("this")
+    private final EnumSet<Counter> mPrologueDropCounters = EnumSet.noneOf(Counter.class);
+
+    /**
+     * Returns the label that a conditional jump must target to count {@code c} and pass the
+     * packet. On APFv4 this loads R1 with the offset of {@code c}, so it must be called after any
+     * other use of R1 and before the jump.
+     */
+    @GuardedBy("this")
+    private String getCountAndPassLabel(ApfV4GeneratorBase<?> gen, Counter c) {
+        if (!mIsApfV6) {
+            maybeSetupCounter(gen, c);
+            return mCountAndPassLabel;
+        }
+        mProloguePassCounters.add(c);
+        return COUNT_AND_PASS_LABEL_PREFIX + c.name();
+    }
+
+    /**
+     * Returns the label that a conditional jump must target to count {@code c} and drop the
+     * packet. See {@link #getCountAndPassLabel}.
+     */
+    @GuardedBy("this")
+    private String getCountAndDropLabel(ApfV4GeneratorBase<?> gen, Counter c) {
+        if (!mIsApfV6) {
+            maybeSetupCounter(gen, c);
+            return mCountAndDropLabel;
+        }
+        mPrologueDropCounters.add(c);
+        return COUNT_AND_DROP_LABEL_PREFIX + c.name();
+    }
+
+    /**
+     * Appends instructions that unconditionally count {@code c} and pass the packet.
+     */
+    private void addCountAndPass(ApfV4GeneratorBase<?> gen, Counter c) {
+        if (mIsApfV6) {
+            ((ApfV6Generator) gen).addCountAndPass(c.value());
+        } else {
+            maybeSetupCounter(gen, c);
+            gen.addJump(mCountAndPassLabel);
+        }
+    }
+
+    /**
+     * Appends instructions that unconditionally count {@code c} and drop the packet.
+     */
+    private void addCountAndDrop(ApfV4GeneratorBase<?> gen, Counter c) {
+        if (mIsApfV6) {
+            ((ApfV6Generator) gen).addCountAndDrop(c.value());
+        } else {
+            maybeSetupCounter(gen, c);
+            gen.addJump(mCountAndDropLabel);
+        }
+    }
+
+    // The rules counted by the program being generated, indexed by per-rule counter number. The
+    // rules counted by the prologue come first, so a cached prologue keeps its counter numbers.
+    @GuardedBy("this")
+    private final ArrayList<String> mRuleCounterRules = new ArrayList<>();
+    @GuardedBy("this")
+    private int mNumPrologueRuleCounters;
+    @GuardedBy("this")
+    private final ApfRuleCounterTracker mRuleCounterTracker = new ApfRuleCounterTracker();
+
+    /**
+     * When per-rule counters are enabled, appends instructions that increment the counter of
+     * {@code rule}, allocating one for it if needed. Clobbers R0 and R1, so it must immediately
+     * precede counting and passing or dropping the packet.
+     */
+    @GuardedBy("this")
+    private void maybeAddCountRuleHit(ApfV4GeneratorBase<?> gen, @Nullable String rule)
+            throws IllegalInstructionException {
+        if (!mShouldCountRules || rule == null) return;
+        int counterNumber = mRuleCounterRules.indexOf(rule);
+        if (counterNumber < 0) {
+            counterNumber = mRuleCounterRules.size();
+            mRuleCounterRules.add(rule);
+        }
+        gen.addLoadImmediate(R1, ApfRuleCounterTracker.getCounterOffset(counterNumber));
+        gen.addLoadData(R0, 0);   // R0 = *(R1 + 0)
+        gen.addAdd(1);            // R0++
+        gen.addStoreData(R0, 0);  // *(R1 + 0) = R0
+    }
+
+    // Counts the packets handled by the filter sections shared with LegacyApfFilter. Only called
+    // while generating a program, when the lock is already held.
+    private final ApfFilterSection.Host mSectionHost = new ApfFilterSection.Host() {
+        @Override
+        public void maybeAddCountRuleHit(@NonNull ApfV4GeneratorBase<?> gen,
+                @Nullable String rule) throws IllegalInstructionException {
+            synchronized (ApfFilter.this) {
+                ApfFilter.this.maybeAddCountRuleHit(gen, rule);
+            }
+        }
+
+        @Override
+        public void addCountAndDrop(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter c) {
+            ApfFilter.this.addCountAndDrop(gen, c);
+        }
+
+        @Override
+        public void addCountAndPass(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter c) {
+            ApfFilter.this.addCountAndPass(gen, c);
+        }
+
+        @Override
+        @NonNull
+        public String getCountAndDropLabel(@NonNull ApfV4GeneratorBase<?> gen,
+                @NonNull Counter c) {
+            synchronized (ApfFilter.this) {
+                return ApfFilter.this.getCountAndDropLabel(gen, c);
+            }
+        }
+
+        @Override
+        @NonNull
+        public String getCountAndPassLabel(@NonNull ApfV4GeneratorBase<?> gen,
+                @NonNull Counter c) {
+            synchronized (ApfFilter.this) {
+                return ApfFilter.this.getCountAndPassLabel(gen, c);
+            }
+        }
+    };
+
+    /**
+     * Returns a new, empty generator for the APF version supported by the interpreter.
+     */
+    private ApfV4GeneratorBase<?> createGenerator() throws IllegalInstructionException {
+        if (mIsApfV6) return new ApfV6Generator();
+        return new ApfV4Generator(mApfCapabilities.apfVersionSupported);
+    }
+
     // Thread to listen for RAs.
     @VisibleForTesting
     public class ReceiveThread extends Thread {
@@ -191,11 +378,11 @@ public class ApfFilter implements AndroidPacketFilter {
 
     private static final int ETH_HEADER_LEN = 14;
     private static final int ETH_DEST_ADDR_OFFSET = 0;
+    private static final int ETH_SRC_ADDR_OFFSET = 6;
     private static final int ETH_ETHERTYPE_OFFSET = 12;
     private static final int ETH_TYPE_MIN = 0x0600;
     private static final int ETH_TYPE_MAX = 0xFFFF;
     // TODO: Make these offsets relative to end of link-layer header; don't include ETH_HEADER_LEN.
-    private static final int IPV4_TOTAL_LENGTH_OFFSET = ETH_HEADER_LEN + 2;
     private static final int IPV4_FRAGMENT_OFFSET_OFFSET = ETH_HEADER_LEN + 6;
     // Endianness is not an issue for this constant because the APF interpreter always operates in
     // network byte order.
@@ -204,7 +391,6 @@ public class ApfFilter implements AndroidPacketFilter {
     private static final int IPV4_PROTOCOL_OFFSET = ETH_HEADER_LEN + 9;
     private static final int IPV4_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 16;
     private static final int IPV4_ANY_HOST_ADDRESS = 0;
-    private static final int IPV4_BROADCAST_ADDRESS = -1; // 255.255.255.255
     private static final int IPV4_HEADER_LEN = 20; // Without options
 
     // Traffic class and Flow label are not byte aligned. Luckily we
@@ -213,14 +399,21 @@ public class ApfFilter implements AndroidPacketFilter {
     private static final int IPV6_FLOW_LABEL_OFFSET = ETH_HEADER_LEN + 1;
     private static final int IPV6_FLOW_LABEL_LEN = 3;
     private static final int IPV6_NEXT_HEADER_OFFSET = ETH_HEADER_LEN + 6;
+    private static final int IPV6_HOP_LIMIT_OFFSET = ETH_HEADER_LEN + 7;
     private static final int IPV6_SRC_ADDR_OFFSET = ETH_HEADER_LEN + 8;
     private static final int IPV6_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 24;
     private static final int IPV6_HEADER_LEN = 40;
-    // The IPv6 all nodes address ff02::1
-    private static final byte[] IPV6_ALL_NODES_ADDRESS =
-            { (byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
 
     private static final int ICMP6_TYPE_OFFSET = ETH_HEADER_LEN + IPV6_HEADER_LEN;
+    private static final int ICMP6_CODE_OFFSET = ICMP6_TYPE_OFFSET + 1;
+    private static final int ICMP6_CHECKSUM_OFFSET = ICMP6_TYPE_OFFSET + 2;
+    // The target address of neighbor solicitations and advertisements.
+    private static final int ICMP6_ND_TARGET_OFFSET = ICMP6_TYPE_OFFSET + 8;
+    // ICMPv6 header, flags, target address and a target link-layer address option.
+    private static final int ICMP6_NA_WITH_TLLA_LEN = 8 + IPV6_ADDR_LEN + 8;
+    private static final int IPV6_NA_WITH_TLLA_LEN =
+            ETH_HEADER_LEN + IPV6_HEADER_LEN + ICMP6_NA_WITH_TLLA_LEN;
+    private static final int IPV6_ND_HOP_LIMIT = 255;
 
     private static final int IPPROTO_HOPOPTS = 0;
 
@@ -228,12 +421,6 @@ public class ApfFilter implements AndroidPacketFilter {
     private static final int TCP_UDP_DESTINATION_PORT_OFFSET = ETH_HEADER_LEN + 2;
     private static final int UDP_HEADER_LEN = 8;
 
-    private static final int TCP_HEADER_SIZE_OFFSET = 12;
-
-    private static final int DHCP_CLIENT_PORT = 68;
-    // NOTE: this must be added to the IPv4 header length in IPV4_HEADER_SIZE_MEMORY_SLOT
-    private static final int DHCP_CLIENT_MAC_OFFSET = ETH_HEADER_LEN + UDP_HEADER_LEN + 28;
-
     private static final int ARP_HEADER_OFFSET = ETH_HEADER_LEN;
     private static final byte[] ARP_IPV4_HEADER = {
             0, 1, // Hardware type: Ethernet (1)
@@ -245,8 +432,10 @@ public class ApfFilter implements AndroidPacketFilter {
     // Opcode: ARP request (0x0001), ARP reply (0x0002)
     private static final short ARP_OPCODE_REQUEST = 1;
     private static final short ARP_OPCODE_REPLY = 2;
+    private static final int ARP_SOURCE_HW_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 8;
     private static final int ARP_SOURCE_IP_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 14;
     private static final int ARP_TARGET_IP_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 24;
+    private static final int ARP_ETHER_IPV4_LEN = ARP_HEADER_OFFSET + 28;
     // Limit on the Black List size to cap on program usage for this
     // TODO: Select a proper max length
     private static final int APF_MAX_ETH_TYPE_BLACK_LIST_LEN = 20;
@@ -256,22 +445,76 @@ public class ApfFilter implements AndroidPacketFilter {
     private static final byte[] ETH_MULTICAST_MDNS_V6_MAC_ADDRESS =
             {(byte) 0x33, (byte) 0x33, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xfb};
     private static final int MDNS_PORT = 5353;
+    private static final byte[] IPV4_MDNS_MULTICAST_ADDRESS = {(byte) 224, 0, 0, (byte) 251};
+    private static final int MDNS_IPV4_TTL = 255;
 
     private static final int ECHO_PORT = 7;
-    private static final int DNS_HEADER_LEN = 12;
+    private static final int DNS_FLAGS_OFFSET = 2;
+    private static final int DNS_FLAGS_QR_MASK = 0x8000;
     private static final int DNS_QDCOUNT_OFFSET = 4;
+    private static final int DNS_ANCOUNT_OFFSET = 6;
     // NOTE: this must be added to the IPv4 header length in IPV4_HEADER_SIZE_MEMORY_SLOT, or the
     // IPv6 header length.
     private static final int MDNS_QDCOUNT_OFFSET =
             ETH_HEADER_LEN + UDP_HEADER_LEN + DNS_QDCOUNT_OFFSET;
-    private static final int MDNS_QNAME_OFFSET =
-            ETH_HEADER_LEN + UDP_HEADER_LEN + DNS_HEADER_LEN;
+    private static final int MDNS_FLAGS_OFFSET =
+            ETH_HEADER_LEN + UDP_HEADER_LEN + DNS_FLAGS_OFFSET;
+    private static final int MDNS_ANCOUNT_OFFSET =
+            ETH_HEADER_LEN + UDP_HEADER_LEN + DNS_ANCOUNT_OFFSET;
+    private static final int MDNS_HEADER_OFFSET = ETH_HEADER_LEN + UDP_HEADER_LEN;
+    private static final int DNS_TYPE_A = 1;
+    private static final int DNS_TYPE_PTR = 12;
+    private static final int DNS_TYPE_TXT = 16;
+    private static final int DNS_TYPE_AAAA = 28;
+    private static final int DNS_TYPE_SRV = 33;
+    private static final int DNS_TYPE_ANY = 255;
+    // The qtypes that the APFv6 mDNS filter matches allowlisted names against with the DNS
+    // question matching instructions, which only match one qtype at a time: PTR, SRV and TXT for
+    // service discovery, A and AAAA for host name resolution, and ANY for probing. Questions with
+    // other qtypes are matched by the slower APFv4 matcher.
+    private static final int[] MDNS_QTYPES = {
+            DNS_TYPE_PTR, DNS_TYPE_SRV, DNS_TYPE_TXT, DNS_TYPE_A, DNS_TYPE_AAAA, DNS_TYPE_ANY};
+    // The largest mDNS response that an offload rule can send, so that it fits in one frame.
+    private static final int MAX_MDNS_OFFLOAD_RESPONSE_LEN =
+            1500 - IPV4_HEADER_LEN - UDP_HEADER_LEN;
+    // The most bytes that a single data copy instruction can copy.
+    private static final int MAX_DATA_COPY_LEN = 255;
 
 
     private final ApfCapabilities mApfCapabilities;
     private final IpClientCallbacksWrapper mIpClientCallback;
     private final InterfaceParams mInterfaceParams;
     private final TokenBucket mTokenBucket;
+    // Time it takes mTokenBucket to generate a new token.
+    private static final int TOKEN_BUCKET_DELTA_MS = 3_000;
+
+    // Program installs requested within this many milliseconds of each other are coalesced into
+    // one. If 0, programs are installed synchronously.
+    private final long mInstallCoalescingWindowMs;
+    // Handler that runs deferred program installs, or null if installs cannot be deferred.
+    @Nullable
+    private final Handler mHandler;
+    // Elapsed realtime, from mClock, at which the deferred program install is scheduled to run,
+    // or -1 if there is none.
+    @GuardedBy("this")
+    private long mDeferredInstallTimeMs = -1;
+    // Whether the deferred program install is only for changes to the RAs, and so takes a token
+    // from mTokenBucket when it runs.
+    @GuardedBy("this")
+    private boolean mDeferredInstallTakesToken;
+    private final Runnable mDeferredInstall = this::runDeferredInstall;
+    // Elapsed realtime at which the refresh alarm is set to go off, or -1 if it is not set.
+    @GuardedBy("this")
+    private long mRefreshAlarmTimeMs = -1;
+    // Regenerates the program when the first RA filter in it expires, to remove the expired
+    // filters and make room for RAs that did not fit.
+    private final AlarmManager.OnAlarmListener mRefreshAlarmListener = () -> {
+        synchronized (ApfFilter.this) {
+            if (mRefreshAlarmTimeMs < 0) return;
+            mRefreshAlarmTimeMs = -1;
+            requestInstallLocked();
+        }
+    };
 
     @VisibleForTesting
     public byte[] mHardwareAddress;
@@ -313,6 +556,55 @@ public class ApfFilter implements AndroidPacketFilter {
     // and PIO valid lifetimes.
     private final int mAcceptRaMinLft;
     private final boolean mShouldHandleLightDoze;
+    // Whether RA filters are merged into a trie that checks shared MATCH sections only once.
+    private final boolean mShouldMergeRaFilters;
+    // Whether to run the generator's optimization pass on the generated program.
+    private final boolean mShouldOptimizeProgram;
+    // Maximum number of RAs to keep track of and filter for.
+    private final int mMaxRas;
+    // Whether APFv6 programs reply to ARP requests for our IPv4 address.
+    private final boolean mShouldOffloadArp;
+    // Whether APFv6 programs reply to neighbor solicitations for our IPv6 addresses.
+    private final boolean mShouldOffloadNs;
+    // Whether APFv6 programs reply to mDNS queries that have an offload rule.
+    private final boolean mShouldOffloadMdns;
+    // Whether the program counts the packets matched by each RA filter, keepalive filter and mDNS
+    // allowlist entry in per-rule counters. Requires APFv4 data access.
+    private final boolean mShouldCountRules;
+    // Whether the ARP, IPv4 and IPv6 filters, and the RA filters, are ordered by how many packets
+    // they handle. Requires APFv4 data access.
+    private final boolean mShouldReorderFilters;
+    // Whether the program drops the multicast packets sent to groups not joined on the interface
+    // while the multicast filter is off.
+    private final boolean mShouldFilterMulticastByGroup;
+    // How often the joined multicast groups are read while the multicast filter is off, right
+    // after it is turned off or the groups change. Joining a group does not notify us, so packets
+    // sent to a group joined while the groups are filtered may be dropped until the next read.
+    // Handler delays do not count while the device is suspended.
+    private static final long MULTICAST_GROUPS_REFRESH_INTERVAL_MS = 5_000;
+    // While the groups do not change, the interval doubles after each read, up to this.
+    private static final long MAX_MULTICAST_GROUPS_REFRESH_INTERVAL_MS = 30_000;
+    // The multicast groups joined on the interface, as last read from the kernel, or null if they
+    // have not been read since the multicast filter was turned off or could not be read, in which
+    // case all multicast passes while the multicast filter is off.
+    @GuardedBy("this")
+    @Nullable
+    private List<Inet4Address> mIPv4MulticastGroups;
+    @GuardedBy("this")
+    @Nullable
+    private List<Inet6Address> mIPv6MulticastGroups;
+    // Whether the groups changed at the last read. Apps usually join or leave several groups in a
+    // row, so all multicast passes until a read finds the same groups as the previous one.
+    @GuardedBy("this")
+    private boolean mMulticastGroupsChanged;
+    @GuardedBy("this")
+    private long mMulticastGroupsRefreshIntervalMs = MULTICAST_GROUPS_REFRESH_INTERVAL_MS;
+    private final Runnable mRefreshMulticastGroups = this::refreshMulticastGroups;
+
+    // Counts a sample of the packets that reach the host by the part of the program that handles
+    // them, or null if disabled.
+    @Nullable
+    private final HostPacketSampler mHostPacketSampler;
 
     private final NetworkQuirkMetrics mNetworkQuirkMetrics;
     private final IpClientRaInfoMetrics mIpClientRaInfoMetrics;
@@ -370,13 +662,16 @@ public class ApfFilter implements AndroidPacketFilter {
     // The subnet prefix length of our IPv4 network. Only valid if mIPv4Address is not null.
     @GuardedBy("this")
     private int mIPv4PrefixLength;
+    // Our non-tentative IPv6 addresses. Only tracked when neighbor solicitations are offloaded.
+    @GuardedBy("this")
+    private List<Inet6Address> mIPv6Addresses = Collections.emptyList();
 
     private final Dependencies mDependencies;
 
     public ApfFilter(Context context, ApfConfiguration config, InterfaceParams ifParams,
             IpClientCallbacksWrapper ipClientCallback, NetworkQuirkMetrics networkQuirkMetrics) {
         this(context, config, ifParams, ipClientCallback, networkQuirkMetrics,
-                new Dependencies(context), new Clock());
+                new Dependencies(context, config.handler), new Clock());
     }
 
     @VisibleForTesting
@@ -400,7 +695,18 @@ public class ApfFilter implements AndroidPacketFilter {
         mAcceptRaMinLft = config.acceptRaMinLft;
         mContext = context;
         mShouldHandleLightDoze = config.shouldHandleLightDoze;
+        mShouldMergeRaFilters = config.shouldMergeRaFilters;
+        mShouldOptimizeProgram = config.shouldOptimizeProgram;
+        mShouldOffloadArp = config.shouldOffloadArp;
+        mShouldOffloadNs = config.shouldOffloadNs;
+        mShouldOffloadMdns = config.shouldOffloadMdns;
+        mShouldCountRules = config.shouldCountRules && mApfCapabilities.hasDataAccess();
+        mShouldReorderFilters = config.shouldReorderFilters && mApfCapabilities.hasDataAccess();
+        mShouldFilterMulticastByGroup = config.shouldFilterMulticastByGroup;
+        mMaxRas = config.maxRas > 0 ? config.maxRas : DEFAULT_MAX_RAS;
+        mInstallCoalescingWindowMs = config.installCoalescingWindowMs;
         mDependencies = dependencies;
+        mHandler = dependencies.getHandler();
         mNetworkQuirkMetrics = networkQuirkMetrics;
         mIpClientRaInfoMetrics = dependencies.getIpClientRaInfoMetrics();
         mApfSessionInfoMetrics = dependencies.getApfSessionInfoMetrics();
@@ -408,6 +714,8 @@ public class ApfFilter implements AndroidPacketFilter {
         mSessionStartMs = mClock.elapsedRealtime();
         mMinMetricsSessionDurationMs = config.minMetricsSessionDurationMs;
 
+        mIsApfV6 = config.shouldGenerateV6Program
+                && mApfCapabilities.apfVersionSupported >= MIN_APF_VERSION_IN_DEV;
         if (mApfCapabilities.hasDataAccess()) {
             mCountAndPassLabel = "countAndPass";
             mCountAndDropLabel = "countAndDrop";
@@ -428,7 +736,17 @@ public class ApfFilter implements AndroidPacketFilter {
         // The TokenBucket starts with its full capacity of 20 tokens (= 20 filter updates). A new
         // token is generated every 3 seconds limiting the filter update rate to at most once every
         // 3 seconds.
-        mTokenBucket = new TokenBucket(3_000 /* deltaMs */, 20 /* capacity */, 20 /* tokens */);
+        mTokenBucket = new TokenBucket(TOKEN_BUCKET_DELTA_MS, 20 /* capacity */, 20 /* tokens */);
+
+        // The groups are read on the handler, since reading them blocks on the kernel. Until then,
+        // all multicast passes.
+        if (mShouldFilterMulticastByGroup && !mMulticastFilter && mHandler != null) {
+            mHandler.post(mRefreshMulticastGroups);
+        }
+
+        mHostPacketSampler = config.shouldSampleHostPackets
+                ? mDependencies.createHostPacketSampler(ifParams) : null;
+        if (mHostPacketSampler != null) mHostPacketSampler.start();
 
         // TODO: ApfFilter should not generate programs until IpClient sends provisioning success.
         maybeStartFilter();
@@ -443,8 +761,11 @@ public class ApfFilter implements AndroidPacketFilter {
     @VisibleForTesting
     public static class Dependencies {
         private final Context mContext;
-        public Dependencies(final Context context) {
+        @Nullable
+        private final Handler mHandler;
+        public Dependencies(final Context context, @Nullable final Handler handler) {
             mContext = context;
+            mHandler = handler;
         }
 
         /** Add receiver for detecting doze mode change */
@@ -475,11 +796,94 @@ public class ApfFilter implements AndroidPacketFilter {
         public IpClientRaInfoMetrics getIpClientRaInfoMetrics() {
             return new IpClientRaInfoMetrics();
         }
+
+        /**
+         * Get the Handler to run deferred work on, or null if there is none.
+         */
+        @Nullable
+        public Handler getHandler() {
+            return mHandler;
+        }
+
+        /**
+         * Get the IPv4 multicast groups joined on the interface, or null if they cannot be read.
+         */
+        @Nullable
+        public List<Inet4Address> getIPv4MulticastAddresses(@NonNull String ifname) {
+            return ProcfsParsingUtils.getIPv4MulticastAddresses(ifname);
+        }
+
+        /**
+         * Get the IPv6 multicast groups joined on the interface, or null if they cannot be read.
+         */
+        @Nullable
+        public List<Inet6Address> getIPv6MulticastAddresses(@NonNull String ifname) {
+            return ProcfsParsingUtils.getIPv6MulticastAddresses(ifname);
+        }
+
+        /**
+         * Create a HostPacketSampler that counts the packets reaching the host on the interface,
+         * on the IpClient handler returned by {@link #getHandler}, or null if there is none.
+         */
+        @Nullable
+        public HostPacketSampler createHostPacketSampler(@NonNull InterfaceParams ifParams) {
+            final Handler handler = getHandler();
+            return handler != null ? new HostPacketSampler(handler, ifParams) : null;
+        }
+
+        /**
+         * Set a non-wakeup alarm that calls {@code listener} on the main thread at
+         * {@code triggerAtMs}, in elapsed realtime. Replaces any alarm set with the same listener.
+         */
+        public void setAlarm(long triggerAtMs, @NonNull AlarmManager.OnAlarmListener listener) {
+            mContext.getSystemService(AlarmManager.class).set(AlarmManager.ELAPSED_REALTIME,
+                    triggerAtMs, TAG, listener, null /* targetHandler */);
+        }
+
+        /** Cancel the alarm set with {@code listener}. */
+        public void cancelAlarm(@NonNull AlarmManager.OnAlarmListener listener) {
+            mContext.getSystemService(AlarmManager.class).cancel(listener);
+        }
     }
 
     public synchronized void setDataSnapshot(byte[] data) {
         mDataSnapshot = data;
-        mApfCounterTracker.updateCountersFromData(data);
+        mApfCounterTracker.updateCountersFromData(data, mClock.elapsedRealtime());
+        if (mShouldCountRules) mRuleCounterTracker.updateFromData(data);
+        if (mShouldReorderFilters) maybeReorderFiltersLocked();
+    }
+
+    /**
+     * Reorder the ARP, IPv4 and IPv6 filters by the number of packets they handled recently, most
+     * first, and install a new program if the order changed.
+     */
+    @GuardedBy("this")
+    private void maybeReorderFiltersLocked() {
+        final List<FilterBlock> order = getFilterBlockOrderByHitsLocked();
+        if (order.equals(mFilterBlockOrder)) return;
+        log("Reordering filters: " + mFilterBlockOrder + " -> " + order);
+        mFilterBlockOrder = order;
+        invalidatePrologueLocked();
+        requestInstallLocked();
+    }
+
+    @GuardedBy("this")
+    private List<FilterBlock> getFilterBlockOrderByHitsLocked() {
+        final long[] hits = new long[FilterBlock.values().length];
+        long totalHits = 0;
+        for (ApfCounterTracker.CounterDeltas deltas : mApfCounterTracker.getCounterDeltas()) {
+            for (Counter c : Counter.class.getEnumConstants()) {
+                final FilterBlock block = FilterBlock.forCounter(c);
+                if (block == null) continue;
+                hits[block.ordinal()] += deltas.getDelta(c);
+                totalHits += deltas.getDelta(c);
+            }
+        }
+        if (totalHits < MIN_PACKETS_TO_REORDER_FILTERS) return mFilterBlockOrder;
+        // The sort is stable, so filters that handled as many packets keep their current order.
+        final ArrayList<FilterBlock> order = new ArrayList<>(mFilterBlockOrder);
+        order.sort((a, b) -> Long.compare(hits[b.ordinal()], hits[a.ordinal()]));
+        return order;
     }
 
     private void log(String s) {
@@ -575,6 +979,15 @@ public class ApfFilter implements AndroidPacketFilter {
             LIFETIME,  // A lifetime. Not matched, and counts toward minimum RA lifetime if >= min.
         }
 
+        // The lowest lifetime metric that a LIFETIME section counts towards.
+        public enum Metric {
+            NONE,
+            ROUTER,
+            PIO_VALID,
+            RIO_ROUTE,
+            RDNSS,
+        }
+
         /** The type of section. */
         public final Type type;
         /** Offset into the packet at which this section begins. */
@@ -585,8 +998,19 @@ public class ApfFilter implements AndroidPacketFilter {
         public final long lifetime;
         /** If this is a lifetime, the value below which the lifetime is ignored */
         public final int min;
+        /** If this is a lifetime, the lowest lifetime metric it counts towards. */
+        public final Metric metric;
+        /**
+         * If this is a match section, the bytes to match, or null if not copied from the packet
+         * yet. Cached so that regenerating the program does not copy them every time.
+         */
+        private byte[] mMatchBytes;
 
         PacketSection(int start, int length, Type type, long lifetime, int min) {
+            this(start, length, type, lifetime, min, Metric.NONE);
+        }
+
+        PacketSection(int start, int length, Type type, long lifetime, int min, Metric metric) {
             this.start = start;
 
             if (type == Type.LIFETIME && length != 2 && length != 4) {
@@ -605,6 +1029,7 @@ public class ApfFilter implements AndroidPacketFilter {
                 throw new IllegalArgumentException("min must be >= 0 for LIFETIME sections");
             }
             this.min = min;
+            this.metric = metric;
         }
 
         public String toString() {
@@ -674,6 +1099,18 @@ public class ApfFilter implements AndroidPacketFilter {
         private final int mMinLifetime;
         // When the packet was last captured, in seconds since Unix Epoch
         private final int mLastSeen;
+        // Size of the filter emitted by generateFilterLocked() before jump offsets are shrunk, or
+        // -1 if not calculated yet. Only depends on mPacketSections, which never change.
+        private int mFilterSizeOverEstimate = -1;
+        // Number of zero lifetimes in the packet, for metrics. Counted here rather than in
+        // mNumZeroLifetimeRas because RAs are parsed without holding the ApfFilter lock.
+        final int mNumZeroLifetimes;
+        // Key used to look up the RAs this RA may match. See getRaMatchKey().
+        final int mMatchKey;
+        // The rule whose per-rule counter counts the RAs dropped by this RA's filter. Set when
+        // the RA is added to mRas, and kept by the RAs that update it.
+        @GuardedBy("ApfFilter.this")
+        String mRuleCounterKey;
 
         // For debugging only. Offsets into the packet where PIOs are.
         private final ArrayList<Integer> mPrefixOptionOffsets = new ArrayList<>();
@@ -831,11 +1268,13 @@ public class ApfFilter implements AndroidPacketFilter {
          * @param length the length of the section in bytes
          * @param lifetime the lifetime
          * @param min the minimum acceptable lifetime
+         * @param metric the lowest lifetime metric the lifetime counts towards
          */
-        private void addLifetimeSection(int length, long lifetime, int min) {
+        private void addLifetimeSection(int length, long lifetime, int min,
+                PacketSection.Metric metric) {
             mPacketSections.add(
                     new PacketSection(mPacket.position(), length, PacketSection.Type.LIFETIME,
-                            lifetime, min));
+                            lifetime, min, metric));
             mPacket.position(mPacket.position() + length);
         }
 
@@ -843,11 +1282,13 @@ public class ApfFilter implements AndroidPacketFilter {
          * Adds packet sections for an RA option with a 4-byte lifetime 4 bytes into the option
          * @param optionLength the length of the option in bytes
          * @param min the minimum acceptable lifetime
+         * @param metric the lowest lifetime metric the lifetime counts towards
          */
-        private long add4ByteLifetimeOption(int optionLength, int min) {
+        private long add4ByteLifetimeOption(int optionLength, int min,
+                PacketSection.Metric metric) {
             addMatchSection(ICMP6_4_BYTE_LIFETIME_OFFSET);
             final long lifetime = getUint32(mPacket, mPacket.position());
-            addLifetimeSection(ICMP6_4_BYTE_LIFETIME_LEN, lifetime, min);
+            addLifetimeSection(ICMP6_4_BYTE_LIFETIME_LEN, lifetime, min, metric);
             addMatchSection(optionLength - ICMP6_4_BYTE_LIFETIME_OFFSET
                     - ICMP6_4_BYTE_LIFETIME_LEN);
             return lifetime;
@@ -892,7 +1333,9 @@ public class ApfFilter implements AndroidPacketFilter {
             }
 
             mPacket = ByteBuffer.wrap(Arrays.copyOf(packet, length));
+            mMatchKey = getRaMatchKey(packet, length);
             mLastSeen = secondsSinceBoot();
+            int numZeroLifetimes = 0;
 
             // Check packet in case a packet arrives before we attach RA filter
             // to our packet socket. b/29586253
@@ -917,8 +1360,9 @@ public class ApfFilter implements AndroidPacketFilter {
             // Parse router lifetime
             addMatchUntil(ICMP6_RA_ROUTER_LIFETIME_OFFSET);
             mRouterLifetime = getUint16(mPacket, ICMP6_RA_ROUTER_LIFETIME_OFFSET);
-            addLifetimeSection(ICMP6_RA_ROUTER_LIFETIME_LEN, mRouterLifetime, mAcceptRaMinLft);
-            if (mRouterLifetime == 0) mNumZeroLifetimeRas++;
+            addLifetimeSection(ICMP6_RA_ROUTER_LIFETIME_LEN, mRouterLifetime, mAcceptRaMinLft,
+                    PacketSection.Metric.ROUTER);
+            if (mRouterLifetime == 0) numZeroLifetimes++;
 
             // Add remaining fields (reachable time and retransmission timer) to match section.
             addMatchUntil(ICMP6_RA_OPTION_OFFSET);
@@ -941,17 +1385,17 @@ public class ApfFilter implements AndroidPacketFilter {
                         addMatchSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_OFFSET);
                         lifetime = getUint32(mPacket, mPacket.position());
                         addLifetimeSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_LEN,
-                                lifetime, mAcceptRaMinLft);
+                                lifetime, mAcceptRaMinLft, PacketSection.Metric.PIO_VALID);
                         mMinPioValidLifetime = getMinForPositiveValue(
                                 mMinPioValidLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
+                        if (lifetime == 0) numZeroLifetimes++;
 
                         // Parse preferred lifetime
                         lifetime = getUint32(mPacket, mPacket.position());
                         // The PIO preferred lifetime is not affected by accept_ra_min_lft and
                         // therefore does not have a minimum.
                         addLifetimeSection(ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_LEN,
-                                lifetime, 0 /* min lifetime */);
+                                lifetime, 0 /* min lifetime */, PacketSection.Metric.NONE);
 
                         addMatchSection(4);       // Reserved bytes
                         addMatchSection(IPV6_ADDR_LEN);  // The prefix itself
@@ -960,16 +1404,18 @@ public class ApfFilter implements AndroidPacketFilter {
                     // are processed with the same specialized add4ByteLifetimeOption:
                     case ICMP6_RDNSS_OPTION_TYPE:
                         mRdnssOptionOffsets.add(position);
-                        lifetime = add4ByteLifetimeOption(optionLength, mMinRdnssLifetimeSec);
+                        lifetime = add4ByteLifetimeOption(optionLength, mMinRdnssLifetimeSec,
+                                PacketSection.Metric.RDNSS);
                         mMinRdnssLifetime = getMinForPositiveValue(mMinRdnssLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
+                        if (lifetime == 0) numZeroLifetimes++;
                         break;
                     case ICMP6_ROUTE_INFO_OPTION_TYPE:
                         mRioOptionOffsets.add(position);
-                        lifetime = add4ByteLifetimeOption(optionLength, mAcceptRaMinLft);
+                        lifetime = add4ByteLifetimeOption(optionLength, mAcceptRaMinLft,
+                                PacketSection.Metric.RIO_ROUTE);
                         mMinRioRouteLifetime = getMinForPositiveValue(
                                 mMinRioRouteLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
+                        if (lifetime == 0) numZeroLifetimes++;
                         break;
                     case ICMP6_SOURCE_LL_ADDRESS_OPTION_TYPE:
                     case ICMP6_MTU_OPTION_TYPE:
@@ -989,6 +1435,7 @@ public class ApfFilter implements AndroidPacketFilter {
                 }
             }
             mMinLifetime = minLifetime();
+            mNumZeroLifetimes = numZeroLifetimes;
         }
 
         public enum MatchType {
@@ -997,16 +1444,22 @@ public class ApfFilter implements AndroidPacketFilter {
             MATCH_DROP, // the RAs match, but the APF program would drop.
         }
 
-        // Considering only the MATCH sections, does {@code packet} match this RA?
+        // Considering only the MATCH sections, does {@code newRa} match this RA?
         MatchType matches(Ra newRa) {
+            return matches(newRa.mPacket.array(), newRa.mPacket.capacity());
+        }
+
+        // Considering only the MATCH sections, does the RA in the first {@code length} bytes of
+        // {@code newPacket} match this RA? Works on the raw packet, so that RAs that repeat a
+        // known RA can be handled without parsing or copying them.
+        MatchType matches(byte[] newPacket, int length) {
             // Does their size match?
-            if (newRa.mPacket.capacity() != mPacket.capacity()) return MatchType.NO_MATCH;
+            if (length != mPacket.capacity()) return MatchType.NO_MATCH;
 
             // If the filter has expired, it cannot match the new RA.
             if (getRemainingFilterLft(secondsSinceBoot()) <= 0) return MatchType.NO_MATCH;
 
             // Check if all MATCH sections are byte-identical.
-            final byte[] newPacket = newRa.mPacket.array();
             final byte[] oldPacket = mPacket.array();
             for (PacketSection section : mPacketSections) {
                 if (section.type != PacketSection.Type.MATCH) continue;
@@ -1024,12 +1477,7 @@ public class ApfFilter implements AndroidPacketFilter {
                 if (section.type != PacketSection.Type.LIFETIME) continue;
 
                 // the lifetime of the new RA.
-                long lft = 0;
-                switch (section.length) {
-                    // section.length is guaranteed to be 2 or 4.
-                    case 2: lft = getUint16(newRa.mPacket, section.start); break;
-                    case 4: lft = getUint32(newRa.mPacket, section.start); break;
-                }
+                final long lft = getLifetime(newPacket, section);
 
                 // WARNING: keep this in sync with Ra#generateFilterLocked()!
                 if (section.lifetime == 0) {
@@ -1101,6 +1549,35 @@ public class ApfFilter implements AndroidPacketFilter {
             return MatchType.MATCH_DROP;
         }
 
+        // Updates the lowest lifetime and zero lifetime metrics for the RA in {@code newPacket},
+        // which has the same layout as this RA because it matches it.
+        @GuardedBy("ApfFilter.this")
+        void updateLifetimeMetricsLocked(byte[] newPacket) {
+            for (PacketSection section : mPacketSections) {
+                if (section.metric == PacketSection.Metric.NONE) continue;
+                final long lft = getLifetime(newPacket, section);
+                if (lft == 0) mNumZeroLifetimeRas++;
+                switch (section.metric) {
+                    case ROUTER:
+                        mLowestRouterLifetimeSeconds = getMinForPositiveValue(
+                                mLowestRouterLifetimeSeconds, (int) lft);
+                        break;
+                    case PIO_VALID:
+                        mLowestPioValidLifetimeSeconds = getMinForPositiveValue(
+                                mLowestPioValidLifetimeSeconds, lft);
+                        break;
+                    case RIO_ROUTE:
+                        mLowestRioRouteLifetimeSeconds = getMinForPositiveValue(
+                                mLowestRioRouteLifetimeSeconds, lft);
+                        break;
+                    case RDNSS:
+                        mLowestRdnssLifetimeSeconds = getMinForPositiveValue(
+                                mLowestRdnssLifetimeSeconds, lft);
+                        break;
+                }
+            }
+        }
+
         // What is the minimum of all lifetimes within {@code packet} in seconds?
         // Precondition: matches(packet, length) already returned true.
         private int minLifetime() {
@@ -1132,10 +1609,26 @@ public class ApfFilter implements AndroidPacketFilter {
             return Math.min(65535, filterLifetime);
         }
 
+        // Returns an overestimate of the number of bytes the filter for this RA adds to the
+        // program. Before generate() shrinks them, all jump instructions use 4-byte immediates,
+        // so the size does not depend on the lifetime values or on where the filter is placed.
+        @GuardedBy("ApfFilter.this")
+        int getFilterSizeOverEstimateLocked() throws IllegalInstructionException {
+            if (mFilterSizeOverEstimate < 0) {
+                final ApfV4GeneratorBase<?> gen = createGenerator();
+                final int numRuleCounters = mRuleCounterRules.size();
+                generateFilterLocked(gen, mLastSeen);
+                // Not part of the program being generated, so don't keep its per-rule counter.
+                mRuleCounterRules.subList(numRuleCounters, mRuleCounterRules.size()).clear();
+                mFilterSizeOverEstimate = gen.programLengthOverEstimate();
+            }
+            return mFilterSizeOverEstimate;
+        }
+
         // Append a filter for this RA to {@code gen}. Jump to DROP_LABEL if it should be dropped.
         // Jump to the next filter if packet doesn't match this RA.
         @GuardedBy("ApfFilter.this")
-        void generateFilterLocked(ApfV4Generator gen, int timeSeconds)
+        void generateFilterLocked(ApfV4GeneratorBase<?> gen, int timeSeconds)
                 throws IllegalInstructionException {
             String nextFilterLabel = "Ra" + getUniqueNumberLocked();
             // Skip if packet is not the right size
@@ -1147,312 +1640,222 @@ public class ApfFilter implements AndroidPacketFilter {
             for (PacketSection section : mPacketSections) {
                 // Generate code to match the packet bytes.
                 if (section.type == PacketSection.Type.MATCH) {
-                    gen.addLoadImmediate(R0, section.start);
-                    gen.addJumpIfBytesAtR0NotEqual(
-                            Arrays.copyOfRange(mPacket.array(), section.start,
-                                    section.start + section.length),
-                            nextFilterLabel);
+                    generateMatchSection(gen, section, nextFilterLabel);
                 } else {
-                    switch (section.length) {
-                        // length asserted to be either 2 or 4 on PacketSection construction
-                        case 2: gen.addLoad16(R0, section.start); break;
-                        case 4: gen.addLoad32(R0, section.start); break;
-                    }
-
-                    // WARNING: keep this in sync with matches()!
-                    // For more information on lifetime comparisons in the APF bytecode, see
-                    // go/apf-ra-filter.
-                    if (section.lifetime == 0) {
-                        // Case 1) old lft == 0
-                        if (section.min > 0) {
-                            // a) in the presence of a min value.
-                            // if lft >= min -> PASS
-                            gen.addJumpIfR0GreaterThan(section.min - 1, nextFilterLabel);
-                        } else {
-                            // b) if min is 0 / there is no min value.
-                            // if lft > 0 -> PASS
-                            gen.addJumpIfR0GreaterThan(0, nextFilterLabel);
-                        }
-                    } else if (section.min == 0) {
-                        // Case 2b) section is not affected by any minimum.
-                        //
-                        // if lft < (oldLft + 2) // 3 -> PASS
-                        // if lft > oldLft            -> PASS
-                        gen.addJumpIfR0LessThan(((section.lifetime + 2) / 3),
-                                nextFilterLabel);
-                        gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
-                    } else if (section.lifetime < section.min) {
-                        // Case 2a) 0 < old lft < min
-                        //
-                        // if lft == 0   -> PASS
-                        // if lft >= min -> PASS
-                        gen.addJumpIfR0Equals(0, nextFilterLabel);
-                        gen.addJumpIfR0GreaterThan(section.min - 1, nextFilterLabel);
-                    } else if (section.lifetime <= 3 * (long) section.min) {
-                        // Case 3a) min <= old lft <= 3 * min
-                        // Note that:
-                        // "(old lft + 2) / 3 <= min" is equivalent to "old lft <= 3 * min"
-                        //
-                        // Essentially, in this range there is no "renumbering support", as the
-                        // renumbering constant of 1/3 * old lft is smaller than the minimum
-                        // lifetime accepted by the kernel / userspace.
-                        //
-                        // if lft == 0     -> PASS
-                        // if lft > oldLft -> PASS
-                        gen.addJumpIfR0Equals(0, nextFilterLabel);
-                        gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
-                    } else {
-                        final String continueLabel = "Continue" + getUniqueNumberLocked();
-                        // Case 4a) otherwise
-                        //
-                        // if lft == 0                  -> PASS
-                        // if lft < min                 -> CONTINUE
-                        // if lft < (oldLft + 2) // 3   -> PASS
-                        // if lft > oldLft              -> PASS
-                        gen.addJumpIfR0Equals(0, nextFilterLabel);
-                        gen.addJumpIfR0LessThan(section.min, continueLabel);
-                        gen.addJumpIfR0LessThan(((section.lifetime + 2) / 3),
-                                nextFilterLabel);
-                        gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
-
-                        // CONTINUE
-                        gen.defineLabel(continueLabel);
-                    }
+                    generateLifetimeSectionLocked(gen, section, nextFilterLabel);
                 }
             }
-            maybeSetupCounter(gen, Counter.DROPPED_RA);
-            gen.addJump(mCountAndDropLabel);
+            maybeAddCountRuleHit(gen, mRuleCounterKey);
+            addCountAndDrop(gen, Counter.DROPPED_RA);
             gen.defineLabel(nextFilterLabel);
         }
-    }
-
-    // TODO: Refactor these subclasses to avoid so much repetition.
-    private abstract static class KeepalivePacket {
-        // Note that the offset starts from IP header.
-        // These must be added ether header length when generating program.
-        static final int IP_HEADER_OFFSET = 0;
-        static final int IPV4_SRC_ADDR_OFFSET = IP_HEADER_OFFSET + 12;
-
-        // Append a filter for this keepalive ack to {@code gen}.
-        // Jump to drop if it matches the keepalive ack.
-        // Jump to the next filter if packet doesn't match the keepalive ack.
-        abstract void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException;
-    }
-
-    // A class to hold NAT-T keepalive ack information.
-    private class NattKeepaliveResponse extends KeepalivePacket {
-        static final int UDP_LENGTH_OFFSET = 4;
-        static final int UDP_HEADER_LEN = 8;
-
-        protected class NattKeepaliveResponseData {
-            public final byte[] srcAddress;
-            public final int srcPort;
-            public final byte[] dstAddress;
-            public final int dstPort;
-
-            NattKeepaliveResponseData(final NattKeepalivePacketDataParcelable sentKeepalivePacket) {
-                srcAddress = sentKeepalivePacket.dstAddress;
-                srcPort = sentKeepalivePacket.dstPort;
-                dstAddress = sentKeepalivePacket.srcAddress;
-                dstPort = sentKeepalivePacket.srcPort;
-            }
-        }
-
-        protected final NattKeepaliveResponseData mPacket;
-        protected final byte[] mSrcDstAddr;
-        protected final byte[] mPortFingerprint;
-        // NAT-T keepalive packet
-        protected final byte[] mPayload = {(byte) 0xff};
-
-        NattKeepaliveResponse(final NattKeepalivePacketDataParcelable sentKeepalivePacket) {
-            mPacket = new NattKeepaliveResponseData(sentKeepalivePacket);
-            mSrcDstAddr = concatArrays(mPacket.srcAddress, mPacket.dstAddress);
-            mPortFingerprint = generatePortFingerprint(mPacket.srcPort, mPacket.dstPort);
-        }
 
-        byte[] generatePortFingerprint(int srcPort, int dstPort) {
-            final ByteBuffer fp = ByteBuffer.allocate(4);
-            fp.order(ByteOrder.BIG_ENDIAN);
-            fp.putShort((short) srcPort);
-            fp.putShort((short) dstPort);
-            return fp.array();
-        }
-
-        @Override
+        // Append the part of the filter for this RA that follows its MATCH sections: the filter
+        // age check and the LIFETIME sections. Used by generateRaTrieLocked(), which has already
+        // checked the packet size and the MATCH sections.
         @GuardedBy("ApfFilter.this")
-        void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
-            final String nextFilterLabel = "natt_keepalive_filter" + getUniqueNumberLocked();
-
-            gen.addLoadImmediate(R0, ETH_HEADER_LEN + IPV4_SRC_ADDR_OFFSET);
-            gen.addJumpIfBytesAtR0NotEqual(mSrcDstAddr, nextFilterLabel);
-
-            // A NAT-T keepalive packet contains 1 byte payload with the value 0xff
-            // Check payload length is 1
-            gen.addLoadFromMemory(R0, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
-            gen.addAdd(UDP_HEADER_LEN);
-            gen.addSwap();
-            gen.addLoad16(R0, IPV4_TOTAL_LENGTH_OFFSET);
-            gen.addNeg(R1);
-            gen.addAddR1();
-            gen.addJumpIfR0NotEquals(1, nextFilterLabel);
-
-            // Check that the ports match
-            gen.addLoadFromMemory(R0, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
-            gen.addAdd(ETH_HEADER_LEN);
-            gen.addJumpIfBytesAtR0NotEqual(mPortFingerprint, nextFilterLabel);
-
-            // Payload offset = R0 + UDP header length
-            gen.addAdd(UDP_HEADER_LEN);
-            gen.addJumpIfBytesAtR0NotEqual(mPayload, nextFilterLabel);
-
-            maybeSetupCounter(gen, Counter.DROPPED_IPV4_NATT_KEEPALIVE);
-            gen.addJump(mCountAndDropLabel);
+        void generateLifetimeFilterLocked(ApfV4GeneratorBase<?> gen, int timeSeconds)
+                throws IllegalInstructionException {
+            String nextFilterLabel = "Ra" + getUniqueNumberLocked();
+            // Skip filter if expired
+            gen.addLoadFromMemory(R0, gen.FILTER_AGE_MEMORY_SLOT);
+            gen.addJumpIfR0GreaterThan(getRemainingFilterLft(timeSeconds), nextFilterLabel);
+            for (PacketSection section : mPacketSections) {
+                if (section.type != PacketSection.Type.LIFETIME) continue;
+                generateLifetimeSectionLocked(gen, section, nextFilterLabel);
+            }
+            maybeAddCountRuleHit(gen, mRuleCounterKey);
+            addCountAndDrop(gen, Counter.DROPPED_RA);
             gen.defineLabel(nextFilterLabel);
         }
 
-        public String toString() {
-            try {
-                return String.format("%s -> %s",
-                        ConnectivityUtils.addressAndPortToString(
-                                InetAddress.getByAddress(mPacket.srcAddress), mPacket.srcPort),
-                        ConnectivityUtils.addressAndPortToString(
-                                InetAddress.getByAddress(mPacket.dstAddress), mPacket.dstPort));
-            } catch (UnknownHostException e) {
-                return "Unknown host";
+        // Returns the MATCH sections of this RA, in packet order.
+        List<PacketSection> getMatchSections() {
+            final ArrayList<PacketSection> sections = new ArrayList<>();
+            for (PacketSection section : mPacketSections) {
+                if (section.type == PacketSection.Type.MATCH) sections.add(section);
             }
+            return sections;
         }
-    }
 
-    // A class to hold TCP keepalive ack information.
-    private abstract static class TcpKeepaliveAck extends KeepalivePacket {
-        protected static class TcpKeepaliveAckData {
-            public final byte[] srcAddress;
-            public final int srcPort;
-            public final byte[] dstAddress;
-            public final int dstPort;
-            public final int seq;
-            public final int ack;
-
-            // Create the characteristics of the ack packet from the sent keepalive packet.
-            TcpKeepaliveAckData(final TcpKeepalivePacketDataParcelable sentKeepalivePacket) {
-                srcAddress = sentKeepalivePacket.dstAddress;
-                srcPort = sentKeepalivePacket.dstPort;
-                dstAddress = sentKeepalivePacket.srcAddress;
-                dstPort = sentKeepalivePacket.srcPort;
-                seq = sentKeepalivePacket.ack;
-                ack = sentKeepalivePacket.seq + 1;
+        // Returns whether the bytes covered by {@code section} of this RA are identical to the
+        // ones covered by {@code otherSection} of {@code other}.
+        boolean isSameMatchSection(PacketSection section, Ra other, PacketSection otherSection) {
+            if (section.start != otherSection.start || section.length != otherSection.length) {
+                return false;
             }
-        }
-
-        protected final TcpKeepaliveAckData mPacket;
-        protected final byte[] mSrcDstAddr;
-        protected final byte[] mPortSeqAckFingerprint;
-
-        TcpKeepaliveAck(final TcpKeepaliveAckData packet, final byte[] srcDstAddr) {
-            mPacket = packet;
-            mSrcDstAddr = srcDstAddr;
-            mPortSeqAckFingerprint = generatePortSeqAckFingerprint(mPacket.srcPort,
-                    mPacket.dstPort, mPacket.seq, mPacket.ack);
-        }
-
-        static byte[] generatePortSeqAckFingerprint(int srcPort, int dstPort, int seq, int ack) {
-            final ByteBuffer fp = ByteBuffer.allocate(12);
-            fp.order(ByteOrder.BIG_ENDIAN);
-            fp.putShort((short) srcPort);
-            fp.putShort((short) dstPort);
-            fp.putInt(seq);
-            fp.putInt(ack);
-            return fp.array();
-        }
-
-        public String toString() {
-            try {
-                return String.format("%s -> %s , seq=%d, ack=%d",
-                        ConnectivityUtils.addressAndPortToString(
-                                InetAddress.getByAddress(mPacket.srcAddress), mPacket.srcPort),
-                        ConnectivityUtils.addressAndPortToString(
-                                InetAddress.getByAddress(mPacket.dstAddress), mPacket.dstPort),
-                        Integer.toUnsignedLong(mPacket.seq),
-                        Integer.toUnsignedLong(mPacket.ack));
-            } catch (UnknownHostException e) {
-                return "Unknown host";
+            final byte[] packet = mPacket.array();
+            final byte[] otherPacket = other.mPacket.array();
+            for (int i = section.start; i < (section.start + section.length); i++) {
+                if (packet[i] != otherPacket[i]) return false;
             }
+            return true;
         }
 
-        // Append a filter for this keepalive ack to {@code gen}.
-        // Jump to drop if it matches the keepalive ack.
-        // Jump to the next filter if packet doesn't match the keepalive ack.
-        abstract void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException;
-    }
-
-    private class TcpKeepaliveAckV4 extends TcpKeepaliveAck {
-
-        TcpKeepaliveAckV4(final TcpKeepalivePacketDataParcelable sentKeepalivePacket) {
-            this(new TcpKeepaliveAckData(sentKeepalivePacket));
-        }
-        TcpKeepaliveAckV4(final TcpKeepaliveAckData packet) {
-            super(packet, concatArrays(packet.srcAddress, packet.dstAddress) /* srcDstAddr */);
+        // Append code that jumps to {@code nextFilterLabel} if the packet bytes covered by the
+        // MATCH {@code section} differ from this RA.
+        void generateMatchSection(ApfV4GeneratorBase<?> gen, PacketSection section,
+                String nextFilterLabel) throws IllegalInstructionException {
+            if (section.mMatchBytes == null) {
+                section.mMatchBytes = Arrays.copyOfRange(mPacket.array(), section.start,
+                        section.start + section.length);
+            }
+            gen.addLoadImmediate(R0, section.start);
+            gen.addJumpIfBytesAtR0NotEqual(section.mMatchBytes, nextFilterLabel);
         }
 
-        @Override
+        // Append code that jumps to {@code nextFilterLabel} if the lifetime in the packet at the
+        // LIFETIME {@code section} should cause the packet to be passed.
         @GuardedBy("ApfFilter.this")
-        void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
-            final String nextFilterLabel = "keepalive_ack" + getUniqueNumberLocked();
-
-            gen.addLoadImmediate(R0, ETH_HEADER_LEN + IPV4_SRC_ADDR_OFFSET);
-            gen.addJumpIfBytesAtR0NotEqual(mSrcDstAddr, nextFilterLabel);
-
-            // Skip to the next filter if it's not zero-sized :
-            // TCP_HEADER_SIZE + IPV4_HEADER_SIZE - ipv4_total_length == 0
-            // Load the IP header size into R1
-            gen.addLoadFromMemory(R1, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
-            // Load the TCP header size into R0 (it's indexed by R1)
-            gen.addLoad8Indexed(R0, ETH_HEADER_LEN + TCP_HEADER_SIZE_OFFSET);
-            // Size offset is in the top nibble, but it must be multiplied by 4, and the two
-            // top bits of the low nibble are guaranteed to be zeroes. Right-shift R0 by 2.
-            gen.addRightShift(2);
-            // R0 += R1 -> R0 contains TCP + IP headers length
-            gen.addAddR1();
-            // Load IPv4 total length
-            gen.addLoad16(R1, IPV4_TOTAL_LENGTH_OFFSET);
-            gen.addNeg(R0);
-            gen.addAddR1();
-            gen.addJumpIfR0NotEquals(0, nextFilterLabel);
-            // Add IPv4 header length
-            gen.addLoadFromMemory(R1, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
-            gen.addLoadImmediate(R0, ETH_HEADER_LEN);
-            gen.addAddR1();
-            gen.addJumpIfBytesAtR0NotEqual(mPortSeqAckFingerprint, nextFilterLabel);
+        private void generateLifetimeSectionLocked(ApfV4GeneratorBase<?> gen, PacketSection section,
+                String nextFilterLabel) throws IllegalInstructionException {
+            switch (section.length) {
+                // length asserted to be either 2 or 4 on PacketSection construction
+                case 2: gen.addLoad16(R0, section.start); break;
+                case 4: gen.addLoad32(R0, section.start); break;
+            }
 
-            maybeSetupCounter(gen, Counter.DROPPED_IPV4_KEEPALIVE_ACK);
-            gen.addJump(mCountAndDropLabel);
-            gen.defineLabel(nextFilterLabel);
+            // WARNING: keep this in sync with matches()!
+            // For more information on lifetime comparisons in the APF bytecode, see
+            // go/apf-ra-filter.
+            if (section.lifetime == 0) {
+                // Case 1) old lft == 0
+                if (section.min > 0) {
+                    // a) in the presence of a min value.
+                    // if lft >= min -> PASS
+                    gen.addJumpIfR0GreaterThan(section.min - 1, nextFilterLabel);
+                } else {
+                    // b) if min is 0 / there is no min value.
+                    // if lft > 0 -> PASS
+                    gen.addJumpIfR0GreaterThan(0, nextFilterLabel);
+                }
+            } else if (section.min == 0) {
+                // Case 2b) section is not affected by any minimum.
+                //
+                // if lft < (oldLft + 2) // 3 -> PASS
+                // if lft > oldLft            -> PASS
+                gen.addJumpIfR0LessThan(((section.lifetime + 2) / 3),
+                        nextFilterLabel);
+                gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
+            } else if (section.lifetime < section.min) {
+                // Case 2a) 0 < old lft < min
+                //
+                // if lft == 0   -> PASS
+                // if lft >= min -> PASS
+                gen.addJumpIfR0Equals(0, nextFilterLabel);
+                gen.addJumpIfR0GreaterThan(section.min - 1, nextFilterLabel);
+            } else if (section.lifetime <= 3 * (long) section.min) {
+                // Case 3a) min <= old lft <= 3 * min
+                // Note that:
+                // "(old lft + 2) / 3 <= min" is equivalent to "old lft <= 3 * min"
+                //
+                // Essentially, in this range there is no "renumbering support", as the
+                // renumbering constant of 1/3 * old lft is smaller than the minimum
+                // lifetime accepted by the kernel / userspace.
+                //
+                // if lft == 0     -> PASS
+                // if lft > oldLft -> PASS
+                gen.addJumpIfR0Equals(0, nextFilterLabel);
+                gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
+            } else {
+                final String continueLabel = "Continue" + getUniqueNumberLocked();
+                // Case 4a) otherwise
+                //
+                // if lft == 0                  -> PASS
+                // if lft < min                 -> CONTINUE
+                // if lft < (oldLft + 2) // 3   -> PASS
+                // if lft > oldLft              -> PASS
+                gen.addJumpIfR0Equals(0, nextFilterLabel);
+                gen.addJumpIfR0LessThan(section.min, continueLabel);
+                gen.addJumpIfR0LessThan(((section.lifetime + 2) / 3),
+                        nextFilterLabel);
+                gen.addJumpIfR0GreaterThan(section.lifetime, nextFilterLabel);
+
+                // CONTINUE
+                gen.defineLabel(continueLabel);
+            }
         }
     }
 
-    private class TcpKeepaliveAckV6 extends TcpKeepaliveAck {
-        TcpKeepaliveAckV6(final TcpKeepalivePacketDataParcelable sentKeepalivePacket) {
-            this(new TcpKeepaliveAckData(sentKeepalivePacket));
-        }
-        TcpKeepaliveAckV6(final TcpKeepaliveAckData packet) {
-            super(packet, concatArrays(packet.srcAddress, packet.dstAddress) /* srcDstAddr */);
+    // Maximum number of RAs to filter for, if not set in the ApfConfiguration.
+    private static final int DEFAULT_MAX_RAS = 10;
+
+    // An immutable view of mRas, with the RAs indexed by match key.
+    @VisibleForTesting
+    static class RaSnapshot {
+        static final RaSnapshot EMPTY = new RaSnapshot(Collections.emptyList());
+
+        // The RAs, most recently seen first.
+        final List<Ra> ras;
+        // The RAs, grouped by match key. Each group is ordered like ras.
+        private final SparseArray<List<Ra>> mRasByMatchKey = new SparseArray<>();
+
+        RaSnapshot(List<Ra> ras) {
+            this.ras = ras;
+            for (Ra ra : ras) {
+                List<Ra> group = mRasByMatchKey.get(ra.mMatchKey);
+                if (group == null) {
+                    group = new ArrayList<>(1);
+                    mRasByMatchKey.put(ra.mMatchKey, group);
+                }
+                group.add(ra);
+            }
         }
 
-        @Override
-        void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
-            throw new UnsupportedOperationException("IPv6 TCP Keepalive is not supported yet");
+        // Returns the RAs that an RA with the specified match key can match.
+        List<Ra> getRasWithMatchKey(int matchKey) {
+            final List<Ra> group = mRasByMatchKey.get(matchKey);
+            return group != null ? group : Collections.emptyList();
         }
     }
 
-    // Maximum number of RAs to filter for.
-    private static final int MAX_RAS = 10;
-
+    // Known RAs, least recently seen first, so that both refreshing and evicting an RA are O(1).
+    @GuardedBy("this")
+    private final LinkedHashSet<Ra> mRas = new LinkedHashSet<>();
+    // Immutable view of mRas, replaced whenever mRas changes. Allows matching new RAs against the
+    // known ones without holding the lock.
+    private volatile RaSnapshot mRasSnapshot = RaSnapshot.EMPTY;
+    @GuardedBy("this")
+    private final KeepaliveFilters mKeepaliveFilters = new KeepaliveFilters();
     @GuardedBy("this")
-    private ArrayList<Ra> mRas = new ArrayList<>();
+    private final MulticastFilters mMulticastFilters = new MulticastFilters();
+    // Generates the filter sections shared with LegacyApfFilter, and tracks their sizes.
     @GuardedBy("this")
-    private SparseArray<KeepalivePacket> mKeepalivePackets = new SparseArray<>();
+    private final ApfFilterPipeline mFilterPipeline = new ApfFilterPipeline(mSectionHost,
+            List.of(mMulticastFilters.getIPv4Section(), mKeepaliveFilters.getTcpV4Section(),
+                    mKeepaliveFilters.getNattV4Section(), mKeepaliveFilters.getTcpV6Section(),
+                    mMulticastFilters.getIcmpv6Section()));
     @GuardedBy("this")
     private final List<String[]> mMdnsAllowList = new ArrayList<>();
+    // Whether the mDNS filter passes all mDNS packets instead of matching them against
+    // mMdnsAllowList, because the program does not fit otherwise. Cleared when the allowlist or
+    // the multicast filter changes, to try the allowlist again. Other changes to the prologue do
+    // not clear it, so that programs do not alternate between the two mDNS filters. The APF
+    // capabilities never change during the lifetime of the filter.
+    @GuardedBy("this")
+    private boolean mPassAllMdnsForSize = false;
+    // The number of RA and keepalive filters left out of the last program because it was full.
+    @GuardedBy("this")
+    private int mNumFiltersLeftOutForSize = 0;
+    @GuardedBy("this")
+    private final List<MdnsOffloadRule> mMdnsOffloadRules = new ArrayList<>();
+    // Offsets of the canned responses of mMdnsOffloadRules in the program data, or null if the
+    // current prologue does not contain them.
+    @GuardedBy("this")
+    private int[] mMdnsResponseDataOffsets;
+
+    /** A canned mDNS response that APFv6 programs send for queries for one name and qtype. */
+    private static class MdnsOffloadRule {
+        public final String[] labels;
+        public final int qtype;
+        public final byte[] response;
+
+        MdnsOffloadRule(String[] labels, int qtype, byte[] response) {
+            this.labels = labels;
+            this.qtype = qtype;
+            this.response = response;
+        }
+    }
 
     // We don't want to filter an RA for it's whole lifetime as it'll be expired by the time we ever
     // see a refresh.  Using half the lifetime might be a good idea except for the fact that
@@ -1470,6 +1873,106 @@ public class ApfFilter implements AndroidPacketFilter {
     @GuardedBy("this")
     private byte[] mLastInstalledProgram;
 
+    // Generator containing the most recently emitted prologue, and the mark at which the prologue
+    // ends. The prologue only depends on state that changes rarely (multicast filter, doze mode,
+    // IPv4 address, keepalives and mDNS allowlist), so when only the RAs change, the program is
+    // regenerated by truncating this generator back to the end of the prologue and appending the
+    // RA filters and epilogue. Must be invalidated whenever an input of the prologue changes.
+    @GuardedBy("this") @Nullable
+    private ApfV4GeneratorBase<?> mPrologueGen;
+    @GuardedBy("this")
+    private int mPrologueEndMark;
+
+    /**
+     * The filters of the prologue that each handle a single ethertype. Since each ends in either
+     * passing or dropping the packet, they can be emitted in any order, and a packet runs the
+     * ethertype checks of all the filters that precede its own.
+     */
+    @VisibleForTesting
+    public enum FilterBlock {
+        ARP,
+        IPV4,
+        IPV6;
+
+        /**
+         * Returns the filter that increments {@code counter}, or null if it is not specific to
+         * one of them.
+         *
+         * Every counter must be listed here, so that adding a counter requires deciding which
+         * filter it belongs to.
+         */
+        @Nullable
+        public static FilterBlock forCounter(Counter counter) {
+            switch (counter) {
+                case PASSED_ARP:
+                case PASSED_ARP_NON_IPV4:
+                case PASSED_ARP_UNKNOWN:
+                case PASSED_ARP_UNICAST_REPLY:
+                case DROPPED_GARP_REPLY:
+                case DROPPED_ARP_OTHER_HOST:
+                case DROPPED_ARP_REPLY_SPA_NO_HOST:
+                case DROPPED_ARP_NON_IPV4:
+                case DROPPED_ARP_UNKNOWN:
+                case DROPPED_ARP_REQUEST_REPLIED:
+                    return ARP;
+                case PASSED_DHCP:
+                case PASSED_IPV4:
+                case PASSED_IPV4_UNICAST:
+                case DROPPED_IPV4_L2_BROADCAST:
+                case DROPPED_IPV4_BROADCAST_ADDR:
+                case DROPPED_IPV4_BROADCAST_NET:
+                case DROPPED_IPV4_MULTICAST:
+                case DROPPED_IPV4_KEEPALIVE_ACK:
+                case DROPPED_IPV4_NATT_KEEPALIVE:
+                case DROPPED_IPV4_TCP_PORT7_UNICAST:
+                    return IPV4;
+                case PASSED_IPV6_NON_ICMP:
+                case PASSED_IPV6_ICMP:
+                case PASSED_IPV6_UNICAST_NON_ICMP:
+                case DROPPED_RA:
+                case DROPPED_IPV6_ROUTER_SOLICITATION:
+                case DROPPED_IPV6_MULTICAST_NA:
+                case DROPPED_IPV6_MULTICAST:
+                case DROPPED_IPV6_MULTICAST_PING:
+                case DROPPED_IPV6_NON_ICMP_MULTICAST:
+                case DROPPED_IPV6_KEEPALIVE_ACK:
+                case DROPPED_IPV6_NS_REPLIED:
+                    return IPV6;
+                // Not packet counters, or counted before the ethertype filters (802.3 frames,
+                // denylisted ethertypes, mDNS) or after them (non-IP packets).
+                case RESERVED_OOB:
+                case ENDIANNESS:
+                case TOTAL_PACKETS:
+                case PASSED_ALLOCATE_FAILURE:
+                case PASSED_TRANSMIT_FAILURE:
+                case CORRUPT_DNS_PACKET:
+                case FILTER_AGE_SECONDS:
+                case FILTER_AGE_16384THS:
+                case PASSED_NON_IP_UNICAST:
+                case PASSED_MDNS:
+                case DROPPED_ETH_BROADCAST:
+                case DROPPED_802_3_FRAME:
+                case DROPPED_ETHERTYPE_DENYLISTED:
+                case DROPPED_MDNS:
+                case DROPPED_MDNS_REPLIED:
+                    return null;
+                default:
+                    throw new IllegalArgumentException("No filter block for counter " + counter);
+            }
+        }
+    }
+
+    private static final List<FilterBlock> DEFAULT_FILTER_BLOCK_ORDER =
+            List.of(FilterBlock.ARP, FilterBlock.IPV4, FilterBlock.IPV6);
+    // The number of packets the ARP, IPv4 and IPv6 filters must have handled during the counter
+    // intervals kept by ApfCounterTracker before they are reordered.
+    @VisibleForTesting
+    public static final int MIN_PACKETS_TO_REORDER_FILTERS = 100;
+
+    // The order in which emitPrologueLocked() emits the ARP, IPv4 and IPv6 filters.
+    @GuardedBy("this")
+    private List<FilterBlock> mFilterBlockOrder = DEFAULT_FILTER_BLOCK_ORDER;
+
     /**
      * For debugging only. Contains the latest APF buffer snapshot captured from the firmware.
      *
@@ -1486,6 +1989,9 @@ public class ApfFilter implements AndroidPacketFilter {
     // The maximum program size that updated since we started.
     @GuardedBy("this")
     private int mMaxProgramSize = 0;
+    // The maximum number of per-rule counters used by a program since we started.
+    @GuardedBy("this")
+    private int mMaxNumRuleCounters = 0;
     // The maximum number of distinct RAs
     @GuardedBy("this")
     private int mMaxDistinctRas = 0;
@@ -1500,7 +2006,8 @@ public class ApfFilter implements AndroidPacketFilter {
      *  - Packet being filtered is ARP
      */
     @GuardedBy("this")
-    private void generateArpFilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
+    private void generateArpFilterLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
         // Here's a basic summary of what the ARP filter program does:
         //
         // if not ARP IPv4
@@ -1517,48 +2024,92 @@ public class ApfFilter implements AndroidPacketFilter {
         // else
         //   if target ip is not the interface ip
         //      drop
+        //   if ARP offload is enabled and it's a request from a host with another ip
+        //      transmit a reply and drop
         // pass
 
         final String checkTargetIPv4 = "checkTargetIPv4";
 
         // Drop if not ARP IPv4.
         gen.addLoadImmediate(R0, ARP_HEADER_OFFSET);
-        maybeSetupCounter(gen, Counter.DROPPED_ARP_NON_IPV4);
-        gen.addJumpIfBytesAtR0NotEqual(ARP_IPV4_HEADER, mCountAndDropLabel);
+        gen.addJumpIfBytesAtR0NotEqual(ARP_IPV4_HEADER,
+                getCountAndDropLabel(gen, Counter.DROPPED_ARP_NON_IPV4));
 
         // Drop if unknown ARP opcode.
         gen.addLoad16(R0, ARP_OPCODE_OFFSET);
         gen.addJumpIfR0Equals(ARP_OPCODE_REQUEST, checkTargetIPv4); // Skip to unicast check
-        maybeSetupCounter(gen, Counter.DROPPED_ARP_UNKNOWN);
-        gen.addJumpIfR0NotEquals(ARP_OPCODE_REPLY, mCountAndDropLabel);
+        gen.addJumpIfR0NotEquals(ARP_OPCODE_REPLY,
+                getCountAndDropLabel(gen, Counter.DROPPED_ARP_UNKNOWN));
 
         // Drop if ARP reply source IP is 0.0.0.0
         gen.addLoad32(R0, ARP_SOURCE_IP_ADDRESS_OFFSET);
-        maybeSetupCounter(gen, Counter.DROPPED_ARP_REPLY_SPA_NO_HOST);
-        gen.addJumpIfR0Equals(IPV4_ANY_HOST_ADDRESS, mCountAndDropLabel);
+        gen.addJumpIfR0Equals(IPV4_ANY_HOST_ADDRESS,
+                getCountAndDropLabel(gen, Counter.DROPPED_ARP_REPLY_SPA_NO_HOST));
 
         // Pass if non-broadcast reply.
         gen.addLoadImmediate(R0, ETH_DEST_ADDR_OFFSET);
-        maybeSetupCounter(gen, Counter.PASSED_ARP_UNICAST_REPLY);
-        gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST, mCountAndPassLabel);
+        gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST,
+                getCountAndPassLabel(gen, Counter.PASSED_ARP_UNICAST_REPLY));
 
         // Either a request, or a broadcast reply.
         gen.defineLabel(checkTargetIPv4);
         if (mIPv4Address == null) {
             // When there is no IPv4 address, drop GARP replies (b/29404209).
             gen.addLoad32(R0, ARP_TARGET_IP_ADDRESS_OFFSET);
-            maybeSetupCounter(gen, Counter.DROPPED_GARP_REPLY);
-            gen.addJumpIfR0Equals(IPV4_ANY_HOST_ADDRESS, mCountAndDropLabel);
+            gen.addJumpIfR0Equals(IPV4_ANY_HOST_ADDRESS,
+                    getCountAndDropLabel(gen, Counter.DROPPED_GARP_REPLY));
         } else {
             // When there is an IPv4 address, drop unicast/broadcast requests
             // and broadcast replies with a different target IPv4 address.
             gen.addLoadImmediate(R0, ARP_TARGET_IP_ADDRESS_OFFSET);
-            maybeSetupCounter(gen, Counter.DROPPED_ARP_OTHER_HOST);
-            gen.addJumpIfBytesAtR0NotEqual(mIPv4Address, mCountAndDropLabel);
+            gen.addJumpIfBytesAtR0NotEqual(mIPv4Address,
+                    getCountAndDropLabel(gen, Counter.DROPPED_ARP_OTHER_HOST));
+
+            if (mIsApfV6 && mShouldOffloadArp && mHardwareAddress != null) {
+                generateArpOffloadLocked((ApfV6Generator) gen);
+            }
         }
 
-        maybeSetupCounter(gen, Counter.PASSED_ARP);
-        gen.addJump(mCountAndPassLabel);
+        addCountAndPass(gen, Counter.PASSED_ARP);
+    }
+
+    /**
+     * Generate code that replies to ARP requests for our IPv4 address from the firmware, and
+     * drops them. Requests from hosts that have no IPv4 address (probes, RFC 5227) or that claim
+     * our address (conflicts) are left to the kernel.
+     * Preconditions:
+     *  - Packet being filtered is an ARP IPv4 request or broadcast reply for our IPv4 address
+     */
+    @GuardedBy("this")
+    private void generateArpOffloadLocked(ApfV6Generator gen)
+            throws IllegalInstructionException {
+        final String skipArpOffload = "skipArpOffload";
+
+        gen.addLoad16(R0, ARP_OPCODE_OFFSET);
+        gen.addJumpIfR0NotEquals(ARP_OPCODE_REQUEST, skipArpOffload);
+        gen.addLoad32(R0, ARP_SOURCE_IP_ADDRESS_OFFSET);
+        gen.addJumpIfR0Equals(IPV4_ANY_HOST_ADDRESS, skipArpOffload);
+        gen.addLoadImmediate(R0, ARP_SOURCE_IP_ADDRESS_OFFSET);
+        gen.addJumpIfBytesAtR0Equal(mIPv4Address, skipArpOffload);
+
+        // Build the reply the same way as the kernel: send it to the sender hardware address, and
+        // target the sender hardware and protocol addresses.
+        gen.addAllocate(ARP_ETHER_IPV4_LEN);
+        gen.addPacketCopy(ARP_SOURCE_HW_ADDRESS_OFFSET, ETHER_ADDR_LEN);    // Ethernet dst
+        gen.addWriteU32(getUint32(mHardwareAddress, 0));                   // Ethernet src
+        gen.addWriteU16(getUint16(mHardwareAddress, 4));
+        gen.addWriteU16(ETH_P_ARP);                                        // EtherType
+        gen.addWriteU32(getUint32(ARP_IPV4_HEADER, 0));                    // htype, ptype
+        gen.addWriteU16(getUint16(ARP_IPV4_HEADER, 4));                    // hlen, plen
+        gen.addWriteU16(ARP_OPCODE_REPLY);                                 // opcode
+        gen.addWriteU32(getUint32(mHardwareAddress, 0));                   // sender hw addr
+        gen.addWriteU16(getUint16(mHardwareAddress, 4));
+        gen.addWriteU32(getUint32(mIPv4Address, 0));                       // sender ip addr
+        gen.addPacketCopy(ARP_SOURCE_HW_ADDRESS_OFFSET, ETHER_ADDR_LEN + IPV4_ADDR_LEN);
+        gen.addTransmitWithoutChecksum();
+        addCountAndDrop(gen, Counter.DROPPED_ARP_REQUEST_REPLIED);
+
+        gen.defineLabel(skipArpOffload);
     }
 
     /**
@@ -1568,7 +2119,8 @@ public class ApfFilter implements AndroidPacketFilter {
      *  - Packet being filtered is IPv4
      */
     @GuardedBy("this")
-    private void generateIPv4FilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
+    private void generateIPv4FilterLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
         // Here's a basic summary of what the IPv4 filter program does:
         //
         // if filtering multicast (i.e. multicast lock not held):
@@ -1582,55 +2134,22 @@ public class ApfFilter implements AndroidPacketFilter {
         //     drop
         // if keepalive ack
         //   drop
+        // if filtering multicast by group (i.e. multicast lock held):
+        //   if it's IPv4 multicast to a group not joined on the interface:
+        //     drop
         // pass
 
-        if (mMulticastFilter) {
-            final String skipDhcpv4Filter = "skip_dhcp_v4_filter";
-
-            // Pass DHCP addressed to us.
-            // Check it's UDP.
-            gen.addLoad8(R0, IPV4_PROTOCOL_OFFSET);
-            gen.addJumpIfR0NotEquals(IPPROTO_UDP, skipDhcpv4Filter);
-            // Check it's not a fragment or is the initial fragment.
-            gen.addLoad16(R0, IPV4_FRAGMENT_OFFSET_OFFSET);
-            gen.addJumpIfR0AnyBitsSet(IPV4_FRAGMENT_OFFSET_MASK, skipDhcpv4Filter);
-            // Check it's addressed to DHCP client port.
-            gen.addLoadFromMemory(R1, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
-            gen.addLoad16Indexed(R0, TCP_UDP_DESTINATION_PORT_OFFSET);
-            gen.addJumpIfR0NotEquals(DHCP_CLIENT_PORT, skipDhcpv4Filter);
-            // Check it's DHCP to our MAC address.
-            gen.addLoadImmediate(R0, DHCP_CLIENT_MAC_OFFSET);
-            // NOTE: Relies on R1 containing IPv4 header offset.
-            gen.addAddR1();
-            gen.addJumpIfBytesAtR0NotEqual(mHardwareAddress, skipDhcpv4Filter);
-            maybeSetupCounter(gen, Counter.PASSED_DHCP);
-            gen.addJump(mCountAndPassLabel);
-
-            // Drop all multicasts/broadcasts.
-            gen.defineLabel(skipDhcpv4Filter);
-
-            // If IPv4 destination address is in multicast range, drop.
-            gen.addLoad8(R0, IPV4_DEST_ADDR_OFFSET);
-            gen.addAnd(0xf0);
-            maybeSetupCounter(gen, Counter.DROPPED_IPV4_MULTICAST);
-            gen.addJumpIfR0Equals(0xe0, mCountAndDropLabel);
-
-            // If IPv4 broadcast packet, drop regardless of L2 (b/30231088).
-            maybeSetupCounter(gen, Counter.DROPPED_IPV4_BROADCAST_ADDR);
-            gen.addLoad32(R0, IPV4_DEST_ADDR_OFFSET);
-            gen.addJumpIfR0Equals(IPV4_BROADCAST_ADDRESS, mCountAndDropLabel);
-            if (mIPv4Address != null && mIPv4PrefixLength < 31) {
-                maybeSetupCounter(gen, Counter.DROPPED_IPV4_BROADCAST_NET);
-                int broadcastAddr = ipv4BroadcastAddress(mIPv4Address, mIPv4PrefixLength);
-                gen.addJumpIfR0Equals(broadcastAddr, mCountAndDropLabel);
-            }
-        }
+        // If filtering multicast, pass DHCP addressed to us and drop IPv4 multicasts and
+        // broadcasts
+        mMulticastFilters.setIPv4State(mMulticastFilter, mHardwareAddress, mIPv4Address,
+                mIPv4PrefixLength);
+        mFilterPipeline.generate(gen, mMulticastFilters.getIPv4Section());
 
         // If any TCP keepalive filter matches, drop
-        generateV4KeepaliveFilters(gen);
+        mFilterPipeline.generate(gen, mKeepaliveFilters.getTcpV4Section());
 
         // If any NAT-T keepalive filter matches, drop
-        generateV4NattKeepaliveFilters(gen);
+        mFilterPipeline.generate(gen, mKeepaliveFilters.getNattV4Section());
 
         // If TCP unicast on port 7, drop
         generateV4TcpPort7FilterLocked(gen);
@@ -1639,51 +2158,44 @@ public class ApfFilter implements AndroidPacketFilter {
             // Otherwise, this is an IPv4 unicast, pass
             // If L2 broadcast packet, drop.
             // TODO: can we invert this condition to fall through to the common pass case below?
-            maybeSetupCounter(gen, Counter.PASSED_IPV4_UNICAST);
             gen.addLoadImmediate(R0, ETH_DEST_ADDR_OFFSET);
-            gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST, mCountAndPassLabel);
-            maybeSetupCounter(gen, Counter.DROPPED_IPV4_L2_BROADCAST);
-            gen.addJump(mCountAndDropLabel);
+            gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST,
+                    getCountAndPassLabel(gen, Counter.PASSED_IPV4_UNICAST));
+            addCountAndDrop(gen, Counter.DROPPED_IPV4_L2_BROADCAST);
+        } else if (isFilteringMulticastGroupsLocked() && mIPv4MulticastGroups != null) {
+            generateIPv4MulticastGroupFilterLocked(gen);
         }
 
         // Otherwise, pass
-        maybeSetupCounter(gen, Counter.PASSED_IPV4);
-        gen.addJump(mCountAndPassLabel);
+        addCountAndPass(gen, Counter.PASSED_IPV4);
     }
 
+    /**
+     * Generate filter code that drops IPv4 multicast packets sent to groups that are not joined
+     * on the interface, which the kernel would drop anyway after waking up. Other packets fall
+     * through.
+     * Preconditions:
+     *  - Packet being filtered is IPv4
+     */
     @GuardedBy("this")
-    private void generateKeepaliveFilters(ApfV4Generator gen, Class<?> filterType, int proto,
-            int offset, String label) throws IllegalInstructionException {
-        final boolean haveKeepaliveResponses = CollectionUtils.any(mKeepalivePackets,
-                ack -> filterType.isInstance(ack));
-
-        // If no keepalive packets of this type
-        if (!haveKeepaliveResponses) return;
-
-        // If not the right proto, skip keepalive filters
-        gen.addLoad8(R0, offset);
-        gen.addJumpIfR0NotEquals(proto, label);
-
-        // Drop Keepalive responses
-        for (int i = 0; i < mKeepalivePackets.size(); ++i) {
-            final KeepalivePacket response = mKeepalivePackets.valueAt(i);
-            if (filterType.isInstance(response)) response.generateFilterLocked(gen);
+    private void generateIPv4MulticastGroupFilterLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
+        final String skipIPv4MulticastGroupFilter = "skip_ipv4_multicast_group_filter";
+
+        gen.addLoad8(R0, IPV4_DEST_ADDR_OFFSET);
+        gen.addAnd(0xf0);
+        gen.addJumpIfR0NotEquals(0xe0, skipIPv4MulticastGroupFilter);
+        if (!mIPv4MulticastGroups.isEmpty()) {
+            final LinkedHashSet<Long> groups = new LinkedHashSet<>();
+            for (Inet4Address group : mIPv4MulticastGroups) {
+                groups.add(getUint32(group.getAddress(), 0));
+            }
+            gen.addLoad32(R0, IPV4_DEST_ADDR_OFFSET);
+            gen.addJumpIfR0IsOneOf(groups, skipIPv4MulticastGroupFilter);
         }
+        addCountAndDrop(gen, Counter.DROPPED_IPV4_MULTICAST);
 
-        gen.defineLabel(label);
-    }
-
-    @GuardedBy("this")
-    private void generateV4KeepaliveFilters(ApfV4Generator gen) throws IllegalInstructionException {
-        generateKeepaliveFilters(gen, TcpKeepaliveAckV4.class, IPPROTO_TCP, IPV4_PROTOCOL_OFFSET,
-                "skip_v4_keepalive_filter");
-    }
-
-    @GuardedBy("this")
-    private void generateV4NattKeepaliveFilters(ApfV4Generator gen)
-            throws IllegalInstructionException {
-        generateKeepaliveFilters(gen, NattKeepaliveResponse.class,
-                IPPROTO_UDP, IPV4_PROTOCOL_OFFSET, "skip_v4_nattkeepalive_filter");
+        gen.defineLabel(skipIPv4MulticastGroupFilter);
     }
 
     /**
@@ -1693,7 +2205,8 @@ public class ApfFilter implements AndroidPacketFilter {
      *  - Packet being filtered is IPv6
      */
     @GuardedBy("this")
-    private void generateIPv6FilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
+    private void generateIPv6FilterLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
         // Here's a basic summary of what the IPv6 filter program does:
         //
         // if there is a hop-by-hop option present (e.g. MLD query)
@@ -1703,10 +2216,15 @@ public class ApfFilter implements AndroidPacketFilter {
         //     if it's multicast:
         //       drop
         //     pass
+        // else if filtering multicast by group:
+        //   if it's not ICMPv6 and it's multicast to a group not joined on the interface:
+        //     drop
         // if it's ICMPv6 RS to any:
         //   drop
         // if it's ICMPv6 NA to anything in ff02::/120
         //   drop
+        // if NS offload is enabled and it's an ICMPv6 NS for one of our addresses
+        //   transmit an NA and drop
         // if keepalive ack
         //   drop
 
@@ -1714,7 +2232,8 @@ public class ApfFilter implements AndroidPacketFilter {
 
         // MLD packets set the router-alert hop-by-hop option.
         // TODO: be smarter about not blindly passing every packet with HBH options.
-        gen.addJumpIfR0Equals(IPPROTO_HOPOPTS, mCountAndPassLabel);
+        gen.addJumpIfR0Equals(IPPROTO_HOPOPTS,
+                getCountAndPassLabel(gen, Counter.PASSED_IPV6_NON_ICMP));
 
         // Drop multicast if the multicast filter is enabled.
         if (mMulticastFilter) {
@@ -1737,47 +2256,139 @@ public class ApfFilter implements AndroidPacketFilter {
 
             // Drop all other packets sent to ff00::/8 (multicast prefix).
             gen.defineLabel(dropAllIPv6MulticastsLabel);
-            maybeSetupCounter(gen, Counter.DROPPED_IPV6_NON_ICMP_MULTICAST);
             gen.addLoad8(R0, IPV6_DEST_ADDR_OFFSET);
-            gen.addJumpIfR0Equals(0xff, mCountAndDropLabel);
+            gen.addJumpIfR0Equals(0xff,
+                    getCountAndDropLabel(gen, Counter.DROPPED_IPV6_NON_ICMP_MULTICAST));
             // If any keepalive filter matches, drop
-            generateV6KeepaliveFilters(gen);
+            mFilterPipeline.generate(gen, mKeepaliveFilters.getTcpV6Section());
             // Not multicast. Pass.
-            maybeSetupCounter(gen, Counter.PASSED_IPV6_UNICAST_NON_ICMP);
-            gen.addJump(mCountAndPassLabel);
+            addCountAndPass(gen, Counter.PASSED_IPV6_UNICAST_NON_ICMP);
             gen.defineLabel(skipIPv6MulticastFilterLabel);
         } else {
-            generateV6KeepaliveFilters(gen);
+            // If any keepalive filter matches, drop
+            if (mFilterPipeline.generate(gen, mKeepaliveFilters.getTcpV6Section())) {
+                // The keepalive filters clobber the next header in R0.
+                gen.addLoad8(R0, IPV6_NEXT_HEADER_OFFSET);
+            }
+            if (isFilteringMulticastGroupsLocked() && mIPv6MulticastGroups != null) {
+                generateIPv6MulticastGroupFilterLocked(gen);
+            }
             // If not ICMPv6, pass.
-            maybeSetupCounter(gen, Counter.PASSED_IPV6_NON_ICMP);
-            gen.addJumpIfR0NotEquals(IPPROTO_ICMPV6, mCountAndPassLabel);
+            gen.addJumpIfR0NotEquals(IPPROTO_ICMPV6,
+                    getCountAndPassLabel(gen, Counter.PASSED_IPV6_NON_ICMP));
         }
 
         // If we got this far, the packet is ICMPv6.  Drop some specific types.
 
-        // Add unsolicited multicast neighbor announcements filter
-        String skipUnsolicitedMulticastNALabel = "skipUnsolicitedMulticastNA";
-        gen.addLoad8(R0, ICMP6_TYPE_OFFSET);
-        // Drop all router solicitations (b/32833400)
-        maybeSetupCounter(gen, Counter.DROPPED_IPV6_ROUTER_SOLICITATION);
-        gen.addJumpIfR0Equals(ICMPV6_ROUTER_SOLICITATION, mCountAndDropLabel);
-        // If not neighbor announcements, skip filter.
-        gen.addJumpIfR0NotEquals(ICMPV6_NEIGHBOR_ADVERTISEMENT, skipUnsolicitedMulticastNALabel);
-        // Drop all multicast NA to ff02::/120.
-        // This is a way to cover ff02::1 and ff02::2 with a single JNEBS.
-        // TODO: Drop only if they don't contain the address of on-link neighbours.
-        final byte[] unsolicitedNaDropPrefix = Arrays.copyOf(IPV6_ALL_NODES_ADDRESS, 15);
-        gen.addLoadImmediate(R0, IPV6_DEST_ADDR_OFFSET);
-        gen.addJumpIfBytesAtR0NotEqual(unsolicitedNaDropPrefix, skipUnsolicitedMulticastNALabel);
-
-        maybeSetupCounter(gen, Counter.DROPPED_IPV6_MULTICAST_NA);
-        gen.addJump(mCountAndDropLabel);
-        gen.defineLabel(skipUnsolicitedMulticastNALabel);
+        // Drop all router solicitations and unsolicited multicast neighbor announcements
+        mFilterPipeline.generate(gen, mMulticastFilters.getIcmpv6Section());
+        if (mIsApfV6 && mShouldOffloadNs && mHardwareAddress != null
+                && !mIPv6Addresses.isEmpty()) {
+            // The section above clobbers the ICMPv6 type in R0.
+            gen.addLoad8(R0, ICMP6_TYPE_OFFSET);
+            generateNsOffloadLocked((ApfV6Generator) gen);
+        }
 
         // Note that this is immediately followed emitEpilogue which will:
         // maybeSetupCounter(gen, Counter.PASSED_IPV6_ICMP);
     }
 
+    /**
+     * Generate filter code that drops non-ICMPv6 multicast packets sent to groups that are not
+     * joined on the interface, which the kernel would drop anyway after waking up. ICMPv6 packets
+     * are left to the ICMPv6 filters. Other packets fall through.
+     * Preconditions:
+     *  - Packet being filtered is IPv6, and R0 contains the next header
+     * Postconditions:
+     *  - R0 contains the next header, if execution falls through
+     */
+    @GuardedBy("this")
+    private void generateIPv6MulticastGroupFilterLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
+        final String skipIPv6MulticastGroupFilter = "skipIPv6MulticastGroupFilter";
+        final String passIPv6MulticastLabel = getCountAndPassLabel(gen,
+                Counter.PASSED_IPV6_NON_ICMP);
+
+        gen.addJumpIfR0Equals(IPPROTO_ICMPV6, skipIPv6MulticastGroupFilter);
+        // Not multicast? Pass, like the check for ICMPv6 that follows would.
+        gen.addLoad8(R0, IPV6_DEST_ADDR_OFFSET);
+        gen.addJumpIfR0NotEquals(0xff, passIPv6MulticastLabel);
+        gen.addLoadImmediate(R0, IPV6_DEST_ADDR_OFFSET);
+        for (int i = 0; i < mIPv6MulticastGroups.size(); i++) {
+            final String nextGroupLabel = "ipv6_multicast_group_" + i;
+            gen.addJumpIfBytesAtR0NotEqual(mIPv6MulticastGroups.get(i).getAddress(),
+                    nextGroupLabel);
+            gen.addJump(passIPv6MulticastLabel);
+            gen.defineLabel(nextGroupLabel);
+        }
+        addCountAndDrop(gen, Counter.DROPPED_IPV6_NON_ICMP_MULTICAST);
+
+        gen.defineLabel(skipIPv6MulticastGroupFilter);
+    }
+
+    /**
+     * Generate code that replies to neighbor solicitations for our IPv6 addresses from the
+     * firmware, and drops them. Solicitations that fail the basic validity checks of RFC 4861
+     * section 7.1.1, and duplicate address detection probes, are left to the kernel.
+     * Preconditions:
+     *  - Packet being filtered is ICMPv6, and R0 contains the ICMPv6 type
+     * Postconditions:
+     *  - R0 contains the ICMPv6 type, if execution falls off the end
+     */
+    @GuardedBy("this")
+    private void generateNsOffloadLocked(ApfV6Generator gen)
+            throws IllegalInstructionException {
+        final String skipNsOffload = "skipNsOffload";
+        final String replyToNs = "replyToNs";
+
+        gen.addJumpIfR0NotEquals(ICMPV6_NEIGHBOR_SOLICITATION, skipNsOffload);
+        gen.addLoad8(R0, IPV6_HOP_LIMIT_OFFSET);
+        gen.addJumpIfR0NotEquals(IPV6_ND_HOP_LIMIT, skipNsOffload);
+        gen.addLoad8(R0, ICMP6_CODE_OFFSET);
+        gen.addJumpIfR0NotEquals(0, skipNsOffload);
+        gen.addLoadImmediate(R0, IPV6_SRC_ADDR_OFFSET);
+        gen.addJumpIfBytesAtR0Equal(new byte[IPV6_ADDR_LEN], skipNsOffload);
+        gen.addLoadImmediate(R0, ICMP6_ND_TARGET_OFFSET);
+        for (Inet6Address address : mIPv6Addresses) {
+            gen.addJumpIfBytesAtR0Equal(address.getAddress(), replyToNs);
+        }
+        gen.addJump(skipNsOffload);
+
+        // Build the same solicited NA as the kernel: from the target address to the solicitor,
+        // with the override flag and our link-layer address. The solicitor's link-layer address
+        // is taken from the Ethernet header, so any SLLA option does not need to be parsed.
+        gen.defineLabel(replyToNs);
+        gen.addAllocate(IPV6_NA_WITH_TLLA_LEN);
+        gen.addPacketCopy(ETH_SRC_ADDR_OFFSET, ETHER_ADDR_LEN);             // Ethernet dst
+        gen.addWriteU32(getUint32(mHardwareAddress, 0));                   // Ethernet src
+        gen.addWriteU16(getUint16(mHardwareAddress, 4));
+        gen.addWriteU16(ETH_P_IPV6);                                       // EtherType
+        gen.addWriteU32(0x60000000);                                       // version, tc, flow
+        gen.addWriteU16(ICMP6_NA_WITH_TLLA_LEN);                           // payload length
+        gen.addWriteU8(IPPROTO_ICMPV6);                                    // next header
+        gen.addWriteU8(IPV6_ND_HOP_LIMIT);                                 // hop limit
+        gen.addPacketCopy(ICMP6_ND_TARGET_OFFSET, IPV6_ADDR_LEN);          // src address
+        gen.addPacketCopy(IPV6_SRC_ADDR_OFFSET, IPV6_ADDR_LEN);            // dst address
+        gen.addWriteU8(ICMPV6_NEIGHBOR_ADVERTISEMENT);                     // type
+        gen.addWriteU8(0);                                                 // code
+        gen.addWriteU16(0);                                                // checksum
+        gen.addWriteU32(NEIGHBOR_ADVERTISEMENT_FLAG_SOLICITED               // flags
+                | NEIGHBOR_ADVERTISEMENT_FLAG_OVERRIDE);
+        gen.addPacketCopy(ICMP6_ND_TARGET_OFFSET, IPV6_ADDR_LEN);          // target address
+        gen.addWriteU8(ICMPV6_ND_OPTION_TLLA);                             // TLLA option
+        gen.addWriteU8(1);                                                 // length (8 bytes)
+        gen.addWriteU32(getUint32(mHardwareAddress, 0));
+        gen.addWriteU16(getUint16(mHardwareAddress, 4));
+        // The checksum covers the pseudo-header addresses directly, so only the upper-layer
+        // length and next header need to be passed as the partial checksum.
+        gen.addTransmitL4(ETH_HEADER_LEN, ICMP6_CHECKSUM_OFFSET, IPV6_SRC_ADDR_OFFSET,
+                ICMP6_NA_WITH_TLLA_LEN + IPPROTO_ICMPV6, false /* isUdp */);
+        addCountAndDrop(gen, Counter.DROPPED_IPV6_NS_REPLIED);
+
+        gen.defineLabel(skipNsOffload);
+        gen.addLoad8(R0, ICMP6_TYPE_OFFSET);
+    }
+
     /** Encodes qname in TLV pattern. */
     @VisibleForTesting
     public static byte[] encodeQname(String[] labels) {
@@ -1791,12 +2402,55 @@ public class ApfFilter implements AndroidPacketFilter {
         return out.toByteArray();
     }
 
+    /**
+     * Encodes the mDNS allowlist in the format expected by the APFv6 DNS question matching
+     * instructions, or returns null if any allowlisted name cannot be matched by them.
+     */
+    @GuardedBy("this") @Nullable
+    private byte[] encodeMdnsAllowListForV6Locked() {
+        return encodeMdnsNamesForV6(mMdnsAllowList);
+    }
+
+    /**
+     * Encodes {@code names} in the format expected by the APFv6 DNS question matching
+     * instructions, or returns null if any name cannot be matched by them.
+     */
+    @Nullable
+    private static byte[] encodeMdnsNamesForV6(List<String[]> names) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] labels : names) {
+            if (labels.length == 0) return null;
+            final String[] upperCaseLabels = new String[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                if (!isValidDnsLabel(labels[i])) return null;
+                // The instructions compare names case-insensitively, and expect them upper case.
+                upperCaseLabels[i] = labels[i].toUpperCase(Locale.ROOT);
+            }
+            final byte[] encodedQname = encodeQname(upperCaseLabels);
+            out.write(encodedQname, 0, encodedQname.length);
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static boolean isValidDnsLabel(String label) {
+        if (label.isEmpty() || label.length() > 63) return false;
+        for (int i = 0; i < label.length(); i++) {
+            final char c = label.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '%')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Generate filter code to process mDNS packets. Execution of this code ends in * DROP_LABEL
      * or PASS_LABEL if the packet is mDNS packets. Otherwise, skip this check.
      */
     @GuardedBy("this")
-    private void generateMdnsFilterLocked(ApfV4Generator gen)
+    private void generateMdnsFilterLocked(ApfV4GeneratorBase<?> gen)
             throws IllegalInstructionException {
         final String skipMdnsv4Filter = "skip_mdns_v4_filter";
         final String skipMdnsFilter = "skip_mdns_filter";
@@ -1812,9 +2466,11 @@ public class ApfFilter implements AndroidPacketFilter {
         // Here's a basic summary of what the mDNS filter program does:
         //
         // if it is a multicast mDNS packet
-        //    if QDCOUNT != 1
+        //    if mDNS offload is enabled and it's an IPv4 query matching an offload rule
+        //       transmit the rule's response and drop
+        //    if QDCOUNT == 0
         //       pass
-        //    else if the QNAME is in the allowlist
+        //    else if any QNAME is in the allowlist
         //       pass
         //    else:
         //       drop
@@ -1869,38 +2525,193 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.addLoad16Indexed(R0, TCP_UDP_DESTINATION_PORT_OFFSET);
         gen.addJumpIfR0NotEquals(MDNS_PORT, skipMdnsFilter);
 
+        if (mPassAllMdnsForSize) {
+            // Dropping the mDNS packets that do not match the allowlist is optional, but dropping
+            // the ones that do is not, so pass them all.
+            addCountAndPass(gen, Counter.PASSED_MDNS);
+            gen.defineLabel(skipMdnsFilter);
+            return;
+        }
+
+        if (mMdnsResponseDataOffsets != null) {
+            generateMdnsOffloadLocked((ApfV6Generator) gen);
+        }
+
         gen.addLoad16Indexed(R0, MDNS_QDCOUNT_OFFSET);
-        // If QDCOUNT != 1, pass the packet
-        gen.addJumpIfR0NotEquals(1, mDnsAcceptPacket);
 
-        // If QDCOUNT == 1, matches the QNAME with allowlist.
-        // Load offset for the first QNAME.
-        gen.addLoadImmediate(R0, MDNS_QNAME_OFFSET);
-        gen.addAddR1();
+        // If there are no questions, pass the packet.
+        gen.addJumpIfR0Equals(0, mDnsAcceptPacket);
+
+        // On APFv6, first pass the packet if any question for an allowlisted name has one of the
+        // common qtypes. The DNS question matching instructions handle multiple questions and
+        // compressed names, and pass the packet if it is malformed. They match a single qtype
+        // each, so questions with other qtypes fall through to the matcher below. When counting
+        // rules, only the matcher below is used, since it tells which entry matched.
+        final byte[] encodedAllowList = mIsApfV6 && !mShouldCountRules
+                ? encodeMdnsAllowListForV6Locked() : null;
+        if (encodedAllowList != null) {
+            gen.addLoadImmediate(R0, MDNS_HEADER_OFFSET);
+            gen.addAddR1();
+            for (int qtype : MDNS_QTYPES) {
+                ((ApfV6Generator) gen).addJumpIfPktAtR0ContainDnsQSafe(encodedAllowList, qtype,
+                        mDnsAcceptPacket);
+            }
+        }
 
-        // Check first QNAME against allowlist
-        for (int i = 0; i < mMdnsAllowList.size(); ++i) {
-            final String mDnsNextAllowedQnameCheck = "mdns_next_allowed_qname_check" + i;
-            final byte[] encodedQname = encodeQname(mMdnsAllowList.get(i));
-            gen.addJumpIfBytesAtR0NotEqual(encodedQname, mDnsNextAllowedQnameCheck);
-            // QNAME matched
-            gen.addJump(mDnsAcceptPacket);
-            // QNAME not matched
-            gen.defineLabel(mDnsNextAllowedQnameCheck);
+        // Pass the packet if any question matches the allowlist, whatever its qtype, following
+        // compression pointers. Packets with bad pointers are dropped.
+        final List<String[]> names = new ArrayList<>();
+        final List<String> matchLabels = new ArrayList<>();
+        for (int i = 0; i < mMdnsAllowList.size(); i++) {
+            if (mMdnsAllowList.get(i).length == 0) continue;
+            names.add(mMdnsAllowList.get(i));
+            matchLabels.add(mShouldCountRules ? getMdnsRuleLabel(i) : mDnsAcceptPacket);
+        }
+        if (!names.isEmpty()) {
+            DnsUtils.generateFilter(gen, names, matchLabels, mDnsDropPacket);
         }
         // If QNAME doesn't match any entries in allowlist, drop the packet.
         gen.defineLabel(mDnsDropPacket);
-        maybeSetupCounter(gen, Counter.DROPPED_MDNS);
-        gen.addJump(mCountAndDropLabel);
+        addCountAndDrop(gen, Counter.DROPPED_MDNS);
+
+        // Count the allowlist entry that matched before passing the packet.
+        if (mShouldCountRules) {
+            for (int i = 0; i < mMdnsAllowList.size(); i++) {
+                gen.defineLabel(getMdnsRuleLabel(i));
+                maybeAddCountRuleHit(gen, getMdnsRuleKey(mMdnsAllowList.get(i)));
+                gen.addJump(mDnsAcceptPacket);
+            }
+        }
 
         gen.defineLabel(mDnsAcceptPacket);
-        maybeSetupCounter(gen, Counter.PASSED_MDNS);
-        gen.addJump(mCountAndPassLabel);
+        addCountAndPass(gen, Counter.PASSED_MDNS);
 
 
         gen.defineLabel(skipMdnsFilter);
     }
 
+    private static String getMdnsRuleLabel(int allowListIndex) {
+        return "mdns_rule_" + allowListIndex;
+    }
+
+    private static String getMdnsRuleKey(String[] labels) {
+        return "mDNS " + String.join(".", labels);
+    }
+
+    /**
+     * Returns whether the prologue should reply to mDNS queries that match an offload rule. The
+     * rules only apply while the mDNS filter is active, and need our addresses to build responses.
+     */
+    @GuardedBy("this")
+    private boolean shouldOffloadMdnsLocked() {
+        return mIsApfV6 && mShouldOffloadMdns && mMulticastFilter && !mMdnsAllowList.isEmpty()
+                && !mPassAllMdnsForSize && !mMdnsOffloadRules.isEmpty() && mIPv4Address != null
+                && mHardwareAddress != null;
+    }
+
+    /**
+     * Adds the complete Ethernet frames of the canned mDNS responses to the program data, and
+     * records where each one starts.
+     */
+    @GuardedBy("this")
+    private void emitMdnsResponsesLocked(ApfV6Generator gen) throws IllegalInstructionException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final int[] offsets = new int[mMdnsOffloadRules.size()];
+        for (int i = 0; i < mMdnsOffloadRules.size(); i++) {
+            offsets[i] = data.size();
+            final byte[] packet = buildMdnsResponsePacketLocked(mMdnsOffloadRules.get(i).response);
+            data.write(packet, 0, packet.length);
+        }
+        final byte[] bytes = data.toByteArray();
+        gen.addData(bytes);
+        final int dataOffset = gen.getDataOffset(bytes.length);
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] += dataOffset;
+        }
+        mMdnsResponseDataOffsets = offsets;
+    }
+
+    /**
+     * Builds the multicast IPv4 mDNS response frame sent from our addresses, with valid
+     * checksums, so that it can be transmitted unmodified.
+     */
+    @GuardedBy("this")
+    private byte[] buildMdnsResponsePacketLocked(byte[] response) {
+        final ByteBuffer buf = ByteBuffer.allocate(
+                ETH_HEADER_LEN + IPV4_HEADER_LEN + UDP_HEADER_LEN + response.length);
+        final PacketBuilder builder = new PacketBuilder(buf);
+        try {
+            builder.writeL2Header(MacAddress.fromBytes(mHardwareAddress),
+                    MacAddress.fromBytes(ETH_MULTICAST_MDNS_V4_MAC_ADDRESS), (short) ETH_P_IP);
+            builder.writeIpv4Header((byte) 0 /* tos */, (short) 0 /* id */,
+                    (short) 0x4000 /* flagsAndFragmentOffset: DF */, (byte) MDNS_IPV4_TTL,
+                    (byte) IPPROTO_UDP, (Inet4Address) InetAddress.getByAddress(mIPv4Address),
+                    (Inet4Address) InetAddress.getByAddress(IPV4_MDNS_MULTICAST_ADDRESS));
+            builder.writeUdpHeader((short) MDNS_PORT, (short) MDNS_PORT);
+            buf.put(response);
+            return builder.finalizePacket().array();
+        } catch (IOException e) {
+            // Cannot happen: the addresses are valid and the buffer is large enough.
+            throw new IllegalStateException("Failed to build mDNS response", e);
+        }
+    }
+
+    /**
+     * Generate code that replies to mDNS queries matching an offload rule with the rule's canned
+     * response, and drops them. Only queries without known answers are answered, since the
+     * responder would have to suppress the answers the querier already knows (RFC 6762 7.1), and
+     * only queries with a single question, since dropping a query also drops its other questions.
+     * Preconditions:
+     *  - Packet being filtered is a multicast mDNS packet, and R1 contains the IP header length
+     * Postconditions:
+     *  - R1 is unchanged, if execution falls off the end
+     */
+    @GuardedBy("this")
+    private void generateMdnsOffloadLocked(ApfV6Generator gen)
+            throws IllegalInstructionException {
+        final String skipMdnsOffload = "skip_mdns_offload";
+        final String mDnsOffloadReply = "mdns_offload_reply";
+
+        // Responses are sent over IPv4, so only answer IPv4 queries.
+        gen.addLoad16(R0, ETH_ETHERTYPE_OFFSET);
+        gen.addJumpIfR0NotEquals(ETH_P_IP, skipMdnsOffload);
+        gen.addLoad16Indexed(R0, MDNS_FLAGS_OFFSET);
+        gen.addJumpIfR0AnyBitsSet(DNS_FLAGS_QR_MASK, skipMdnsOffload);
+        gen.addLoad16Indexed(R0, MDNS_ANCOUNT_OFFSET);
+        gen.addJumpIfR0NotEquals(0, skipMdnsOffload);
+        gen.addLoad16Indexed(R0, MDNS_QDCOUNT_OFFSET);
+        gen.addJumpIfR0NotEquals(1, skipMdnsOffload);
+
+        gen.addLoadImmediate(R0, MDNS_HEADER_OFFSET);
+        gen.addAddR1();
+        for (int i = 0; i < mMdnsOffloadRules.size(); i++) {
+            final MdnsOffloadRule rule = mMdnsOffloadRules.get(i);
+            final String[] upperCaseLabels = new String[rule.labels.length];
+            for (int j = 0; j < rule.labels.length; j++) {
+                upperCaseLabels[j] = rule.labels[j].toUpperCase(Locale.ROOT);
+            }
+            final byte[] encodedQname = encodeQname(upperCaseLabels);
+            final byte[] needle = Arrays.copyOf(encodedQname, encodedQname.length + 1);
+            gen.addJumpIfPktAtR0ContainDnsQSafe(needle, rule.qtype, mDnsOffloadReply + i);
+        }
+        gen.addJump(skipMdnsOffload);
+
+        for (int i = 0; i < mMdnsOffloadRules.size(); i++) {
+            final int length = ETH_HEADER_LEN + IPV4_HEADER_LEN + UDP_HEADER_LEN
+                    + mMdnsOffloadRules.get(i).response.length;
+            gen.defineLabel(mDnsOffloadReply + i);
+            gen.addAllocate(length);
+            for (int ofs = 0; ofs < length; ofs += MAX_DATA_COPY_LEN) {
+                gen.addDataCopy(mMdnsResponseDataOffsets[i] + ofs,
+                        Math.min(MAX_DATA_COPY_LEN, length - ofs));
+            }
+            gen.addTransmitWithoutChecksum();
+            addCountAndDrop(gen, Counter.DROPPED_MDNS_REPLIED);
+        }
+
+        gen.defineLabel(skipMdnsOffload);
+    }
+
     /**
      * Generate filter code to drop IPv4 TCP packets on port 7.
      *
@@ -1908,7 +2719,7 @@ public class ApfFilter implements AndroidPacketFilter {
      * R0/R1 have nothing useful in them, and can be clobbered.
      */
     @GuardedBy("this")
-    private void generateV4TcpPort7FilterLocked(ApfV4Generator gen)
+    private void generateV4TcpPort7FilterLocked(ApfV4GeneratorBase<?> gen)
             throws IllegalInstructionException {
         final String skipPort7V4Filter = "skip_port7_v4_filter";
 
@@ -1926,19 +2737,12 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.addJumpIfR0NotEquals(ECHO_PORT, skipPort7V4Filter);
 
         // Drop it.
-        maybeSetupCounter(gen, Counter.DROPPED_IPV4_TCP_PORT7_UNICAST);
-        gen.addJump(mCountAndDropLabel);
+        addCountAndDrop(gen, Counter.DROPPED_IPV4_TCP_PORT7_UNICAST);
 
         // Skip label.
         gen.defineLabel(skipPort7V4Filter);
     }
 
-    @GuardedBy("this")
-    private void generateV6KeepaliveFilters(ApfV4Generator gen) throws IllegalInstructionException {
-        generateKeepaliveFilters(gen, TcpKeepaliveAckV6.class, IPPROTO_TCP, IPV6_NEXT_HEADER_OFFSET,
-                "skip_v6_keepalive_filter");
-    }
-
     /**
      * Begin generating an APF program to:
      * <ul>
@@ -1961,16 +2765,27 @@ public class ApfFilter implements AndroidPacketFilter {
      */
     @GuardedBy("this")
     @VisibleForTesting
-    protected ApfV4Generator emitPrologueLocked() throws IllegalInstructionException {
+    protected ApfV4GeneratorBase<?> emitPrologueLocked() throws IllegalInstructionException {
         // This is guaranteed to succeed because of the check in maybeCreate.
-        ApfV4Generator gen = new ApfV4Generator(mApfCapabilities.apfVersionSupported);
+        ApfV4GeneratorBase<?> gen = createGenerator();
+        mProloguePassCounters.clear();
+        mPrologueDropCounters.clear();
+        mRuleCounterRules.clear();
+
+        // The canned mDNS responses must be added first, since data must precede all code.
+        mMdnsResponseDataOffsets = null;
+        if (shouldOffloadMdnsLocked()) {
+            emitMdnsResponsesLocked((ApfV6Generator) gen);
+        }
 
         if (mApfCapabilities.hasDataAccess()) {
-            // Increment TOTAL_PACKETS
-            maybeSetupCounter(gen, Counter.TOTAL_PACKETS);
-            gen.addLoadData(R0, 0);  // load counter
-            gen.addAdd(1);
-            gen.addStoreData(R0, 0);  // write-back counter
+            // Increment TOTAL_PACKETS. The APFv6 interpreter does this itself.
+            if (!mIsApfV6) {
+                maybeSetupCounter(gen, Counter.TOTAL_PACKETS);
+                gen.addLoadData(R0, 0);  // load counter
+                gen.addAdd(1);
+                gen.addStoreData(R0, 0);  // write-back counter
+            }
 
             maybeSetupCounter(gen, Counter.FILTER_AGE_SECONDS);
             gen.addLoadFromMemory(R0, 15);  // m[15] is filter age in seconds
@@ -1997,50 +2812,64 @@ public class ApfFilter implements AndroidPacketFilter {
         //     drop
         //   pass
         // insert IPv6 filter to drop, pass, or fall off the end for ICMPv6 packets
+        //
+        // The ARP and IPv4 checks and the IPv6 check may be reordered, see FilterBlock.
 
         gen.addLoad16(R0, ETH_ETHERTYPE_OFFSET);
 
         if (mDrop802_3Frames) {
             // drop 802.3 frames (ethtype < 0x0600)
-            maybeSetupCounter(gen, Counter.DROPPED_802_3_FRAME);
-            gen.addJumpIfR0LessThan(ETH_TYPE_MIN, mCountAndDropLabel);
+            gen.addJumpIfR0LessThan(ETH_TYPE_MIN,
+                    getCountAndDropLabel(gen, Counter.DROPPED_802_3_FRAME));
         }
 
         // Handle ether-type black list
-        maybeSetupCounter(gen, Counter.DROPPED_ETHERTYPE_DENYLISTED);
-        for (int p : mEthTypeBlackList) {
-            gen.addJumpIfR0Equals(p, mCountAndDropLabel);
+        if (mEthTypeBlackList.length > 0) {
+            final LinkedHashSet<Long> denylist = new LinkedHashSet<>();
+            for (int p : mEthTypeBlackList) {
+                denylist.add((long) p);
+            }
+            gen.addJumpIfR0IsOneOf(denylist,
+                    getCountAndDropLabel(gen, Counter.DROPPED_ETHERTYPE_DENYLISTED));
         }
 
-        // Add ARP filters:
-        String skipArpFiltersLabel = "skipArpFilters";
-        gen.addJumpIfR0NotEquals(ETH_P_ARP, skipArpFiltersLabel);
-        generateArpFilterLocked(gen);
-        gen.defineLabel(skipArpFiltersLabel);
-
-        // Add mDNS filter:
-        generateMdnsFilterLocked(gen);
-        gen.addLoad16(R0, ETH_ETHERTYPE_OFFSET);
-
-        // Add IPv4 filters:
-        String skipIPv4FiltersLabel = "skipIPv4Filters";
-        gen.addJumpIfR0NotEquals(ETH_P_IP, skipIPv4FiltersLabel);
-        generateIPv4FilterLocked(gen);
-        gen.defineLabel(skipIPv4FiltersLabel);
-
-        // Check for IPv6:
-        // NOTE: Relies on R0 containing ethertype. This is safe because if we got here, we did
-        // not execute the IPv4 filter, since this filter do not fall through, but either drop or
-        // pass.
+        // Add the ARP and IPv4 filters and the check for IPv6, by default in this order.
+        // NOTE: Each relies on R0 containing ethertype. This is safe because if we got here, we
+        // did not execute the filters emitted before, since these filters do not fall through,
+        // but either drop or pass.
         String ipv6FilterLabel = "IPv6Filters";
-        gen.addJumpIfR0Equals(ETH_P_IPV6, ipv6FilterLabel);
+        boolean emittedMdnsFilter = false;
+        for (FilterBlock block : mFilterBlockOrder) {
+            // The mDNS filter must run before the IPv4 and IPv6 filters.
+            if (block != FilterBlock.ARP && !emittedMdnsFilter) {
+                generateMdnsFilterLocked(gen);
+                gen.addLoad16(R0, ETH_ETHERTYPE_OFFSET);
+                emittedMdnsFilter = true;
+            }
+            switch (block) {
+                case ARP:
+                    String skipArpFiltersLabel = "skipArpFilters";
+                    gen.addJumpIfR0NotEquals(ETH_P_ARP, skipArpFiltersLabel);
+                    generateArpFilterLocked(gen);
+                    gen.defineLabel(skipArpFiltersLabel);
+                    break;
+                case IPV4:
+                    String skipIPv4FiltersLabel = "skipIPv4Filters";
+                    gen.addJumpIfR0NotEquals(ETH_P_IP, skipIPv4FiltersLabel);
+                    generateIPv4FilterLocked(gen);
+                    gen.defineLabel(skipIPv4FiltersLabel);
+                    break;
+                case IPV6:
+                    gen.addJumpIfR0Equals(ETH_P_IPV6, ipv6FilterLabel);
+                    break;
+            }
+        }
 
         // Drop non-IP non-ARP broadcasts, pass the rest
         gen.addLoadImmediate(R0, ETH_DEST_ADDR_OFFSET);
-        maybeSetupCounter(gen, Counter.PASSED_NON_IP_UNICAST);
-        gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST, mCountAndPassLabel);
-        maybeSetupCounter(gen, Counter.DROPPED_ETH_BROADCAST);
-        gen.addJump(mCountAndDropLabel);
+        gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST,
+                getCountAndPassLabel(gen, Counter.PASSED_NON_IP_UNICAST));
+        addCountAndDrop(gen, Counter.DROPPED_ETH_BROADCAST);
 
         // Add IPv6 filters:
         gen.defineLabel(ipv6FilterLabel);
@@ -2048,18 +2877,60 @@ public class ApfFilter implements AndroidPacketFilter {
         return gen;
     }
 
+    /**
+     * Returns a generator containing the program prologue, reusing the previously emitted one if
+     * none of its inputs changed since.
+     */
+    @GuardedBy("this")
+    private ApfV4GeneratorBase<?> getPrologueGeneratorLocked() throws IllegalInstructionException {
+        if (mPrologueGen == null) {
+            mPrologueGen = emitPrologueLocked();
+            if (mShouldOptimizeProgram) mPrologueGen.enableOptimizations();
+            mPrologueEndMark = mPrologueGen.mark();
+            mNumPrologueRuleCounters = mRuleCounterRules.size();
+        } else {
+            mPrologueGen.truncate(mPrologueEndMark);
+            mRuleCounterRules.subList(mNumPrologueRuleCounters, mRuleCounterRules.size()).clear();
+        }
+        return mPrologueGen;
+    }
+
+    /**
+     * Discards the cached prologue. Must be called whenever state used by
+     * {@link #emitPrologueLocked} changes.
+     */
+    @VisibleForTesting
+    @GuardedBy("this")
+    void invalidatePrologueLocked() {
+        mPrologueGen = null;
+    }
+
     /**
      * Append packet counting epilogue to the APF program.
      *
      * Currently, the epilogue consists of two trampolines which count passed and dropped packets
-     * before jumping to the actual PASS and DROP labels.
+     * before jumping to the actual PASS and DROP labels. On APFv6, it instead consists of one
+     * count-and-pass or count-and-drop instruction per counter used by a conditional jump.
      */
     @GuardedBy("this")
-    private void emitEpilogue(ApfV4Generator gen) throws IllegalInstructionException {
+    private void emitEpilogue(ApfV4GeneratorBase<?> gen) throws IllegalInstructionException {
         // If APFv4 is unsupported, no epilogue is necessary: if execution reached this far, it
         // will just fall-through to the PASS label.
         if (!mApfCapabilities.hasDataAccess()) return;
 
+        if (mIsApfV6) {
+            addCountAndPass(gen, Counter.PASSED_IPV6_ICMP);
+            for (Counter c : mProloguePassCounters) {
+                gen.defineLabel(COUNT_AND_PASS_LABEL_PREFIX + c.name());
+                addCountAndPass(gen, c);
+            }
+            for (Counter c : mPrologueDropCounters) {
+                gen.defineLabel(COUNT_AND_DROP_LABEL_PREFIX + c.name());
+                addCountAndDrop(gen, c);
+            }
+            return;
+        }
+
         // Execution will reach the bottom of the program if none of the filters match,
         // which will pass the packet to the application processor.
         maybeSetupCounter(gen, Counter.PASSED_IPV6_ICMP);
@@ -2081,6 +2952,246 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.addJump(gen.DROP_LABEL);
     }
 
+    /**
+     * Append filters for {@code ras} to {@code gen}, merged into a decision trie.
+     *
+     * Each RA filter is a conjunction of checks, so the checks can be reordered and RAs that
+     * share the packet size and leading MATCH sections can check them once. RAs are first grouped
+     * by packet size, then recursively by their next MATCH section. A failed shared check jumps
+     * to the end of its group. Once an RA has no MATCH sections left, only its filter age and
+     * LIFETIME sections remain, and those are emitted as a leaf.
+     *
+     * The result is never larger than the sum of the individual RA filters, so the sizes from
+     * {@link Ra#getFilterSizeOverEstimateLocked} remain a valid bound.
+     */
+    @GuardedBy("this")
+    private void generateRaTrieLocked(ApfV4GeneratorBase<?> gen, List<Ra> ras, int timeSeconds)
+            throws IllegalInstructionException {
+        final ArrayList<Ra> remaining = new ArrayList<>(ras);
+        while (!remaining.isEmpty()) {
+            final int packetSize = remaining.get(0).mPacket.capacity();
+            final ArrayList<Ra> group = new ArrayList<>();
+            for (Ra ra : remaining) {
+                if (ra.mPacket.capacity() == packetSize) group.add(ra);
+            }
+            remaining.removeAll(group);
+
+            final String groupEndLabel = "RaGroup" + getUniqueNumberLocked();
+            gen.addLoadFromMemory(R0, gen.PACKET_SIZE_MEMORY_SLOT);
+            gen.addJumpIfR0NotEquals(packetSize, groupEndLabel);
+            generateRaTrieNodeLocked(gen, group, 0 /* matchIndex */, timeSeconds);
+            gen.defineLabel(groupEndLabel);
+        }
+    }
+
+    // Append the part of the trie for {@code ras}, which all have the same packet size and the
+    // same first {@code matchIndex} MATCH sections, all of which have already been checked.
+    @GuardedBy("this")
+    private void generateRaTrieNodeLocked(ApfV4GeneratorBase<?> gen, List<Ra> ras, int matchIndex,
+            int timeSeconds) throws IllegalInstructionException {
+        final ArrayList<Ra> remaining = new ArrayList<>(ras);
+        while (!remaining.isEmpty()) {
+            final Ra first = remaining.get(0);
+            final List<PacketSection> firstSections = first.getMatchSections();
+            if (firstSections.size() <= matchIndex) {
+                first.generateLifetimeFilterLocked(gen, timeSeconds);
+                remaining.remove(0);
+                continue;
+            }
+
+            final PacketSection section = firstSections.get(matchIndex);
+            final ArrayList<Ra> group = new ArrayList<>();
+            for (Ra ra : remaining) {
+                final List<PacketSection> sections = ra.getMatchSections();
+                if (sections.size() > matchIndex
+                        && first.isSameMatchSection(section, ra, sections.get(matchIndex))) {
+                    group.add(ra);
+                }
+            }
+            remaining.removeAll(group);
+
+            final String groupEndLabel = "RaGroup" + getUniqueNumberLocked();
+            first.generateMatchSection(gen, section, groupEndLabel);
+            generateRaTrieNodeLocked(gen, group, matchIndex + 1, timeSeconds);
+            gen.defineLabel(groupEndLabel);
+        }
+    }
+
+    /**
+     * Request a new filter program to be installed. If a coalescing window is configured, the
+     * program is installed at the end of the window, together with any other change requested
+     * within it. Otherwise, it is installed immediately.
+     */
+    @GuardedBy("this")
+    private void requestInstallLocked() {
+        if (mInstallCoalescingWindowMs > 0 && scheduleInstallLocked(mInstallCoalescingWindowMs)) {
+            // Changes other than to the RAs are not rate limited.
+            mDeferredInstallTakesToken = false;
+        } else {
+            installNewProgramLocked();
+        }
+    }
+
+    /**
+     * Install a new filter program for a change to the RAs, unless RA-triggered installs are
+     * being rate limited. In that case, install it once the token bucket refills. A token is only
+     * taken when a program is installed for RA changes alone: an install that is already scheduled
+     * includes the change, and takes the token when it runs if it is only for RA changes.
+     * @return false if the install was rate limited.
+     */
+    @GuardedBy("this")
+    private boolean requestRaInstallLocked() {
+        if (mDeferredInstallTimeMs >= 0) return true;
+        if (mInstallCoalescingWindowMs > 0 && scheduleInstallLocked(mInstallCoalescingWindowMs)) {
+            mDeferredInstallTakesToken = true;
+            return true;
+        }
+        if (mTokenBucket.get()) {
+            installNewProgramLocked();
+            return true;
+        }
+        if (scheduleInstallLocked(TOKEN_BUCKET_DELTA_MS)) mDeferredInstallTakesToken = true;
+        return false;
+    }
+
+    private synchronized void runDeferredInstall() {
+        if (mDeferredInstallTimeMs < 0) return;
+        if (mDeferredInstallTakesToken && !mTokenBucket.get()) {
+            // Still rate limited. Try again once the bucket generates a token.
+            mDeferredInstallTimeMs = -1;
+            scheduleInstallLocked(TOKEN_BUCKET_DELTA_MS);
+            return;
+        }
+        installNewProgramLocked();
+    }
+
+    /**
+     * Schedule a program install in {@code delayMs}, unless one is already scheduled to run
+     * before that.
+     * @return false if installs cannot be deferred.
+     */
+    @GuardedBy("this")
+    private boolean scheduleInstallLocked(long delayMs) {
+        if (mHandler == null) return false;
+
+        final long installTimeMs = mClock.elapsedRealtime() + delayMs;
+        if (mDeferredInstallTimeMs >= 0) {
+            if (mDeferredInstallTimeMs <= installTimeMs) return true;
+            mHandler.removeCallbacks(mDeferredInstall);
+        }
+        mDeferredInstallTimeMs = installTimeMs;
+        mHandler.postDelayed(mDeferredInstall, delayMs);
+        return true;
+    }
+
+    /**
+     * Returns whether the program drops the multicast packets sent to groups not joined on the
+     * interface, for the IP versions whose groups were read.
+     */
+    @GuardedBy("this")
+    private boolean isFilteringMulticastGroupsLocked() {
+        return mShouldFilterMulticastByGroup && !mMulticastFilter && !mMulticastGroupsChanged
+                && (mIPv4MulticastGroups != null || mIPv6MulticastGroups != null);
+    }
+
+    /**
+     * Reads the multicast groups joined on the interface while the multicast filter is off, and
+     * installs a program that filters them once they are known to be stable. Runs on the handler.
+     * The groups are read from the kernel without holding the lock, which is only taken to compare
+     * and install them.
+     *
+     * Groups read after all multicast passed, because the multicast filter was just turned off or
+     * the groups could not be read, are filtered right away. Groups that differ from the previous
+     * read are only filtered once the next read finds them unchanged, and all multicast passes
+     * until then. The groups are read again every {@link #MULTICAST_GROUPS_REFRESH_INTERVAL_MS}
+     * after a change, and less and less often while they do not change.
+     */
+    @VisibleForTesting
+    void refreshMulticastGroups() {
+        final List<Inet4Address> ipv4Groups =
+                mDependencies.getIPv4MulticastAddresses(mInterfaceParams.name);
+        final List<Inet6Address> ipv6Groups =
+                mDependencies.getIPv6MulticastAddresses(mInterfaceParams.name);
+        synchronized (this) {
+            if (mMulticastFilter) return;
+            final boolean wasFiltering = isFilteringMulticastGroupsLocked();
+            if (Objects.equals(ipv4Groups, mIPv4MulticastGroups)
+                    && Objects.equals(ipv6Groups, mIPv6MulticastGroups)) {
+                if (mMulticastGroupsChanged) {
+                    mMulticastGroupsChanged = false;
+                } else {
+                    mMulticastGroupsRefreshIntervalMs = Math.min(
+                            2 * mMulticastGroupsRefreshIntervalMs,
+                            MAX_MULTICAST_GROUPS_REFRESH_INTERVAL_MS);
+                }
+            } else {
+                mMulticastGroupsChanged =
+                        mIPv4MulticastGroups != null || mIPv6MulticastGroups != null;
+                mIPv4MulticastGroups = ipv4Groups;
+                mIPv6MulticastGroups = ipv6Groups;
+                mMulticastGroupsRefreshIntervalMs = MULTICAST_GROUPS_REFRESH_INTERVAL_MS;
+            }
+            // A change while filtering stops filtering, so the groups in the program only change
+            // when the program starts or stops filtering them.
+            if (isFilteringMulticastGroupsLocked() != wasFiltering) {
+                invalidatePrologueLocked();
+                requestInstallLocked();
+            }
+            scheduleMulticastGroupsRefreshLocked();
+        }
+    }
+
+    /**
+     * Returns the delay until the joined multicast groups are read again, while the multicast
+     * filter is off.
+     */
+    @VisibleForTesting
+    synchronized long getMulticastGroupsRefreshIntervalMs() {
+        return mMulticastGroupsRefreshIntervalMs;
+    }
+
+    @GuardedBy("this")
+    private void scheduleMulticastGroupsRefreshLocked() {
+        if (mHandler == null) return;
+        mHandler.removeCallbacks(mRefreshMulticastGroups);
+        mHandler.postDelayed(mRefreshMulticastGroups, mMulticastGroupsRefreshIntervalMs);
+    }
+
+    @GuardedBy("this")
+    private void cancelMulticastGroupsRefreshLocked() {
+        if (mHandler == null) return;
+        mHandler.removeCallbacks(mRefreshMulticastGroups);
+    }
+
+    @GuardedBy("this")
+    private void setRefreshAlarmLocked(long triggerAtMs) {
+        if (mRefreshAlarmTimeMs == triggerAtMs) return;
+        mRefreshAlarmTimeMs = triggerAtMs;
+        mDependencies.setAlarm(triggerAtMs, mRefreshAlarmListener);
+    }
+
+    @GuardedBy("this")
+    private void cancelRefreshAlarmLocked() {
+        if (mRefreshAlarmTimeMs < 0) return;
+        mRefreshAlarmTimeMs = -1;
+        mDependencies.cancelAlarm(mRefreshAlarmListener);
+    }
+
+    @GuardedBy("this")
+    private void cancelDeferredInstallLocked() {
+        if (mDeferredInstallTimeMs < 0) return;
+        mHandler.removeCallbacks(mDeferredInstall);
+        mDeferredInstallTimeMs = -1;
+        mDeferredInstallTakesToken = false;
+    }
+
+    // An RA or keepalive filter, which is only included in the program if it fits. See
+    // ApfBudgetAllocator.
+    private interface OptionalFilter {
+        // Includes the filter in the program being generated.
+        void include();
+    }
+
     /**
      * Generate and install a new filter program.
      */
@@ -2088,7 +3199,10 @@ public class ApfFilter implements AndroidPacketFilter {
     @SuppressWarnings("GuardedBy") // errorprone false positive on ra#generateFilterLocked
     @VisibleForTesting
     public void installNewProgramLocked() {
-        ArrayList<Ra> rasToFilter = new ArrayList<>();
+        // The new program includes any change that a deferred install was scheduled for.
+        cancelDeferredInstallLocked();
+
+        final ArrayList<Ra> rasToFilter = new ArrayList<>();
         final byte[] program;
         int programMinLft = Integer.MAX_VALUE;
         int maximumApfProgramSize = mApfCapabilities.maximumApfProgramSize;
@@ -2100,38 +3214,80 @@ public class ApfFilter implements AndroidPacketFilter {
         // Ensure the entire APF program uses the same time base.
         int timeSeconds = secondsSinceBoot();
         try {
-            // Step 1: Determine how many RA filters we can fit in the program.
-            ApfV4Generator gen = emitPrologueLocked();
-
-            // The epilogue normally goes after the RA filters, but add it early to include its
-            // length when estimating the total.
-            emitEpilogue(gen);
+            // Step 1: Determine which RA and keepalive filters we can fit in the program.
+            ApfV4GeneratorBase<?> gen = getPrologueGeneratorLocked();
+            int programLength = getProgramLengthWithoutOptionalFiltersLocked(gen);
+
+            // If the program does not fit even without any RA or keepalive filters, pass all mDNS
+            // packets instead of matching them against the allowlist, which may be long.
+            boolean degraded = false;
+            if (programLength > maximumApfProgramSize && !mPassAllMdnsForSize
+                    && mMulticastFilter && !mMdnsAllowList.isEmpty()) {
+                Log.w(TAG, "mDNS allowlist does not fit, passing all mDNS packets");
+                mPassAllMdnsForSize = true;
+                invalidatePrologueLocked();
+                gen = getPrologueGeneratorLocked();
+                programLength = getProgramLengthWithoutOptionalFiltersLocked(gen);
+                degraded = true;
+            }
 
-            // Can't fit the program even without any RA filters?
-            if (gen.programLengthOverEstimate() > maximumApfProgramSize) {
+            // Can't fit the program even without any RA or keepalive filters?
+            if (programLength > maximumApfProgramSize) {
                 Log.e(TAG, "Program exceeds maximum size " + maximumApfProgramSize);
                 sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
                 return;
             }
 
-            for (Ra ra : mRas) {
+            // Size overestimates are additive, so the filters can be selected without generating
+            // them. Keepalives come first, since they are few and each one saves periodic
+            // wakeups, and then RAs, most recently seen first. Once their hits are measured, the
+            // filters that drop the most packets per byte are preferred.
+            final ApfBudgetAllocator<OptionalFilter> allocator =
+                    new ApfBudgetAllocator<>(mShouldCountRules ? mRuleCounterTracker : null);
+            final int ruleCounterSize = mShouldCountRules ? ApfRuleCounterTracker.COUNTER_SIZE : 0;
+            final ArraySet<Integer> excludedSlots = new ArraySet<>();
+            for (int slot : mKeepaliveFilters.getSlots()) {
+                excludedSlots.add(slot);
+            }
+            mKeepaliveFilters.addToBudget(allocator,
+                    slot -> () -> excludedSlots.remove(slot), ruleCounterSize);
+            for (Ra ra : mRasSnapshot.ras) {
                 // skip filter if it has expired.
                 if (ra.getRemainingFilterLft(timeSeconds) <= 0) continue;
-                ra.generateFilterLocked(gen, timeSeconds);
-                // Stop if we get too big.
-                if (gen.programLengthOverEstimate() > maximumApfProgramSize) {
-                    if (VDBG) Log.d(TAG, "Past maximum program size, skipping RAs");
-                    sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
-                    break;
-                }
+                allocator.add(() -> rasToFilter.add(ra),
+                        ra.getFilterSizeOverEstimateLocked() + ruleCounterSize, ra.mRuleCounterKey);
+            }
+            final int budget = maximumApfProgramSize - programLength;
+            for (OptionalFilter filter : allocator.allocate(budget)) filter.include();
+            if (mKeepaliveFilters.setExcludedSlots(excludedSlots)) {
+                // The keepalive filters are part of the prologue.
+                invalidatePrologueLocked();
+            }
+            mNumFiltersLeftOutForSize = allocator.getNumSkipped();
+            if (mNumFiltersLeftOutForSize > 0 || degraded) {
+                if (VDBG) Log.d(TAG, "Past maximum program size, skipping filters");
+                sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+            }
 
-                rasToFilter.add(ra);
+            // RAs are selected by hits per byte, but their filters are checked in order, so the
+            // RAs that match the most packets go first.
+            if (mShouldReorderFilters && mShouldCountRules) {
+                rasToFilter.sort((a, b) -> Long.compare(
+                        mRuleCounterTracker.getHits(b.mRuleCounterKey),
+                        mRuleCounterTracker.getHits(a.mRuleCounterKey)));
             }
 
-            // Step 2: Actually generate the program
-            gen = emitPrologueLocked();
+            // Step 2: Actually generate the program, reusing the prologue emitted above unless
+            // the keepalive filters changed.
+            gen = getPrologueGeneratorLocked();
+            if (mShouldMergeRaFilters) {
+                generateRaTrieLocked(gen, rasToFilter, timeSeconds);
+            } else {
+                for (Ra ra : rasToFilter) {
+                    ra.generateFilterLocked(gen, timeSeconds);
+                }
+            }
             for (Ra ra : rasToFilter) {
-                ra.generateFilterLocked(gen, timeSeconds);
                 programMinLft = Math.min(programMinLft, ra.getRemainingFilterLft(timeSeconds));
             }
             emitEpilogue(gen);
@@ -2139,8 +3295,20 @@ public class ApfFilter implements AndroidPacketFilter {
         } catch (IllegalInstructionException|IllegalStateException e) {
             Log.e(TAG, "Failed to generate APF program.", e);
             sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_GENERATE_FILTER_EXCEPTION);
+            invalidatePrologueLocked();
             return;
         }
+        if (mShouldCountRules) {
+            mRuleCounterTracker.setInstalledRules(mRuleCounterRules);
+            // Keep the hits of the RA and keepalive filters left out of the program, to decide
+            // whether to include them again.
+            final ArrayList<String> knownRules = new ArrayList<>(mRuleCounterRules);
+            for (Ra ra : mRasSnapshot.ras) knownRules.add(ra.mRuleCounterKey);
+            for (int slot : mKeepaliveFilters.getSlots()) {
+                knownRules.add(mKeepaliveFilters.getRuleCounterKey(slot));
+            }
+            mRuleCounterTracker.retainRules(knownRules);
+        }
         // Update data snapshot every time we install a new program
         mIpClientCallback.startReadPacketFilter();
         if (!mIpClientCallback.installPacketFilter(program)) {
@@ -2148,15 +3316,49 @@ public class ApfFilter implements AndroidPacketFilter {
         }
         mLastTimeInstalledProgram = timeSeconds;
         mLastInstalledProgramMinLifetime = programMinLft;
+        if (programMinLft == Integer.MAX_VALUE) {
+            cancelRefreshAlarmLocked();
+        } else {
+            setRefreshAlarmLocked(
+                    (timeSeconds + (long) programMinLft) * DateUtils.SECOND_IN_MILLIS);
+        }
         mLastInstalledProgram = program;
         mNumProgramUpdates++;
         mMaxProgramSize = Math.max(mMaxProgramSize, program.length);
+        mMaxNumRuleCounters = Math.max(mMaxNumRuleCounters, mRuleCounterRules.size());
 
         if (VDBG) {
             hexDump("Installing filter: ", program, program.length);
         }
     }
 
+    /**
+     * Returns an upper bound on the length of the program in {@code gen} followed by the
+     * epilogue, including the per-rule counters but excluding the keepalive filters, which are
+     * budgeted along with the RA filters. Appends the epilogue to {@code gen}.
+     */
+    @GuardedBy("this")
+    private int getProgramLengthWithoutOptionalFiltersLocked(ApfV4GeneratorBase<?> gen)
+            throws IllegalInstructionException {
+        // The epilogue normally goes after the RA filters, but add it early to include its
+        // length when estimating the total.
+        emitEpilogue(gen);
+        int programLength = gen.programLengthOverEstimate();
+        // Per-rule counters are allocated between the program and the counters.
+        programLength += ApfRuleCounterTracker.totalSize(mRuleCounterRules.size());
+        for (ApfFilterSection section : mKeepaliveFilters.getSections()) {
+            programLength -= mFilterPipeline.getLastSize(section);
+        }
+        if (mShouldCountRules) {
+            for (int slot : mKeepaliveFilters.getSlots()) {
+                if (!mKeepaliveFilters.isExcluded(slot)) {
+                    programLength -= ApfRuleCounterTracker.COUNTER_SIZE;
+                }
+            }
+        }
+        return programLength;
+    }
+
     private void hexDump(String msg, byte[] packet, int length) {
         log(msg + HexDump.toHexString(packet, 0, length, false /* lowercase */));
     }
@@ -2175,24 +3377,150 @@ public class ApfFilter implements AndroidPacketFilter {
         return (int) getMinForPositiveValue((long) oldMinValue, (long) value);
     }
 
+    // What processRaLocked() did with an RA.
+    @VisibleForTesting
+    enum ProcessRaResult {
+        // The RA matched a known RA whose filter should have dropped it.
+        IGNORED,
+        // The RA replaced a known RA.
+        UPDATED,
+        // The RA was added to mRas.
+        ADDED,
+    }
+
+    // Returns a hash over the fields of an RA that are always in a MATCH section, at an offset
+    // that does not depend on the options: the packet length and the IPv6 source address. RAs
+    // that match each other have the same key, and it can be computed without parsing the RA.
+    private static int getRaMatchKey(byte[] packet, int length) {
+        int key = length;
+        for (int i = IPV6_SRC_ADDR_OFFSET; i < IPV6_SRC_ADDR_OFFSET + IPV6_ADDR_LEN; i++) {
+            key = 31 * key + packet[i];
+        }
+        return key;
+    }
+
+    // Returns the RA in {@code snapshot} that {@code ra} matches, or null if there is none.
+    @Nullable
+    private static Ra findMatchingRa(RaSnapshot snapshot, Ra ra) {
+        for (Ra oldRa : snapshot.getRasWithMatchKey(ra.mMatchKey)) {
+            if (oldRa.matches(ra) != Ra.MatchType.NO_MATCH) return oldRa;
+        }
+        return null;
+    }
+
+    // Returns the RA in {@code snapshot} whose filter would drop the RA in the first
+    // {@code length} bytes of {@code packet}, or null if there is none.
+    @Nullable
+    private static Ra findDroppingRa(RaSnapshot snapshot, byte[] packet, int length) {
+        // Too short to be an RA, and to compute the match key.
+        if (length < Ra.ICMP6_RA_OPTION_OFFSET) return null;
+        for (Ra oldRa : snapshot.getRasWithMatchKey(getRaMatchKey(packet, length))) {
+            final Ra.MatchType match = oldRa.matches(packet, length);
+            if (match != Ra.MatchType.NO_MATCH) {
+                return match == Ra.MatchType.MATCH_DROP ? oldRa : null;
+            }
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    RaSnapshot getRasSnapshot() {
+        return mRasSnapshot;
+    }
+
+    @GuardedBy("this")
+    private void publishRasLocked() {
+        final ArrayList<Ra> ras = new ArrayList<>(mRas);
+        Collections.reverse(ras);
+        mRasSnapshot = new RaSnapshot(Collections.unmodifiableList(ras));
+    }
+
     /**
      * Process an RA packet, updating the list of known RAs and installing a new APF program
      * if the current APF program should be updated.
      */
     @VisibleForTesting
-    public synchronized void processRa(byte[] packet, int length) {
+    public void processRa(byte[] packet, int length) {
+        processRa(mRasSnapshot, packet, length);
+    }
+
+    /**
+     * Process an RA packet, matching it without holding the lock against {@code snapshot}, which
+     * mRasSnapshot may have replaced since.
+     */
+    @VisibleForTesting
+    void processRa(RaSnapshot snapshot, byte[] packet, int length) {
         if (VDBG) hexDump("Read packet = ", packet, length);
 
+        // Most RAs repeat a known RA closely enough to be ignored. Recognize those from the raw
+        // packet, without parsing or copying it.
+        final Ra droppingRa = findDroppingRa(snapshot, packet, length);
+        if (droppingRa != null) {
+            final boolean ignored;
+            synchronized (this) {
+                // If mRas changed since it was matched against, take the slow path below.
+                ignored = snapshot == mRasSnapshot;
+                if (ignored) droppingRa.updateLifetimeMetricsLocked(packet);
+            }
+            if (ignored) {
+                // Formatting the RA is expensive, and an RA flood is mostly ignored RAs.
+                if (VDBG) log("Ignoring RA which matches " + droppingRa);
+                return;
+            }
+        }
+
+        // Parsing and matching only depend on the packet and on immutable state, so do them
+        // without holding the lock.
         final Ra ra;
         try {
             ra = new Ra(packet, length);
         } catch (Exception e) {
             Log.e(TAG, "Error parsing RA", e);
-            mNumParseErrorRas++;
+            synchronized (this) {
+                mNumParseErrorRas++;
+            }
             return;
         }
+        Ra oldRa = findMatchingRa(snapshot, ra);
+
+        final ProcessRaResult result;
+        final boolean installed;
+        synchronized (this) {
+            // If mRas changed since it was matched against, match again.
+            if (snapshot != mRasSnapshot) oldRa = findMatchingRa(mRasSnapshot, ra);
+            result = processRaLocked(ra, oldRa);
+            installed = result == ProcessRaResult.IGNORED || requestRaInstallLocked();
+        }
+
+        // Logging formats the whole RA, so do it after releasing the lock.
+        switch (result) {
+            case IGNORED:
+                log("Ignoring RA " + ra + " which matches " + oldRa);
+                return;
+            case UPDATED:
+                log("Updating RA from " + oldRa + " to " + ra);
+                if (!installed) {
+                    Log.e(TAG, "Deferring prog install for tracked RA, too many updates. " + ra);
+                }
+                return;
+            case ADDED:
+                log("Adding " + ra);
+                if (!installed) {
+                    Log.e(TAG, "Deferring prog install for new RA, too many updates. " + ra);
+                }
+                return;
+        }
+    }
 
+    /**
+     * Update mRas with a newly received RA.
+     * @param oldRa the RA in mRas that {@code ra} matches, or null if it matches none.
+     */
+    @VisibleForTesting
+    @GuardedBy("this")
+    ProcessRaResult processRaLocked(Ra ra, @Nullable Ra oldRa) {
         // Update info for Metrics
+        mNumZeroLifetimeRas += ra.mNumZeroLifetimes;
         mLowestRouterLifetimeSeconds = getMinForPositiveValue(
                 mLowestRouterLifetimeSeconds, ra.routerLifetime());
         mLowestPioValidLifetimeSeconds = getMinForPositiveValue(
@@ -2206,50 +3534,42 @@ public class ApfFilter implements AndroidPacketFilter {
         // TODO: matches() still checks that the old RA filter has not expired. Consider removing
         // that check.
         final int now = secondsSinceBoot();
-        mRas.removeIf(item -> item.getRemainingFilterLft(now) <= 0);
-
-        // Have we seen this RA before?
-        for (int i = 0; i < mRas.size(); i++) {
-            final Ra oldRa = mRas.get(i);
-            final Ra.MatchType result = oldRa.matches(ra);
-            if (result == Ra.MatchType.MATCH_PASS) {
-                log("Updating RA from " + oldRa + " to " + ra);
-
-                // Keep mRas in LRU order so as to prioritize generating filters for recently seen
-                // RAs. LRU prioritizes this because RA filters are generated in order from mRas
-                // until the filter program exceeds the maximum filter program size allowed by the
-                // chipset, so RAs appearing earlier in mRas are more likely to make it into the
-                // filter program.
-                // TODO: consider sorting the RAs in order of increasing expiry time as well.
-                // Swap to front of array.
-                mRas.remove(i);
-                mRas.add(0, ra);
-
-                // Rate limit program installation
-                if (mTokenBucket.get()) {
-                    installNewProgramLocked();
-                } else {
-                    Log.e(TAG, "Failed to install prog for tracked RA, too many updates. " + ra);
-                }
-                return;
-            } else if (result == Ra.MatchType.MATCH_DROP) {
-                log("Ignoring RA " + ra + " which matches " + oldRa);
-                return;
-            }
+        final boolean removedExpired =
+                mRas.removeIf(item -> item.getRemainingFilterLft(now) <= 0);
+
+        // Have we seen this RA before? oldRa may have expired since it was matched.
+        final Ra.MatchType match = (oldRa != null && mRas.contains(oldRa))
+                ? oldRa.matches(ra) : Ra.MatchType.NO_MATCH;
+        if (match == Ra.MatchType.MATCH_DROP) {
+            if (removedExpired) publishRasLocked();
+            return ProcessRaResult.IGNORED;
+        }
+        if (match == Ra.MatchType.MATCH_PASS) {
+            // Keep mRas in LRU order so as to prioritize generating filters for recently seen
+            // RAs. LRU prioritizes this because RA filters are generated most recently seen
+            // first until the filter program exceeds the maximum filter program size allowed by
+            // the chipset, so recently seen RAs are more likely to make it into the filter
+            // program.
+            // TODO: consider sorting the RAs in order of increasing expiry time as well.
+            // Move to the most recently seen end.
+            mRas.remove(oldRa);
+            ra.mRuleCounterKey = oldRa.mRuleCounterKey;
+            mRas.add(ra);
+            publishRasLocked();
+            return ProcessRaResult.UPDATED;
         }
+
         mMaxDistinctRas = Math.max(mMaxDistinctRas, mRas.size() + 1);
-        if (mRas.size() >= MAX_RAS) {
-            // Remove the last (i.e. oldest) RA.
-            mRas.remove(mRas.size() - 1);
-        }
-        log("Adding " + ra);
-        mRas.add(0, ra);
-        // Rate limit program installation
-        if (mTokenBucket.get()) {
-            installNewProgramLocked();
-        } else {
-            Log.e(TAG, "Failed to install prog for new RA, too many updates. " + ra);
+        if (mRas.size() >= mMaxRas) {
+            // Remove the least recently seen RA.
+            final Iterator<Ra> it = mRas.iterator();
+            it.next();
+            it.remove();
         }
+        ra.mRuleCounterKey = "RA " + getUniqueNumberLocked();
+        mRas.add(ra);
+        publishRasLocked();
+        return ProcessRaResult.ADDED;
     }
 
     /**
@@ -2300,6 +3620,13 @@ public class ApfFilter implements AndroidPacketFilter {
                 (int) (sessionDurationMs / DateUtils.SECOND_IN_MILLIS));
         mApfSessionInfoMetrics.setNumOfTimesApfProgramUpdated(mNumProgramUpdates);
         mApfSessionInfoMetrics.setMaxProgramSize(mMaxProgramSize);
+        if (mShouldCountRules) {
+            mApfSessionInfoMetrics.setMaxNumOfRuleCounters(mMaxNumRuleCounters);
+            mApfSessionInfoMetrics.setNumOfUnusedRules(mRuleCounterTracker.getNumUnusedRules());
+        }
+        mApfSessionInfoMetrics.setNumOfCounterSnapshots(mApfCounterTracker.getNumSnapshots());
+        mApfSessionInfoMetrics.setMaxDroppedPacketsPerMinute(
+                mApfCounterTracker.getMaxDroppedPacketsPerMinute());
         for (Map.Entry<Counter, Long> entry : mApfCounterTracker.getCounters().entrySet()) {
             if (entry.getValue() > 0) {
                 mApfSessionInfoMetrics.addApfCounter(entry.getKey(), entry.getValue());
@@ -2316,31 +3643,93 @@ public class ApfFilter implements AndroidPacketFilter {
             mReceiveThread = null;
         }
         mRas.clear();
+        publishRasLocked();
+        cancelDeferredInstallLocked();
+        cancelRefreshAlarmLocked();
+        cancelMulticastGroupsRefreshLocked();
+        if (mHostPacketSampler != null) mHostPacketSampler.stop();
         mDependencies.removeBroadcastReceiver(mDeviceIdleReceiver);
     }
 
     public synchronized void setMulticastFilter(boolean isEnabled) {
         if (mMulticastFilter == isEnabled) return;
         mMulticastFilter = isEnabled;
+        mPassAllMdnsForSize = false;
         if (!isEnabled) {
             mNumProgramUpdatesAllowingMulticast++;
         }
-        installNewProgramLocked();
+        if (mShouldFilterMulticastByGroup) {
+            if (isEnabled) {
+                cancelMulticastGroupsRefreshLocked();
+            } else {
+                // Apps that take a multicast lock usually join their groups right after, so pass
+                // all multicast until the groups are read again, one refresh interval from now.
+                mIPv4MulticastGroups = null;
+                mIPv6MulticastGroups = null;
+                mMulticastGroupsChanged = false;
+                mMulticastGroupsRefreshIntervalMs = MULTICAST_GROUPS_REFRESH_INTERVAL_MS;
+                scheduleMulticastGroupsRefreshLocked();
+            }
+        }
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     /** Adds qname to the mDNS allowlist */
     public synchronized void addToMdnsAllowList(String[] labels) {
         mMdnsAllowList.add(labels);
+        mPassAllMdnsForSize = false;
+        invalidatePrologueLocked();
         if (mMulticastFilter) {
-            installNewProgramLocked();
+            requestInstallLocked();
         }
     }
 
     /** Removes qname from the mDNS allowlist */
     public synchronized void removeFromAllowList(String[] labels) {
         mMdnsAllowList.removeIf(e -> Arrays.equals(labels, e));
+        mPassAllMdnsForSize = false;
+        invalidatePrologueLocked();
         if (mMulticastFilter) {
-            installNewProgramLocked();
+            requestInstallLocked();
+        }
+    }
+
+    /**
+     * Adds a canned mDNS response that APFv6 programs send, instead of waking up the host, in
+     * reply to IPv4 queries for the given name and qtype. The name should also be in the mDNS
+     * allowlist, since the rules only apply while the mDNS filter is active.
+     *
+     * @param labels the labels of the queried name.
+     * @param qtype the queried record type.
+     * @param response the mDNS message to send, starting with the DNS header.
+     */
+    public synchronized void addMdnsOffloadRule(String[] labels, int qtype, byte[] response) {
+        if (labels.length == 0) {
+            throw new IllegalArgumentException("Empty mDNS offload name");
+        }
+        for (String label : labels) {
+            if (!isValidDnsLabel(label)) {
+                throw new IllegalArgumentException("Invalid mDNS offload label: " + label);
+            }
+        }
+        if (response.length > MAX_MDNS_OFFLOAD_RESPONSE_LEN) {
+            throw new IllegalArgumentException("mDNS offload response too long: "
+                    + response.length);
+        }
+        mMdnsOffloadRules.add(new MdnsOffloadRule(labels, qtype, response.clone()));
+        invalidatePrologueLocked();
+        if (mMulticastFilter) {
+            requestInstallLocked();
+        }
+    }
+
+    /** Removes the mDNS offload rules for the given name and qtype. */
+    public synchronized void removeMdnsOffloadRule(String[] labels, int qtype) {
+        mMdnsOffloadRules.removeIf(e -> Arrays.equals(labels, e.labels) && qtype == e.qtype);
+        invalidatePrologueLocked();
+        if (mMulticastFilter) {
+            requestInstallLocked();
         }
     }
 
@@ -2348,7 +3737,8 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void setDozeMode(boolean isEnabled) {
         if (mInDozeMode == isEnabled) return;
         mInDozeMode = isEnabled;
-        installNewProgramLocked();
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     @VisibleForTesting
@@ -2372,17 +3762,33 @@ public class ApfFilter implements AndroidPacketFilter {
         return ipv4Address;
     }
 
+    private static List<Inet6Address> findIPv6NonTentativeAddresses(LinkProperties lp) {
+        final List<Inet6Address> addresses = new ArrayList<>();
+        for (LinkAddress address : lp.getLinkAddresses()) {
+            if (!(address.getAddress() instanceof Inet6Address)) continue;
+            // The kernel must answer for tentative addresses, if at all, as part of DAD.
+            if ((address.getFlags() & IFA_F_TENTATIVE) != 0) continue;
+            addresses.add((Inet6Address) address.getAddress());
+        }
+        return addresses;
+    }
+
     public synchronized void setLinkProperties(LinkProperties lp) {
         // NOTE: Do not keep a copy of LinkProperties as it would further duplicate state.
         final LinkAddress ipv4Address = findIPv4LinkAddress(lp);
         final byte[] addr = (ipv4Address != null) ? ipv4Address.getAddress().getAddress() : null;
         final int prefix = (ipv4Address != null) ? ipv4Address.getPrefixLength() : 0;
-        if ((prefix == mIPv4PrefixLength) && Arrays.equals(addr, mIPv4Address)) {
+        final List<Inet6Address> ipv6Addresses = (mIsApfV6 && mShouldOffloadNs)
+                ? findIPv6NonTentativeAddresses(lp) : Collections.emptyList();
+        if ((prefix == mIPv4PrefixLength) && Arrays.equals(addr, mIPv4Address)
+                && ipv6Addresses.equals(mIPv6Addresses)) {
             return;
         }
         mIPv4Address = addr;
         mIPv4PrefixLength = prefix;
-        installNewProgramLocked();
+        mIPv6Addresses = ipv6Addresses;
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     /**
@@ -2395,14 +3801,10 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void addTcpKeepalivePacketFilter(final int slot,
             final TcpKeepalivePacketDataParcelable sentKeepalivePacket) {
         log("Adding keepalive ack(" + slot + ")");
-        if (null != mKeepalivePackets.get(slot)) {
-            throw new IllegalArgumentException("Keepalive slot " + slot + " is occupied");
-        }
-        final int ipVersion = sentKeepalivePacket.srcAddress.length == 4 ? 4 : 6;
-        mKeepalivePackets.put(slot, (ipVersion == 4)
-                ? new TcpKeepaliveAckV4(sentKeepalivePacket)
-                : new TcpKeepaliveAckV6(sentKeepalivePacket));
-        installNewProgramLocked();
+        mKeepaliveFilters.addTcpKeepalive(slot, sentKeepalivePacket,
+                "keepalive " + getUniqueNumberLocked());
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     /**
@@ -2415,17 +3817,12 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void addNattKeepalivePacketFilter(final int slot,
             final NattKeepalivePacketDataParcelable sentKeepalivePacket) {
         log("Adding NAT-T keepalive packet(" + slot + ")");
-        if (null != mKeepalivePackets.get(slot)) {
-            throw new IllegalArgumentException("NAT-T Keepalive slot " + slot + " is occupied");
-        }
-
-        // TODO : update ApfFilter to support dropping v6 keepalives
-        if (sentKeepalivePacket.srcAddress.length != 4) {
+        if (!mKeepaliveFilters.addNattKeepalive(slot, sentKeepalivePacket,
+                "keepalive " + getUniqueNumberLocked())) {
             return;
         }
-
-        mKeepalivePackets.put(slot, new NattKeepaliveResponse(sentKeepalivePacket));
-        installNewProgramLocked();
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     /**
@@ -2435,8 +3832,9 @@ public class ApfFilter implements AndroidPacketFilter {
      */
     public synchronized void removeKeepalivePacketFilter(int slot) {
         log("Removing keepalive packet(" + slot + ")");
-        mKeepalivePackets.remove(slot);
-        installNewProgramLocked();
+        mKeepaliveFilters.remove(slot);
+        invalidatePrologueLocked();
+        requestInstallLocked();
     }
 
     public synchronized void dump(IndentingPrintWriter pw) {
@@ -2453,6 +3851,10 @@ public class ApfFilter implements AndroidPacketFilter {
             return;
         }
         pw.println("Program updates: " + mNumProgramUpdates);
+        if (mDeferredInstallTimeMs >= 0) {
+            pw.println("Program install deferred for "
+                    + (mDeferredInstallTimeMs - mClock.elapsedRealtime()) + "ms");
+        }
         pw.println(String.format(
                 "Last program length %d, installed %ds ago, lifetime %ds",
                 mLastInstalledProgram.length, secondsSinceBoot() - mLastTimeInstalledProgram,
@@ -2463,13 +3865,23 @@ public class ApfFilter implements AndroidPacketFilter {
             pw.print(String.format(" %04x", p));
         }
         pw.println();
+        if (mShouldReorderFilters) pw.println("Filter order: " + mFilterBlockOrder);
+        if (mShouldFilterMulticastByGroup) {
+            pw.println("Joined IPv4 multicast groups: " + mIPv4MulticastGroups);
+            pw.println("Joined IPv6 multicast groups: " + mIPv6MulticastGroups);
+            pw.println("Multicast groups " + (mMulticastGroupsChanged ? "changed" : "stable")
+                    + ", read every " + mMulticastGroupsRefreshIntervalMs + "ms");
+        }
         pw.println("RA filters:");
         pw.increaseIndent();
-        for (Ra ra: mRas) {
+        for (Ra ra: mRasSnapshot.ras) {
             pw.println(ra);
             pw.increaseIndent();
             pw.println(String.format(
                     "Last seen %ds ago", secondsSinceBoot() - ra.mLastSeen));
+            if (mShouldCountRules) {
+                pw.println("Dropped: " + mRuleCounterTracker.getHits(ra.mRuleCounterKey));
+            }
             if (DBG) {
                 pw.println("Last match:");
                 pw.increaseIndent();
@@ -2480,31 +3892,12 @@ public class ApfFilter implements AndroidPacketFilter {
         }
         pw.decreaseIndent();
 
-        pw.println("TCP Keepalive filters:");
-        pw.increaseIndent();
-        for (int i = 0; i < mKeepalivePackets.size(); ++i) {
-            final KeepalivePacket keepalivePacket = mKeepalivePackets.valueAt(i);
-            if (keepalivePacket instanceof TcpKeepaliveAck) {
-                pw.print("Slot ");
-                pw.print(mKeepalivePackets.keyAt(i));
-                pw.print(": ");
-                pw.println(keepalivePacket);
-            }
-        }
-        pw.decreaseIndent();
-
-        pw.println("NAT-T Keepalive filters:");
-        pw.increaseIndent();
-        for (int i = 0; i < mKeepalivePackets.size(); ++i) {
-            final KeepalivePacket keepalivePacket = mKeepalivePackets.valueAt(i);
-            if (keepalivePacket instanceof NattKeepaliveResponse) {
-                pw.print("Slot ");
-                pw.print(mKeepalivePackets.keyAt(i));
-                pw.print(": ");
-                pw.println(keepalivePacket);
-            }
+        mKeepaliveFilters.dump(pw, mShouldCountRules ? mRuleCounterTracker : null);
+        mFilterPipeline.dump(pw);
+        if (mPassAllMdnsForSize) {
+            pw.println("mDNS allowlist does not fit, passing all mDNS packets");
         }
-        pw.decreaseIndent();
+        pw.println("Filters left out for size: " + mNumFiltersLeftOutForSize);
 
         if (DBG) {
             pw.println("Last program:");
@@ -2520,23 +3913,20 @@ public class ApfFilter implements AndroidPacketFilter {
         } else if (mDataSnapshot == null) {
             pw.println("No last snapshot.");
         } else {
-            try {
-                Counter[] counters = Counter.class.getEnumConstants();
-                for (Counter c : Arrays.asList(counters).subList(1, counters.length)) {
-                    long value = ApfCounterTracker.getCounterValue(mDataSnapshot, c);
-                    // Only print non-zero counters
-                    if (value != 0) {
-                        pw.println(c.toString() + ": " + value);
-                    }
+            Counter[] counters = Counter.class.getEnumConstants();
+            final long[] values = ApfCounterTracker.decodeCounters(mDataSnapshot, counters.length);
+            for (Counter c : Arrays.asList(counters).subList(1, counters.length)) {
+                long value = values[c.value()];
+                // Only print non-zero counters
+                if (value != 0) {
+                    pw.println(c.toString() + ": " + value);
+                }
 
-                    // If the counter's value decreases, it may have been cleaned up or there may be
-                    // a bug.
-                    if (value < mApfCounterTracker.getCounters().getOrDefault(c, 0L)) {
-                        Log.e(TAG, "Error: Counter value unexpectedly decreased.");
-                    }
+                // If the counter's value decreases, it may have been cleaned up or there may be
+                // a bug.
+                if (value < mApfCounterTracker.getCounters().getOrDefault(c, 0L)) {
+                    Log.e(TAG, "Error: Counter value unexpectedly decreased.");
                 }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                pw.println("Uh-oh: " + e);
             }
             if (VDBG) {
                 pw.println("Raw data dump: ");
@@ -2544,6 +3934,64 @@ public class ApfFilter implements AndroidPacketFilter {
             }
         }
         pw.decreaseIndent();
+
+        dumpCounterRates(pw);
+        if (mHostPacketSampler != null) dumpHostPackets(pw);
+
+        if (mShouldCountRules) {
+            pw.println("APF per-rule counters:");
+            pw.increaseIndent();
+            final List<String> rules = mRuleCounterTracker.getInstalledRules();
+            for (int i = 0; i < rules.size(); i++) {
+                pw.println(String.format("%d: %s: %d", i, rules.get(i),
+                        mRuleCounterTracker.getHits(rules.get(i))));
+            }
+            pw.println("Unused rules: " + mRuleCounterTracker.getNumUnusedRules());
+            pw.decreaseIndent();
+        }
+    }
+
+    private void dumpCounterRates(IndentingPrintWriter pw) {
+        final List<ApfCounterTracker.CounterDeltas> intervals =
+                mApfCounterTracker.getCounterDeltas();
+        if (intervals.isEmpty()) return;
+        pw.println("APF packet counter rates (packets/s):");
+        pw.increaseIndent();
+        pw.println("Max dropped packets per minute: "
+                + mApfCounterTracker.getMaxDroppedPacketsPerMinute());
+        final long nowMs = mClock.elapsedRealtime();
+        for (ApfCounterTracker.CounterDeltas deltas : intervals) {
+            pw.println(String.format("%ds to %ds ago:", (nowMs - deltas.startTimeMs) / 1000,
+                    (nowMs - deltas.endTimeMs) / 1000));
+            pw.increaseIndent();
+            for (Counter c : Counter.class.getEnumConstants()) {
+                // Only print counters that increased during the interval
+                if (!c.countsPackets() || deltas.getDelta(c) == 0) continue;
+                pw.println(String.format("%s: %.3f", c, deltas.getRate(c)));
+            }
+            pw.decreaseIndent();
+        }
+        pw.decreaseIndent();
+    }
+
+    private void dumpHostPackets(IndentingPrintWriter pw) {
+        mHostPacketSampler.dump(pw);
+        // New rules save the most wakeups in the filters that pass the most packets to the host.
+        pw.println("Packets dropped by APF / sampled and classified reaching the host, by filter:");
+        pw.increaseIndent();
+        final Map<Counter, Long> counters = mApfCounterTracker.getCounters();
+        for (FilterBlock block : FilterBlock.values()) {
+            long dropped = 0;
+            for (Map.Entry<Counter, Long> e : counters.entrySet()) {
+                if (e.getKey().countsDroppedPackets()
+                        && FilterBlock.forCounter(e.getKey()) == block) {
+                    dropped += e.getValue();
+                }
+            }
+            pw.println(String.format("%s: %d / %d", block, dropped,
+                    mHostPacketSampler.getSampledCount(block)));
+        }
+        pw.decreaseIndent();
     }
 
     // TODO: move to android.net.NetworkUtils
@@ -2568,6 +4016,21 @@ public class ApfFilter implements AndroidPacketFilter {
         return uint8(buffer.get(position));
     }
 
+    private static int getUint16(byte[] packet, int position) {
+        return (uint8(packet[position]) << 8) | uint8(packet[position + 1]);
+    }
+
+    private static long getUint32(byte[] packet, int position) {
+        return ((long) getUint16(packet, position) << 16) | getUint16(packet, position + 2);
+    }
+
+    // Returns the value of the LIFETIME section {@code section} in {@code packet}.
+    private static long getLifetime(byte[] packet, PacketSection section) {
+        // section.length is guaranteed to be 2 or 4.
+        return section.length == 2
+                ? getUint16(packet, section.start) : getUint32(packet, section.start);
+    }
+
     private static int bytesToBEInt(byte[] bytes) {
         return (uint8(bytes[0]) << 24)
                 + (uint8(bytes[1]) << 16)
@@ -2575,20 +4038,6 @@ public class ApfFilter implements AndroidPacketFilter {
                 + (uint8(bytes[3]));
     }
 
-    private static byte[] concatArrays(final byte[]... arr) {
-        int size = 0;
-        for (byte[] a : arr) {
-            size += a.length;
-        }
-        final byte[] result = new byte[size];
-        int offset = 0;
-        for (byte[] a : arr) {
-            System.arraycopy(a, 0, result, offset, a.length);
-            offset += a.length;
-        }
-        return result;
-    }
-
     private void sendNetworkQuirkMetrics(final NetworkQuirkEvent event) {
         if (mNetworkQuirkMetrics == null) return;
         mNetworkQuirkMetrics.setEvent(event);
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.net.apf.ApfCounterTracker.Counter;
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends {@link ApfFilterSection}s to the programs generated by a filter, and keeps track of
+ * what each section costs.
+ *
+ * The filter decides where each section goes in the program, since that depends on the checks
+ * that precede it, and the pipeline generates the section, checks that it did not exceed its
+ * declared size and records its actual size for dumps and size budgeting.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class ApfFilterPipeline {
+    private static final String TAG = "ApfFilterPipeline";
+
+    // The size of a section when it was last generated.
+    private static class SectionSize {
+        int sizeOverEstimate;
+        int size;
+        int numOverruns;
+    }
+
+    private final ApfFilterSection.Host mHost;
+    private final List<ApfFilterSection> mSections;
+    private final Map<ApfFilterSection, SectionSize> mSizes = new LinkedHashMap<>();
+
+    /**
+     * @param host the filter that generates the programs.
+     * @param sections all the sections that the filter may generate, in program order.
+     */
+    public ApfFilterPipeline(@NonNull ApfFilterSection.Host host,
+            @NonNull List<ApfFilterSection> sections) {
+        mHost = host;
+        mSections = new ArrayList<>(sections);
+        for (ApfFilterSection section : mSections) {
+            mSizes.put(section, new SectionSize());
+        }
+    }
+
+    /**
+     * Appends {@code section} to {@code gen}.
+     *
+     * @return whether the section appended anything.
+     */
+    public boolean generate(@NonNull ApfV4GeneratorBase<?> gen, @NonNull ApfFilterSection section)
+            throws IllegalInstructionException {
+        final SectionSize sectionSize = mSizes.get(section);
+        if (sectionSize == null) {
+            throw new IllegalArgumentException("Unknown section " + section.getName());
+        }
+        sectionSize.sizeOverEstimate = section.getSizeOverEstimate();
+        if (sectionSize.sizeOverEstimate == 0) {
+            sectionSize.size = 0;
+            return false;
+        }
+
+        final int mark = gen.mark();
+        section.generate(gen, mHost);
+        sectionSize.size = gen.lengthOverEstimateSince(mark);
+        if (sectionSize.size > sectionSize.sizeOverEstimate) {
+            // The program may still fit, so don't fail the install, but the estimate is used for
+            // budgeting and must be fixed.
+            sectionSize.numOverruns++;
+            Log.e(TAG, "Section " + section.getName() + " took " + sectionSize.size
+                    + " bytes, estimated at most " + sectionSize.sizeOverEstimate);
+        }
+        return sectionSize.size > 0;
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes that all the sections append in their
+     * current state.
+     */
+    public int getSizeOverEstimate() {
+        int size = 0;
+        for (ApfFilterSection section : mSections) {
+            size += section.getSizeOverEstimate();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the size of {@code section} when it was last generated, or 0 if it was never
+     * generated or appended nothing.
+     */
+    public int getLastSize(@NonNull ApfFilterSection section) {
+        final SectionSize sectionSize = mSizes.get(section);
+        return sectionSize != null ? sectionSize.size : 0;
+    }
+
+    /**
+     * Dumps the sections, their sizes when they were last generated and the counters they use.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Filter sections:");
+        pw.increaseIndent();
+        for (ApfFilterSection section : mSections) {
+            final SectionSize sectionSize = mSizes.get(section);
+            pw.print(section.getName());
+            pw.print(": " + sectionSize.size + " bytes (estimated "
+                    + sectionSize.sizeOverEstimate + ")");
+            if (sectionSize.numOverruns > 0) {
+                pw.print(", over estimate " + sectionSize.numOverruns + " times");
+            }
+            pw.println();
+            pw.increaseIndent();
+            final StringBuilder counters = new StringBuilder("Counters:");
+            for (Counter c : section.getCounters()) {
+                counters.append(' ').append(c);
+            }
+            pw.println(counters);
+            pw.decreaseIndent();
+        }
+        pw.decreaseIndent();
+    }
+}
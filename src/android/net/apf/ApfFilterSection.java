@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.net.apf.ApfCounterTracker.Counter;
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * A part of an APF program that filters one kind of packet, such as the acks to TCP keepalives.
+ *
+ * A section only depends on its own state and on the {@link Host} that generates the program, so
+ * {@link ApfFilter} and {@link LegacyApfFilter} generate the same code for the same kind of
+ * packet. Filters append their sections through an {@link ApfFilterPipeline}, which checks that
+ * each section stays within its declared size and reports what each section costs.
+ *
+ * The keepalive filters in {@link KeepaliveFilters} and the broadcast and multicast filters in
+ * {@link MulticastFilters} are sections. The ARP, mDNS and RA filters, and the IPv6 multicast
+ * filter, are still generated by each filter separately, because the code the two filters
+ * generate for them differs: for example, {@link LegacyApfFilter} passes ARP packets that
+ * {@link ApfFilter} drops, only {@link ApfFilter} can reply to ARP and ND from APFv6 and filter
+ * multicast by joined group, and the two parse and track RAs differently. Each can become a
+ * section once the two filters agree on its behaviour.
+ *
+ * @hide
+ */
+public interface ApfFilterSection {
+    /**
+     * An upper bound on the size of an instruction with a single immediate, such as a load, an
+     * arithmetic instruction or an unconditional jump: the opcode byte, plus at most 4 bytes.
+     */
+    int MAX_SHORT_INSTRUCTION_SIZE = 5;
+
+    /**
+     * An upper bound on the size of any other instruction, such as a conditional jump, excluding
+     * the bytes compared by {@link ApfV4GeneratorBase#addJumpIfBytesAtR0NotEqual}: the opcode
+     * byte, plus two immediates of at most 4 bytes each.
+     */
+    int MAX_INSTRUCTION_SIZE = 9;
+
+    /**
+     * An upper bound on the size of the instructions appended by
+     * {@link Host#maybeAddCountRuleHit} followed by {@link Host#addCountAndDrop} or
+     * {@link Host#addCountAndPass}. Hosts must not exceed it.
+     */
+    int MAX_COUNT_SIZE = 6 * MAX_SHORT_INSTRUCTION_SIZE;
+
+    /**
+     * An upper bound on the size of the instructions appended by
+     * {@link Host#getCountAndPassLabel} or {@link Host#getCountAndDropLabel}. Hosts must not
+     * exceed it.
+     */
+    int MAX_COUNT_LABEL_SIZE = MAX_SHORT_INSTRUCTION_SIZE;
+
+    /**
+     * The filter that generates the program containing a section. Decides how the packets that
+     * the section drops or passes are counted.
+     */
+    interface Host {
+        /**
+         * Appends instructions that count a packet matched by {@code rule}, if the host counts
+         * the packets matched by individual rules. Clobbers R0 and R1, so it must immediately
+         * precede {@link #addCountAndDrop} or {@link #addCountAndPass}.
+         */
+        void maybeAddCountRuleHit(@NonNull ApfV4GeneratorBase<?> gen, @Nullable String rule)
+                throws IllegalInstructionException;
+
+        /**
+         * Appends instructions that unconditionally count {@code counter}, if the interpreter
+         * supports counters, and drop the packet.
+         */
+        void addCountAndDrop(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter counter)
+                throws IllegalInstructionException;
+
+        /**
+         * Appends instructions that unconditionally count {@code counter}, if the interpreter
+         * supports counters, and pass the packet.
+         */
+        void addCountAndPass(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter counter)
+                throws IllegalInstructionException;
+
+        /**
+         * Returns the label that a conditional jump must target to count {@code counter}, if the
+         * interpreter supports counters, and drop the packet. May append instructions that
+         * clobber R1, so it must be called after any other use of R1 and immediately before the
+         * jump.
+         */
+        @NonNull
+        String getCountAndDropLabel(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter counter)
+                throws IllegalInstructionException;
+
+        /**
+         * Returns the label that a conditional jump must target to count {@code counter}, if the
+         * interpreter supports counters, and pass the packet. See {@link #getCountAndDropLabel}.
+         */
+        @NonNull
+        String getCountAndPassLabel(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Counter counter)
+                throws IllegalInstructionException;
+    }
+
+    /**
+     * Returns the name of the section, for dumps.
+     */
+    @NonNull
+    String getName();
+
+    /**
+     * Returns the counters that the section may count packets with.
+     */
+    @NonNull
+    Set<Counter> getCounters();
+
+    /**
+     * Returns an upper bound on the number of bytes that {@link #generate} appends in the current
+     * state of the section. Returns 0 if and only if it appends nothing.
+     */
+    int getSizeOverEstimate();
+
+    /**
+     * Appends the section to {@code gen}. Packets that the section neither drops nor passes fall
+     * through to the code that follows it, with unspecified values in R0 and R1 unless the
+     * section appended nothing.
+     */
+    void generate(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Host host)
+            throws IllegalInstructionException;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.util.ArrayMap;
+import android.util.Pair;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the hits of per-rule counters, which count the packets matched by individual rules of
+ * the APF program, such as one RA filter, keepalive filter or mDNS allowlist entry.
+ *
+ * Per-rule counters are 32bit values allocated in the APF data buffer immediately below the
+ * counters in {@link ApfCounterTracker.Counter}, in the same byte order. Each program numbers
+ * its counters from 0, so the rule that uses a counter may change whenever a new program is
+ * installed, and installing a program does not clear the data buffer. Therefore, the hits of a
+ * rule are counted as the increase of its counter since the rule started using it.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class ApfRuleCounterTracker {
+    /** The size of a per-rule counter in the APF data buffer, in bytes. */
+    public static final int COUNTER_SIZE = 4;
+
+    // The rules counted by the installed program, indexed by counter number.
+    private final ArrayList<String> mRules = new ArrayList<>();
+    // The value of each counter when its hits were last read, or -1 if not read since its rule
+    // started using it.
+    private long[] mBaselines = new long[0];
+    // The counters whose rule changed since the last data snapshot, mapped to the previous rule
+    // and its baseline. The data snapshot requested when installing a program is read before the
+    // program is installed, so the next snapshot contains the last hits of the previous rules.
+    private final SparseArray<Pair<String, Long>> mReplacedRules = new SparseArray<>();
+    // The hits of each rule read so far.
+    private final ArrayMap<String, Long> mHits = new ArrayMap<>();
+
+    /**
+     * Returns the negative byte offset from the end of the APF data buffer of the per-rule
+     * counter with the specified number.
+     */
+    public static int getCounterOffset(int counterNumber) {
+        return -(ApfCounterTracker.Counter.totalSize() + (counterNumber + 1) * COUNTER_SIZE);
+    }
+
+    /**
+     * Returns the number of bytes of the APF data buffer used by the specified number of per-rule
+     * counters.
+     */
+    public static int totalSize(int numCounters) {
+        return numCounters * COUNTER_SIZE;
+    }
+
+    /**
+     * Records the rules counted by a newly installed program. Must be called before the data
+     * snapshot is requested for the install.
+     *
+     * @param rules the rules, indexed by counter number.
+     */
+    public void setInstalledRules(@NonNull List<String> rules) {
+        final int numCounters = Math.max(rules.size(), mRules.size());
+        final long[] baselines = new long[rules.size()];
+        for (int i = 0; i < numCounters; i++) {
+            final String oldRule = i < mRules.size() ? mRules.get(i) : null;
+            final String newRule = i < rules.size() ? rules.get(i) : null;
+            if (oldRule != null && oldRule.equals(newRule)) {
+                baselines[i] = mBaselines[i];
+                continue;
+            }
+            // Keep the first replaced rule if programs are installed faster than they are read.
+            if (oldRule != null && mReplacedRules.get(i) == null) {
+                mReplacedRules.put(i, new Pair<>(oldRule, mBaselines[i]));
+            }
+            if (newRule != null) baselines[i] = -1;
+        }
+        mRules.clear();
+        mRules.addAll(rules);
+        mBaselines = baselines;
+    }
+
+    /**
+     * Update the hits of the rules from APF data.
+     */
+    public void updateFromData(byte[] data) {
+        if (data == null) return;
+        for (int i = 0; i < mReplacedRules.size(); i++) {
+            final Pair<String, Long> replaced = mReplacedRules.valueAt(i);
+            final long value = readCounter(data, mReplacedRules.keyAt(i));
+            addHits(replaced.first, replaced.second, value);
+        }
+        mReplacedRules.clear();
+        for (int i = 0; i < mRules.size(); i++) {
+            final long value = readCounter(data, i);
+            addHits(mRules.get(i), mBaselines[i], value);
+            mBaselines[i] = value;
+        }
+    }
+
+    private static long readCounter(byte[] data, int counterNumber) {
+        try {
+            return ApfCounterTracker.getCounterValue(data, getCounterOffset(counterNumber));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private void addHits(String rule, long baseline, long value) {
+        // The counter decreases if the APF memory was cleared, and the hits since it was last read
+        // are lost.
+        if (baseline < 0 || value < baseline) return;
+        mHits.put(rule, mHits.getOrDefault(rule, 0L) + value - baseline);
+    }
+
+    /**
+     * Forget the hits of all rules that are not in {@code rules}.
+     */
+    public void retainRules(@NonNull Collection<String> rules) {
+        mHits.keySet().retainAll(rules);
+    }
+
+    /**
+     * Returns the rules counted by the installed program, indexed by counter number.
+     */
+    public List<String> getInstalledRules() {
+        return Collections.unmodifiableList(mRules);
+    }
+
+    /**
+     * Returns whether the hits of {@code rule} have been read at least once.
+     */
+    public boolean hasBeenRead(String rule) {
+        return mHits.containsKey(rule);
+    }
+
+    /**
+     * Returns the number of packets {@code rule} matched, as of the last data snapshot.
+     */
+    public long getHits(String rule) {
+        return mHits.getOrDefault(rule, 0L);
+    }
+
+    /**
+     * Returns whether {@code rule} matched no packets during at least one interval between data
+     * snapshots, and since.
+     */
+    public boolean isUnused(String rule) {
+        return hasBeenRead(rule) && getHits(rule) == 0;
+    }
+
+    /**
+     * Get the hits of all the rules read so far.
+     */
+    public Map<String, Long> getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of rules that matched no packets. See {@link #isUnused}.
+     */
+    public int getNumUnusedRules() {
+        int numUnused = 0;
+        for (long hits : mHits.values()) {
+            if (hits == 0) numUnused++;
+        }
+        return numUnused;
+    }
+}
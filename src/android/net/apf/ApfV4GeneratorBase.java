@@ -20,8 +20,15 @@ import static android.net.apf.BaseApfGenerator.Rbit.Rbit0;
 import static android.net.apf.BaseApfGenerator.Register.R0;
 import static android.net.apf.BaseApfGenerator.Register.R1;
 
+import androidx.annotation.NonNull;
+
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
 /**
  * APF assembler/generator.  A tool for generating an APF program.
  *
@@ -349,6 +356,109 @@ public abstract class ApfV4GeneratorBase<Type extends ApfV4GeneratorBase<Type>>
         return append(new Instruction(Opcodes.JSET, R1).setTargetLabel(tgt));
     }
 
+    /**
+     * Add instructions to the end of the program to jump to {@code tgt} if register R0's value is
+     * one of {@code values}, and fall through otherwise. Up to
+     * {@link #MAX_LINEAR_COMPARE_RANGES} values are compared one by one. Larger sets are compiled
+     * into a binary search tree, so that only O(log n) comparisons are executed, and runs of
+     * consecutive values are matched by a single range check.
+     */
+    public Type addJumpIfR0IsOneOf(@NonNull Set<Long> values, @NonNull String tgt)
+            throws IllegalInstructionException {
+        final List<long[]> ranges = toSortedRanges(values);
+        final String noMatchLabel = getUniqueLabel("one_of_no_match");
+        addJumpIfR0InRanges(ranges, 0, ranges.size(), tgt, noMatchLabel,
+                true /* fallThroughOnNoMatch */);
+        return defineLabel(noMatchLabel);
+    }
+
+    /**
+     * Add instructions to the end of the program to jump to {@code tgt} if register R0's value is
+     * none of {@code values}, and fall through otherwise. See {@link #addJumpIfR0IsOneOf}.
+     */
+    public Type addJumpIfR0IsNoneOf(@NonNull Set<Long> values, @NonNull String tgt)
+            throws IllegalInstructionException {
+        final List<long[]> ranges = toSortedRanges(values);
+        final String matchLabel = getUniqueLabel("none_of_match");
+        addJumpIfR0InRanges(ranges, 0, ranges.size(), matchLabel, tgt,
+                false /* fallThroughOnNoMatch */);
+        return defineLabel(matchLabel);
+    }
+
+    /**
+     * The largest number of ranges of consecutive values that {@link #addJumpIfR0IsOneOf} and
+     * {@link #addJumpIfR0IsNoneOf} compare one by one, which costs at most as many comparisons
+     * as another level of binary search.
+     */
+    @VisibleForTesting
+    public static final int MAX_LINEAR_COMPARE_RANGES = 3;
+
+    // Merges the unsigned 32bit values into sorted, disjoint ranges of consecutive values.
+    private static List<long[]> toSortedRanges(@NonNull Set<Long> values) {
+        if (values.isEmpty()) throw new IllegalArgumentException("values must not be empty");
+        final long[] sorted = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            checkRange("value", value, 0, 0xffffffffL);
+            sorted[i++] = value;
+        }
+        Arrays.sort(sorted);
+        final ArrayList<long[]> ranges = new ArrayList<>();
+        for (long value : sorted) {
+            final long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] + 1 == value) {
+                last[1] = value;
+            } else {
+                ranges.add(new long[] {value, value});
+            }
+        }
+        return ranges;
+    }
+
+    // Appends a comparison of R0 against ranges[from, to), jumping to matchLabel if it is in one
+    // of them, and to noMatchLabel or past the comparison otherwise.
+    private void addJumpIfR0InRanges(List<long[]> ranges, int from, int to, String matchLabel,
+            String noMatchLabel, boolean fallThroughOnNoMatch)
+            throws IllegalInstructionException {
+        if (to - from > MAX_LINEAR_COMPARE_RANGES) {
+            final int mid = (from + to) / 2;
+            final String upperHalfLabel = getUniqueLabel("ranges_upper_half");
+            append(new Instruction(Opcodes.JGT).addUnsigned(ranges.get(mid - 1)[1])
+                    .setTargetLabel(upperHalfLabel));
+            addJumpIfR0InRanges(ranges, from, mid, matchLabel, noMatchLabel,
+                    false /* fallThroughOnNoMatch */);
+            defineLabel(upperHalfLabel);
+            addJumpIfR0InRanges(ranges, mid, to, matchLabel, noMatchLabel, fallThroughOnNoMatch);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            final long lo = ranges.get(i)[0];
+            final long hi = ranges.get(i)[1];
+            if (lo == hi) {
+                addJumpIfR0Equals((int) lo, matchLabel);
+                continue;
+            }
+            // The ranges are sorted, so if R0 is below this one, it is not in any of them.
+            if (lo > 0) addJumpIfR0LessThan(lo, noMatchLabel);
+            if (hi == 0xffffffffL) {
+                addJump(matchLabel);
+                return;
+            }
+            addJumpIfR0LessThan(hi + 1, matchLabel);
+        }
+        if (!fallThroughOnNoMatch) addJump(noMatchLabel);
+    }
+
+    /**
+     * Returns a label name based on {@code name} that is unique within this program, so that
+     * code shared between several programs does not need to keep track of the labels in use.
+     */
+    public String getUniqueLabel(@NonNull String name) {
+        return "__" + name + "_" + mNextUniqueLabel++ + "__";
+    }
+
+    private int mNextUniqueLabel = 0;
+
     /**
      * Add an instruction to the end of the program to jump to {@code tgt} if the bytes of the
      * packet at an offset specified by {@code register} don't match {@code bytes}
@@ -102,6 +102,16 @@ public abstract class ApfV6GeneratorBase<Type extends ApfV6GeneratorBase<Type>>
                 .setBytesImm(data));
     }
 
+    /**
+     * Returns the offset from the start of the program of data added by {@link #addData}, for use
+     * as the source offset of {@link #addDataCopy}.
+     *
+     * @param dataLength the length of the data passed to {@link #addData}.
+     */
+    public int getDataOffset(int dataLength) {
+        return new Instruction(Opcodes.JMP, Rbit1).addUnsigned(dataLength).size();
+    }
+
     /**
      * Add an instruction to the end of the program to transmit the allocated buffer without
      * checksum.
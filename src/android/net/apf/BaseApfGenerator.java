@@ -23,8 +23,12 @@ import static android.net.apf.BaseApfGenerator.Register.R0;
 import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * The base class for APF assembler/generator.
@@ -320,12 +324,19 @@ public abstract class BaseApfGenerator {
         private int mTargetLabelSize;
         private int mLenFieldOverride = -1;
         private String mTargetLabel;
+        // Target label after jump threading, or null. Set by {@link BaseApfGenerator#optimize}.
+        private String mThreadedTargetLabel;
+        // The LABEL instruction the target label refers to. Set by {@link #resolveTargetLabel}.
+        private Instruction mTargetInstruction;
         // When mOpcode == Opcodes.LABEL:
         private String mLabel;
         private byte[] mBytesImm;
         // Offset in bytes from the beginning of this program.
         // Set by {@link BaseApfGenerator#generate}.
         int offset;
+        // Index of this instruction in the program being generated.
+        // Set by {@link BaseApfGenerator#generate}.
+        int index;
 
         Instruction(Opcodes opcode, Rbit rbit) {
             mOpcode = opcode;
@@ -442,6 +453,80 @@ public abstract class BaseApfGenerator {
             return this;
         }
 
+        /**
+         * Undo any shrinking done by {@link BaseApfGenerator#generate}, so that the jump offset
+         * can be recalculated against a different program layout.
+         */
+        void resetTargetLabelSize() {
+            if (mTargetLabel != null) {
+                mTargetLabelSize = 4;
+            }
+        }
+
+        /**
+         * @return the label this instruction jumps to, or null if it is not a jump.
+         */
+        String getTargetLabel() {
+            return mThreadedTargetLabel != null ? mThreadedTargetLabel : mTargetLabel;
+        }
+
+        /**
+         * @return whether this instruction always jumps, so the next instruction is only
+         * reachable through a label.
+         */
+        boolean isUnconditionalJump() {
+            return mOpcode == Opcodes.JMP && mRbit == Rbit0 && mTargetLabel != null;
+        }
+
+        /**
+         * @return whether this instruction only decides where execution continues, without any
+         * other side effects. This excludes JNEBS, which passes the packet if the compared bytes
+         * are out of bounds.
+         */
+        boolean isPureJump() {
+            switch (mOpcode) {
+                case JMP:
+                    return isUnconditionalJump();
+                case JEQ:
+                case JNE:
+                case JGT:
+                case JLT:
+                case JSET:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return whether this instruction loads a register from a fixed packet offset or from an
+         * immediate, so that repeating it with no other instruction in between is a no-op.
+         */
+        boolean isSimpleLoad() {
+            switch (mOpcode) {
+                case LDB:
+                case LDH:
+                case LDW:
+                case LI:
+                    return mIntImms.size() == 1 && mTargetLabel == null && mBytesImm == null;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return whether this instruction and {@code other} are simple loads of the same value
+         * into the same register.
+         */
+        boolean isSameSimpleLoad(Instruction other) {
+            if (!isSimpleLoad() || !other.isSimpleLoad()) return false;
+            final IntImmediate imm = mIntImms.get(0);
+            final IntImmediate otherImm = other.mIntImms.get(0);
+            return mOpcode == other.mOpcode && mRbit == other.mRbit
+                    && imm.mImmediateType == otherImm.mImmediateType
+                    && imm.mValue == otherImm.mValue;
+        }
+
         Instruction overrideLenField(int size) {
             mLenFieldOverride = size;
             return this;
@@ -475,19 +560,20 @@ public abstract class BaseApfGenerator {
 
         /**
          * Resize immediate value field so that it's only as big as required to
-         * contain the offset of the jump destination.
-         * @return {@code true} if shrunk.
+         * contain the offset of the jump destination, if it was at {@code targetOffset}.
+         * @return the number of bytes by which the instruction shrunk.
          */
-        boolean shrink() throws IllegalInstructionException {
+        int shrink(int targetOffset) {
             if (mTargetLabel == null) {
-                return false;
+                return 0;
             }
-            int oldTargetLabelSize = mTargetLabelSize;
-            mTargetLabelSize = calculateImmSize(calculateTargetLabelOffset(), false);
+            final int oldSize = size();
+            final int oldTargetLabelSize = mTargetLabelSize;
+            mTargetLabelSize = calculateImmSize(targetOffset - (offset + oldSize), false);
             if (mTargetLabelSize > oldTargetLabelSize) {
                 throw new IllegalStateException("instruction grew");
             }
-            return mTargetLabelSize < oldTargetLabelSize;
+            return oldSize - size();
         }
 
         /**
@@ -586,20 +672,29 @@ public abstract class BaseApfGenerator {
             return maxSize;
         }
 
-        private int calculateTargetLabelOffset() throws IllegalInstructionException {
+        /**
+         * Looks up the instruction that defines the target label, so that calculating jump
+         * offsets does not require looking up labels by name.
+         */
+        void resolveTargetLabel() throws IllegalInstructionException {
+            final String targetLabel = getTargetLabel();
             Instruction targetLabelInstruction;
-            if (mTargetLabel == DROP_LABEL) {
+            if (targetLabel == DROP_LABEL) {
                 targetLabelInstruction = mDropLabel;
-            } else if (mTargetLabel == PASS_LABEL) {
+            } else if (targetLabel == PASS_LABEL) {
                 targetLabelInstruction = mPassLabel;
             } else {
-                targetLabelInstruction = mLabels.get(mTargetLabel);
+                targetLabelInstruction = mLabels.get(targetLabel);
             }
             if (targetLabelInstruction == null) {
-                throw new IllegalInstructionException("label not found: " + mTargetLabel);
+                throw new IllegalInstructionException("label not found: " + targetLabel);
             }
+            mTargetInstruction = targetLabelInstruction;
+        }
+
+        private int calculateTargetLabelOffset() {
             // Calculate distance from end of this instruction to instruction.offset.
-            final int targetLabelOffset = targetLabelInstruction.offset - (offset + size());
+            final int targetLabelOffset = mTargetInstruction.offset - (offset + size());
             return targetLabelOffset;
         }
     }
@@ -608,9 +703,9 @@ public abstract class BaseApfGenerator {
      * Updates instruction offset fields using latest instruction sizes.
      * @return current program length in bytes.
      */
-    private int updateInstructionOffsets() {
+    private int updateInstructionOffsets(List<Instruction> instructions) {
         int offset = 0;
-        for (Instruction instruction : mInstructions) {
+        for (Instruction instruction : instructions) {
             instruction.offset = offset;
             offset += instruction.size();
         }
@@ -648,7 +743,234 @@ public abstract class BaseApfGenerator {
      * a program that is smaller.
      */
     public int programLengthOverEstimate() {
-        return updateInstructionOffsets();
+        return updateInstructionOffsets(mInstructions);
+    }
+
+    /**
+     * Returns a mark identifying the current end of the program. The mark can later be passed to
+     * {@link #truncate} to discard everything that was added after this point.
+     */
+    public int mark() {
+        return mInstructions.size();
+    }
+
+    /**
+     * Returns an overestimate of the size of the instructions added since {@code mark} was
+     * taken. Unlike {@link #programLengthOverEstimate}, this does not walk the whole program.
+     */
+    public int lengthOverEstimateSince(int mark) {
+        int length = 0;
+        for (int i = mark; i < mInstructions.size(); i++) {
+            length += mInstructions.get(i).size();
+        }
+        return length;
+    }
+
+    /**
+     * Discard all instructions (and the labels they define) that were added after {@code mark}
+     * was taken, and allow the program to be extended and generated again.
+     *
+     * This allows callers to emit a common program prefix once and reuse it to generate several
+     * programs that only differ in their tail.
+     */
+    public void truncate(int mark) {
+        if (mark < 0 || mark > mInstructions.size()) {
+            throw new IllegalArgumentException("Invalid mark " + mark + ", program has "
+                    + mInstructions.size() + " instructions");
+        }
+        for (int i = mInstructions.size() - 1; i >= mark; i--) {
+            final Instruction instruction = mInstructions.remove(i);
+            if (instruction.mLabel != null) {
+                mLabels.remove(instruction.mLabel);
+            }
+        }
+        // generate() shrinks jump offsets in place, and they cannot grow again. Since the tail of
+        // the program is about to change, restore the maximum sizes so they can be shrunk again.
+        for (Instruction instruction : mInstructions) {
+            instruction.resetTargetLabelSize();
+        }
+        mGenerated = false;
+    }
+
+    /**
+     * Make {@link #generate} remove and retarget instructions where this does not change the
+     * behavior of the program. See {@link #optimize}.
+     */
+    public void enableOptimizations() {
+        mOptimize = true;
+    }
+
+    /**
+     * Returns the instructions to generate, after applying the following optimizations:
+     * <ul>
+     * <li>Labels that no jump targets are removed.
+     * <li>Jumps to a label that is followed by an unconditional jump are redirected to the
+     *     target of that jump. Jumps to a label at the end of the program go to PASS_LABEL.
+     * <li>Jumps to the instruction that immediately follows them are removed.
+     * <li>Instructions after an unconditional jump or a pass/drop are removed until the next
+     *     label.
+     * <li>Loads into a register that is known to already hold the loaded value are removed.
+     *     Register values are only tracked until the next label.
+     * </ul>
+     * Removing one instruction can enable removing others, so the passes are repeated until
+     * nothing changes. This terminates: every pass other than jump threading only removes
+     * instructions, and jump threading changes nothing when run again on the same instructions.
+     * mInstructions is not modified (other than the redirected jump targets,
+     * which are recalculated every time), so the program can still be truncated and regenerated.
+     */
+    private List<Instruction> optimize() {
+        final ArrayList<Instruction> instructions = new ArrayList<>(mInstructions);
+        for (Instruction instruction : instructions) {
+            instruction.mThreadedTargetLabel = null;
+        }
+        boolean changed;
+        do {
+            changed = removeUnreferencedLabels(instructions);
+            changed |= threadJumps(instructions);
+            changed |= removeJumpsToNextInstruction(instructions);
+            changed |= removeUnreachableInstructions(instructions);
+            changed |= removeRedundantLoads(instructions);
+        } while (changed);
+        return instructions;
+    }
+
+    private static Set<String> getReferencedLabels(List<Instruction> instructions) {
+        final Set<String> labels = new HashSet<>();
+        for (Instruction instruction : instructions) {
+            if (instruction.getTargetLabel() != null) {
+                labels.add(instruction.getTargetLabel());
+            }
+        }
+        return labels;
+    }
+
+    private static boolean removeUnreferencedLabels(List<Instruction> instructions) {
+        final Set<String> referenced = getReferencedLabels(instructions);
+        return instructions.removeIf(instruction -> instruction.mOpcode == Opcodes.LABEL
+                && !referenced.contains(instruction.mLabel));
+    }
+
+    /**
+     * Returns where execution effectively continues after jumping to {@code label}, if that is
+     * somewhere else than {@code label}, or null otherwise.
+     */
+    private static String getThreadedTarget(List<Instruction> instructions,
+            HashMap<String, Integer> labelIndexes, String label) {
+        final Integer index = labelIndexes.get(label);
+        if (index == null) return null;
+        for (int i = index + 1; i < instructions.size(); i++) {
+            final Instruction instruction = instructions.get(i);
+            if (instruction.mOpcode == Opcodes.LABEL) continue;
+            return instruction.isUnconditionalJump() ? instruction.getTargetLabel() : null;
+        }
+        // Running past the end of the program passes the packet, just like jumping to PASS_LABEL.
+        return PASS_LABEL;
+    }
+
+    private static boolean threadJumps(List<Instruction> instructions) {
+        final HashMap<String, Integer> labelIndexes = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            final Instruction instruction = instructions.get(i);
+            if (instruction.mOpcode == Opcodes.LABEL) labelIndexes.put(instruction.mLabel, i);
+        }
+        boolean changed = false;
+        for (Instruction instruction : instructions) {
+            final String originalTarget = instruction.getTargetLabel();
+            if (originalTarget == null) continue;
+            String target = originalTarget;
+            final Set<String> visited = new HashSet<>();
+            visited.add(target);
+            boolean inCycle = false;
+            while (true) {
+                final String next = getThreadedTarget(instructions, labelIndexes, target);
+                if (next == null || next.equals(target)) break;
+                if (!visited.add(next)) {
+                    inCycle = true;
+                    break;
+                }
+                target = next;
+            }
+            // Jumps into a cycle of unconditional jumps are left alone. Threading them would
+            // move them around the cycle on every pass, so the passes would never stop.
+            if (inCycle) continue;
+            if (!target.equals(originalTarget)) {
+                instruction.mThreadedTargetLabel = target;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeJumpsToNextInstruction(List<Instruction> instructions) {
+        boolean changed = false;
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            final Instruction instruction = instructions.get(i);
+            if (!instruction.isPureJump()) continue;
+            final String target = instruction.getTargetLabel();
+            int next = i + 1;
+            boolean jumpsToNext = false;
+            while (next < instructions.size() && instructions.get(next).mOpcode == Opcodes.LABEL) {
+                if (target.equals(instructions.get(next).mLabel)) jumpsToNext = true;
+                next++;
+            }
+            if (next == instructions.size() && target == PASS_LABEL) jumpsToNext = true;
+            if (jumpsToNext) {
+                instructions.remove(i);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeUnreachableInstructions(List<Instruction> instructions) {
+        final Set<String> referenced = getReferencedLabels(instructions);
+        boolean changed = false;
+        boolean reachable = true;
+        for (Iterator<Instruction> it = instructions.iterator(); it.hasNext(); ) {
+            final Instruction instruction = it.next();
+            if (instruction.mOpcode == Opcodes.LABEL && referenced.contains(instruction.mLabel)) {
+                reachable = true;
+            } else if (!reachable) {
+                it.remove();
+                changed = true;
+                continue;
+            }
+            if (instruction.isUnconditionalJump() || instruction.mOpcode == Opcodes.PASSDROP) {
+                reachable = false;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeRedundantLoads(List<Instruction> instructions) {
+        final Set<String> referenced = getReferencedLabels(instructions);
+        // The last simple load into R0 and R1, indexed by Rbit value, if the register has not
+        // been modified since.
+        final Instruction[] lastLoads = new Instruction[2];
+        boolean changed = false;
+        for (Iterator<Instruction> it = instructions.iterator(); it.hasNext(); ) {
+            final Instruction instruction = it.next();
+            if (instruction.mOpcode == Opcodes.LABEL) {
+                // Register values are unknown if execution can arrive here by jumping.
+                if (referenced.contains(instruction.mLabel)) {
+                    lastLoads[0] = null;
+                    lastLoads[1] = null;
+                }
+            } else if (instruction.isSimpleLoad()) {
+                final Instruction lastLoad = lastLoads[instruction.mRbit.value];
+                if (lastLoad != null && lastLoad.isSameSimpleLoad(instruction)) {
+                    it.remove();
+                    changed = true;
+                } else {
+                    lastLoads[instruction.mRbit.value] = instruction;
+                }
+            } else if (!instruction.isPureJump() && instruction.mOpcode != Opcodes.JNEBS) {
+                // Conservatively assume any other instruction modifies both registers.
+                lastLoads[0] = null;
+                lastLoads[1] = null;
+            }
+        }
+        return changed;
     }
 
     /**
@@ -659,38 +981,79 @@ public abstract class BaseApfGenerator {
     public byte[] generate() throws IllegalInstructionException {
         // Enforce that we can only generate once because we cannot unshrink instructions and
         // PASS/DROP labels may move further away requiring unshrinking if we add further
-        // instructions.
+        // instructions. truncate() undoes the shrinking and allows generating again.
         if (mGenerated) {
             throw new IllegalStateException("Can only generate() once!");
         }
         mGenerated = true;
-        int total_size;
-        boolean shrunk;
+        final List<Instruction> instructions = mOptimize ? optimize() : mInstructions;
+        final int count = instructions.size();
+        // Resolve all labels once, so shrinking does not need to look them up by name.
+        for (int i = 0; i < count; i++) {
+            instructions.get(i).index = i;
+        }
+        mDropLabel.index = count;
+        mPassLabel.index = count;
+        for (Instruction instruction : instructions) {
+            if (instruction.mTargetLabel != null) {
+                instruction.resolveTargetLabel();
+            }
+        }
+        int total_size = updateInstructionOffsets(instructions);
+        mDropLabel.offset = total_size + 1;
+        mPassLabel.offset = total_size;
+
         // Shrink the immediate value fields of instructions.
         // As we shrink the instructions some branch offset
         // fields may shrink also, thereby shrinking the
         // instructions further. Loop until we've reached the
         // minimum size. Rarely will this loop more than a few times.
-        // Limit iterations to avoid O(n^2) behavior.
-        int iterations_remaining = 10;
-        do {
-            total_size = updateInstructionOffsets();
+        //
+        // Each pass updates offsets as it goes. Targets before a jump already have their offset
+        // for this pass, and targets after it are moved back by the bytes removed so far. That
+        // may overestimate the distance to the target, but never underestimates it. A jump only
+        // needs to be visited again if an instruction between it and its target shrank, so later
+        // passes only look at the few jumps that may still shrink.
+        //
+        // The loop always terminates: every pass but the last shrinks at least one jump, and a
+        // jump never grows, so its offset field can only go from 4 to 2 to 1 to 0 bytes.
+        final boolean[] needsVisit = new boolean[count];
+        Arrays.fill(needsVisit, true);
+        // Number of instructions that shrank in the current pass before each index.
+        final int[] shrunkBefore = new int[count + 1];
+        while (true) {
+            int removed = 0;
+            int shrunkCount = 0;
+            for (int i = 0; i < count; i++) {
+                final Instruction instruction = instructions.get(i);
+                instruction.offset -= removed;
+                shrunkBefore[i] = shrunkCount;
+                if (!needsVisit[i] || instruction.mTargetLabel == null) continue;
+                final Instruction target = instruction.mTargetInstruction;
+                final int targetOffset = target.offset - (target.index > i ? removed : 0);
+                final int shrunkBy = instruction.shrink(targetOffset);
+                if (shrunkBy > 0) {
+                    removed += shrunkBy;
+                    shrunkCount++;
+                }
+            }
+            shrunkBefore[count] = shrunkCount;
+            if (removed == 0) break;
+            total_size -= removed;
             // Update drop and pass label offsets.
             mDropLabel.offset = total_size + 1;
             mPassLabel.offset = total_size;
-            // Limit run-time in aberant circumstances.
-            if (iterations_remaining-- == 0) break;
-            // Attempt to shrink instructions.
-            shrunk = false;
-            for (Instruction instruction : mInstructions) {
-                if (instruction.shrink()) {
-                    shrunk = true;
-                }
+            for (int i = 0; i < count; i++) {
+                final Instruction instruction = instructions.get(i);
+                if (instruction.mTargetLabel == null) continue;
+                final int first = Math.min(i, instruction.mTargetInstruction.index);
+                final int last = Math.max(i, instruction.mTargetInstruction.index);
+                needsVisit[i] = shrunkBefore[last] - shrunkBefore[first + 1] > 0;
             }
-        } while (shrunk);
+        }
         // Generate bytecode for instructions.
         byte[] bytecode = new byte[total_size];
-        for (Instruction instruction : mInstructions) {
+        for (Instruction instruction : instructions) {
             instruction.generate(bytecode);
         }
         return bytecode;
@@ -775,4 +1138,5 @@ public abstract class BaseApfGenerator {
     private final Instruction mPassLabel = new Instruction(Opcodes.LABEL);
     private final int mVersion;
     public boolean mGenerated;
+    private boolean mOptimize;
 }
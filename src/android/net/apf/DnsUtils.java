@@ -22,7 +22,13 @@ import static android.net.apf.BaseApfGenerator.Register.R1;
 import static com.android.net.module.util.NetworkStackConstants.ETHER_HEADER_LEN;
 import static com.android.net.module.util.NetworkStackConstants.UDP_HEADER_LEN;
 
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Utility class that generates generating APF filters for DNS packets.
@@ -55,6 +61,11 @@ public class DnsUtils {
      * parsing a pointer, or 0 if it is not.
      */
     private static final int SLOT_AFTER_POINTER_OFFSET = 3;
+    /**
+     * Memory slot that stores the offset of the current question, so that matching can restart
+     * there for the next name. Only used when matching more than one name.
+     */
+    private static final int SLOT_QUESTION_START_OFFSET = 4;
     /**
      * Contains qdcount remaining, as a negative number. For example, will be -1 when starting to
      * parse a DNS packet with one question in it. It's stored as a negative number because adding 1
@@ -81,8 +92,11 @@ public class DnsUtils {
      * Outputs:
      * - R1: label length
      * - m[SLOT_CURRENT_PARSE_OFFSET]: offset of label text
+     *
+     * Jumps to {@code noMatchLabel} if the label contains a bad pointer.
      */
-    private static void genParseDnsLabel(ApfV4Generator gen, JumpTable jumpTable) throws Exception {
+    private static void genParseDnsLabel(ApfV4GeneratorBase<?> gen, JumpTable jumpTable,
+            String noMatchLabel) throws IllegalInstructionException {
         final String labelParseDnsLabelReal = "parse_dns_label_real";
         final String labelPointerOffsetStored = "pointer_offset_stored";
 
@@ -101,7 +115,7 @@ public class DnsUtils {
          * JGT R0, R1, DROP                 // Bad pointer. Drop.
          */
         gen.addLoadFromMemory(R0, SLOT_DNS_HEADER_OFFSET);
-        gen.addJumpIfR0GreaterThanR1(ApfV4Generator.DROP_LABEL);
+        gen.addJumpIfR0GreaterThanR1(noMatchLabel);
 
         /**
          * // Now parse the label.
@@ -147,8 +161,8 @@ public class DnsUtils {
         gen.addLoadFromMemory(R1, SLOT_DNS_HEADER_OFFSET);
         gen.addAddR1();
         gen.addLoadFromMemory(R1, SLOT_CURRENT_PARSE_OFFSET);
-        gen.addJumpIfR0EqualsR1(ApfV4Generator.DROP_LABEL);
-        gen.addJumpIfR0GreaterThanR1(ApfV4Generator.DROP_LABEL);
+        gen.addJumpIfR0EqualsR1(noMatchLabel);
+        gen.addJumpIfR0GreaterThanR1(noMatchLabel);
         gen.addStoreToMemory(R0, SLOT_CURRENT_PARSE_OFFSET);
 
         /** // Pointer chased. Parse starting from the pointer destination (which may also be a
@@ -178,7 +192,8 @@ public class DnsUtils {
     /**
      * APF function: find_next_dns_question
      *
-     * Finds the next question in the question section, or drops the packet if there is none.
+     * Finds the next question in the question section, or jumps to {@code noMatchLabel} if there
+     * is none.
      *
      * Inputs:
      * - m[SLOT_CURRENT_PARSE_OFFSET]: current parsing offset
@@ -192,8 +207,8 @@ public class DnsUtils {
      * Outputs:
      * None
      */
-    private static void genFindNextDnsQuestion(ApfV4Generator gen, JumpTable jumpTable)
-            throws Exception {
+    private static void genFindNextDnsQuestion(ApfV4GeneratorBase<?> gen, JumpTable jumpTable,
+            String noMatchLabel) throws IllegalInstructionException {
         final String labelFindNextDnsQuestionFollow = "find_next_dns_question_follow";
         final String labelFindNextDnsQuestionLabel = "find_next_dns_question_label";
         final String labelFindNextDnsQuestionLoop = "find_next_dns_question_loop";
@@ -253,11 +268,11 @@ public class DnsUtils {
 
         gen.defineLabel(labelFindNextDnsQuestionReturn);
 
-        // Is this the last question? If so, drop.
+        // Is this the last question? If so, no name matched.
         gen.addLoadFromMemory(R0, SLOT_NEGATIVE_QDCOUNT_REMAINING);
         gen.addAdd(1);
         gen.addStoreToMemory(R0, SLOT_NEGATIVE_QDCOUNT_REMAINING);
-        gen.addJumpIfR0Equals(0, ApfV4Generator.DROP_LABEL);
+        gen.addJumpIfR0Equals(0, noMatchLabel);
 
         // If not, return.
         gen.addJump(jumpTable.getStartLabel());
@@ -278,8 +293,22 @@ public class DnsUtils {
         return "dns_nomatch_" + labelIndex;
     }
 
-    private static void addMatchLabel(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
-            int labelIndex, @NonNull String label, @NonNull String nextLabel) throws Exception {
+    /** @return jump label that restarts matching the current question against the given name. */
+    private static String getRestartMatchLabel(int nameIndex) {
+        return "dns_restart_" + nameIndex;
+    }
+
+    /**
+     * Generates the code that matches one label of a name.
+     *
+     * @param nextNameLabel where to jump if the label does not match, to try the next name on the
+     *                      same question, or null if this is the last name. In that case, the
+     *                      code moves on to the next question.
+     */
+    private static void addMatchLabel(@NonNull ApfV4GeneratorBase<?> gen,
+            @NonNull JumpTable jumpTable, int labelIndex, @NonNull String label,
+            @NonNull String nextLabel, @Nullable String nextNameLabel)
+            throws IllegalInstructionException {
         final String parsedLabel = getPostMatchJumpTargetForLabel(labelIndex);
         final String noMatchLabel = getNoMatchLabel(labelIndex);
         gen.defineLabel(getStartMatchLabel(labelIndex));
@@ -310,8 +339,14 @@ public class DnsUtils {
         // Match, go to next label.
         gen.addJump(nextLabel);
 
-        // Match failed. Go to next name, and restart from the first match.
+        // Match failed. If there is another name, try it on the same question.
         gen.defineLabel(noMatchLabel);
+        if (nextNameLabel != null) {
+            gen.addJump(nextNameLabel);
+            return;
+        }
+
+        // Otherwise, go to next question, and restart from the first match.
         gen.addLoadImmediate(R1, jumpTable.getIndex(LABEL_START_MATCH));
         gen.addStoreToMemory(R1, SLOT_RETURN_VALUE_INDEX);
         gen.addJump(LABEL_FIND_NEXT_DNS_QUESTION);
@@ -321,7 +356,8 @@ public class DnsUtils {
      * Generates a filter that accepts DNS packet that ask for the specified name.
      *
      * The filter supports compressed DNS names and scanning through multiple questions in the same
-     * packet, e.g., as used by MDNS. However, it currently only supports one DNS name.
+     * packet, e.g., as used by MDNS. See {@link #generateFilter(ApfV4GeneratorBase, List, String,
+     * String)} to accept more than one name.
      *
      * Limitations:
      * <ul>
@@ -340,13 +376,52 @@ public class DnsUtils {
      * TODO:
      * <ul>
      * <li>Add unit tests for the parse_dns_label and find_next_dns_question functions.
-     * <li>Support accepting more than one name.
      * <li>For devices where power saving is a priority (e.g., flat panel TVs), add support for
      *   dropping packets with more than X queries, to ensure the filter will drop the packet rather
      *   than hit the instruction limit.
      * </ul>
      */
     public static void generateFilter(ApfV4Generator gen, String[] labels) throws Exception {
+        generateFilter(gen, Collections.singletonList(labels), ApfV4Generator.PASS_LABEL,
+                ApfV4Generator.DROP_LABEL);
+    }
+
+    /**
+     * Generates a filter that jumps to {@code matchLabel} if a DNS packet asks for any of the
+     * specified names in any of its questions, and to {@code noMatchLabel} otherwise, or if the
+     * packet contains a bad pointer.
+     *
+     * Each question is matched against the names in order, restarting from the start of the
+     * question for each name, so the worst-case number of executed instructions grows with the
+     * number of questions times the number of names. See {@link #generateFilter(ApfV4Generator,
+     * String[])} for the other limitations.
+     *
+     * Preconditions:
+     * - R1: length of IP header.
+     *
+     * @param names the names to match, each given as its non-empty list of labels.
+     */
+    public static void generateFilter(@NonNull ApfV4GeneratorBase<?> gen,
+            @NonNull List<String[]> names, @NonNull String matchLabel,
+            @NonNull String noMatchLabel) throws IllegalInstructionException {
+        generateFilter(gen, names, Collections.nCopies(names.size(), matchLabel), noMatchLabel);
+    }
+
+    /**
+     * Same as {@link #generateFilter(ApfV4GeneratorBase, List, String, String)}, but jumps to
+     * a different label depending on which name matched.
+     *
+     * @param matchLabels where to jump if the name with the same index matches.
+     */
+    public static void generateFilter(@NonNull ApfV4GeneratorBase<?> gen,
+            @NonNull List<String[]> names, @NonNull List<String> matchLabels,
+            @NonNull String noMatchLabel) throws IllegalInstructionException {
+        if (matchLabels.size() != names.size()) {
+            throw new IllegalArgumentException("Need one match label per name");
+        }
+        for (String[] labels : names) {
+            if (labels.length == 0) throw new IllegalArgumentException("Empty DNS name");
+        }
         final int etherPlusUdpLen = ETHER_HEADER_LEN + UDP_HEADER_LEN;
 
         final String labelJumpTable = "jump_table";
@@ -385,27 +460,48 @@ public class DnsUtils {
         final JumpTable table = new JumpTable(labelJumpTable, SLOT_RETURN_VALUE_INDEX);
 
         // Generate bytecode for parse_label function.
-        genParseDnsLabel(gen, table);
-        genFindNextDnsQuestion(gen, table);
+        genParseDnsLabel(gen, table, noMatchLabel);
+        genFindNextDnsQuestion(gen, table, noMatchLabel);
 
         // Populate jump table. Should be before the code that calls to it (i.e., the addMatchLabel
         // calls below) because otherwise all the jumps are backwards, and backwards jumps are more
         // expensive (5 bytes of bytecode)
-        for (int i = 0; i < labels.length; i++) {
-            table.addLabel(getPostMatchJumpTargetForLabel(i));
+        int labelCount = 0;
+        for (String[] labels : names) {
+            for (int i = 0; i < labels.length; i++) {
+                table.addLabel(getPostMatchJumpTargetForLabel(labelCount++));
+            }
         }
         table.addLabel(LABEL_START_MATCH);
         table.generate(gen);
 
-        // Add match statements for name.
+        // Add match statements for each name. Labels are numbered across all names.
         gen.defineLabel(LABEL_START_MATCH);
-        for (int i = 0; i < labels.length; i++) {
-            final String nextLabel = (i == labels.length - 1)
-                    ? ApfV4Generator.PASS_LABEL
-                    : getStartMatchLabel(i + 1);
-            addMatchLabel(gen, table, i, labels[i], nextLabel);
+        if (names.size() > 1) {
+            gen.addLoadFromMemory(R0, SLOT_CURRENT_PARSE_OFFSET);
+            gen.addStoreToMemory(R0, SLOT_QUESTION_START_OFFSET);
+        }
+        int labelIndex = 0;
+        for (int n = 0; n < names.size(); n++) {
+            final String[] labels = names.get(n);
+            final String nextNameLabel =
+                    (n == names.size() - 1) ? null : getRestartMatchLabel(n + 1);
+            if (n > 0) {
+                // Restart from the beginning of the question, not chasing any pointer.
+                gen.defineLabel(getRestartMatchLabel(n));
+                gen.addLoadFromMemory(R0, SLOT_QUESTION_START_OFFSET);
+                gen.addStoreToMemory(R0, SLOT_CURRENT_PARSE_OFFSET);
+                gen.addLoadImmediate(R0, 0);
+                gen.addStoreToMemory(R0, SLOT_AFTER_POINTER_OFFSET);
+            }
+            for (int i = 0; i < labels.length; i++, labelIndex++) {
+                final String nextLabel = (i == labels.length - 1)
+                        ? matchLabels.get(n)
+                        : getStartMatchLabel(labelIndex + 1);
+                addMatchLabel(gen, table, labelIndex, labels[i], nextLabel, nextNameLabel);
+            }
         }
-        gen.addJump(ApfV4Generator.DROP_LABEL);
+        gen.addJump(noMatchLabel);
     }
 
     private DnsUtils() {
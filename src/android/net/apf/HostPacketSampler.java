@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import static android.net.util.SocketUtils.makePacketSocketAddress;
+import static android.system.OsConstants.AF_PACKET;
+import static android.system.OsConstants.ETH_P_ALL;
+import static android.system.OsConstants.ETH_P_ARP;
+import static android.system.OsConstants.ETH_P_IP;
+import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IPPROTO_ICMPV6;
+import static android.system.OsConstants.IPPROTO_TCP;
+import static android.system.OsConstants.IPPROTO_UDP;
+import static android.system.OsConstants.SOCK_NONBLOCK;
+import static android.system.OsConstants.SOCK_RAW;
+
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_NEIGHBOR_ADVERTISEMENT;
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_NEIGHBOR_SOLICITATION;
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ROUTER_ADVERTISEMENT;
+
+import android.net.apf.ApfFilter.FilterBlock;
+import android.os.Handler;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.internal.util.TokenBucket;
+import com.android.net.module.util.InterfaceParams;
+import com.android.net.module.util.PacketReader;
+import com.android.networkstack.util.NetworkStackUtils;
+
+import java.io.FileDescriptor;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the packets that reach the host on an interface, by the part of the APF program that
+ * handles them.
+ *
+ * Packets that the APF program drops never reach the host, so the packets counted here are the
+ * ones that the program passed, or that arrived while no program was installed. Comparing these
+ * counts with the APF counters of the packets dropped in firmware shows which kinds of packets
+ * still wake up the device on a given network, and so which new filters would save the most
+ * wakeups.
+ *
+ * This listens on a packet socket bound to all ethertypes, with a socket filter that samples the
+ * packets in the kernel: it accepts one in {@code SAMPLING_INTERVAL} of the packets received,
+ * chosen at random and truncated to their headers, and rejects the packets sent by the host. So
+ * the other packets are never copied to userspace, and the handler only wakes up for the sample.
+ * The sampled packets are classified at a rate limited by a token bucket, to bound the CPU used
+ * during packet floods; the ones that are not classified are only counted. The counters can be
+ * read from any thread without locking.
+ *
+ * @hide
+ */
+public class HostPacketSampler {
+    private static final String TAG = HostPacketSampler.class.getSimpleName();
+
+    // The kernel passes one in this many of the packets received on average.
+    private static final int SAMPLING_INTERVAL = 16;
+    // The kernel truncates the sampled packets to this many bytes, which holds the Ethernet
+    // header, an IPv4 header with options or an IPv6 header, and the ICMPv6 type or UDP ports.
+    private static final int SAMPLED_PACKET_LEN = 128;
+
+    // Classify at most one packet every 10ms in steady state, with bursts of up to 200 packets.
+    private static final int TOKEN_BUCKET_DELTA_MS = 10;
+    private static final int MAX_BURST_LENGTH = 200;
+
+    private static final int ETH_HEADER_LEN = 14;
+    private static final int ETH_DEST_ADDR_OFFSET = 0;
+    private static final int ETH_ETHERTYPE_OFFSET = 12;
+    // Ethertypes up to this value are 802.3 frame lengths.
+    private static final int ETH_MAX_802_3_LEN = 1500;
+
+    private static final int IPV4_IHL_OFFSET = ETH_HEADER_LEN;
+    private static final int IPV4_FRAGMENT_OFFSET_OFFSET = ETH_HEADER_LEN + 6;
+    private static final int IPV4_FRAGMENT_OFFSET_MASK = 0x1fff;
+    private static final int IPV4_PROTOCOL_OFFSET = ETH_HEADER_LEN + 9;
+    private static final int IPV4_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 16;
+
+    private static final int IPV6_NEXT_HEADER_OFFSET = ETH_HEADER_LEN + 6;
+    private static final int IPV6_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 24;
+    private static final int IPV6_HEADER_LEN = 40;
+    private static final int ICMP6_TYPE_OFFSET = ETH_HEADER_LEN + IPV6_HEADER_LEN;
+    private static final int IPV6_UDP_DEST_PORT_OFFSET = ETH_HEADER_LEN + IPV6_HEADER_LEN + 2;
+
+    private static final int DHCP_CLIENT_PORT = 68;
+    private static final int MDNS_PORT = 5353;
+    private static final byte[] MDNS_IPV4_ADDR = {(byte) 224, 0, 0, (byte) 251};
+    private static final byte[] MDNS_IPV6_ADDR = {
+            (byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xfb};
+    private static final byte[] IPV4_BROADCAST_ADDR = {
+            (byte) 255, (byte) 255, (byte) 255, (byte) 255};
+    private static final byte[] ETH_BROADCAST_ADDR = {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * The kinds of packets that the APF program handles in separate sections.
+     */
+    public enum Section {
+        ETHER_802_3(null),
+        ARP(FilterBlock.ARP),
+        IPV4_DHCP(FilterBlock.IPV4),
+        IPV4_MDNS(FilterBlock.IPV4),
+        IPV4_BROADCAST(FilterBlock.IPV4),
+        IPV4_MULTICAST(FilterBlock.IPV4),
+        IPV4_TCP(FilterBlock.IPV4),
+        IPV4_OTHER(FilterBlock.IPV4),
+        IPV6_RA(FilterBlock.IPV6),
+        IPV6_NS(FilterBlock.IPV6),
+        IPV6_NA(FilterBlock.IPV6),
+        IPV6_OTHER_ICMP(FilterBlock.IPV6),
+        IPV6_MDNS(FilterBlock.IPV6),
+        IPV6_NON_ICMP_MULTICAST(FilterBlock.IPV6),
+        IPV6_TCP(FilterBlock.IPV6),
+        IPV6_OTHER(FilterBlock.IPV6),
+        OTHER_ETHERTYPE(null);
+
+        @Nullable
+        private final FilterBlock mFilterBlock;
+
+        Section(@Nullable FilterBlock filterBlock) {
+            mFilterBlock = filterBlock;
+        }
+
+        /**
+         * Returns the filter that handles the packets of this section, or null if the packets
+         * are handled before the ARP, IPv4 and IPv6 filters.
+         */
+        @Nullable
+        public FilterBlock getFilterBlock() {
+            return mFilterBlock;
+        }
+    }
+
+    private static final Section[] SECTIONS = Section.values();
+
+    private final String mTag;
+    private final Handler mHandler;
+    private final PacketReader mPacketListener;
+    // Only accessed on the handler thread.
+    private final TokenBucket mTokenBucket = new TokenBucket(TOKEN_BUCKET_DELTA_MS,
+            MAX_BURST_LENGTH);
+    private final AtomicLongArray mSampledCounts = new AtomicLongArray(SECTIONS.length);
+    private final AtomicLong mNumReceived = new AtomicLong();
+    private final AtomicLong mNumSampled = new AtomicLong();
+
+    public HostPacketSampler(@NonNull Handler h, @NonNull InterfaceParams ifParams) {
+        mTag = TAG + "." + ifParams.name;
+        mHandler = h;
+        mPacketListener = new PacketListener(h, ifParams);
+    }
+
+    /** Starts listening for packets. May be called from any thread. */
+    public void start() {
+        mHandler.post(mPacketListener::start);
+    }
+
+    /** Stops listening for packets. May be called from any thread. */
+    public void stop() {
+        mHandler.post(mPacketListener::stop);
+    }
+
+    private final class PacketListener extends PacketReader {
+        private final InterfaceParams mInterface;
+
+        PacketListener(Handler h, InterfaceParams ifParams) {
+            super(h, SAMPLED_PACKET_LEN);
+            mInterface = ifParams;
+        }
+
+        @Override
+        protected FileDescriptor createFd() {
+            FileDescriptor s = null;
+            try {
+                s = Os.socket(AF_PACKET, SOCK_RAW | SOCK_NONBLOCK, 0);
+                NetworkStackUtils.attachHostPacketSamplingFilter(s, SAMPLING_INTERVAL,
+                        SAMPLED_PACKET_LEN);
+                Os.bind(s, makePacketSocketAddress(ETH_P_ALL, mInterface.index));
+            } catch (ErrnoException | SocketException e) {
+                Log.e(mTag, "Failed to create packet sampling socket", e);
+                closeFd(s);
+                return null;
+            }
+            return s;
+        }
+
+        @Override
+        protected void handlePacket(byte[] recvbuf, int length) {
+            mNumReceived.incrementAndGet();
+            if (!mTokenBucket.get()) return;
+            mNumSampled.incrementAndGet();
+            mSampledCounts.incrementAndGet(classify(recvbuf, length).ordinal());
+        }
+    }
+
+    /**
+     * Returns the number of classified packets of {@code section} since the sampler was created.
+     */
+    public long getSampledCount(@NonNull Section section) {
+        return mSampledCounts.get(section.ordinal());
+    }
+
+    /**
+     * Returns the number of classified packets handled by {@code filterBlock} since the sampler
+     * was created.
+     */
+    public long getSampledCount(@NonNull FilterBlock filterBlock) {
+        long count = 0;
+        for (Section section : SECTIONS) {
+            if (section.getFilterBlock() == filterBlock) count += getSampledCount(section);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of sampled packets received from the kernel, whether or not they were
+     * classified. About one in {@code SAMPLING_INTERVAL} of the packets reaching the host.
+     */
+    public long getNumReceived() {
+        return mNumReceived.get();
+    }
+
+    /** Returns the number of packets classified. */
+    public long getNumSampled() {
+        return mNumSampled.get();
+    }
+
+    /**
+     * Returns the section of the APF program that handles {@code packet}, an Ethernet frame of
+     * {@code length} bytes. Truncated packets are classified by the headers that they contain.
+     */
+    @VisibleForTesting
+    @NonNull
+    public static Section classify(@NonNull byte[] packet, int length) {
+        final int ethertype = getUint16(packet, length, ETH_ETHERTYPE_OFFSET);
+        if (ethertype < 0) return Section.OTHER_ETHERTYPE;
+        if (ethertype <= ETH_MAX_802_3_LEN) return Section.ETHER_802_3;
+        switch (ethertype) {
+            case ETH_P_ARP:
+                return Section.ARP;
+            case ETH_P_IP:
+                return classifyIPv4(packet, length);
+            case ETH_P_IPV6:
+                return classifyIPv6(packet, length);
+            default:
+                return Section.OTHER_ETHERTYPE;
+        }
+    }
+
+    private static Section classifyIPv4(byte[] packet, int length) {
+        final int ihl = getUint8(packet, length, IPV4_IHL_OFFSET);
+        final int protocol = getUint8(packet, length, IPV4_PROTOCOL_OFFSET);
+        final int fragmentOffset = getUint16(packet, length, IPV4_FRAGMENT_OFFSET_OFFSET);
+        if (ihl < 0 || protocol < 0 || fragmentOffset < 0
+                || length < IPV4_DEST_ADDR_OFFSET + MDNS_IPV4_ADDR.length) {
+            return Section.IPV4_OTHER;
+        }
+        // Only the first fragment contains the transport header.
+        final int destPort = (fragmentOffset & IPV4_FRAGMENT_OFFSET_MASK) == 0
+                ? getUint16(packet, length, ETH_HEADER_LEN + (ihl & 0xf) * 4 + 2) : -1;
+
+        if (protocol == IPPROTO_UDP && destPort == DHCP_CLIENT_PORT) return Section.IPV4_DHCP;
+        if (protocol == IPPROTO_UDP && destPort == MDNS_PORT
+                && bytesEqual(packet, IPV4_DEST_ADDR_OFFSET, MDNS_IPV4_ADDR)) {
+            return Section.IPV4_MDNS;
+        }
+        if ((packet[IPV4_DEST_ADDR_OFFSET] & 0xf0) == 0xe0) return Section.IPV4_MULTICAST;
+        if (bytesEqual(packet, IPV4_DEST_ADDR_OFFSET, IPV4_BROADCAST_ADDR)
+                || bytesEqual(packet, ETH_DEST_ADDR_OFFSET, ETH_BROADCAST_ADDR)) {
+            return Section.IPV4_BROADCAST;
+        }
+        if (protocol == IPPROTO_TCP) return Section.IPV4_TCP;
+        return Section.IPV4_OTHER;
+    }
+
+    private static Section classifyIPv6(byte[] packet, int length) {
+        final int nextHeader = getUint8(packet, length, IPV6_NEXT_HEADER_OFFSET);
+        if (nextHeader < 0 || length < IPV6_DEST_ADDR_OFFSET + MDNS_IPV6_ADDR.length) {
+            return Section.IPV6_OTHER;
+        }
+        if (nextHeader == IPPROTO_ICMPV6) {
+            switch (getUint8(packet, length, ICMP6_TYPE_OFFSET)) {
+                case ICMPV6_ROUTER_ADVERTISEMENT:
+                    return Section.IPV6_RA;
+                case ICMPV6_NEIGHBOR_SOLICITATION:
+                    return Section.IPV6_NS;
+                case ICMPV6_NEIGHBOR_ADVERTISEMENT:
+                    return Section.IPV6_NA;
+                default:
+                    return Section.IPV6_OTHER_ICMP;
+            }
+        }
+        if (nextHeader == IPPROTO_UDP
+                && getUint16(packet, length, IPV6_UDP_DEST_PORT_OFFSET) == MDNS_PORT
+                && bytesEqual(packet, IPV6_DEST_ADDR_OFFSET, MDNS_IPV6_ADDR)) {
+            return Section.IPV6_MDNS;
+        }
+        if (packet[IPV6_DEST_ADDR_OFFSET] == (byte) 0xff) return Section.IPV6_NON_ICMP_MULTICAST;
+        if (nextHeader == IPPROTO_TCP) return Section.IPV6_TCP;
+        return Section.IPV6_OTHER;
+    }
+
+    private static int getUint8(byte[] packet, int length, int offset) {
+        return offset < length ? packet[offset] & 0xff : -1;
+    }
+
+    private static int getUint16(byte[] packet, int length, int offset) {
+        return offset + 1 < length ? (packet[offset] & 0xff) << 8 | (packet[offset + 1] & 0xff)
+                : -1;
+    }
+
+    // The caller checks that the packet contains the bytes.
+    private static boolean bytesEqual(byte[] packet, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (packet[offset + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Dumps the number of packets classified in each section.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println(String.format("Packets reaching the host: %d sampled (one in %d), %d classified",
+                getNumReceived(), SAMPLING_INTERVAL, getNumSampled()));
+        pw.increaseIndent();
+        for (Section section : SECTIONS) {
+            final long count = getSampledCount(section);
+            // Only print non-zero counters
+            if (count != 0) pw.println(section + ": " + count);
+        }
+        pw.decreaseIndent();
+    }
+}
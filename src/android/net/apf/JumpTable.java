@@ -122,7 +122,7 @@ public class JumpTable {
     }
 
     /** Generates APF code for this jump table */
-    public void generate(@NonNull ApfV4Generator gen)
+    public void generate(@NonNull ApfV4GeneratorBase<?> gen)
             throws ApfV4Generator.IllegalInstructionException {
         gen.defineLabel(mStartLabel);
         gen.addLoadFromMemory(R0, mReturnAddressMemorySlot);
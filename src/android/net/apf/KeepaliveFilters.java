@@ -0,0 +1,725 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import static android.net.apf.ApfFilterSection.MAX_COUNT_SIZE;
+import static android.net.apf.ApfFilterSection.MAX_INSTRUCTION_SIZE;
+import static android.net.apf.ApfFilterSection.MAX_SHORT_INSTRUCTION_SIZE;
+import static android.net.apf.BaseApfGenerator.Register.R0;
+import static android.net.apf.BaseApfGenerator.Register.R1;
+import static android.system.OsConstants.IPPROTO_TCP;
+import static android.system.OsConstants.IPPROTO_UDP;
+
+import android.net.NattKeepalivePacketDataParcelable;
+import android.net.TcpKeepalivePacketDataParcelable;
+import android.net.apf.ApfCounterTracker.Counter;
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+import android.util.ArraySet;
+import android.util.Pair;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.net.module.util.ConnectivityUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * The keepalive filters shared by {@link ApfFilter} and {@link LegacyApfFilter}, which drop the
+ * responses to the keepalives that the device offloads, so that they do not wake up the host.
+ *
+ * Keepalives are stored by slot. The filters are generated by three sections, one for each class
+ * of keepalive: TCP over IPv4, NAT-T over IPv4 and TCP over IPv6. Each section checks the parts
+ * of the packet that are common to all its keepalives once, then compares the local address once
+ * per group of keepalives that share it, and finally, for each keepalive, the transport header
+ * fields and remote address that identify its connection.
+ *
+ * Keepalives can be left out of the program without being removed, when the program does not
+ * have room for all of them. See {@link #setExcludedSlots}.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class KeepaliveFilters {
+    private static final int ETH_HEADER_LEN = 14;
+    private static final int IPV4_TOTAL_LENGTH_OFFSET = ETH_HEADER_LEN + 2;
+    private static final int IPV4_PROTOCOL_OFFSET = ETH_HEADER_LEN + 9;
+    private static final int IPV4_SRC_ADDR_OFFSET = ETH_HEADER_LEN + 12;
+    private static final int IPV6_PAYLOAD_LEN_OFFSET = ETH_HEADER_LEN + 4;
+    private static final int IPV6_NEXT_HEADER_OFFSET = ETH_HEADER_LEN + 6;
+    private static final int IPV6_SRC_ADDR_OFFSET = ETH_HEADER_LEN + 8;
+    private static final int IPV6_HEADER_LEN = 40;
+    private static final int TCP_HEADER_SIZE_OFFSET = 12;
+    private static final int UDP_HEADER_LEN = 8;
+
+    private abstract static class KeepalivePacket {
+        // The rule whose per-rule counter counts the packets dropped by this filter, or null.
+        final String mRuleCounterKey;
+
+        KeepalivePacket(@Nullable String ruleCounterKey) {
+            mRuleCounterKey = ruleCounterKey;
+        }
+
+        // The remote address that the packets to drop are sent from.
+        abstract byte[] getSrcAddress();
+
+        // The local address that the packets to drop are sent to.
+        abstract byte[] getDstAddress();
+
+        // The offset of the source address in the packet. The destination address follows it.
+        abstract int getSrcAddressOffset();
+
+        int getDstAddressOffset() {
+            return getSrcAddressOffset() + getSrcAddress().length;
+        }
+
+        // The bytes at the start of the transport header that identify the packets to drop.
+        abstract byte[] getTransportFingerprint();
+
+        // An upper bound on the size of the filter for this keepalive, excluding the common checks
+        // and the comparison of the local address. See generateFilter().
+        int getFilterSizeOverEstimate() {
+            return 2 * MAX_SHORT_INSTRUCTION_SIZE + 2 * MAX_INSTRUCTION_SIZE
+                    + getTransportFingerprint().length + getSrcAddress().length + MAX_COUNT_SIZE;
+        }
+    }
+
+    // A class to hold NAT-T keepalive ack information.
+    private static class NattKeepaliveResponse extends KeepalivePacket {
+        protected static class NattKeepaliveResponseData {
+            public final byte[] srcAddress;
+            public final int srcPort;
+            public final byte[] dstAddress;
+            public final int dstPort;
+
+            NattKeepaliveResponseData(final NattKeepalivePacketDataParcelable sentKeepalivePacket) {
+                srcAddress = sentKeepalivePacket.dstAddress;
+                srcPort = sentKeepalivePacket.dstPort;
+                dstAddress = sentKeepalivePacket.srcAddress;
+                dstPort = sentKeepalivePacket.srcPort;
+            }
+        }
+
+        protected final NattKeepaliveResponseData mPacket;
+        protected final byte[] mPortFingerprint;
+        // NAT-T keepalive packet
+        protected static final byte[] PAYLOAD = {(byte) 0xff};
+
+        NattKeepaliveResponse(final NattKeepalivePacketDataParcelable sentKeepalivePacket,
+                @Nullable String ruleCounterKey) {
+            super(ruleCounterKey);
+            mPacket = new NattKeepaliveResponseData(sentKeepalivePacket);
+            mPortFingerprint = generatePortFingerprint(mPacket.srcPort, mPacket.dstPort);
+        }
+
+        static byte[] generatePortFingerprint(int srcPort, int dstPort) {
+            final ByteBuffer fp = ByteBuffer.allocate(4);
+            fp.order(ByteOrder.BIG_ENDIAN);
+            fp.putShort((short) srcPort);
+            fp.putShort((short) dstPort);
+            return fp.array();
+        }
+
+        @Override
+        byte[] getSrcAddress() {
+            return mPacket.srcAddress;
+        }
+
+        @Override
+        byte[] getDstAddress() {
+            return mPacket.dstAddress;
+        }
+
+        @Override
+        int getSrcAddressOffset() {
+            return IPV4_SRC_ADDR_OFFSET;
+        }
+
+        @Override
+        byte[] getTransportFingerprint() {
+            return mPortFingerprint;
+        }
+
+        public String toString() {
+            try {
+                return String.format("%s -> %s",
+                        ConnectivityUtils.addressAndPortToString(
+                                InetAddress.getByAddress(mPacket.srcAddress), mPacket.srcPort),
+                        ConnectivityUtils.addressAndPortToString(
+                                InetAddress.getByAddress(mPacket.dstAddress), mPacket.dstPort));
+            } catch (UnknownHostException e) {
+                return "Unknown host";
+            }
+        }
+    }
+
+    // A class to hold TCP keepalive ack information.
+    private static class TcpKeepaliveAck extends KeepalivePacket {
+        protected static class TcpKeepaliveAckData {
+            public final byte[] srcAddress;
+            public final int srcPort;
+            public final byte[] dstAddress;
+            public final int dstPort;
+            public final int seq;
+            public final int ack;
+
+            // Create the characteristics of the ack packet from the sent keepalive packet.
+            TcpKeepaliveAckData(final TcpKeepalivePacketDataParcelable sentKeepalivePacket) {
+                srcAddress = sentKeepalivePacket.dstAddress;
+                srcPort = sentKeepalivePacket.dstPort;
+                dstAddress = sentKeepalivePacket.srcAddress;
+                dstPort = sentKeepalivePacket.srcPort;
+                seq = sentKeepalivePacket.ack;
+                ack = sentKeepalivePacket.seq + 1;
+            }
+        }
+
+        protected final TcpKeepaliveAckData mPacket;
+        protected final byte[] mPortSeqAckFingerprint;
+
+        TcpKeepaliveAck(final TcpKeepalivePacketDataParcelable sentKeepalivePacket,
+                @Nullable String ruleCounterKey) {
+            super(ruleCounterKey);
+            mPacket = new TcpKeepaliveAckData(sentKeepalivePacket);
+            mPortSeqAckFingerprint = generatePortSeqAckFingerprint(mPacket.srcPort,
+                    mPacket.dstPort, mPacket.seq, mPacket.ack);
+        }
+
+        static byte[] generatePortSeqAckFingerprint(int srcPort, int dstPort, int seq, int ack) {
+            final ByteBuffer fp = ByteBuffer.allocate(12);
+            fp.order(ByteOrder.BIG_ENDIAN);
+            fp.putShort((short) srcPort);
+            fp.putShort((short) dstPort);
+            fp.putInt(seq);
+            fp.putInt(ack);
+            return fp.array();
+        }
+
+        boolean isIpv4() {
+            return mPacket.srcAddress.length == 4;
+        }
+
+        @Override
+        byte[] getSrcAddress() {
+            return mPacket.srcAddress;
+        }
+
+        @Override
+        byte[] getDstAddress() {
+            return mPacket.dstAddress;
+        }
+
+        @Override
+        int getSrcAddressOffset() {
+            return isIpv4() ? IPV4_SRC_ADDR_OFFSET : IPV6_SRC_ADDR_OFFSET;
+        }
+
+        @Override
+        byte[] getTransportFingerprint() {
+            return mPortSeqAckFingerprint;
+        }
+
+        public String toString() {
+            try {
+                return String.format("%s -> %s , seq=%d, ack=%d",
+                        ConnectivityUtils.addressAndPortToString(
+                                InetAddress.getByAddress(mPacket.srcAddress), mPacket.srcPort),
+                        ConnectivityUtils.addressAndPortToString(
+                                InetAddress.getByAddress(mPacket.dstAddress), mPacket.dstPort),
+                        Integer.toUnsignedLong(mPacket.seq),
+                        Integer.toUnsignedLong(mPacket.ack));
+            } catch (UnknownHostException e) {
+                return "Unknown host";
+            }
+        }
+    }
+
+    /**
+     * The filters for one class of keepalive.
+     */
+    private abstract class KeepaliveSection implements ApfFilterSection {
+        private final String mName;
+        private final int mProto;
+        private final int mProtoOffset;
+        private final Counter mDropCounter;
+
+        KeepaliveSection(String name, int proto, int protoOffset, Counter dropCounter) {
+            mName = name;
+            mProto = proto;
+            mProtoOffset = protoOffset;
+            mDropCounter = dropCounter;
+        }
+
+        // Whether this section filters the responses to {@code keepalive}.
+        abstract boolean handles(KeepalivePacket keepalive);
+
+        // An upper bound on the size of generateCommonChecks().
+        abstract int getCommonChecksSizeOverEstimate();
+
+        // Append to {@code gen} the checks that are the same for all keepalives of this class,
+        // after the IP protocol has been checked.
+        // Jump to {@code skipLabel} if the packet does not match them. Otherwise, leave the offset
+        // of the transport header in R1.
+        abstract void generateCommonChecks(ApfV4GeneratorBase<?> gen, String skipLabel)
+                throws IllegalInstructionException;
+
+        // Returns the keepalives of this class, grouped by local address, since most keepalives
+        // share one.
+        private Map<ByteBuffer, List<KeepalivePacket>> getKeepalivesByLocalAddress() {
+            final Map<ByteBuffer, List<KeepalivePacket>> keepalivesByLocalAddr =
+                    new LinkedHashMap<>();
+            for (int i = 0; i < mKeepalivePackets.size(); ++i) {
+                final KeepalivePacket keepalive = mKeepalivePackets.valueAt(i);
+                if (!handles(keepalive) || mExcludedSlots.contains(mKeepalivePackets.keyAt(i))) {
+                    continue;
+                }
+                keepalivesByLocalAddr.computeIfAbsent(ByteBuffer.wrap(keepalive.getDstAddress()),
+                        k -> new ArrayList<>()).add(keepalive);
+            }
+            return keepalivesByLocalAddr;
+        }
+
+        @Override
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        @NonNull
+        public Set<Counter> getCounters() {
+            return EnumSet.of(mDropCounter);
+        }
+
+        @Override
+        public int getSizeOverEstimate() {
+            final Map<ByteBuffer, List<KeepalivePacket>> keepalivesByLocalAddr =
+                    getKeepalivesByLocalAddress();
+            if (keepalivesByLocalAddr.isEmpty()) return 0;
+
+            int size = getFixedSizeOverEstimate();
+            for (List<KeepalivePacket> keepalives : keepalivesByLocalAddr.values()) {
+                size += getGroupSizeOverEstimate(keepalives.get(0));
+                for (KeepalivePacket keepalive : keepalives) {
+                    size += keepalive.getFilterSizeOverEstimate();
+                }
+            }
+            return size;
+        }
+
+        // An upper bound on the size of the protocol check and the common checks.
+        private int getFixedSizeOverEstimate() {
+            return MAX_SHORT_INSTRUCTION_SIZE + MAX_INSTRUCTION_SIZE
+                    + getCommonChecksSizeOverEstimate();
+        }
+
+        // An upper bound on the size of the comparison of the local address of a group.
+        private int getGroupSizeOverEstimate(KeepalivePacket first) {
+            return MAX_SHORT_INSTRUCTION_SIZE + MAX_INSTRUCTION_SIZE
+                    + first.getDstAddress().length;
+        }
+
+        @Override
+        public void generate(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Host host)
+                throws IllegalInstructionException {
+            final Map<ByteBuffer, List<KeepalivePacket>> keepalivesByLocalAddr =
+                    getKeepalivesByLocalAddress();
+
+            // If no keepalive packets of this type
+            if (keepalivesByLocalAddr.isEmpty()) return;
+
+            // If not the right proto, skip keepalive filters
+            final String skipLabel = gen.getUniqueLabel("skip_keepalive_filter");
+            gen.addLoad8(R0, mProtoOffset);
+            gen.addJumpIfR0NotEquals(mProto, skipLabel);
+
+            // The checks that do not depend on the connection are the same for all keepalives of
+            // this type, so they are only emitted once. They leave the transport header offset in
+            // R1.
+            generateCommonChecks(gen, skipLabel);
+
+            for (List<KeepalivePacket> keepalives : keepalivesByLocalAddr.values()) {
+                final KeepalivePacket first = keepalives.get(0);
+                final String nextGroupLabel = gen.getUniqueLabel("keepalive_group");
+                gen.addLoadImmediate(R0, first.getDstAddressOffset());
+                gen.addJumpIfBytesAtR0NotEqual(first.getDstAddress(), nextGroupLabel);
+                for (KeepalivePacket keepalive : keepalives) {
+                    generateFilter(gen, host, keepalive);
+                }
+                gen.defineLabel(nextGroupLabel);
+            }
+
+            gen.defineLabel(skipLabel);
+        }
+
+        // Append a filter for {@code keepalive} to {@code gen}, after the common checks and the
+        // comparison of the local address. Drops the packet if it matches the keepalive, otherwise
+        // falls through, leaving R1 unchanged.
+        private void generateFilter(ApfV4GeneratorBase<?> gen, Host host,
+                KeepalivePacket keepalive) throws IllegalInstructionException {
+            final String nextFilterLabel = gen.getUniqueLabel("keepalive");
+
+            // The transport header fields are compared first, since they differ the most between
+            // keepalives.
+            gen.addMove(R0);
+            gen.addJumpIfBytesAtR0NotEqual(keepalive.getTransportFingerprint(), nextFilterLabel);
+            gen.addLoadImmediate(R0, keepalive.getSrcAddressOffset());
+            gen.addJumpIfBytesAtR0NotEqual(keepalive.getSrcAddress(), nextFilterLabel);
+
+            host.maybeAddCountRuleHit(gen, keepalive.mRuleCounterKey);
+            host.addCountAndDrop(gen, mDropCounter);
+            gen.defineLabel(nextFilterLabel);
+        }
+    }
+
+    private final KeepaliveSection mTcpV4Section = new KeepaliveSection(
+            "IPv4 TCP keepalive acks", IPPROTO_TCP, IPV4_PROTOCOL_OFFSET,
+            Counter.DROPPED_IPV4_KEEPALIVE_ACK) {
+        @Override
+        boolean handles(KeepalivePacket keepalive) {
+            return keepalive instanceof TcpKeepaliveAck && ((TcpKeepaliveAck) keepalive).isIpv4();
+        }
+
+        @Override
+        int getCommonChecksSizeOverEstimate() {
+            return 10 * MAX_SHORT_INSTRUCTION_SIZE + MAX_INSTRUCTION_SIZE;
+        }
+
+        @Override
+        void generateCommonChecks(ApfV4GeneratorBase<?> gen, String skipLabel)
+                throws IllegalInstructionException {
+            // Skip the keepalive filters if it's not zero-sized :
+            // TCP_HEADER_SIZE + IPV4_HEADER_SIZE - ipv4_total_length == 0
+            // Load the IP header size into R1
+            gen.addLoadFromMemory(R1, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
+            // Load the TCP header size into R0 (it's indexed by R1)
+            gen.addLoad8Indexed(R0, ETH_HEADER_LEN + TCP_HEADER_SIZE_OFFSET);
+            // Size offset is in the top nibble, but it must be multiplied by 4, and the two
+            // top bits of the low nibble are guaranteed to be zeroes. Right-shift R0 by 2.
+            gen.addRightShift(2);
+            // R0 += R1 -> R0 contains TCP + IP headers length
+            gen.addAddR1();
+            // Load IPv4 total length
+            gen.addLoad16(R1, IPV4_TOTAL_LENGTH_OFFSET);
+            gen.addNeg(R0);
+            gen.addAddR1();
+            gen.addJumpIfR0NotEquals(0, skipLabel);
+
+            // R1 = offset of the TCP header
+            gen.addLoadFromMemory(R0, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
+            gen.addAdd(ETH_HEADER_LEN);
+            gen.addMove(R1);
+        }
+    };
+
+    private final KeepaliveSection mNattV4Section = new KeepaliveSection(
+            "IPv4 NAT-T keepalives", IPPROTO_UDP, IPV4_PROTOCOL_OFFSET,
+            Counter.DROPPED_IPV4_NATT_KEEPALIVE) {
+        @Override
+        boolean handles(KeepalivePacket keepalive) {
+            return keepalive instanceof NattKeepaliveResponse;
+        }
+
+        @Override
+        int getCommonChecksSizeOverEstimate() {
+            return 10 * MAX_SHORT_INSTRUCTION_SIZE + 2 * MAX_INSTRUCTION_SIZE
+                    + NattKeepaliveResponse.PAYLOAD.length;
+        }
+
+        @Override
+        void generateCommonChecks(ApfV4GeneratorBase<?> gen, String skipLabel)
+                throws IllegalInstructionException {
+            // A NAT-T keepalive packet contains 1 byte payload with the value 0xff
+            // Check payload length is 1
+            gen.addLoadFromMemory(R0, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
+            gen.addAdd(UDP_HEADER_LEN);
+            gen.addSwap();
+            gen.addLoad16(R0, IPV4_TOTAL_LENGTH_OFFSET);
+            gen.addNeg(R1);
+            gen.addAddR1();
+            gen.addJumpIfR0NotEquals(1, skipLabel);
+
+            // R1 = offset of the UDP header
+            gen.addLoadFromMemory(R0, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
+            gen.addAdd(ETH_HEADER_LEN);
+            gen.addMove(R1);
+
+            // Payload offset = R0 + UDP header length
+            gen.addAdd(UDP_HEADER_LEN);
+            gen.addJumpIfBytesAtR0NotEqual(NattKeepaliveResponse.PAYLOAD, skipLabel);
+        }
+    };
+
+    private final KeepaliveSection mTcpV6Section = new KeepaliveSection(
+            "IPv6 TCP keepalive acks", IPPROTO_TCP, IPV6_NEXT_HEADER_OFFSET,
+            Counter.DROPPED_IPV6_KEEPALIVE_ACK) {
+        @Override
+        boolean handles(KeepalivePacket keepalive) {
+            return keepalive instanceof TcpKeepaliveAck && !((TcpKeepaliveAck) keepalive).isIpv4();
+        }
+
+        @Override
+        int getCommonChecksSizeOverEstimate() {
+            return 6 * MAX_SHORT_INSTRUCTION_SIZE + MAX_INSTRUCTION_SIZE;
+        }
+
+        @Override
+        void generateCommonChecks(ApfV4GeneratorBase<?> gen, String skipLabel)
+                throws IllegalInstructionException {
+            // The TCP header immediately follows the IPv6 header, since the next header is TCP.
+            // Skip the keepalive filters if it's not zero-sized :
+            // TCP_HEADER_SIZE - ipv6_payload_length == 0
+            gen.addLoad8(R0, ETH_HEADER_LEN + IPV6_HEADER_LEN + TCP_HEADER_SIZE_OFFSET);
+            // Size offset is in the top nibble, see the IPv4 TCP keepalive section.
+            gen.addRightShift(2);
+            gen.addLoad16(R1, IPV6_PAYLOAD_LEN_OFFSET);
+            gen.addNeg(R0);
+            gen.addAddR1();
+            gen.addJumpIfR0NotEquals(0, skipLabel);
+
+            // R1 = offset of the TCP header
+            gen.addLoadImmediate(R1, ETH_HEADER_LEN + IPV6_HEADER_LEN);
+        }
+    };
+
+    private final SparseArray<KeepalivePacket> mKeepalivePackets = new SparseArray<>();
+    // The slots of the keepalives left out of the program.
+    private final ArraySet<Integer> mExcludedSlots = new ArraySet<>();
+
+    /**
+     * Returns the section that drops the acks to IPv4 TCP keepalives. It must be generated after
+     * the packet has been checked to be IPv4, and R0 may be clobbered.
+     */
+    @NonNull
+    public ApfFilterSection getTcpV4Section() {
+        return mTcpV4Section;
+    }
+
+    /**
+     * Returns the section that drops the responses to IPv4 NAT-T keepalives. It must be generated
+     * after the packet has been checked to be IPv4, and R0 may be clobbered.
+     */
+    @NonNull
+    public ApfFilterSection getNattV4Section() {
+        return mNattV4Section;
+    }
+
+    /**
+     * Returns the section that drops the acks to IPv6 TCP keepalives. It must be generated after
+     * the packet has been checked to be IPv6, and R0 may be clobbered.
+     */
+    @NonNull
+    public ApfFilterSection getTcpV6Section() {
+        return mTcpV6Section;
+    }
+
+    /**
+     * Returns all the sections, in the order the filters generate them.
+     */
+    @NonNull
+    public List<ApfFilterSection> getSections() {
+        return List.of(mTcpV4Section, mNattV4Section, mTcpV6Section);
+    }
+
+    /**
+     * Returns the slots that hold a keepalive, in increasing order.
+     */
+    @NonNull
+    public int[] getSlots() {
+        final int[] slots = new int[mKeepalivePackets.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = mKeepalivePackets.keyAt(i);
+        }
+        return slots;
+    }
+
+    /**
+     * Adds the filter for each keepalive to {@code allocator}, in slot order, including the ones
+     * currently left out of the program.
+     *
+     * The size of each filter only counts what it adds to the other filters of its section. The
+     * checks that a section emits once, and the comparison of the local address that it emits
+     * once per group of keepalives, are declared as shared costs, so they are only charged once.
+     *
+     * @param filterForSlot returns the filter to add for the keepalive in a slot.
+     * @param ruleCounterSize the size of the per-rule counter of each filter, or 0.
+     */
+    public <T> void addToBudget(@NonNull ApfBudgetAllocator<T> allocator,
+            @NonNull IntFunction<T> filterForSlot, int ruleCounterSize) {
+        for (int i = 0; i < mKeepalivePackets.size(); i++) {
+            final KeepalivePacket keepalive = mKeepalivePackets.valueAt(i);
+            final KeepaliveSection section = getSection(keepalive);
+            final Pair<KeepaliveSection, ByteBuffer> group =
+                    new Pair<>(section, ByteBuffer.wrap(keepalive.getDstAddress()));
+            allocator.addSharedCost(section, section.getFixedSizeOverEstimate());
+            allocator.addSharedCost(group, section.getGroupSizeOverEstimate(keepalive));
+            allocator.add(filterForSlot.apply(mKeepalivePackets.keyAt(i)),
+                    keepalive.getFilterSizeOverEstimate() + ruleCounterSize,
+                    keepalive.mRuleCounterKey, section, group);
+        }
+    }
+
+    private KeepaliveSection getSection(KeepalivePacket keepalive) {
+        for (KeepaliveSection section : List.of(mTcpV4Section, mNattV4Section, mTcpV6Section)) {
+            if (section.handles(keepalive)) return section;
+        }
+        throw new IllegalStateException("No section for keepalive " + keepalive);
+    }
+
+    /**
+     * Returns the rule whose per-rule counter counts the packets dropped by the filter for the
+     * keepalive in {@code slot}, or null.
+     */
+    @Nullable
+    public String getRuleCounterKey(int slot) {
+        final KeepalivePacket keepalive = mKeepalivePackets.get(slot);
+        return keepalive != null ? keepalive.mRuleCounterKey : null;
+    }
+
+    /**
+     * Returns whether the keepalive in {@code slot} is left out of the program.
+     */
+    public boolean isExcluded(int slot) {
+        return mExcludedSlots.contains(slot);
+    }
+
+    /**
+     * Leaves the keepalives in {@code slots} out of the program, and includes all others. Their
+     * responses then reach the host, which ignores them.
+     *
+     * @return whether the keepalives left out of the program changed.
+     */
+    public boolean setExcludedSlots(@NonNull Set<Integer> slots) {
+        final ArraySet<Integer> excluded = new ArraySet<>();
+        for (int slot : slots) {
+            if (isSlotOccupied(slot)) excluded.add(slot);
+        }
+        if (excluded.equals(mExcludedSlots)) return false;
+        mExcludedSlots.clear();
+        mExcludedSlots.addAll(excluded);
+        return true;
+    }
+
+    /**
+     * Returns whether {@code slot} holds a keepalive.
+     */
+    public boolean isSlotOccupied(int slot) {
+        return mKeepalivePackets.get(slot) != null;
+    }
+
+    /**
+     * Adds a filter that drops the acks to a TCP keepalive.
+     *
+     * @param slot the index used to access the filter. Must not be occupied.
+     * @param sentKeepalivePacket the attributes of the sent keepalive packet.
+     * @param ruleCounterKey the rule whose per-rule counter counts the dropped acks, or null.
+     */
+    public void addTcpKeepalive(int slot,
+            @NonNull TcpKeepalivePacketDataParcelable sentKeepalivePacket,
+            @Nullable String ruleCounterKey) {
+        if (isSlotOccupied(slot)) {
+            throw new IllegalArgumentException("Keepalive slot " + slot + " is occupied");
+        }
+        mKeepalivePackets.put(slot, new TcpKeepaliveAck(sentKeepalivePacket, ruleCounterKey));
+    }
+
+    /**
+     * Adds a filter that drops the responses to a NAT-T keepalive. Only IPv4 keepalives are
+     * supported.
+     *
+     * @param slot the index used to access the filter. Must not be occupied.
+     * @param sentKeepalivePacket the attributes of the sent keepalive packet.
+     * @param ruleCounterKey the rule whose per-rule counter counts the dropped responses, or null.
+     * @return whether the filter was added.
+     */
+    public boolean addNattKeepalive(int slot,
+            @NonNull NattKeepalivePacketDataParcelable sentKeepalivePacket,
+            @Nullable String ruleCounterKey) {
+        if (isSlotOccupied(slot)) {
+            throw new IllegalArgumentException("NAT-T Keepalive slot " + slot + " is occupied");
+        }
+
+        // TODO : support dropping v6 keepalives
+        if (sentKeepalivePacket.srcAddress.length != 4) {
+            return false;
+        }
+
+        mKeepalivePackets.put(slot,
+                new NattKeepaliveResponse(sentKeepalivePacket, ruleCounterKey));
+        return true;
+    }
+
+    /**
+     * Removes the filter in {@code slot}, if any.
+     */
+    public void remove(int slot) {
+        mKeepalivePackets.remove(slot);
+        mExcludedSlots.remove(slot);
+    }
+
+    /**
+     * Dumps the keepalives by slot.
+     *
+     * @param ruleCounterTracker the tracker of the per-rule counters, or null if they are
+     *                           disabled.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw,
+            @Nullable ApfRuleCounterTracker ruleCounterTracker) {
+        pw.println("TCP Keepalive filters:");
+        pw.increaseIndent();
+        dumpKeepalives(pw, ruleCounterTracker, TcpKeepaliveAck.class);
+        pw.decreaseIndent();
+
+        pw.println("NAT-T Keepalive filters:");
+        pw.increaseIndent();
+        dumpKeepalives(pw, ruleCounterTracker, NattKeepaliveResponse.class);
+        pw.decreaseIndent();
+    }
+
+    private void dumpKeepalives(IndentingPrintWriter pw,
+            @Nullable ApfRuleCounterTracker ruleCounterTracker, Class<?> filterType) {
+        for (int i = 0; i < mKeepalivePackets.size(); ++i) {
+            final KeepalivePacket keepalivePacket = mKeepalivePackets.valueAt(i);
+            if (!filterType.isInstance(keepalivePacket)) continue;
+            pw.print("Slot ");
+            pw.print(mKeepalivePackets.keyAt(i));
+            pw.print(": ");
+            pw.print(keepalivePacket);
+            pw.println(mExcludedSlots.contains(mKeepalivePackets.keyAt(i))
+                    ? " (left out of the program)" : "");
+            if (ruleCounterTracker != null) {
+                pw.increaseIndent();
+                pw.println("Dropped: "
+                        + ruleCounterTracker.getHits(keepalivePacket.mRuleCounterKey));
+                pw.decreaseIndent();
+            }
+        }
+    }
+}
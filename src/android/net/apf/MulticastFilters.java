@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import static android.net.apf.ApfFilterSection.MAX_COUNT_LABEL_SIZE;
+import static android.net.apf.ApfFilterSection.MAX_COUNT_SIZE;
+import static android.net.apf.ApfFilterSection.MAX_INSTRUCTION_SIZE;
+import static android.net.apf.ApfFilterSection.MAX_SHORT_INSTRUCTION_SIZE;
+import static android.net.apf.BaseApfGenerator.Register.R0;
+import static android.net.apf.BaseApfGenerator.Register.R1;
+import static android.system.OsConstants.IPPROTO_UDP;
+
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_NEIGHBOR_ADVERTISEMENT;
+import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ROUTER_SOLICITATION;
+
+import android.net.apf.ApfCounterTracker.Counter;
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The broadcast and multicast filters shared by {@link ApfFilter} and {@link LegacyApfFilter}:
+ * the IPv4 filter that passes DHCP to the device and drops IPv4 broadcasts and multicasts while
+ * multicast is filtered, and the ICMPv6 filter that drops router solicitations and multicast
+ * neighbor advertisements to all nodes.
+ *
+ * The filters own the state these sections depend on, so they pass it in with
+ * {@link #setIPv4State} before generating a program.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class MulticastFilters {
+    private static final int ETH_HEADER_LEN = 14;
+    private static final int IPV4_FRAGMENT_OFFSET_OFFSET = ETH_HEADER_LEN + 6;
+    private static final int IPV4_FRAGMENT_OFFSET_MASK = 0x1fff;
+    private static final int IPV4_PROTOCOL_OFFSET = ETH_HEADER_LEN + 9;
+    private static final int IPV4_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 16;
+    private static final int IPV4_BROADCAST_ADDRESS = -1; // 255.255.255.255
+    private static final int IPV6_HEADER_LEN = 40;
+    private static final int IPV6_DEST_ADDR_OFFSET = ETH_HEADER_LEN + 24;
+    private static final int ICMP6_TYPE_OFFSET = ETH_HEADER_LEN + IPV6_HEADER_LEN;
+    private static final int UDP_HEADER_LEN = 8;
+    // Relative to the start of the transport header.
+    private static final int UDP_DESTINATION_PORT_OFFSET = ETH_HEADER_LEN + 2;
+    private static final int DHCP_CLIENT_PORT = 68;
+    // NOTE: this must be added to the IPv4 header length in IPV4_HEADER_SIZE_MEMORY_SLOT
+    private static final int DHCP_CLIENT_MAC_OFFSET = ETH_HEADER_LEN + UDP_HEADER_LEN + 28;
+    // The IPv6 all nodes address ff02::1
+    private static final byte[] IPV6_ALL_NODES_ADDRESS =
+            { (byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+    // ff02::/120, which covers ff02::1 and ff02::2 with a single comparison.
+    private static final byte[] UNSOLICITED_NA_DROP_PREFIX =
+            Arrays.copyOf(IPV6_ALL_NODES_ADDRESS, 15);
+
+    // Whether IPv4 broadcasts and multicasts are dropped, which is when multicast is filtered.
+    private boolean mMulticastFilter;
+    @Nullable
+    private byte[] mHardwareAddress;
+    @Nullable
+    private byte[] mIPv4Address;
+    private int mIPv4PrefixLength;
+
+    private final ApfFilterSection mIPv4Section = new ApfFilterSection() {
+        @Override
+        @NonNull
+        public String getName() {
+            return "IPv4 broadcasts and multicasts";
+        }
+
+        @Override
+        @NonNull
+        public Set<Counter> getCounters() {
+            return EnumSet.of(Counter.PASSED_DHCP, Counter.DROPPED_IPV4_MULTICAST,
+                    Counter.DROPPED_IPV4_BROADCAST_ADDR, Counter.DROPPED_IPV4_BROADCAST_NET);
+        }
+
+        @Override
+        public int getSizeOverEstimate() {
+            if (!mMulticastFilter || mHardwareAddress == null) return 0;
+            int size = 11 * MAX_SHORT_INSTRUCTION_SIZE + 6 * MAX_INSTRUCTION_SIZE
+                    + mHardwareAddress.length + MAX_COUNT_SIZE + 2 * MAX_COUNT_LABEL_SIZE;
+            if (hasBroadcastNetAddress()) {
+                size += MAX_INSTRUCTION_SIZE + MAX_COUNT_LABEL_SIZE;
+            }
+            return size;
+        }
+
+        @Override
+        public void generate(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Host host)
+                throws IllegalInstructionException {
+            if (!mMulticastFilter || mHardwareAddress == null) return;
+            final String skipDhcpv4Filter = gen.getUniqueLabel("skip_dhcp_v4_filter");
+
+            // Pass DHCP addressed to us.
+            // Check it's UDP.
+            gen.addLoad8(R0, IPV4_PROTOCOL_OFFSET);
+            gen.addJumpIfR0NotEquals(IPPROTO_UDP, skipDhcpv4Filter);
+            // Check it's not a fragment or is the initial fragment. This matches the BPF filter
+            // installed by the DHCP client.
+            gen.addLoad16(R0, IPV4_FRAGMENT_OFFSET_OFFSET);
+            gen.addJumpIfR0AnyBitsSet(IPV4_FRAGMENT_OFFSET_MASK, skipDhcpv4Filter);
+            // Check it's addressed to DHCP client port.
+            gen.addLoadFromMemory(R1, gen.IPV4_HEADER_SIZE_MEMORY_SLOT);
+            gen.addLoad16Indexed(R0, UDP_DESTINATION_PORT_OFFSET);
+            gen.addJumpIfR0NotEquals(DHCP_CLIENT_PORT, skipDhcpv4Filter);
+            // Check it's DHCP to our MAC address.
+            gen.addLoadImmediate(R0, DHCP_CLIENT_MAC_OFFSET);
+            // NOTE: Relies on R1 containing IPv4 header offset.
+            gen.addAddR1();
+            gen.addJumpIfBytesAtR0NotEqual(mHardwareAddress, skipDhcpv4Filter);
+            host.addCountAndPass(gen, Counter.PASSED_DHCP);
+
+            // Drop all multicasts/broadcasts.
+            gen.defineLabel(skipDhcpv4Filter);
+
+            // If IPv4 destination address is in multicast range, drop.
+            gen.addLoad8(R0, IPV4_DEST_ADDR_OFFSET);
+            gen.addAnd(0xf0);
+            gen.addJumpIfR0Equals(0xe0,
+                    host.getCountAndDropLabel(gen, Counter.DROPPED_IPV4_MULTICAST));
+
+            // If IPv4 broadcast packet, drop regardless of L2 (b/30231088).
+            gen.addLoad32(R0, IPV4_DEST_ADDR_OFFSET);
+            gen.addJumpIfR0Equals(IPV4_BROADCAST_ADDRESS,
+                    host.getCountAndDropLabel(gen, Counter.DROPPED_IPV4_BROADCAST_ADDR));
+            if (hasBroadcastNetAddress()) {
+                final int broadcastAddr =
+                        ApfFilter.ipv4BroadcastAddress(mIPv4Address, mIPv4PrefixLength);
+                gen.addJumpIfR0Equals(broadcastAddr,
+                        host.getCountAndDropLabel(gen, Counter.DROPPED_IPV4_BROADCAST_NET));
+            }
+        }
+    };
+
+    private final ApfFilterSection mIcmpv6Section = new ApfFilterSection() {
+        @Override
+        @NonNull
+        public String getName() {
+            return "ICMPv6 router solicitations and multicast neighbor advertisements";
+        }
+
+        @Override
+        @NonNull
+        public Set<Counter> getCounters() {
+            return EnumSet.of(Counter.DROPPED_IPV6_ROUTER_SOLICITATION,
+                    Counter.DROPPED_IPV6_MULTICAST_NA);
+        }
+
+        @Override
+        public int getSizeOverEstimate() {
+            return 2 * MAX_SHORT_INSTRUCTION_SIZE + 3 * MAX_INSTRUCTION_SIZE
+                    + UNSOLICITED_NA_DROP_PREFIX.length + MAX_COUNT_LABEL_SIZE + MAX_COUNT_SIZE;
+        }
+
+        @Override
+        public void generate(@NonNull ApfV4GeneratorBase<?> gen, @NonNull Host host)
+                throws IllegalInstructionException {
+            final String skipUnsolicitedMulticastNALabel =
+                    gen.getUniqueLabel("skipUnsolicitedMulticastNA");
+
+            gen.addLoad8(R0, ICMP6_TYPE_OFFSET);
+            // Drop all router solicitations (b/32833400)
+            gen.addJumpIfR0Equals(ICMPV6_ROUTER_SOLICITATION,
+                    host.getCountAndDropLabel(gen, Counter.DROPPED_IPV6_ROUTER_SOLICITATION));
+            // If not neighbor announcements, skip filter.
+            gen.addJumpIfR0NotEquals(ICMPV6_NEIGHBOR_ADVERTISEMENT,
+                    skipUnsolicitedMulticastNALabel);
+            // Drop all multicast NA to ff02::/120.
+            // TODO: Drop only if they don't contain the address of on-link neighbours.
+            gen.addLoadImmediate(R0, IPV6_DEST_ADDR_OFFSET);
+            gen.addJumpIfBytesAtR0NotEqual(UNSOLICITED_NA_DROP_PREFIX,
+                    skipUnsolicitedMulticastNALabel);
+            host.addCountAndDrop(gen, Counter.DROPPED_IPV6_MULTICAST_NA);
+            gen.defineLabel(skipUnsolicitedMulticastNALabel);
+        }
+    };
+
+    private boolean hasBroadcastNetAddress() {
+        return mIPv4Address != null && mIPv4PrefixLength < 31;
+    }
+
+    /**
+     * Sets the state that the IPv4 section depends on.
+     *
+     * @param multicastFilter whether multicast is filtered. If not, the IPv4 section is empty.
+     * @param hardwareAddress the MAC address of the interface, which DHCP packets to pass are
+     *                        sent to. If null, the IPv4 section is empty.
+     * @param ipv4Address the IPv4 address of the interface, or null.
+     * @param ipv4PrefixLength the prefix length of {@code ipv4Address}.
+     */
+    public void setIPv4State(boolean multicastFilter, @Nullable byte[] hardwareAddress,
+            @Nullable byte[] ipv4Address, int ipv4PrefixLength) {
+        mMulticastFilter = multicastFilter;
+        mHardwareAddress = hardwareAddress;
+        mIPv4Address = ipv4Address;
+        mIPv4PrefixLength = ipv4PrefixLength;
+    }
+
+    /**
+     * Returns the section that passes DHCP to the device and drops IPv4 multicasts and
+     * broadcasts, if multicast is filtered. It must be generated after the packet has been checked
+     * to be IPv4, and R0 and R1 may be clobbered.
+     */
+    @NonNull
+    public ApfFilterSection getIPv4Section() {
+        return mIPv4Section;
+    }
+
+    /**
+     * Returns the section that drops router solicitations and multicast neighbor advertisements.
+     * It must be generated after the packet has been checked to be ICMPv6, and R0 and R1 may be
+     * clobbered.
+     */
+    @NonNull
+    public ApfFilterSection getIcmpv6Section() {
+        return mIcmpv6Section;
+    }
+
+    /**
+     * Returns all the sections, in the order the filters generate them.
+     */
+    @NonNull
+    public List<ApfFilterSection> getSections() {
+        return List.of(mIPv4Section, mIcmpv6Section);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.HexDump;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the state of the kernel that APF programs depend on from procfs.
+ *
+ * @hide
+ */
+public final class ProcfsParsingUtils {
+    private static final String TAG = "ProcfsParsingUtils";
+
+    private static final String IGMP_FILE = "/proc/net/igmp";
+    private static final String IGMP6_FILE = "/proc/net/igmp6";
+
+    private ProcfsParsingUtils() {}
+
+    /**
+     * Returns the IPv4 multicast groups joined on interface {@code ifname}, including the
+     * all-hosts group that the kernel joins itself, or null if they cannot be read.
+     */
+    @Nullable
+    public static List<Inet4Address> getIPv4MulticastAddresses(@NonNull String ifname) {
+        final List<String> lines = readLines(IGMP_FILE);
+        return lines != null ? parseIPv4MulticastAddresses(lines, ifname) : null;
+    }
+
+    /**
+     * Returns the IPv6 multicast groups joined on interface {@code ifname}, including the
+     * all-nodes and solicited-node groups that the kernel joins itself, or null if they cannot be
+     * read.
+     */
+    @Nullable
+    public static List<Inet6Address> getIPv6MulticastAddresses(@NonNull String ifname) {
+        final List<String> lines = readLines(IGMP6_FILE);
+        return lines != null ? parseIPv6MulticastAddresses(lines, ifname) : null;
+    }
+
+    @Nullable
+    private static List<String> readLines(String path) {
+        try {
+            return Files.readAllLines(Paths.get(path));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Parses the contents of /proc/net/igmp. Each interface is on one line, followed by one
+     * indented line per group, which starts with the group address printed as a hex integer in
+     * host byte order:
+     * <pre>
+     * Idx  Device    : Count Querier   Group    Users Timer    Reporter
+     * 1    lo        :     1      V3
+     *                              010000E0     1 0:00000000       0
+     * </pre>
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<Inet4Address> parseIPv4MulticastAddresses(@NonNull List<String> lines,
+            @NonNull String ifname) {
+        final List<Inet4Address> addresses = new ArrayList<>();
+        boolean inInterface = false;
+        // Skip the header.
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            if (line.isEmpty()) continue;
+            if (!Character.isWhitespace(line.charAt(0))) {
+                // The interface name is padded and followed by a colon, or directly by the colon
+                // if it is long.
+                final int nameStart = line.indexOf('\t');
+                final int nameEnd = line.lastIndexOf(':');
+                inInterface = nameStart >= 0 && nameEnd > nameStart
+                        && line.substring(nameStart + 1, nameEnd).trim().equals(ifname);
+                continue;
+            }
+            if (!inInterface) continue;
+            final String[] fields = line.trim().split("\\s+");
+            try {
+                final int group = Integer.parseUnsignedInt(fields[0], 16);
+                final byte[] address = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder())
+                        .putInt(group).array();
+                addresses.add((Inet4Address) InetAddress.getByAddress(address));
+            } catch (NumberFormatException | UnknownHostException e) {
+                Log.e(TAG, "Invalid IPv4 multicast group: " + line);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Parses the contents of /proc/net/igmp6, which has one line per group, with the interface
+     * index and name, and the group address printed as 32 hex digits:
+     * <pre>
+     * 1    lo              ff020000000000000000000000000001     1 0000000C 0
+     * </pre>
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<Inet6Address> parseIPv6MulticastAddresses(@NonNull List<String> lines,
+            @NonNull String ifname) {
+        final List<Inet6Address> addresses = new ArrayList<>();
+        for (String line : lines) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 3 || !fields[1].equals(ifname)) continue;
+            try {
+                final byte[] address = HexDump.hexStringToByteArray(fields[2]);
+                addresses.add((Inet6Address) InetAddress.getByAddress(address));
+            } catch (RuntimeException | UnknownHostException e) {
+                Log.e(TAG, "Invalid IPv6 multicast group: " + line);
+            }
+        }
+        return addresses;
+    }
+}
@@ -44,9 +44,19 @@ import static com.android.net.module.util.NetworkStackConstants.RFC7421_PREFIX_L
 import static com.android.net.module.util.NetworkStackConstants.VENDOR_SPECIFIC_IE_ID;
 import static com.android.networkstack.apishim.ConstantsShim.IFA_F_MANAGETEMPADDR;
 import static com.android.networkstack.apishim.ConstantsShim.IFA_F_NOPREFIXROUTE;
+import static com.android.networkstack.util.NetworkStackUtils.APF_ARP_OFFLOAD_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_FILTER_REORDERING_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.APF_HANDLE_LIGHT_DOZE_FORCE_DISABLE;
+import static com.android.networkstack.util.NetworkStackUtils.APF_HOST_PACKET_SAMPLING_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_MDNS_OFFLOAD_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_MERGE_RA_FILTERS_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_MULTICAST_GROUP_FILTER_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.APF_NEW_RA_FILTER_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_NS_OFFLOAD_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_OPTIMIZE_PROGRAM_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.APF_POLLING_COUNTERS_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_RULE_COUNTERS_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_V6_PROGRAM_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_DHCPV6_PREFIX_DELEGATION_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_GARP_NA_ROAMING_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_GRATUITOUS_NA_VERSION;
@@ -571,6 +581,17 @@ public class IpClient extends StateMachine {
     @VisibleForTesting
     static final int DEFAULT_APF_COUNTER_POLLING_INTERVAL_SECS = 300;
 
+    @VisibleForTesting
+    static final String CONFIG_APF_MAX_RAS = "ipclient_apf_max_ras";
+    @VisibleForTesting
+    static final int DEFAULT_APF_MAX_RAS = 32;
+
+    @VisibleForTesting
+    static final String CONFIG_APF_INSTALL_COALESCING_WINDOW_MS =
+            "ipclient_apf_install_coalescing_window_ms";
+    @VisibleForTesting
+    static final int DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS = 0;
+
     // Used to wait for the provisioning to complete eventually and then decide the target
     // network type, which gives the accurate hint to set DTIM multiplier. Per current IPv6
     // provisioning connection latency metrics, the latency of 95% can go up to 16s, so pick
@@ -700,11 +721,27 @@ public class IpClient extends StateMachine {
     // Polling interval to update APF data snapshot
     private final long mApfCounterPollingIntervalMs;
 
+    // Maximum number of RAs that the APF filter keeps track of.
+    private final int mApfMaxRas;
+
+    // Window within which APF program installs are coalesced. 0 = disabled.
+    private final int mApfInstallCoalescingWindowMs;
+
     // Experiment flag read from device config.
     private final boolean mDhcp6PrefixDelegationEnabled;
     private final boolean mUseNewApfFilter;
     private final boolean mEnableIpClientIgnoreLowRaLifetime;
     private final boolean mApfShouldHandleLightDoze;
+    private final boolean mApfShouldMergeRaFilters;
+    private final boolean mApfShouldOptimizeProgram;
+    private final boolean mApfShouldOffloadArp;
+    private final boolean mApfShouldOffloadNs;
+    private final boolean mApfShouldOffloadMdns;
+    private final boolean mApfShouldCountRules;
+    private final boolean mApfShouldReorderFilters;
+    private final boolean mApfShouldFilterMulticastByGroup;
+    private final boolean mApfShouldSampleHostPackets;
+    private final boolean mApfShouldGenerateV6Program;
     private final boolean mEnableApfPollingCounters;
     private final boolean mPopulateLinkAddressLifetime;
 
@@ -938,6 +975,10 @@ public class IpClient extends StateMachine {
         mApfCounterPollingIntervalMs = mDependencies.getDeviceConfigPropertyInt(
                 CONFIG_APF_COUNTER_POLLING_INTERVAL_SECS,
                 DEFAULT_APF_COUNTER_POLLING_INTERVAL_SECS) * DateUtils.SECOND_IN_MILLIS;
+        mApfMaxRas = mDependencies.getDeviceConfigPropertyInt(CONFIG_APF_MAX_RAS,
+                DEFAULT_APF_MAX_RAS);
+        mApfInstallCoalescingWindowMs = mDependencies.getDeviceConfigPropertyInt(
+                CONFIG_APF_INSTALL_COALESCING_WINDOW_MS, DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS);
         mUseNewApfFilter = SdkLevel.isAtLeastV() || mDependencies.isFeatureEnabled(context,
                 APF_NEW_RA_FILTER_VERSION);
         mEnableApfPollingCounters = mDependencies.isFeatureEnabled(context,
@@ -948,6 +989,26 @@ public class IpClient extends StateMachine {
         // Light doze mode status checking API is only available at T or later releases.
         mApfShouldHandleLightDoze = SdkLevel.isAtLeastT() && mDependencies.isFeatureNotChickenedOut(
                 mContext, APF_HANDLE_LIGHT_DOZE_FORCE_DISABLE);
+        mApfShouldMergeRaFilters = mDependencies.isFeatureEnabled(context,
+                APF_MERGE_RA_FILTERS_VERSION);
+        mApfShouldOptimizeProgram = mDependencies.isFeatureEnabled(context,
+                APF_OPTIMIZE_PROGRAM_VERSION);
+        mApfShouldOffloadArp = mDependencies.isFeatureEnabled(context,
+                APF_ARP_OFFLOAD_VERSION);
+        mApfShouldOffloadNs = mDependencies.isFeatureEnabled(context,
+                APF_NS_OFFLOAD_VERSION);
+        mApfShouldOffloadMdns = mDependencies.isFeatureEnabled(context,
+                APF_MDNS_OFFLOAD_VERSION);
+        mApfShouldCountRules = mDependencies.isFeatureEnabled(context,
+                APF_RULE_COUNTERS_VERSION);
+        mApfShouldReorderFilters = mDependencies.isFeatureEnabled(context,
+                APF_FILTER_REORDERING_VERSION);
+        mApfShouldFilterMulticastByGroup = mDependencies.isFeatureEnabled(context,
+                APF_MULTICAST_GROUP_FILTER_VERSION);
+        mApfShouldSampleHostPackets = mDependencies.isFeatureEnabled(context,
+                APF_HOST_PACKET_SAMPLING_VERSION);
+        mApfShouldGenerateV6Program = mDependencies.isFeatureEnabled(context,
+                APF_V6_PROGRAM_VERSION);
         mPopulateLinkAddressLifetime = mDependencies.isFeatureEnabled(context,
                 IPCLIENT_POPULATE_LINK_ADDRESS_LIFETIME_VERSION);
 
@@ -2461,6 +2522,19 @@ public class IpClient extends StateMachine {
             apfConfig.acceptRaMinLft = 0;
         }
         apfConfig.shouldHandleLightDoze = mApfShouldHandleLightDoze;
+        apfConfig.shouldMergeRaFilters = mApfShouldMergeRaFilters;
+        apfConfig.shouldOptimizeProgram = mApfShouldOptimizeProgram;
+        apfConfig.shouldOffloadArp = mApfShouldOffloadArp;
+        apfConfig.shouldOffloadNs = mApfShouldOffloadNs;
+        apfConfig.shouldOffloadMdns = mApfShouldOffloadMdns;
+        apfConfig.shouldCountRules = mApfShouldCountRules;
+        apfConfig.shouldReorderFilters = mApfShouldReorderFilters;
+        apfConfig.shouldFilterMulticastByGroup = mApfShouldFilterMulticastByGroup;
+        apfConfig.shouldSampleHostPackets = mApfShouldSampleHostPackets;
+        apfConfig.shouldGenerateV6Program = mApfShouldGenerateV6Program;
+        apfConfig.maxRas = mApfMaxRas;
+        apfConfig.installCoalescingWindowMs = mApfInstallCoalescingWindowMs;
+        apfConfig.handler = getHandler();
         apfConfig.minMetricsSessionDurationMs = mApfCounterPollingIntervalMs;
         return mDependencies.maybeCreateApfFilter(mContext, apfConfig, mInterfaceParams,
                 mCallback, mNetworkQuirkMetrics, mUseNewApfFilter);
@@ -82,6 +82,35 @@ public class ApfSessionInfoMetrics {
         mStatsBuilder.setMaxProgramSize(programSize);
     }
 
+    /**
+     * Write the maximum number of per-rule counters to mStatsBuilder.
+     */
+    public void setMaxNumOfRuleCounters(final int numRuleCounters) {
+        mStatsBuilder.setMaxNumOfRuleCounters(numRuleCounters);
+    }
+
+    /**
+     * Write the number of rules that matched no packets to mStatsBuilder.
+     */
+    public void setNumOfUnusedRules(final int numUnusedRules) {
+        mStatsBuilder.setNumOfUnusedRules(numUnusedRules);
+    }
+
+    /**
+     * Write the number of times the APF counters were read to mStatsBuilder.
+     */
+    public void setNumOfCounterSnapshots(final int numSnapshots) {
+        mStatsBuilder.setNumOfCounterSnapshots(numSnapshots);
+    }
+
+    /**
+     * Write the highest rate of dropped packets to mStatsBuilder.
+     */
+    public void setMaxDroppedPacketsPerMinute(final long droppedPerMinute) {
+        mStatsBuilder.setMaxDroppedPacketsPerMinute(
+                (int) Math.min(droppedPerMinute, Integer.MAX_VALUE));
+    }
+
     /**
      * Write the ApfSessionInfoReported proto into statsd.
      */
@@ -89,6 +118,8 @@ public class ApfSessionInfoMetrics {
         mStatsBuilder.setApfCounterList(mApfCounterListBuilder);
         final ApfSessionInfoReported stats = mStatsBuilder.build();
         final byte[] apfCounterList = stats.getApfCounterList().toByteArray();
+        // The rule counter and counter snapshot fields are not in the ApfSessionInfoReported
+        // atom yet, so they are only kept in the returned proto.
         NetworkStackStatsLog.write(NetworkStackStatsLog.APF_SESSION_INFO_REPORTED,
                 stats.getVersion(),
                 stats.getMemorySize(),
@@ -181,6 +212,11 @@ public class ApfSessionInfoMetrics {
                 return CounterName.CN_DROPPED_ARP_NON_IPV4;
             case DROPPED_ARP_UNKNOWN:
                 return CounterName.CN_DROPPED_ARP_UNKNOWN;
+            case DROPPED_ARP_REQUEST_REPLIED:
+            case DROPPED_IPV6_NS_REPLIED:
+            case DROPPED_MDNS_REPLIED:
+                // TODO: Not supported yet in the metrics backend.
+                return CounterName.CN_UNKNOWN;
             default:
                 return CounterName.CN_UNKNOWN;
         }
@@ -275,6 +275,71 @@ public class NetworkStackUtils {
     public static final String IPCLIENT_POPULATE_LINK_ADDRESS_LIFETIME_VERSION =
             "ipclient_populate_link_address_lifetime_version";
 
+    /**
+     * Experiment flag to merge the RA filters in the APF program into a trie.
+     */
+    public static final String APF_MERGE_RA_FILTERS_VERSION = "apf_merge_ra_filters_version";
+
+    /**
+     * Experiment flag to run the optimization pass on generated APF programs.
+     */
+    public static final String APF_OPTIMIZE_PROGRAM_VERSION = "apf_optimize_program_version";
+
+    /**
+     * Experiment flag to reply to ARP requests for the IPv4 address from APFv6 programs.
+     */
+    public static final String APF_ARP_OFFLOAD_VERSION = "apf_arp_offload_version";
+
+    /**
+     * Experiment flag to reply to neighbor solicitations for the IPv6 addresses from APFv6
+     * programs.
+     */
+    public static final String APF_NS_OFFLOAD_VERSION = "apf_ns_offload_version";
+
+    /**
+     * Experiment flag to reply to mDNS queries with canned responses from APFv6 programs.
+     */
+    public static final String APF_MDNS_OFFLOAD_VERSION = "apf_mdns_offload_version";
+
+    /**
+     * Experiment flag to count the packets matched by individual RA filters, keepalive filters and
+     * mDNS allowlist entries in the APF data region.
+     */
+    public static final String APF_RULE_COUNTERS_VERSION = "apf_rule_counters_version";
+
+    /**
+     * Experiment flag to reorder the APF ARP, IPv4 and IPv6 filters and the RA filters by how many
+     * packets they handle, as observed from the APF counters.
+     */
+    public static final String APF_FILTER_REORDERING_VERSION = "apf_filter_reordering_version";
+
+    /**
+     * Experiment flag to drop, while the APF multicast filter is off, the multicast packets sent
+     * to groups that no socket joined on the interface.
+     *
+     * The kernel does not notify joins, so the groups are polled, and packets to a newly joined
+     * group are dropped until the next poll. All multicast passes for 5 seconds after the
+     * multicast filter is turned off, and from a poll that finds the groups changed until one that
+     * finds them unchanged, 5 seconds later. While the groups do not change, the poll interval
+     * doubles up to 30 seconds, so a group joined then may have its packets dropped for up to 30
+     * seconds, plus any time the device is suspended.
+     */
+    public static final String APF_MULTICAST_GROUP_FILTER_VERSION =
+            "apf_multicast_group_filter_version";
+
+    /**
+     * Experiment flag to count, by the part of the APF program that handles them, a sample of the
+     * packets that reach the host despite APF.
+     */
+    public static final String APF_HOST_PACKET_SAMPLING_VERSION =
+            "apf_host_packet_sampling_version";
+
+    /**
+     * Experiment flag to generate programs with the APFv6 instructions on interpreters that
+     * support them, instead of APFv4 programs. The ARP, NS and mDNS offloads also require it.
+     */
+    public static final String APF_V6_PROGRAM_VERSION = "apf_v6_program_version";
+
 
     /**** BEGIN Feature Kill Switch Flags ****/
 
@@ -420,6 +485,17 @@ public class NetworkStackUtils {
      */
     public static native void attachControlPacketFilter(FileDescriptor fd) throws ErrnoException;
 
+    /**
+     * Attaches a socket filter that accepts a random sample of the packets received by the host,
+     * truncated to their first bytes. Packets sent by the host are rejected.
+     *
+     * @param fd the socket's {@link FileDescriptor}.
+     * @param samplingInterval accept one in this many packets, on average.
+     * @param snapLen the number of bytes of each accepted packet to keep.
+     */
+    public static native void attachHostPacketSamplingFilter(FileDescriptor fd,
+            int samplingInterval, int snapLen) throws ErrnoException;
+
     /**
      * Add an entry into the ARP cache.
      */
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf;
+
+import static android.net.apf.ApfTestUtils.DROP;
+
+import android.net.apf.ApfCounterTracker.Counter;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Replays packet traces through APFv4 programs with {@link ApfV4Simulator}, and measures the
+ * cost of the programs as well as their verdicts. Programs that use newer instructions can only
+ * be run by the native interpreter, which reports their verdicts but not their cost.
+ */
+public class ApfProgramBenchmark {
+    private static final Counter[] COUNTERS = Counter.class.getEnumConstants();
+
+    /**
+     * The verdicts and cost of a program on a trace.
+     */
+    public static class Result {
+        public final String name;
+        public final int programSize;
+        public final long generationTimeNs;
+        public final int numPackets;
+        // Packets that the program ran on, as opposed to packets passed without running it.
+        public final int numExecuted;
+        public final int numDropped;
+        // Whether the instructions executed were counted. If not, the instruction counts are 0.
+        public final boolean instructionsCounted;
+        public final long totalInstructions;
+        public final int maxInstructions;
+        // The counters after the replay, indexed by Counter#value().
+        private final long[] mCounters;
+
+        Result(String name, int programSize, long generationTimeNs, int numPackets,
+                int numExecuted, int numDropped, boolean instructionsCounted,
+                long totalInstructions, int maxInstructions, long[] counters) {
+            this.name = name;
+            this.programSize = programSize;
+            this.generationTimeNs = generationTimeNs;
+            this.numPackets = numPackets;
+            this.numExecuted = numExecuted;
+            this.numDropped = numDropped;
+            this.instructionsCounted = instructionsCounted;
+            this.totalInstructions = totalInstructions;
+            this.maxInstructions = maxInstructions;
+            mCounters = counters;
+        }
+
+        /**
+         * Returns the value of {@code counter} after the replay.
+         */
+        public long getCounter(Counter counter) {
+            return mCounters[counter.value()];
+        }
+
+        /**
+         * Returns the fraction of the packets that was dropped.
+         */
+        public double getDropRatio() {
+            return numPackets == 0 ? 0 : (double) numDropped / numPackets;
+        }
+
+        /**
+         * Returns the fraction of the packets counted by {@code counter}.
+         */
+        public double getRatio(Counter counter) {
+            return numPackets == 0 ? 0 : (double) getCounter(counter) / numPackets;
+        }
+
+        /**
+         * Returns the average number of instructions executed per packet.
+         */
+        public double getInstructionsPerPacket() {
+            return numPackets == 0 ? 0 : (double) totalInstructions / numPackets;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s: %d bytes, generated in %d us, %d packets, %.1f%% dropped",
+                    name, programSize, generationTimeNs / 1000, numPackets, 100 * getDropRatio()));
+            if (instructionsCounted) {
+                sb.append(String.format(", %.2f instructions per packet (max %d)",
+                        getInstructionsPerPacket(), maxInstructions));
+            }
+            for (Counter c : COUNTERS) {
+                if (!c.countsPackets() || getCounter(c) == 0) continue;
+                sb.append(String.format("\n  %s: %d (%.1f%%)", c, getCounter(c),
+                        100 * getRatio(c)));
+            }
+            return sb.toString();
+        }
+    }
+
+    private ApfProgramBenchmark() {}
+
+    /**
+     * Replay {@code packets} through {@code program}.
+     *
+     * @param name the name of the configuration that generated the program, for reporting.
+     * @param program the program to run.
+     * @param generationTimeNs the time it took to generate the program, for reporting.
+     * @param maximumApfProgramSize the size of the APF memory. The part of it that is not used by
+     *                              the program is the data region, which starts zeroed.
+     * @param packets the trace to replay, in order.
+     */
+    public static Result run(@NonNull String name, @NonNull byte[] program, long generationTimeNs,
+            int maximumApfProgramSize, @NonNull List<byte[]> packets) {
+        final byte[] data = new byte[Math.max(0, maximumApfProgramSize - program.length)];
+        final ApfV4Simulator simulator = new ApfV4Simulator(program, data);
+        int numExecuted = 0;
+        int numDropped = 0;
+        long totalInstructions = 0;
+        int maxInstructions = 0;
+        for (byte[] packet : packets) {
+            if (simulator.run(packet, 0 /* filterAge */) == DROP) numDropped++;
+            final int instructions = simulator.getInstructionCount();
+            if (instructions > 0) numExecuted++;
+            totalInstructions += instructions;
+            maxInstructions = Math.max(maxInstructions, instructions);
+        }
+        return new Result(name, program.length, generationTimeNs, packets.size(), numExecuted,
+                numDropped, true /* instructionsCounted */, totalInstructions, maxInstructions,
+                ApfCounterTracker.decodeCounters(data, COUNTERS.length));
+    }
+
+    /**
+     * Replay {@code packets} through {@code program} with the native interpreter, which supports
+     * all APF versions but does not count the instructions executed. The packets the program ran
+     * on are taken from {@link Counter#TOTAL_PACKETS}.
+     *
+     * @param apfVersion the APF version of the interpreter.
+     * @see #run(String, byte[], long, int, List)
+     */
+    public static Result runOnInterpreter(@NonNull String name, @NonNull byte[] program,
+            long generationTimeNs, int apfVersion, int maximumApfProgramSize,
+            @NonNull List<byte[]> packets) {
+        final byte[] data = new byte[Math.max(0, maximumApfProgramSize - program.length)];
+        int numDropped = 0;
+        for (byte[] packet : packets) {
+            if (ApfJniUtils.apfSimulate(apfVersion, program, packet, data,
+                    0 /* filterAge */) == DROP) {
+                numDropped++;
+            }
+        }
+        final long[] counters = ApfCounterTracker.decodeCounters(data, COUNTERS.length);
+        return new Result(name, program.length, generationTimeNs, packets.size(),
+                (int) counters[Counter.TOTAL_PACKETS.value()], numDropped,
+                false /* instructionsCounted */, 0 /* totalInstructions */,
+                0 /* maxInstructions */, counters);
+    }
+}
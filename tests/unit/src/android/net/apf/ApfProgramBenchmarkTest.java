@@ -0,0 +1,683 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf;
+
+import static android.net.apf.ApfTestUtils.DROP;
+import static android.net.apf.ApfTestUtils.PASS;
+import static android.net.apf.BaseApfGenerator.APF_VERSION_4;
+import static android.net.apf.BaseApfGenerator.DROP_LABEL;
+import static android.net.apf.BaseApfGenerator.PASS_LABEL;
+import static android.net.apf.BaseApfGenerator.Register.R0;
+import static android.system.OsConstants.ARPHRD_ETHER;
+import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IPPROTO_ICMPV6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.net.InetAddresses;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.NattKeepalivePacketDataParcelable;
+import android.net.TcpKeepalivePacketDataParcelable;
+import android.net.apf.ApfCounterTracker.Counter;
+import android.net.apf.ApfFilter.ApfConfiguration;
+import android.net.apf.ApfTestUtils.MockIpClientCallback;
+import android.net.apf.ApfTestUtils.TestApfFilter;
+import android.net.apf.ApfTestUtils.TestLegacyApfFilter;
+import android.net.metrics.IpConnectivityLog;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.networkstack.metrics.ApfSessionInfoMetrics;
+import com.android.networkstack.metrics.IpClientRaInfoMetrics;
+import com.android.networkstack.metrics.NetworkQuirkMetrics;
+import com.android.server.networkstack.tests.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays packet captures through the programs generated by {@link ApfFilter} and
+ * {@link LegacyApfFilter} in a range of configurations, and reports the cost of each program:
+ * its size, the time it took to generate, the instructions executed per packet and the ratio of
+ * packets counted by each counter.
+ *
+ * Before generating its program, every filter is shown the RAs in the trace and a few more
+ * synthesized ones, since the traces contain few RAs. Some variants also get keepalives and an
+ * mDNS allowlist, joined multicast groups, or counters read back after a first replay of the
+ * trace, so that the filters that depend on them are measured too. APFv6 programs are run by the
+ * native interpreter, so their instructions are not counted.
+ *
+ * The reports are logged, and the size, drop ratio and instructions per packet of each
+ * configuration are checked against the baselines below, so that changes that make the generated
+ * programs larger, slower or less effective fail the test. Changes that improve the programs
+ * should update the baselines, so that later regressions are caught.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ApfProgramBenchmarkTest {
+    private static final String TAG = "ApfProgramBenchmarkTest";
+    // The address of the device that captured R.raw.apfPcap.
+    private static final byte[] PCAP_IPV4_ADDR = {(byte) 172, 16, 7, (byte) 151};
+    private static final int PCAP_IPV4_PREFIX_LENGTH = 16;
+    private static final int[] ETHERTYPE_DENYLIST = {0x88a2, 0x88a4, 0x88b8, 0x88cd, 0x88e3};
+    private static final int ETH_ETHERTYPE_OFFSET = 12;
+    private static final int IPV6_NEXT_HEADER_OFFSET = 20;
+    private static final int ICMP6_TYPE_OFFSET = 54;
+    private static final int ICMP6_ROUTER_ADVERTISEMENT = 134;
+    // The generation time reported is the median of this many installs.
+    private static final int GENERATION_ITERATIONS = 11;
+    // How much larger than their baselines the programs may grow, and how many more instructions
+    // they may execute per packet, as a fraction of the baseline.
+    private static final double PROGRAM_SIZE_TOLERANCE = 0.05;
+    private static final double INSTRUCTIONS_PER_PACKET_TOLERANCE = 0.05;
+    // How much lower than its baseline the ratio of dropped packets may be.
+    private static final double DROP_RATIO_TOLERANCE = 0.005;
+    // The RAs shown to every filter in addition to those in the trace: one router advertising a
+    // different prefix in each.
+    private static final int NUM_SYNTHESIZED_RAS = 4;
+    // The rules added to the variants that have rules.
+    private static final int NUM_TCP_KEEPALIVES = 2;
+    private static final String[][] MDNS_ALLOWLIST = {
+            {"_googlecast", "_tcp", "local"}, {"Android-4", "local"}};
+    // The groups joined on the interface in the variants that filter multicast by group.
+    private static final List<Inet4Address> IPV4_MULTICAST_GROUPS = List.of(
+            (Inet4Address) InetAddresses.parseNumericAddress("224.0.0.1"),
+            (Inet4Address) InetAddresses.parseNumericAddress("224.0.0.251"));
+    private static final List<Inet6Address> IPV6_MULTICAST_GROUPS = List.of(
+            (Inet6Address) InetAddresses.parseNumericAddress("ff02::1"),
+            (Inet6Address) InetAddresses.parseNumericAddress("ff02::fb"));
+    // The number of RAs installed before timing the installs with and without the cached prologue.
+    private static final int NUM_CACHED_PROLOGUE_RAS = 5;
+
+    @Mock private Context mContext;
+    @Mock private ApfFilter.Dependencies mDependencies;
+    @Mock private PowerManager mPowerManager;
+    @Mock private AlarmManager mAlarmManager;
+    @Mock private IpConnectivityLog mIpConnectivityLog;
+    @Mock private NetworkQuirkMetrics mNetworkQuirkMetrics;
+    @Mock private ApfSessionInfoMetrics mApfSessionInfoMetrics;
+    @Mock private IpClientRaInfoMetrics mIpClientRaInfoMetrics;
+    @Mock private ApfFilter.Clock mClock;
+
+    /**
+     * A filter configuration to benchmark.
+     */
+    private static class Variant {
+        public final String name;
+        public final boolean isLegacy;
+        public final ApfConfiguration config;
+        // Whether keepalives and an mDNS allowlist are added before generating the program.
+        public final boolean hasRules;
+
+        Variant(String name, boolean isLegacy, ApfConfiguration config) {
+            this(name, isLegacy, config, false /* hasRules */);
+        }
+
+        Variant(String name, boolean isLegacy, ApfConfiguration config, boolean hasRules) {
+            this.name = name;
+            this.isLegacy = isLegacy;
+            this.config = config;
+            this.hasRules = hasRules;
+        }
+    }
+
+    /**
+     * The expected cost of the program of a variant on a trace. The generation time is not
+     * included, since it depends on the device. The instructions per packet are ignored for
+     * programs run by the native interpreter.
+     */
+    private static class Baseline {
+        public final int programSize;
+        public final double dropRatio;
+        public final double instructionsPerPacket;
+
+        Baseline(int programSize, double dropRatio, double instructionsPerPacket) {
+            this.programSize = programSize;
+            this.dropRatio = dropRatio;
+            this.instructionsPerPacket = instructionsPerPacket;
+        }
+    }
+
+    // Indexed by ApfProgramBenchmark.Result#name.
+    private static final Map<String, Baseline> BASELINES = new HashMap<>();
+
+    private static void addBaseline(String traceName, String variantName, int programSize,
+            double dropRatio, double instructionsPerPacket) {
+        BASELINES.put(variantName + " on " + traceName,
+                new Baseline(programSize, dropRatio, instructionsPerPacket));
+    }
+
+    // The APFv6 programs are expected to drop the same packets as the APFv4 programs of the same
+    // configuration. Their instructions are not counted.
+    static {
+        addBaseline("apfPcap.pcap", "ApfFilter default", 832, 0.2215, 23.30);
+        addBaseline("apfPcap.pcap", "ApfFilter drop multicast", 932, 0.9429, 27.31);
+        addBaseline("apfPcap.pcap", "ApfFilter drop multicast, 802.3, denylist", 975, 1.0, 33.62);
+        addBaseline("apfPcap.pcap", "ApfFilter drop multicast, 802.3, 1700 bytes", 940, 1.0, 28.91);
+        addBaseline("apfPcap.pcap", "LegacyApfFilter default", 830, 0.2215, 23.04);
+        addBaseline("apfPcap.pcap", "LegacyApfFilter drop multicast", 930, 0.9429, 27.93);
+        addBaseline("apfPcap.pcap", "LegacyApfFilter drop multicast, 802.3, denylist", 963, 1.0,
+                34.18);
+        addBaseline("apfPcap.pcap", "LegacyApfFilter drop multicast, 802.3, 1700 bytes", 938, 1.0,
+                29.47);
+        addBaseline("apfPcap.pcap", "ApfFilter optimized, merged RA filters", 740, 1.0, 33.62);
+        addBaseline("apfPcap.pcap", "ApfFilter keepalives, mDNS allowlist", 1599, 1.0, 36.09);
+        addBaseline("apfPcap.pcap", "ApfFilter counting rules", 1665, 1.0, 36.09);
+        addBaseline("apfPcap.pcap", "ApfFilter reordered filters", 975, 1.0, 33.16);
+        addBaseline("apfPcap.pcap", "ApfFilter multicast groups", 927, 0.2717, 27.50);
+        addBaseline("apfPcap.pcap", "ApfFilter APFv6 default", 783, 0.2215, 0);
+        addBaseline("apfPcap.pcap", "ApfFilter APFv6 keepalives, mDNS allowlist", 1813, 1.0, 0);
+
+        addBaseline("apf.pcap", "ApfFilter default", 832, 0.0323, 25.61);
+        addBaseline("apf.pcap", "ApfFilter drop multicast", 932, 0.2903, 34.65);
+        addBaseline("apf.pcap", "ApfFilter drop multicast, 802.3, denylist", 975, 0.2903, 41.65);
+        addBaseline("apf.pcap", "ApfFilter drop multicast, 802.3, 1700 bytes", 940, 0.2903, 36.65);
+        addBaseline("apf.pcap", "LegacyApfFilter default", 830, 0.0323, 23.81);
+        addBaseline("apf.pcap", "LegacyApfFilter drop multicast", 930, 0.2903, 33.35);
+        addBaseline("apf.pcap", "LegacyApfFilter drop multicast, 802.3, denylist", 963, 0.2903,
+                40.35);
+        addBaseline("apf.pcap", "LegacyApfFilter drop multicast, 802.3, 1700 bytes", 938, 0.2903,
+                35.35);
+        addBaseline("apf.pcap", "ApfFilter optimized, merged RA filters", 740, 0.2903, 40.87);
+        addBaseline("apf.pcap", "ApfFilter keepalives, mDNS allowlist", 1599, 0.2903, 50.48);
+        addBaseline("apf.pcap", "ApfFilter counting rules", 1665, 0.2903, 50.48);
+        addBaseline("apf.pcap", "ApfFilter reordered filters", 975, 0.2903, 40.90);
+        addBaseline("apf.pcap", "ApfFilter multicast groups", 927, 0.2903, 29.00);
+        addBaseline("apf.pcap", "ApfFilter APFv6 default", 783, 0.0323, 0);
+        addBaseline("apf.pcap", "ApfFilter APFv6 keepalives, mDNS allowlist", 1813, 0.2903, 0);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mPowerManager).when(mContext).getSystemService(PowerManager.class);
+        doReturn(mAlarmManager).when(mContext).getSystemService(AlarmManager.class);
+        doReturn(mApfSessionInfoMetrics).when(mDependencies).getApfSessionInfoMetrics();
+        doReturn(mIpClientRaInfoMetrics).when(mDependencies).getIpClientRaInfoMetrics();
+        doReturn(IPV4_MULTICAST_GROUPS).when(mDependencies).getIPv4MulticastAddresses(any());
+        doReturn(IPV6_MULTICAST_GROUPS).when(mDependencies).getIPv6MulticastAddresses(any());
+    }
+
+    private static ApfConfiguration makeConfig(int maximumApfProgramSize, boolean dropMulticast,
+            boolean drop802_3, int[] ethTypeDenylist) {
+        final ApfConfiguration config = new ApfConfiguration();
+        config.apfCapabilities = new ApfCapabilities(4, maximumApfProgramSize, ARPHRD_ETHER);
+        config.multicastFilter = dropMulticast;
+        config.ieee802_3Filter = drop802_3;
+        config.ethTypeBlackList = ethTypeDenylist;
+        config.minRdnssLifetimeSec = 67;
+        config.minMetricsSessionDurationMs = 300_000;
+        return config;
+    }
+
+    private static ApfConfiguration makeApfV6Config(int maximumApfProgramSize,
+            boolean dropMulticast, boolean drop802_3, int[] ethTypeDenylist) {
+        final ApfConfiguration config = makeConfig(maximumApfProgramSize, dropMulticast,
+                drop802_3, ethTypeDenylist);
+        config.apfCapabilities = new ApfCapabilities(6, maximumApfProgramSize, ARPHRD_ETHER);
+        config.shouldGenerateV6Program = true;
+        return config;
+    }
+
+    private static List<Variant> getVariants() {
+        final List<Variant> variants = new ArrayList<>();
+        for (boolean isLegacy : new boolean[] {false, true}) {
+            final String filter = isLegacy ? "LegacyApfFilter" : "ApfFilter";
+            variants.add(new Variant(filter + " default", isLegacy,
+                    makeConfig(4096, false, false, new int[0])));
+            variants.add(new Variant(filter + " drop multicast", isLegacy,
+                    makeConfig(4096, true, false, new int[0])));
+            variants.add(new Variant(filter + " drop multicast, 802.3, denylist", isLegacy,
+                    makeConfig(4096, true, true, ETHERTYPE_DENYLIST)));
+            variants.add(new Variant(filter + " drop multicast, 802.3, 1700 bytes", isLegacy,
+                    makeConfig(1700, true, true, new int[0])));
+        }
+        ApfConfiguration config = makeConfig(4096, true, true, ETHERTYPE_DENYLIST);
+        config.shouldOptimizeProgram = true;
+        config.shouldMergeRaFilters = true;
+        variants.add(new Variant("ApfFilter optimized, merged RA filters", false, config));
+        variants.add(new Variant("ApfFilter keepalives, mDNS allowlist", false,
+                makeConfig(4096, true, true, ETHERTYPE_DENYLIST), true /* hasRules */));
+        config = makeConfig(4096, true, true, ETHERTYPE_DENYLIST);
+        config.shouldCountRules = true;
+        variants.add(new Variant("ApfFilter counting rules", false, config, true /* hasRules */));
+        config = makeConfig(4096, true, true, ETHERTYPE_DENYLIST);
+        config.shouldReorderFilters = true;
+        variants.add(new Variant("ApfFilter reordered filters", false, config));
+        config = makeConfig(4096, false, false, new int[0]);
+        config.shouldFilterMulticastByGroup = true;
+        variants.add(new Variant("ApfFilter multicast groups", false, config));
+        variants.add(new Variant("ApfFilter APFv6 default", false,
+                makeApfV6Config(4096, false, false, new int[0])));
+        variants.add(new Variant("ApfFilter APFv6 keepalives, mDNS allowlist", false,
+                makeApfV6Config(4096, true, true, ETHERTYPE_DENYLIST), true /* hasRules */));
+        return variants;
+    }
+
+    private static List<byte[]> readTrace(int rawId) throws Exception {
+        try (InputStream in = InstrumentationRegistry.getContext().getResources()
+                .openRawResource(rawId)) {
+            return PcapReader.readPackets(in);
+        }
+    }
+
+    private TestAndroidPacketFilter makeTestApfFilter(Variant variant,
+            MockIpClientCallback ipClientCallback) throws Exception {
+        if (variant.isLegacy) {
+            return new TestLegacyApfFilter(mContext, variant.config, ipClientCallback,
+                    mIpConnectivityLog, mNetworkQuirkMetrics, mDependencies, mClock);
+        }
+        return new TestApfFilter(mContext, variant.config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+    }
+
+    private static boolean isRa(byte[] packet) {
+        return packet.length > ICMP6_TYPE_OFFSET
+                && ByteBuffer.wrap(packet).getShort(ETH_ETHERTYPE_OFFSET) == (short) ETH_P_IPV6
+                && packet[IPV6_NEXT_HEADER_OFFSET] == IPPROTO_ICMPV6
+                && (packet[ICMP6_TYPE_OFFSET] & 0xff) == ICMP6_ROUTER_ADVERTISEMENT;
+    }
+
+    /**
+     * Returns the RAs in {@code trace}, followed by the synthesized ones.
+     */
+    private static List<byte[]> getRas(List<byte[]> trace) throws Exception {
+        final List<byte[]> ras = new ArrayList<>();
+        for (byte[] packet : trace) {
+            if (isRa(packet)) ras.add(packet);
+        }
+        for (int i = 0; i < NUM_SYNTHESIZED_RAS; i++) {
+            ras.add(new ApfTest.RaPacketBuilder(1800 /* router lifetime */)
+                    .addPioOption(7200 /* valid */, 3600 /* preferred */, "2001:db8:" + i + "::/64")
+                    .build());
+        }
+        return ras;
+    }
+
+    private static void addRules(TestApfFilter apfFilter) throws Exception {
+        for (int i = 0; i < NUM_TCP_KEEPALIVES; i++) {
+            final TcpKeepalivePacketDataParcelable parcel = new TcpKeepalivePacketDataParcelable();
+            parcel.srcAddress = PCAP_IPV4_ADDR;
+            parcel.srcPort = 40000 + i;
+            parcel.dstAddress = new byte[] {(byte) 198, 51, 100, (byte) (1 + i)};
+            parcel.dstPort = 443;
+            parcel.seq = 1000 * i;
+            parcel.ack = 2000 * i;
+            apfFilter.addTcpKeepalivePacketFilter(i, parcel);
+        }
+        final NattKeepalivePacketDataParcelable parcel = new NattKeepalivePacketDataParcelable();
+        parcel.srcAddress = PCAP_IPV4_ADDR;
+        parcel.srcPort = 1024;
+        parcel.dstAddress = new byte[] {(byte) 198, 51, 100, 100};
+        parcel.dstPort = 4500;
+        apfFilter.addNattKeepalivePacketFilter(NUM_TCP_KEEPALIVES, parcel);
+        for (String[] labels : MDNS_ALLOWLIST) {
+            apfFilter.addToMdnsAllowList(labels);
+        }
+    }
+
+    /**
+     * Replay {@code trace} through {@code program} until it has counted enough packets for the
+     * filters to be reordered, and show the counters to {@code apfFilter} as if they had been read
+     * from the device.
+     */
+    private void reorderFilters(TestApfFilter apfFilter, byte[] program,
+            int maximumApfProgramSize, List<byte[]> trace) {
+        final byte[] data = new byte[maximumApfProgramSize - program.length];
+        doReturn(1_000L).when(mClock).elapsedRealtime();
+        apfFilter.setDataSnapshot(data.clone());
+        final ApfV4Simulator simulator = new ApfV4Simulator(program, data);
+        int numPackets = 0;
+        while (numPackets < ApfFilter.MIN_PACKETS_TO_REORDER_FILTERS) {
+            for (byte[] packet : trace) {
+                simulator.run(packet, 0 /* filterAge */);
+            }
+            numPackets += trace.size();
+        }
+        doReturn(2_000L).when(mClock).elapsedRealtime();
+        apfFilter.setDataSnapshot(data);
+    }
+
+    /**
+     * Generate the program of {@code variant}, and replay {@code trace} through it.
+     */
+    private ApfProgramBenchmark.Result runVariant(Variant variant, String traceName,
+            List<byte[]> trace) throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestAndroidPacketFilter apfFilter = makeTestApfFilter(variant, ipClientCallback);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(PCAP_IPV4_ADDR),
+                PCAP_IPV4_PREFIX_LENGTH));
+        apfFilter.setLinkProperties(lp);
+        for (byte[] ra : getRas(trace)) {
+            if (variant.isLegacy) {
+                ((TestLegacyApfFilter) apfFilter).processRa(ra, ra.length);
+            } else {
+                ((TestApfFilter) apfFilter).processRa(ra, ra.length);
+            }
+        }
+        if (variant.hasRules) addRules((TestApfFilter) apfFilter);
+        if (variant.config.shouldFilterMulticastByGroup) {
+            ((TestApfFilter) apfFilter).refreshMulticastGroups();
+        }
+        final int maximumApfProgramSize = variant.config.apfCapabilities.maximumApfProgramSize;
+        if (variant.config.shouldReorderFilters) {
+            reorderFilters((TestApfFilter) apfFilter, ipClientCallback.assertProgramUpdateAndGet(),
+                    maximumApfProgramSize, trace);
+        }
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final long[] generationTimesNs = new long[GENERATION_ITERATIONS];
+        for (int i = 0; i < GENERATION_ITERATIONS; i++) {
+            synchronized (apfFilter) {
+                final long start = System.nanoTime();
+                apfFilter.installNewProgramLocked();
+                generationTimesNs[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(generationTimesNs);
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        apfFilter.shutdown();
+
+        final String name = variant.name + " on " + traceName;
+        final long generationTimeNs = generationTimesNs[GENERATION_ITERATIONS / 2];
+        final int apfVersion = variant.config.apfCapabilities.apfVersionSupported;
+        final ApfProgramBenchmark.Result result = apfVersion > APF_VERSION_4
+                ? ApfProgramBenchmark.runOnInterpreter(name, program, generationTimeNs,
+                        apfVersion, maximumApfProgramSize, trace)
+                : ApfProgramBenchmark.run(name, program, generationTimeNs, maximumApfProgramSize,
+                        trace);
+        Log.i(TAG, result.toString());
+
+        assertTrue(result.name, result.programSize <= maximumApfProgramSize);
+        if (result.instructionsCounted) {
+            // Every program counts the packets it runs on.
+            assertEquals(result.name, result.numExecuted,
+                    result.getCounter(Counter.TOTAL_PACKETS));
+            assertMatchesInterpreter(result, program, maximumApfProgramSize, trace);
+        }
+        return result;
+    }
+
+    /**
+     * Check that the native interpreter agrees with the simulator on the verdicts and counters,
+     * so that the instruction counts are those of the program the device would run.
+     */
+    private static void assertMatchesInterpreter(ApfProgramBenchmark.Result result,
+            byte[] program, int maximumApfProgramSize, List<byte[]> trace) {
+        final byte[] data = new byte[maximumApfProgramSize - program.length];
+        int numDropped = 0;
+        for (byte[] packet : trace) {
+            if (ApfJniUtils.apfSimulate(4, program, packet, data, 0 /* filterAge */) == DROP) {
+                numDropped++;
+            }
+        }
+        assertEquals(result.name, numDropped, result.numDropped);
+        final Counter[] counters = Counter.class.getEnumConstants();
+        final long[] values = ApfCounterTracker.decodeCounters(data, counters.length);
+        final long[] simulated = new long[counters.length];
+        for (Counter c : counters) simulated[c.value()] = result.getCounter(c);
+        assertArrayEquals(result.name, values, simulated);
+    }
+
+    /**
+     * Check that {@code result} is no worse than its baseline, within the tolerances.
+     */
+    private static void assertWithinBaseline(ApfProgramBenchmark.Result result) {
+        final Baseline baseline = BASELINES.get(result.name);
+        assertNotNull("No baseline for " + result.name, baseline);
+        final String msg = result.name + ": " + result;
+        assertTrue(msg, result.programSize
+                <= baseline.programSize * (1 + PROGRAM_SIZE_TOLERANCE));
+        assertTrue(msg, result.getDropRatio() >= baseline.dropRatio - DROP_RATIO_TOLERANCE);
+        if (!result.instructionsCounted) return;
+        assertTrue(msg, result.getInstructionsPerPacket()
+                <= baseline.instructionsPerPacket * (1 + INSTRUCTIONS_PER_PACKET_TOLERANCE));
+    }
+
+    private void runAllVariants(int rawId, String traceName) throws Exception {
+        final List<byte[]> trace = readTrace(rawId);
+        assertTrue(traceName, trace.size() > 0);
+        final List<ApfProgramBenchmark.Result> results = new ArrayList<>();
+        for (Variant variant : getVariants()) {
+            final ApfProgramBenchmark.Result result = runVariant(variant, traceName, trace);
+            assertWithinBaseline(result);
+            results.add(result);
+        }
+        final StringBuilder summary = new StringBuilder("Summary for " + traceName + ":");
+        for (ApfProgramBenchmark.Result r : results) {
+            summary.append(String.format("\n  %-60s %5d bytes %6d us %5.1f%% dropped", r.name,
+                    r.programSize, r.generationTimeNs / 1000, 100 * r.getDropRatio()));
+            if (r.instructionsCounted) {
+                summary.append(String.format(" %6.2f ipp", r.getInstructionsPerPacket()));
+            }
+        }
+        Log.i(TAG, summary.toString());
+    }
+
+    @Test
+    public void testPcapReader() throws Exception {
+        final List<byte[]> trace = readTrace(R.raw.apfPcap);
+        assertTrue(trace.size() > 0);
+        for (byte[] packet : trace) {
+            // Every packet has at least an Ethernet header.
+            assertTrue(packet.length >= 14);
+        }
+    }
+
+    @Test
+    public void testBenchmarkApfPcap() throws Exception {
+        runAllVariants(R.raw.apfPcap, "apfPcap.pcap");
+    }
+
+    @Test
+    public void testBenchmarkApf() throws Exception {
+        runAllVariants(R.raw.apf, "apf.pcap");
+    }
+
+    /**
+     * Compares the APFv6 program with the APFv4 program of the same configuration. The APFv6
+     * program must be no less effective; its size is logged, since it is only smaller if the
+     * filters it uses the APFv6 instructions for outweigh the trampolines it no longer needs.
+     */
+    @Test
+    public void testApfV6ComparedToApfV4() throws Exception {
+        final List<byte[]> trace = readTrace(R.raw.apfPcap);
+        for (boolean hasRules : new boolean[] {false, true}) {
+            final ApfProgramBenchmark.Result v4 = runVariant(new Variant("APFv4", false,
+                    makeConfig(4096, true, true, ETHERTYPE_DENYLIST), hasRules), "apfPcap.pcap",
+                    trace);
+            final ApfProgramBenchmark.Result v6 = runVariant(new Variant("APFv6", false,
+                    makeApfV6Config(4096, true, true, ETHERTYPE_DENYLIST), hasRules),
+                    "apfPcap.pcap", trace);
+            Log.i(TAG, String.format("APFv6 vs APFv4%s: %d vs %d bytes, %.1f%% vs %.1f%% dropped",
+                    hasRules ? " with rules" : "", v6.programSize, v4.programSize,
+                    100 * v6.getDropRatio(), 100 * v4.getDropRatio()));
+            assertTrue(v6.numDropped >= v4.numDropped);
+            assertEquals(v4.numExecuted, v6.numExecuted);
+        }
+    }
+
+    @Test
+    public void testMulticastGroupsDropMorePacketsThanAllowingMulticast() throws Exception {
+        final List<byte[]> trace = readTrace(R.raw.apfPcap);
+        final ApfProgramBenchmark.Result allow = runVariant(new Variant("allow multicast", false,
+                makeConfig(4096, false, false, new int[0])), "apfPcap.pcap", trace);
+        final ApfConfiguration config = makeConfig(4096, false, false, new int[0]);
+        config.shouldFilterMulticastByGroup = true;
+        final ApfProgramBenchmark.Result groups = runVariant(new Variant("multicast groups",
+                false, config), "apfPcap.pcap", trace);
+        assertTrue(groups.getCounter(Counter.DROPPED_IPV4_MULTICAST) > 0);
+        assertTrue(groups.numDropped > allow.numDropped);
+    }
+
+    @Test
+    public void testReorderingFiltersRunsFewerInstructions() throws Exception {
+        final List<byte[]> trace = readTrace(R.raw.apfPcap);
+        final ApfProgramBenchmark.Result fixed = runVariant(new Variant("fixed order", false,
+                makeConfig(4096, true, true, ETHERTYPE_DENYLIST)), "apfPcap.pcap", trace);
+        final ApfConfiguration config = makeConfig(4096, true, true, ETHERTYPE_DENYLIST);
+        config.shouldReorderFilters = true;
+        final ApfProgramBenchmark.Result reordered = runVariant(new Variant("reordered", false,
+                config), "apfPcap.pcap", trace);
+        assertEquals(fixed.numDropped, reordered.numDropped);
+        assertTrue(reordered.totalInstructions <= fixed.totalInstructions);
+    }
+
+    // Returns a generator for a program with about 3 * numBlocks instructions: it drops packets
+    // whose first byte is 255 or equals any block number modulo 250, and passes everything else.
+    private static ApfV4Generator makeLargeProgramGenerator(int numBlocks) throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(APF_VERSION_4);
+        gen.addLoad8(R0, 0);
+        // A jump over the whole program.
+        gen.addJumpIfR0Equals(255, "end");
+        for (int i = 0; i < numBlocks; i++) {
+            gen.addJumpIfR0NotEquals(i % 250, "block" + i);
+            // Jumps whose distance depends on the size of all the following blocks.
+            gen.addJump(DROP_LABEL);
+            gen.defineLabel("block" + i);
+        }
+        gen.addJump(PASS_LABEL);
+        gen.defineLabel("end");
+        gen.addJump(DROP_LABEL);
+        return gen;
+    }
+
+    /**
+     * Measures how long generate() takes on programs of 1K to 20K instructions, most of whose
+     * jumps can only shrink once the jumps after them have.
+     */
+    @Test
+    public void testGenerateLargeProgram() throws Exception {
+        final byte[] packet = new byte[60];
+        for (int numBlocks : new int[] {333, 3333, 6666}) {
+            final long[] generationTimesNs = new long[GENERATION_ITERATIONS];
+            byte[] program = null;
+            for (int i = 0; i < GENERATION_ITERATIONS; i++) {
+                final ApfV4Generator gen = makeLargeProgramGenerator(numBlocks);
+                final long start = System.nanoTime();
+                program = gen.generate();
+                generationTimesNs[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(generationTimesNs);
+            Log.i(TAG, String.format("Generated %d bytes from %d instructions in %d us",
+                    program.length, 3 * numBlocks,
+                    generationTimesNs[GENERATION_ITERATIONS / 2] / 1000));
+
+            for (int firstByte : new int[] {255, 7, 249}) {
+                packet[0] = (byte) firstByte;
+                assertEquals(DROP, ApfJniUtils.apfSimulate(APF_VERSION_4, program, packet,
+                        null /* data */, 0 /* filterAge */));
+            }
+            packet[0] = (byte) 252;
+            assertEquals(PASS, ApfJniUtils.apfSimulate(APF_VERSION_4, program, packet,
+                    null /* data */, 0 /* filterAge */));
+        }
+    }
+
+    /**
+     * Compares the time it takes to install a program when only the RAs changed, which truncates
+     * the cached prologue and appends the RA filters, with the time it takes to generate the
+     * whole program from scratch.
+     */
+    @Test
+    public void testCachedPrologueGenerationTime() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext,
+                makeConfig(4096, true, true, ETHERTYPE_DENYLIST), ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(PCAP_IPV4_ADDR),
+                PCAP_IPV4_PREFIX_LENGTH));
+        apfFilter.setLinkProperties(lp);
+        for (int i = 0; i < NUM_CACHED_PROLOGUE_RAS; i++) {
+            final byte[] ra = new ApfTest.RaPacketBuilder(1800 /* router lifetime */)
+                    .addPioOption(7200 /* valid */, 3600 /* preferred */, "2001:db8:" + i + "::/64")
+                    .build();
+            apfFilter.processRa(ra, ra.length);
+        }
+
+        final long[] cachedNs = new long[GENERATION_ITERATIONS];
+        final long[] freshNs = new long[GENERATION_ITERATIONS];
+        byte[] cachedProgram = null;
+        byte[] freshProgram = null;
+        // Alternate between the two, so that both are equally affected by the state of the device.
+        for (int i = 0; i < GENERATION_ITERATIONS; i++) {
+            synchronized (apfFilter) {
+                final long start = System.nanoTime();
+                apfFilter.installNewProgramLocked();
+                cachedNs[i] = System.nanoTime() - start;
+            }
+            cachedProgram = ipClientCallback.assertProgramUpdateAndGet();
+            synchronized (apfFilter) {
+                final long start = System.nanoTime();
+                apfFilter.invalidatePrologueLocked();
+                apfFilter.installNewProgramLocked();
+                freshNs[i] = System.nanoTime() - start;
+            }
+            freshProgram = ipClientCallback.assertProgramUpdateAndGet();
+        }
+        apfFilter.shutdown();
+        Arrays.sort(cachedNs);
+        Arrays.sort(freshNs);
+        Log.i(TAG, String.format("Installed %d bytes with %d RAs in %d us with the cached prologue,"
+                + " %d us without", cachedProgram.length, NUM_CACHED_PROLOGUE_RAS,
+                cachedNs[GENERATION_ITERATIONS / 2] / 1000,
+                freshNs[GENERATION_ITERATIONS / 2] / 1000));
+        assertArrayEquals(freshProgram, cachedProgram);
+    }
+
+    @Test
+    public void testDroppingMulticastDropsMorePackets() throws Exception {
+        final List<byte[]> trace = readTrace(R.raw.apfPcap);
+        for (boolean isLegacy : new boolean[] {false, true}) {
+            final ApfProgramBenchmark.Result allow = runVariant(new Variant("allow multicast",
+                    isLegacy, makeConfig(4096, false, false, new int[0])), "apfPcap.pcap", trace);
+            final ApfProgramBenchmark.Result drop = runVariant(new Variant("drop multicast",
+                    isLegacy, makeConfig(4096, true, true, new int[0])), "apfPcap.pcap", trace);
+            assertTrue(drop.numDropped >= allow.numDropped);
+            // apfPcap.pcap only contains packets that the device should not wake up for, see
+            // ApfTest#testApfFilterPcapFile.
+            if (!isLegacy) assertEquals(drop.numPackets, drop.numDropped);
+        }
+    }
+}
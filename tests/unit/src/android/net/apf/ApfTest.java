@@ -34,20 +34,30 @@ import static android.system.OsConstants.ARPHRD_ETHER;
 import static android.system.OsConstants.ETH_P_ARP;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IFA_F_TENTATIVE;
 import static android.system.OsConstants.IPPROTO_ICMPV6;
 import static android.system.OsConstants.IPPROTO_IPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
+import static android.system.OsConstants.RT_SCOPE_UNIVERSE;
 
 import static com.android.net.module.util.HexDump.hexStringToByteArray;
 import static com.android.net.module.util.HexDump.toHexString;
 import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ECHO_REQUEST_TYPE;
+import static com.android.net.module.util.NetworkStackConstants.NEIGHBOR_ADVERTISEMENT_FLAG_OVERRIDE;
+import static com.android.net.module.util.NetworkStackConstants.NEIGHBOR_ADVERTISEMENT_FLAG_SOLICITED;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -55,6 +65,7 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.app.AlarmManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -73,12 +84,17 @@ import android.net.apf.ApfTestUtils.TestLegacyApfFilter;
 import android.net.apf.BaseApfGenerator.IllegalInstructionException;
 import android.net.metrics.IpConnectivityLog;
 import android.os.Build;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.PowerManager;
 import android.stats.connectivity.NetworkQuirkEvent;
 import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 
@@ -86,6 +102,7 @@ import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
 
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.net.module.util.DnsPacket;
 import com.android.net.module.util.Inet4AddressUtils;
 import com.android.net.module.util.NetworkStackConstants;
@@ -93,6 +110,8 @@ import com.android.net.module.util.PacketBuilder;
 import com.android.networkstack.metrics.ApfSessionInfoMetrics;
 import com.android.networkstack.metrics.IpClientRaInfoMetrics;
 import com.android.networkstack.metrics.NetworkQuirkMetrics;
+import com.android.networkstack.packets.NeighborAdvertisement;
+import com.android.networkstack.packets.NeighborSolicitation;
 import com.android.server.networkstack.tests.R;
 import com.android.testutils.DevSdkIgnoreRule;
 import com.android.testutils.DevSdkIgnoreRunner;
@@ -115,6 +134,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -126,6 +146,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for APF program generator and interpreter.
@@ -152,6 +174,7 @@ public class ApfTest {
     @Mock
     private ApfFilter.Dependencies mDependencies;
     @Mock private PowerManager mPowerManager;
+    @Mock private AlarmManager mAlarmManager;
     @Mock private IpConnectivityLog mIpConnectivityLog;
     @Mock private NetworkQuirkMetrics mNetworkQuirkMetrics;
     @Mock private ApfSessionInfoMetrics mApfSessionInfoMetrics;
@@ -161,6 +184,7 @@ public class ApfTest {
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         doReturn(mPowerManager).when(mContext).getSystemService(PowerManager.class);
+        doReturn(mAlarmManager).when(mContext).getSystemService(AlarmManager.class);
         doReturn(mApfSessionInfoMetrics).when(mDependencies).getApfSessionInfoMetrics();
         doReturn(mIpClientRaInfoMetrics).when(mDependencies).getIpClientRaInfoMetrics();
     }
@@ -198,6 +222,7 @@ public class ApfTest {
         config.minRdnssLifetimeSec = MIN_RDNSS_LIFETIME_SEC;
         config.minRdnssLifetimeSec = 67;
         config.minMetricsSessionDurationMs = MIN_METRICS_SESSION_DURATIONS_MS;
+        config.shouldGenerateV6Program = true;
         return config;
     }
 
@@ -694,6 +719,74 @@ public class ApfTest {
         }
     }
 
+    private static byte[] makePacketStartingWith(long value) {
+        final ByteBuffer packet = ByteBuffer.wrap(new byte[MIN_PKT_SIZE]);
+        packet.putInt(0, (int) value);
+        return packet.array();
+    }
+
+    /**
+     * Test that set membership comparisons match exactly the values in the set, and execute a
+     * logarithmic number of comparisons for large sets.
+     */
+    @Test
+    public void testJumpIfR0IsOneOf() throws IllegalInstructionException {
+        final Set<Long> values = new ArraySet<>();
+        for (long v = 0x100; v < 0x2000; v += 0x100) values.add(v);
+        // Ranges of consecutive values, including one at each end of the value space.
+        for (long v = 0x3000; v <= 0x3010; v++) values.add(v);
+        for (long v = 0; v < 4; v++) values.add(v);
+        for (long v = 0xfffffff0L; v <= 0xffffffffL; v++) values.add(v);
+        final List<Long> probes = new ArrayList<>();
+        for (long v : values) {
+            probes.add(v);
+            probes.add((v + 1) & 0xffffffffL);
+            probes.add((v - 1) & 0xffffffffL);
+        }
+        probes.add(0x7fffffffL);
+
+        ApfV4Generator gen = new ApfV4Generator(4);
+        gen.addLoad32(R0, 0);
+        gen.addJumpIfR0IsOneOf(values, DROP_LABEL);
+        final byte[] oneOfProgram = gen.generate();
+        gen = new ApfV4Generator(4);
+        gen.addLoad32(R0, 0);
+        gen.addJumpIfR0IsNoneOf(values, PASS_LABEL);
+        gen.addJump(DROP_LABEL);
+        final byte[] noneOfProgram = gen.generate();
+
+        final ApfV4Simulator oneOf = new ApfV4Simulator(oneOfProgram, null /* data */);
+        final ApfV4Simulator noneOf = new ApfV4Simulator(noneOfProgram, null /* data */);
+        int maxInstructions = 0;
+        for (long probe : probes) {
+            final byte[] packet = makePacketStartingWith(probe);
+            final int expected = values.contains(probe) ? DROP : PASS;
+            assertVerdict(Long.toHexString(probe), expected, oneOfProgram, packet, 0);
+            assertVerdict(Long.toHexString(probe), expected, noneOfProgram, packet, 0);
+            assertEquals(expected, oneOf.run(packet, 0 /* filterAge */));
+            maxInstructions = Math.max(maxInstructions, oneOf.getInstructionCount());
+            assertEquals(expected, noneOf.run(packet, 0 /* filterAge */));
+            maxInstructions = Math.max(maxInstructions, noneOf.getInstructionCount());
+        }
+        // 34 ranges take 4 levels of binary search, then up to 3 ranges of at most 2 comparisons
+        // each, instead of up to 34 comparisons.
+        assertTrue("max instructions: " + maxInstructions, maxInstructions <= 12);
+
+        // Small sets are compared one by one, as before.
+        gen = new ApfV4Generator(4);
+        gen.addLoad16(R0, 12);
+        gen.addJumpIfR0IsOneOf(Set.of(0x88a2L, 0x88a4L, 0x88b8L), DROP_LABEL);
+        final ApfV4Generator linearGen = new ApfV4Generator(4);
+        linearGen.addLoad16(R0, 12);
+        linearGen.addJumpIfR0Equals(0x88a2, DROP_LABEL);
+        linearGen.addJumpIfR0Equals(0x88a4, DROP_LABEL);
+        linearGen.addJumpIfR0Equals(0x88b8, DROP_LABEL);
+        assertProgramEquals(linearGen.generate(), gen.generate());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new ApfV4Generator(4).addJumpIfR0IsOneOf(Set.of(), DROP_LABEL));
+    }
+
     /**
      * Test that the generator emits immediates using the shortest possible encoding.
      */
@@ -1008,6 +1101,8 @@ public class ApfTest {
     private static final int IPV6_TCP_DEST_PORT_OFFSET   = IPV6_PAYLOAD_OFFSET + 2;
     private static final int IPV6_TCP_SEQ_NUM_OFFSET     = IPV6_PAYLOAD_OFFSET + 4;
     private static final int IPV6_TCP_ACK_NUM_OFFSET     = IPV6_PAYLOAD_OFFSET + 8;
+    private static final int IPV6_TCP_HEADER_LENGTH_OFFSET = IPV6_PAYLOAD_OFFSET + 12;
+    private static final int IPV6_TCP_HEADER_FLAG_OFFSET = IPV6_PAYLOAD_OFFSET + 13;
     // The IPv6 all nodes address ff02::1
     private static final byte[] IPV6_ALL_NODES_ADDRESS   =
             { (byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
@@ -1074,6 +1169,7 @@ public class ApfTest {
             4,    // Protocol size: 4
             0, 2  // Opcode: reply (2)
     };
+    private static final int ARP_SOURCE_HW_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 8;
     private static final int ARP_SOURCE_IP_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 14;
     private static final int ARP_TARGET_IP_ADDRESS_OFFSET = ARP_HEADER_OFFSET + 24;
 
@@ -1215,16 +1311,21 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
-    private static void fillQuestionSection(ByteBuffer buf, String... qnames) throws IOException {
+    private static void fillQuestionSection(ByteBuffer buf, int nsType, String... qnames)
+            throws IOException {
         buf.put(new DnsPacket.DnsHeader(0 /* id */, 0 /* flags */, qnames.length, 0 /* ancount */)
                 .getBytes());
         for (String qname : qnames) {
-            buf.put(DnsPacket.DnsRecord.makeQuestion(qname, 0 /* nsType */, 0 /* nsClass */)
+            buf.put(DnsPacket.DnsRecord.makeQuestion(qname, nsType, 0 /* nsClass */)
                     .getBytes());
         }
     }
 
     private static byte[] makeMdnsV4Packet(String... qnames) throws IOException {
+        return makeMdnsV4Packet(0 /* nsType */, qnames);
+    }
+
+    private static byte[] makeMdnsV4Packet(int nsType, String... qnames) throws IOException {
         final ByteBuffer buf = ByteBuffer.wrap(new byte[256]);
         final PacketBuilder builder = new PacketBuilder(buf);
         builder.writeL2Header(MacAddress.fromString("11:22:33:44:55:66"),
@@ -1235,11 +1336,15 @@ public class ApfTest {
                 (Inet4Address) Inet4Address.getByAddress(IPV4_SOURCE_ADDR),
                 (Inet4Address) Inet4Address.getByAddress(IPV4_MDNS_MULTICAST_ADDR));
         builder.writeUdpHeader((short) MDNS_UDP_PORT, (short) MDNS_UDP_PORT);
-        fillQuestionSection(buf, qnames);
+        fillQuestionSection(buf, nsType, qnames);
         return builder.finalizePacket().array();
     }
 
     private static byte[] makeMdnsV6Packet(String... qnames) throws IOException {
+        return makeMdnsV6Packet(0 /* nsType */, qnames);
+    }
+
+    private static byte[] makeMdnsV6Packet(int nsType, String... qnames) throws IOException {
         ByteBuffer buf = ByteBuffer.wrap(new byte[256]);
         final PacketBuilder builder = new PacketBuilder(buf);
         builder.writeL2Header(MacAddress.fromString("11:22:33:44:55:66"),
@@ -1249,7 +1354,7 @@ public class ApfTest {
                 (Inet6Address) InetAddress.getByAddress(IPV6_ANOTHER_ADDR),
                 (Inet6Address) Inet6Address.getByAddress(IPV6_MDNS_MULTICAST_ADDR));
         builder.writeUdpHeader((short) MDNS_UDP_PORT, (short) MDNS_UDP_PORT);
-        fillQuestionSection(buf, qnames);
+        fillQuestionSection(buf, nsType, qnames);
         return builder.finalizePacket().array();
     }
 
@@ -1409,6 +1514,146 @@ public class ApfTest {
         assertEquals(count, gen.generate().length);
     }
 
+    private static void addTruncateTestPrefix(ApfV4Generator gen)
+            throws IllegalInstructionException {
+        gen.addLoad16(R0, 12);
+        gen.addJumpIfR0Equals(0x86dd, "prefix_ipv6");
+        gen.addJumpIfR0NotEquals(0x800, DROP_LABEL);
+        gen.addJump(PASS_LABEL);
+        gen.defineLabel("prefix_ipv6");
+    }
+
+    @Test
+    public void testTruncateAndRegenerate() throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        addTruncateTestPrefix(gen);
+        final int mark = gen.mark();
+        // Make the first tail long enough that the prefix jumps need 2-byte offsets.
+        for (int i = 0; i < 300; i++) {
+            gen.addNop();
+        }
+        gen.defineLabel("tail");
+        gen.addJump(DROP_LABEL);
+        gen.generate();
+
+        // Replace the tail with a short one, reusing a label name defined in the discarded tail.
+        gen.truncate(mark);
+        gen.addLoad8(R0, 20);
+        gen.defineLabel("tail");
+        gen.addJumpIfR0Equals(58, DROP_LABEL);
+
+        final ApfV4Generator expected = new ApfV4Generator(MIN_APF_VERSION);
+        addTruncateTestPrefix(expected);
+        expected.addLoad8(R0, 20);
+        expected.defineLabel("tail");
+        expected.addJumpIfR0Equals(58, DROP_LABEL);
+
+        assertProgramEquals(expected.generate(), gen.generate());
+    }
+
+    @Test
+    public void testOptimize() throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.enableOptimizations();
+        gen.addLoad16(R0, 12);
+        gen.addJumpIfR0Equals(0x86dd, "ipv6");
+        // Jump to the next instruction.
+        gen.addJump("next");
+        gen.defineLabel("next");
+        // Redundant load.
+        gen.addLoad16(R0, 12);
+        // Jump to a jump.
+        gen.addJumpIfR0NotEquals(0x800, "trampoline");
+        gen.addJump(PASS_LABEL);
+        // Unreachable.
+        gen.addLoad8(R0, 23);
+        gen.defineLabel("trampoline");
+        gen.addJump(DROP_LABEL);
+        gen.defineLabel("ipv6");
+        gen.addLoad8(R0, 20);
+        gen.addJumpIfR0Equals(58, DROP_LABEL);
+        // Jump to the end of the program.
+        gen.addJump(PASS_LABEL);
+
+        final ApfV4Generator expected = new ApfV4Generator(MIN_APF_VERSION);
+        expected.addLoad16(R0, 12);
+        expected.addJumpIfR0Equals(0x86dd, "ipv6");
+        expected.addJumpIfR0NotEquals(0x800, DROP_LABEL);
+        expected.addJump(PASS_LABEL);
+        expected.defineLabel("ipv6");
+        expected.addLoad8(R0, 20);
+        expected.addJumpIfR0Equals(58, DROP_LABEL);
+
+        assertProgramEquals(expected.generate(), gen.generate());
+    }
+
+    @Test
+    public void testOptimizeKeepsRegisterLoadsAfterLabels() throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.enableOptimizations();
+        gen.addLoad16(R0, 12);
+        gen.addJumpIfR0Equals(0x800, "label");
+        gen.addLoad8(R0, 20);
+        gen.addJumpIfR0Equals(58, DROP_LABEL);
+        gen.defineLabel("label");
+        // Not redundant, since R0 may hold either value here.
+        gen.addLoad8(R0, 20);
+        gen.addJumpIfR0Equals(17, DROP_LABEL);
+        // Not removable, since JNEBS passes the packet if the bytes are out of bounds.
+        gen.addLoadImmediate(R0, 100);
+        gen.addJumpIfBytesAtR0NotEqual(new byte[] {1, 2}, "end");
+        gen.defineLabel("end");
+
+        final ApfV4Generator expected = new ApfV4Generator(MIN_APF_VERSION);
+        expected.addLoad16(R0, 12);
+        expected.addJumpIfR0Equals(0x800, "label");
+        expected.addLoad8(R0, 20);
+        expected.addJumpIfR0Equals(58, DROP_LABEL);
+        expected.defineLabel("label");
+        expected.addLoad8(R0, 20);
+        expected.addJumpIfR0Equals(17, DROP_LABEL);
+        expected.addLoadImmediate(R0, 100);
+        expected.addJumpIfBytesAtR0NotEqual(new byte[] {1, 2}, "end");
+        expected.defineLabel("end");
+
+        assertProgramEquals(expected.generate(), gen.generate());
+    }
+
+    @Test
+    public void testOptimizeThreadsJumpChains() throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.enableOptimizations();
+        gen.addLoad8(R0, 0);
+        gen.addJumpIfR0Equals(1, "trampoline1");
+        gen.addJump(PASS_LABEL);
+        for (int i = 1; i < 30; i++) {
+            gen.defineLabel("trampoline" + i);
+            gen.addJump("trampoline" + (i + 1));
+        }
+        gen.defineLabel("trampoline30");
+        gen.addJump(DROP_LABEL);
+
+        final ApfV4Generator expected = new ApfV4Generator(MIN_APF_VERSION);
+        expected.addLoad8(R0, 0);
+        expected.addJumpIfR0Equals(1, DROP_LABEL);
+
+        assertProgramEquals(expected.generate(), gen.generate());
+    }
+
+    @Test(timeout = 10_000)
+    public void testOptimizeTerminatesOnJumpCycles() throws Exception {
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.enableOptimizations();
+        gen.addLoad8(R0, 0);
+        gen.addJumpIfR0Equals(1, "a");
+        gen.addJump(DROP_LABEL);
+        gen.defineLabel("a");
+        gen.addJump("b");
+        gen.defineLabel("b");
+        gen.addJump("a");
+        gen.generate();
+    }
+
     @Test
     public void testQnameEncoding() {
         String[] qname = new String[]{"abcd", "ef", "日本"};
@@ -1449,9 +1694,13 @@ public class ApfTest {
         program = ipClientCallback.assertProgramUpdateAndGet();
         assertPass(program, mdnsv4packet);
         assertPass(program, mdnsv6packet);
-        // If packet contains more than one qname, pass the packet
+        // If packet contains more than one qname, every qname is checked against the allowlist
         mdnsv4packet = makeMdnsV4Packet("cccc.local", "dddd.local");
         mdnsv6packet = makeMdnsV6Packet("cccc.local", "dddd.local");
+        assertDrop(program, mdnsv4packet);
+        assertDrop(program, mdnsv6packet);
+        mdnsv4packet = makeMdnsV4Packet("cccc.local", "test.local");
+        mdnsv6packet = makeMdnsV6Packet("cccc.local", "test.local");
         assertPass(program, mdnsv4packet);
         assertPass(program, mdnsv6packet);
         // If packet doesn't contain any qname, pass the packet
@@ -1465,6 +1714,12 @@ public class ApfTest {
         assertPass(program, mdnsv4packet);
         assertPass(program, mdnsv6packet);
 
+        // Questions are matched against the allowlist whatever their qtype
+        assertPass(program, makeMdnsV4Packet(DNS_TYPE_NSEC, "test.local"));
+        assertPass(program, makeMdnsV6Packet(DNS_TYPE_HINFO, "abcd.local"));
+        assertPass(program, makeMdnsV6Packet(DNS_TYPE_PTR, "test.local"));
+        assertDrop(program, makeMdnsV4Packet(DNS_TYPE_NSEC, "ffff.local"));
+
         // mDNSv4 packet with qname not in the allowlist is dropped
         mdnsv4packet = makeMdnsV4Packet("ffff.local");
         mdnsv6packet = makeMdnsV6Packet("ffff.local");
@@ -1481,6 +1736,226 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
+    /**
+     * Rough metric of mDNS filter effectiveness. Replays a synthesized trace of mDNS queries with
+     * single, multiple and compressed questions through the APFv4 filter and checks that only
+     * queries for allowlisted names are passed.
+     */
+    @Test
+    public void testApfFilterMdnsDropRate() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.multicastFilter = DROP_MULTICAST;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        apfFilter.setLinkProperties(lp);
+        apfFilter.addToMdnsAllowList(new String[]{"googlecast", "tcp", "local"});
+        apfFilter.addToMdnsAllowList(new String[]{"matter", "tcp", "local"});
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        final List<byte[]> unwanted = List.of(
+                makeMdnsV4Packet("myhostname.local"),
+                makeMdnsV6Packet("myhostname.local"),
+                makeMdnsV4Packet("airplay.tcp.local", "raop.tcp.local"),
+                makeMdnsV6Packet("airplay.tcp.local", "raop.tcp.local", "companion.tcp.local"),
+                makeMdnsCompressedV6Packet("myservice.tcp.local", "myhostname.local"),
+                makeMdnsCompressedV6Packet("airplay.tcp.local", "raop.tcp.local",
+                        "spotify.tcp.local"));
+        final List<byte[]> wanted = List.of(
+                makeMdnsV4Packet("googlecast.tcp.local"),
+                makeMdnsV6Packet("matter.tcp.local"),
+                makeMdnsV4Packet("airplay.tcp.local", "googlecast.tcp.local"),
+                makeMdnsV6Packet("raop.tcp.local", "matter.tcp.local"),
+                makeMdnsCompressedV6Packet());
+
+        int dropped = 0;
+        for (byte[] pkt : unwanted) {
+            if (ApfJniUtils.apfSimulate(mApfVersion, program, pkt, null /* data */,
+                    0 /* filterAge */) == DROP) {
+                dropped++;
+            }
+        }
+        Log.d(TAG, "mDNS drop rate: " + dropped + "/" + unwanted.size() + ", program length: "
+                + program.length);
+        for (byte[] pkt : unwanted) {
+            assertDrop(program, pkt);
+        }
+        for (byte[] pkt : wanted) {
+            assertPass(program, pkt);
+        }
+
+        apfFilter.shutdown();
+    }
+
+    private static final int DNS_TYPE_PTR = 12;
+    private static final int DNS_TYPE_A = 1;
+    private static final int DNS_TYPE_HINFO = 13;
+    private static final int DNS_TYPE_NSEC = 47;
+
+    @Test
+    public void testApfFilterMdnsOffload() throws Exception {
+        assumeTrue(mApfVersion > 4);
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(mApfVersion, 4096, ARPHRD_ETHER);
+        config.multicastFilter = DROP_MULTICAST;
+        config.shouldOffloadMdns = true;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        apfFilter.setLinkProperties(lp);
+        apfFilter.addToMdnsAllowList(new String[]{"test", "local"});
+
+        // Longer than a single data copy instruction can copy.
+        final byte[] response = new byte[300];
+        final byte[] header = new DnsPacket.DnsHeader(0 /* id */, 0x8400 /* flags */,
+                0 /* qdcount */, 1 /* ancount */).getBytes();
+        System.arraycopy(header, 0, response, 0, header.length);
+        Arrays.fill(response, header.length, response.length, (byte) 0x5a);
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.addMdnsOffloadRule(new String[]{"TEST", "local"}, DNS_TYPE_PTR, response);
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        final ByteBuffer expected = ByteBuffer.wrap(
+                new byte[ETH_HEADER_LEN + IPV4_HEADER_LEN + UDP_HEADER_LEN + response.length]);
+        final PacketBuilder builder = new PacketBuilder(expected);
+        builder.writeL2Header(MacAddress.fromBytes(TestApfFilter.MOCK_MAC_ADDR),
+                MacAddress.fromBytes(ETH_MULTICAST_MDNS_v4_MAC_ADDRESS), (short) ETH_P_IP);
+        builder.writeIpv4Header((byte) 0 /* tos */, (short) 0 /* id */,
+                (short) 0x4000 /* flagsAndFragmentOffset */, (byte) 255 /* ttl */,
+                (byte) IPPROTO_UDP, (Inet4Address) Inet4Address.getByAddress(MOCK_IPV4_ADDR),
+                (Inet4Address) Inet4Address.getByAddress(IPV4_MDNS_MULTICAST_ADDR));
+        builder.writeUdpHeader((short) MDNS_UDP_PORT, (short) MDNS_UDP_PORT);
+        expected.put(response);
+        final byte[] expectedResponse = builder.finalizePacket().array();
+
+        // IPv4 queries matching the rule are answered.
+        ApfJniUtils.resetTransmittedPacketMemory();
+        assertDrop(program, makeMdnsV4Packet(DNS_TYPE_PTR, "test.local"));
+        Assert.assertArrayEquals(expectedResponse, ApfJniUtils.getTransmittedPacket());
+
+        // Queries with more than one question are filtered as before, without replying, so that
+        // the host sees the other questions.
+        ApfJniUtils.resetTransmittedPacketMemory();
+        assertPass(program, makeMdnsV4Packet(DNS_TYPE_PTR, "ffff.local", "test.local"));
+        assertPass(program, makeMdnsV4Packet(DNS_TYPE_PTR, "test.local", "ffff.local"));
+        assertEquals(0, ApfJniUtils.getTransmittedPacket().length);
+
+        // Other queries are filtered as before, without replying.
+        assertPass(program, makeMdnsV4Packet(DNS_TYPE_A, "test.local"));
+        assertPass(program, makeMdnsV6Packet(DNS_TYPE_PTR, "test.local"));
+        assertDrop(program, makeMdnsV4Packet(DNS_TYPE_PTR, "ffff.local"));
+        assertEquals(0, ApfJniUtils.getTransmittedPacket().length);
+
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.removeMdnsOffloadRule(new String[]{"TEST", "local"}, DNS_TYPE_PTR);
+        final byte[] programWithoutRule = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(programWithoutRule, makeMdnsV4Packet(DNS_TYPE_PTR, "test.local"));
+        assertEquals(0, ApfJniUtils.getTransmittedPacket().length);
+
+        apfFilter.shutdown();
+    }
+
+    // Returns the program generated by an ApfFilter for an interpreter of the specified version,
+    // after it has seen the specified RA.
+    private byte[] generateProgramForApfVersion(int apfVersionSupported, boolean useMdnsAllowList,
+            byte[] ra) throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(apfVersionSupported, 4096, ARPHRD_ETHER);
+        config.multicastFilter = DROP_MULTICAST;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 19));
+        apfFilter.setLinkProperties(lp);
+        if (useMdnsAllowList) {
+            apfFilter.addToMdnsAllowList(new String[]{"googlecast", "tcp", "local"});
+            apfFilter.addToMdnsAllowList(new String[]{"ipp", "tcp", "local"});
+        }
+        apfFilter.pretendPacketReceived(ra);
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.setDozeMode(true);
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        apfFilter.shutdown();
+        return program;
+    }
+
+    private void verifyApfV6ProgramMatchesApfV4Program(boolean useMdnsAllowList)
+            throws Exception {
+        final byte[] ra = buildLargeRa();
+        final byte[] v4Program = generateProgramForApfVersion(4, useMdnsAllowList, ra);
+        final byte[] v6Program = generateProgramForApfVersion(6, useMdnsAllowList, ra);
+
+        final ByteBuffer ipv4Multicast = makeIpv4Packet(IPPROTO_UDP);
+        put(ipv4Multicast, IPV4_DEST_ADDR_OFFSET, MOCK_MULTICAST_IPV4_ADDR);
+        final ByteBuffer ipv4Broadcast = makeIpv4Packet(IPPROTO_UDP);
+        put(ipv4Broadcast, IPV4_DEST_ADDR_OFFSET, MOCK_BROADCAST_IPV4_ADDR);
+        final ByteBuffer ipv6Multicast = makeIpv6Packet(IPPROTO_UDP);
+        put(ipv6Multicast, IPV6_DEST_ADDR_OFFSET, IPV6_ALL_NODES_ADDRESS);
+        final ByteBuffer ipv6Unicast = makeIpv6Packet(IPPROTO_UDP);
+        final ByteBuffer ipv6HopByHop = makeIpv6Packet(0 /* IPPROTO_HOPOPTS */);
+        final ByteBuffer rs = makeIpv6Packet(IPPROTO_ICMPV6);
+        rs.put(ICMP6_TYPE_OFFSET, (byte) ICMP6_ROUTER_SOLICITATION);
+        final byte[][] packets = {
+                arpRequestBroadcast(MOCK_IPV4_ADDR),
+                arpRequestBroadcast(ANOTHER_IPV4_ADDR),
+                arpReply(IPV4_SOURCE_ADDR, MOCK_IPV4_ADDR),
+                garpReply(),
+                makeIpv4Packet(IPPROTO_UDP).array(),
+                ipv4Multicast.array(),
+                ipv4Broadcast.array(),
+                ipv6Unicast.array(),
+                ipv6Multicast.array(),
+                ipv6HopByHop.array(),
+                rs.array(),
+                ra,
+                makeMdnsV4Packet(DNS_TYPE_PTR, "googlecast.tcp.local"),
+                makeMdnsV6Packet(DNS_TYPE_PTR, "ipp.tcp.local"),
+                makeMdnsV6Packet(DNS_TYPE_PTR, "spotify.tcp.local"),
+                makeMdnsV6Packet(),
+        };
+
+        final int totalPacketsIdx = Counter.totalSize() + Counter.TOTAL_PACKETS.offset();
+        for (byte[] packet : packets) {
+            final byte[] v4Data = new byte[Counter.totalSize()];
+            final byte[] v6Data = new byte[Counter.totalSize()];
+            final int v4Verdict = ApfJniUtils.apfSimulate(mApfVersion, v4Program, packet, v4Data,
+                    0 /* filterAge */);
+            final int v6Verdict = ApfJniUtils.apfSimulate(mApfVersion, v6Program, packet, v6Data,
+                    0 /* filterAge */);
+            assertEquals(toHexString(packet), v4Verdict, v6Verdict);
+            // The APFv6 interpreter counts TOTAL_PACKETS itself, so running the APFv4 program on
+            // it counts every packet twice.
+            Arrays.fill(v4Data, totalPacketsIdx, totalPacketsIdx + 4, (byte) 0);
+            Arrays.fill(v6Data, totalPacketsIdx, totalPacketsIdx + 4, (byte) 0);
+            Assert.assertArrayEquals(toHexString(packet), v4Data, v6Data);
+        }
+
+        final int v4Instructions = ApfJniUtils.disassembleApf(v4Program).length;
+        final int v6Instructions = ApfJniUtils.disassembleApf(v6Program).length;
+        Log.i(TAG, String.format("mDNS allowlist %b: APFv4 program %d bytes, %d instructions; "
+                + "APFv6 program %d bytes, %d instructions", useMdnsAllowList, v4Program.length,
+                v4Instructions, v6Program.length, v6Instructions));
+        if (!useMdnsAllowList) {
+            // With an mDNS allowlist, the APFv6 program matches every question against each of
+            // the MDNS_QTYPES, so it is not necessarily smaller.
+            assertTrue(v6Program.length < v4Program.length);
+            assertTrue(v6Instructions < v4Instructions);
+        }
+    }
+
+    @Test
+    public void testApfV6ProgramMatchesApfV4Program() throws Exception {
+        // Programs using APFv6 instructions can only run on the APFv6 interpreter.
+        assumeTrue(mApfVersion > 4);
+        verifyApfV6ProgramMatchesApfV4Program(false /* useMdnsAllowList */);
+        verifyApfV6ProgramMatchesApfV4Program(true /* useMdnsAllowList */);
+    }
+
     private ApfV4Generator generateDnsFilter(boolean ipv6, String... labels) throws Exception {
         ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
         gen.addLoadImmediate(R1, ipv6 ? IPV6_HEADER_LEN : IPV4_HEADER_LEN);
@@ -1551,6 +2026,51 @@ public class ApfTest {
         doTestDnsParsing(false, ipv6, "otherservice.tcp.local", pkt);
     }
 
+    private void doTestDnsParsingMultipleNames(boolean expectPass, byte[] pkt,
+            String... filterNames) throws Exception {
+        final List<String[]> names = new ArrayList<>();
+        for (String filterName : filterNames) {
+            names.add(filterName.split(/*regex=*/ "[.]"));
+        }
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.addLoadImmediate(R1, IPV6_HEADER_LEN);
+        DnsUtils.generateFilter(gen, names, PASS_LABEL, DROP_LABEL);
+
+        // Hack to prevent the APF instruction limit triggering.
+        for (int i = 0; i < 1000; i++) {
+            gen.addNop();
+        }
+
+        final byte[] program = gen.generate();
+        if (expectPass) {
+            assertPass(program, pkt, 0);
+        } else {
+            assertDrop(program, pkt, 0);
+        }
+    }
+
+    @Test
+    public void testDnsParsingMultipleNames() throws Exception {
+        // Any name may match any question.
+        doTestDnsParsingMultipleNames(true, makeMdnsV6Packet("googlecast.tcp.local"),
+                "matter.tcp.local", "googlecast.tcp.local");
+        doTestDnsParsingMultipleNames(true,
+                makeMdnsV6Packet("developer.android.com", "matter.tcp.local"),
+                "googlecast.tcp.local", "matter.tcp.local");
+        doTestDnsParsingMultipleNames(false,
+                makeMdnsV6Packet("developer.android.com", "www.google.co.jp"),
+                "googlecast.tcp.local", "matter.tcp.local");
+        // Partially matching a name must not prevent the next name from matching.
+        doTestDnsParsingMultipleNames(true, makeMdnsV6Packet("googlecast.tcp.local"),
+                "googlecast.tcp.lozal", "googlecast.tcp.local");
+
+        // Compressed names are followed for every name.
+        final byte[] pkt = makeMdnsCompressedV6Packet();
+        doTestDnsParsingMultipleNames(true, pkt, "otherservice.tcp.local", "myhostname.local");
+        doTestDnsParsingMultipleNames(true, pkt, "matter.tcp.local", "otherservice.tcp.local");
+        doTestDnsParsingMultipleNames(false, pkt, "otherservice.tcp.local", "other.local");
+    }
+
     private void doTestDnsParsingProgramLength(int expectedLength,
             String filterName) throws Exception {
         final String[] labels = filterName.split(/*regex=*/ "[.]");
@@ -1744,6 +2264,122 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
+    @Test
+    public void testApfFilterMulticastGroups() throws Exception {
+        final byte[] joinedIpv4Group = {(byte) 239, (byte) 255, (byte) 255, (byte) 250};
+        final byte[] otherIpv4Group = {(byte) 239, 1, 2, 3};
+        final byte[] joinedIpv6Group = {(byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0xfb};
+        final byte[] otherIpv6Group = {(byte) 0xff, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 3};
+        doReturn(List.of((Inet4Address) InetAddress.getByName("224.0.0.1"),
+                (Inet4Address) InetAddress.getByAddress(joinedIpv4Group)))
+                .when(mDependencies).getIPv4MulticastAddresses(any());
+        doReturn(List.of((Inet6Address) InetAddress.getByName("ff02::1"),
+                (Inet6Address) InetAddress.getByAddress(joinedIpv6Group)))
+                .when(mDependencies).getIPv6MulticastAddresses(any());
+
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.shouldFilterMulticastByGroup = true;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        final ByteBuffer joinedV4Packet = makeIpv4Packet(IPPROTO_UDP);
+        put(joinedV4Packet, IPV4_DEST_ADDR_OFFSET, joinedIpv4Group);
+        final ByteBuffer otherV4Packet = makeIpv4Packet(IPPROTO_UDP);
+        put(otherV4Packet, IPV4_DEST_ADDR_OFFSET, otherIpv4Group);
+        final ByteBuffer unicastV4Packet = makeIpv4Packet(IPPROTO_UDP);
+        put(unicastV4Packet, IPV4_DEST_ADDR_OFFSET, MOCK_IPV4_ADDR);
+        final ByteBuffer joinedV6Packet = makeIpv6Packet(IPPROTO_UDP);
+        put(joinedV6Packet, IPV6_DEST_ADDR_OFFSET, joinedIpv6Group);
+        final ByteBuffer otherV6Packet = makeIpv6Packet(IPPROTO_UDP);
+        put(otherV6Packet, IPV6_DEST_ADDR_OFFSET, otherIpv6Group);
+        final ByteBuffer otherV6IcmpPacket = makeIpv6Packet(IPPROTO_ICMPV6);
+        put(otherV6IcmpPacket, IPV6_DEST_ADDR_OFFSET, otherIpv6Group);
+
+        // Until the groups are read, all multicast passes.
+        assertPass(program, otherV4Packet.array());
+        assertPass(program, otherV6Packet.array());
+
+        // With the multicast filter off, only multicast to joined groups passes.
+        apfFilter.refreshMulticastGroups();
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, joinedV4Packet.array());
+        assertDrop(program, otherV4Packet.array());
+        assertPass(program, unicastV4Packet.array());
+        assertPass(program, joinedV6Packet.array());
+        assertDrop(program, otherV6Packet.array());
+        assertPass(program, otherV6IcmpPacket.array());
+
+        // With the multicast filter on, multicast is dropped regardless of groups, and the groups
+        // are not read.
+        apfFilter.setMulticastFilter(DROP_MULTICAST);
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertDrop(program, joinedV4Packet.array());
+        assertDrop(program, joinedV6Packet.array());
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.refreshMulticastGroups();
+        ipClientCallback.assertNoProgramUpdate();
+
+        // When the multicast filter is turned off, all multicast passes, so that the groups that
+        // apps join right after are not dropped, until the groups are read again.
+        doReturn(List.of((Inet4Address) InetAddress.getByAddress(joinedIpv4Group),
+                (Inet4Address) InetAddress.getByAddress(otherIpv4Group)))
+                .when(mDependencies).getIPv4MulticastAddresses(any());
+        apfFilter.setMulticastFilter(ALLOW_MULTICAST);
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, otherV4Packet.array());
+        assertPass(program, otherV6Packet.array());
+        apfFilter.refreshMulticastGroups();
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, joinedV4Packet.array());
+        assertPass(program, otherV4Packet.array());
+        assertDrop(program, otherV6Packet.array());
+        assertEquals(5_000, apfFilter.getMulticastGroupsRefreshIntervalMs());
+
+        // While the groups do not change, they are read less and less often.
+        ipClientCallback.resetApfProgramWait();
+        for (long intervalMs : new long[] {10_000, 20_000, 30_000, 30_000}) {
+            apfFilter.refreshMulticastGroups();
+            assertEquals(intervalMs, apfFilter.getMulticastGroupsRefreshIntervalMs());
+        }
+        ipClientCallback.assertNoProgramUpdate();
+
+        // When the groups change, all multicast passes until they are read again unchanged, since
+        // apps usually join several groups in a row.
+        final ByteBuffer thirdV4Packet = makeIpv4Packet(IPPROTO_UDP);
+        put(thirdV4Packet, IPV4_DEST_ADDR_OFFSET, new byte[] {(byte) 239, 4, 5, 6});
+        doReturn(List.of((Inet6Address) InetAddress.getByName("ff02::1"),
+                (Inet6Address) InetAddress.getByAddress(joinedIpv6Group),
+                (Inet6Address) InetAddress.getByAddress(otherIpv6Group)))
+                .when(mDependencies).getIPv6MulticastAddresses(any());
+        apfFilter.refreshMulticastGroups();
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, otherV6Packet.array());
+        assertPass(program, thirdV4Packet.array());
+        assertEquals(5_000, apfFilter.getMulticastGroupsRefreshIntervalMs());
+        apfFilter.refreshMulticastGroups();
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, otherV6Packet.array());
+        assertDrop(program, thirdV4Packet.array());
+        assertEquals(5_000, apfFilter.getMulticastGroupsRefreshIntervalMs());
+
+        // If the groups cannot be read, all multicast keeps passing, as without this filter.
+        doReturn(null).when(mDependencies).getIPv4MulticastAddresses(any());
+        doReturn(null).when(mDependencies).getIPv6MulticastAddresses(any());
+        apfFilter.setMulticastFilter(DROP_MULTICAST);
+        apfFilter.setMulticastFilter(ALLOW_MULTICAST);
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.refreshMulticastGroups();
+        ipClientCallback.assertNoProgramUpdate();
+        assertPass(program, otherV4Packet.array());
+        assertPass(program, otherV6Packet.array());
+
+        apfFilter.shutdown();
+    }
+
     @Test
     public void testApfFilterMulticastPingWhileDozing() throws Exception {
         doTestApfFilterMulticastPingWhileDozing(false /* isLightDozing */);
@@ -1983,6 +2619,116 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
+    @Test
+    public void testApfFilterArpOffload() throws Exception {
+        assumeTrue(mApfVersion > 4);
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(mApfVersion, 4096, ARPHRD_ETHER);
+        config.shouldOffloadArp = true;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        final byte[] program = getProgram(ipClientCallback, apfFilter, lp);
+
+        final byte[] senderMac = {0x10, 0x20, 0x30, 0x40, 0x50, 0x60};
+        final byte[] expectedReply = {
+                0x10, 0x20, 0x30, 0x40, 0x50, 0x60,  // Ethernet dst: requester
+                1, 2, 3, 4, 5, 6,                    // Ethernet src: our MAC
+                0x08, 0x06,                          // EtherType: ARP
+                0, 1, 8, 0, 6, 4, 0, 2,              // ARP IPv4 reply header
+                1, 2, 3, 4, 5, 6,                    // Sender hw addr: our MAC
+                10, 0, 0, 1,                         // Sender ip addr: our IPv4 address
+                0x10, 0x20, 0x30, 0x40, 0x50, 0x60,  // Target hw addr: requester
+                10, 0, 0, 3                          // Target ip addr: requester
+        };
+
+        // Requests for our address are answered by the program.
+        ApfJniUtils.resetTransmittedPacketMemory();
+        assertDrop(program, arpRequest(senderMac, IPV4_SOURCE_ADDR, MOCK_IPV4_ADDR));
+        Assert.assertArrayEquals(expectedReply, ApfJniUtils.getTransmittedPacket());
+
+        // Requests for other hosts, probes and conflicting announcements are not answered.
+        for (byte[] packet : new byte[][] {
+                arpRequest(senderMac, IPV4_SOURCE_ADDR, ANOTHER_IPV4_ADDR),
+                arpRequest(senderMac, IPV4_ANY_HOST_ADDR, MOCK_IPV4_ADDR),
+                arpRequest(senderMac, MOCK_IPV4_ADDR, MOCK_IPV4_ADDR)}) {
+            ApfJniUtils.resetTransmittedPacketMemory();
+            ApfJniUtils.apfSimulate(mApfVersion, program, packet, null /* data */,
+                    0 /* filterAge */);
+            assertEquals(0, ApfJniUtils.getTransmittedPacket().length);
+        }
+        assertDrop(program, arpRequest(senderMac, IPV4_SOURCE_ADDR, ANOTHER_IPV4_ADDR));
+        assertPass(program, arpRequest(senderMac, IPV4_ANY_HOST_ADDR, MOCK_IPV4_ADDR));
+        assertPass(program, arpRequest(senderMac, MOCK_IPV4_ADDR, MOCK_IPV4_ADDR));
+
+        apfFilter.shutdown();
+    }
+
+    private static byte[] toByteArray(ByteBuffer buf) {
+        final byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testApfFilterNsOffload() throws Exception {
+        assumeTrue(mApfVersion > 4);
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(mApfVersion, 4096, ARPHRD_ETHER);
+        config.shouldOffloadNs = true;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final Inet6Address linkLocal = (Inet6Address) InetAddresses.parseNumericAddress("fe80::1");
+        final Inet6Address global =
+                (Inet6Address) InetAddresses.parseNumericAddress("2001:db8::1");
+        final Inet6Address tentative =
+                (Inet6Address) InetAddresses.parseNumericAddress("2001:db8::2");
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(linkLocal, 64));
+        lp.addLinkAddress(new LinkAddress(global, 64));
+        lp.addLinkAddress(new LinkAddress(tentative, 64, IFA_F_TENTATIVE, RT_SCOPE_UNIVERSE));
+        final byte[] program = getProgram(ipClientCallback, apfFilter, lp);
+
+        final MacAddress ourMac = MacAddress.fromBytes(TestApfFilter.MOCK_MAC_ADDR);
+        final MacAddress routerMac = MacAddress.fromString("00:11:22:33:44:55");
+        final Inet6Address router = (Inet6Address) InetAddresses.parseNumericAddress("fe80::2");
+        final Inet6Address any = (Inet6Address) InetAddresses.parseNumericAddress("::");
+        final Inet6Address solicitedNode =
+                (Inet6Address) InetAddresses.parseNumericAddress("ff02::1:ff00:1");
+        final int flags = NEIGHBOR_ADVERTISEMENT_FLAG_SOLICITED
+                | NEIGHBOR_ADVERTISEMENT_FLAG_OVERRIDE;
+
+        // Unicast reachability probes and multicast address resolution for our addresses are
+        // answered by the program, with the same NA as the kernel would send.
+        for (Inet6Address[] addrs : new Inet6Address[][] {
+                {linkLocal, linkLocal}, {solicitedNode, global}}) {
+            final byte[] ns = toByteArray(
+                    NeighborSolicitation.build(routerMac, ourMac, router, addrs[0], addrs[1]));
+            final byte[] na = toByteArray(
+                    NeighborAdvertisement.build(ourMac, routerMac, addrs[1], router, flags,
+                            addrs[1]));
+            ApfJniUtils.resetTransmittedPacketMemory();
+            assertDrop(program, ns);
+            Assert.assertArrayEquals(na, ApfJniUtils.getTransmittedPacket());
+        }
+
+        // Solicitations for other and tentative addresses, and DAD probes, are not answered.
+        for (Inet6Address[] addrs : new Inet6Address[][] {
+                {router, linkLocal, router}, {router, tentative, tentative},
+                {any, solicitedNode, global}}) {
+            final byte[] ns = toByteArray(
+                    NeighborSolicitation.build(routerMac, ourMac, addrs[0], addrs[1], addrs[2]));
+            ApfJniUtils.resetTransmittedPacketMemory();
+            assertPass(program, ns);
+            assertEquals(0, ApfJniUtils.getTransmittedPacket().length);
+        }
+
+        apfFilter.shutdown();
+    }
+
     private static byte[] arpReply(byte[] sip, byte[] tip) {
         ByteBuffer packet = ByteBuffer.wrap(new byte[100]);
         packet.putShort(ETH_ETHERTYPE_OFFSET, (short)ETH_P_ARP);
@@ -2001,6 +2747,13 @@ public class ApfTest {
         return packet.array();
     }
 
+    private static byte[] arpRequest(byte[] sha, byte[] sip, byte[] tip) {
+        final ByteBuffer packet = ByteBuffer.wrap(arpRequestBroadcast(tip));
+        put(packet, ARP_SOURCE_HW_ADDRESS_OFFSET, sha);
+        put(packet, ARP_SOURCE_IP_ADDRESS_OFFSET, sip);
+        return packet.array();
+    }
+
     private static byte[] garpReply() {
         ByteBuffer packet = ByteBuffer.wrap(new byte[100]);
         packet.putShort(ETH_ETHERTYPE_OFFSET, (short)ETH_P_ARP);
@@ -2022,12 +2775,21 @@ public class ApfTest {
 
     @Test
     public void testApfFilterKeepaliveAck() throws Exception {
+        verifyApfFilterKeepaliveAck(false /* isLegacy */);
+    }
+
+    @Test
+    public void testLegacyApfFilterKeepaliveAck() throws Exception {
+        // The keepalive filters are shared, so LegacyApfFilter also drops IPv6 keepalive acks.
+        verifyApfFilterKeepaliveAck(true /* isLegacy */);
+    }
+
+    private void verifyApfFilterKeepaliveAck(boolean isLegacy) throws Exception {
         final MockIpClientCallback cb = new MockIpClientCallback();
         final ApfConfiguration config = getDefaultConfig();
         config.multicastFilter = DROP_MULTICAST;
         config.ieee802_3Filter = DROP_802_3_FRAMES;
-        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, cb,
-                mNetworkQuirkMetrics);
+        final TestAndroidPacketFilter apfFilter = makeTestApfFilter(config, cb, isLegacy);
         byte[] program;
         final int srcPort = 12345;
         final int dstPort = 54321;
@@ -2079,83 +2841,82 @@ public class ApfTest {
         // Remove IPv4 keepalive filter
         apfFilter.removeKeepalivePacketFilter(slot1);
 
-        try {
-            // src: 2404:0:0:0:0:0:faf1, port: 12345
-            // dst: 2404:0:0:0:0:0:faf2, port: 54321
-            srcAddr = InetAddress.getByAddress(IPV6_KEEPALIVE_SRC_ADDR);
-            dstAddr = InetAddress.getByAddress(IPV6_KEEPALIVE_DST_ADDR);
+        // src: 2404:0:0:0:0:0:faf1, port: 12345
+        // dst: 2404:0:0:0:0:0:faf2, port: 54321
+        srcAddr = InetAddress.getByAddress(IPV6_KEEPALIVE_SRC_ADDR);
+        dstAddr = InetAddress.getByAddress(IPV6_KEEPALIVE_DST_ADDR);
+
+        final TcpKeepalivePacketDataParcelable ipv6Parcel =
+                new TcpKeepalivePacketDataParcelable();
+        ipv6Parcel.srcAddress = srcAddr.getAddress();
+        ipv6Parcel.srcPort = srcPort;
+        ipv6Parcel.dstAddress = dstAddr.getAddress();
+        ipv6Parcel.dstPort = dstPort;
+        ipv6Parcel.seq = seqNum;
+        ipv6Parcel.ack = ackNum;
+
+        apfFilter.addTcpKeepalivePacketFilter(slot1, ipv6Parcel);
+        program = cb.assertProgramUpdateAndGet();
 
-            final TcpKeepalivePacketDataParcelable ipv6Parcel =
-                    new TcpKeepalivePacketDataParcelable();
-            ipv6Parcel.srcAddress = srcAddr.getAddress();
-            ipv6Parcel.srcPort = srcPort;
-            ipv6Parcel.dstAddress = dstAddr.getAddress();
-            ipv6Parcel.dstPort = dstPort;
-            ipv6Parcel.seq = seqNum;
-            ipv6Parcel.ack = ackNum;
-
-            apfFilter.addTcpKeepalivePacketFilter(slot1, ipv6Parcel);
-            program = cb.assertProgramUpdateAndGet();
-
-            // Verify IPv6 keepalive ack packet is dropped
-            // src: 2404:0:0:0:0:0:faf2, port: 54321
-            // dst: 2404:0:0:0:0:0:faf1, port: 12345
-            assertDrop(program,
-                    ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum, seqNum + 1));
-            // Verify IPv6 non-keepalive ack packet from the same source address is passed
-            assertPass(program,
-                    ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum + 100, seqNum));
-            // Verify IPv6 packet from another address is passed
-            assertPass(program,
-                    ipv6TcpPacket(IPV6_ANOTHER_ADDR, IPV6_KEEPALIVE_SRC_ADDR, anotherSrcPort,
-                            anotherDstPort, anotherSeqNum, anotherAckNum));
-
-            // Remove IPv6 keepalive filter
-            apfFilter.removeKeepalivePacketFilter(slot1);
-
-            // Verify multiple filters
-            apfFilter.addTcpKeepalivePacketFilter(slot1, parcel);
-            apfFilter.addTcpKeepalivePacketFilter(slot2, ipv6Parcel);
-            program = cb.assertProgramUpdateAndGet();
-
-            // Verify IPv4 keepalive ack packet is dropped
-            // src: 10.0.0.6, port: 54321
-            // dst: 10.0.0.5, port: 12345
-            assertDrop(program,
-                    ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum, seqNum + 1, 0 /* dataLength */));
-            // Verify IPv4 non-keepalive ack packet from the same source address is passed
-            assertPass(program,
-                    ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum + 100, seqNum, 0 /* dataLength */));
-            // Verify IPv4 packet from another address is passed
-            assertPass(program,
-                    ipv4TcpPacket(IPV4_ANOTHER_ADDR, IPV4_KEEPALIVE_SRC_ADDR, anotherSrcPort,
-                            anotherDstPort, anotherSeqNum, anotherAckNum, 0 /* dataLength */));
-
-            // Verify IPv6 keepalive ack packet is dropped
-            // src: 2404:0:0:0:0:0:faf2, port: 54321
-            // dst: 2404:0:0:0:0:0:faf1, port: 12345
-            assertDrop(program,
-                    ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum, seqNum + 1));
-            // Verify IPv6 non-keepalive ack packet from the same source address is passed
-            assertPass(program,
-                    ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
-                            dstPort, srcPort, ackNum + 100, seqNum));
-            // Verify IPv6 packet from another address is passed
-            assertPass(program,
-                    ipv6TcpPacket(IPV6_ANOTHER_ADDR, IPV6_KEEPALIVE_SRC_ADDR, anotherSrcPort,
-                            anotherDstPort, anotherSeqNum, anotherAckNum));
-
-            // Remove keepalive filters
-            apfFilter.removeKeepalivePacketFilter(slot1);
-            apfFilter.removeKeepalivePacketFilter(slot2);
-        } catch (UnsupportedOperationException e) {
-            // TODO: support V6 packets
-        }
+        // Verify IPv6 keepalive ack packet is dropped
+        // src: 2404:0:0:0:0:0:faf2, port: 54321
+        // dst: 2404:0:0:0:0:0:faf1, port: 12345
+        assertDrop(program,
+                ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum, seqNum + 1));
+        // Verify IPv6 non-keepalive ack packet from the same source address is passed
+        assertPass(program,
+                ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum + 100, seqNum));
+        assertPass(program,
+                ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum, seqNum + 1, 10 /* dataLength */));
+        // Verify IPv6 packet from another address is passed
+        assertPass(program,
+                ipv6TcpPacket(IPV6_ANOTHER_ADDR, IPV6_KEEPALIVE_SRC_ADDR, anotherSrcPort,
+                        anotherDstPort, anotherSeqNum, anotherAckNum));
+
+        // Remove IPv6 keepalive filter
+        apfFilter.removeKeepalivePacketFilter(slot1);
+
+        // Verify multiple filters
+        apfFilter.addTcpKeepalivePacketFilter(slot1, parcel);
+        apfFilter.addTcpKeepalivePacketFilter(slot2, ipv6Parcel);
+        program = cb.assertProgramUpdateAndGet();
+
+        // Verify IPv4 keepalive ack packet is dropped
+        // src: 10.0.0.6, port: 54321
+        // dst: 10.0.0.5, port: 12345
+        assertDrop(program,
+                ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum, seqNum + 1, 0 /* dataLength */));
+        // Verify IPv4 non-keepalive ack packet from the same source address is passed
+        assertPass(program,
+                ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum + 100, seqNum, 0 /* dataLength */));
+        // Verify IPv4 packet from another address is passed
+        assertPass(program,
+                ipv4TcpPacket(IPV4_ANOTHER_ADDR, IPV4_KEEPALIVE_SRC_ADDR, anotherSrcPort,
+                        anotherDstPort, anotherSeqNum, anotherAckNum, 0 /* dataLength */));
+
+        // Verify IPv6 keepalive ack packet is dropped
+        // src: 2404:0:0:0:0:0:faf2, port: 54321
+        // dst: 2404:0:0:0:0:0:faf1, port: 12345
+        assertDrop(program,
+                ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum, seqNum + 1));
+        // Verify IPv6 non-keepalive ack packet from the same source address is passed
+        assertPass(program,
+                ipv6TcpPacket(IPV6_KEEPALIVE_DST_ADDR, IPV6_KEEPALIVE_SRC_ADDR,
+                        dstPort, srcPort, ackNum + 100, seqNum));
+        // Verify IPv6 packet from another address is passed
+        assertPass(program,
+                ipv6TcpPacket(IPV6_ANOTHER_ADDR, IPV6_KEEPALIVE_SRC_ADDR, anotherSrcPort,
+                        anotherDstPort, anotherSeqNum, anotherAckNum));
+
+        // Remove keepalive filters
+        apfFilter.removeKeepalivePacketFilter(slot1);
+        apfFilter.removeKeepalivePacketFilter(slot2);
 
         program = cb.assertProgramUpdateAndGet();
 
@@ -2176,13 +2937,86 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
-    private static byte[] ipv4TcpPacket(byte[] sip, byte[] dip, int sport,
-            int dport, int seq, int ack, int dataLength) {
-        final int totalLength = dataLength + IPV4_HEADER_LEN + IPV4_TCP_HEADER_LEN;
-
-        ByteBuffer packet = ByteBuffer.wrap(new byte[totalLength + ETH_HEADER_LEN]);
-
-        // Ethertype and IPv4 header
+    /**
+     * Checks that the keepalive filters only grow by the bytes that identify each connection, so
+     * that many keepalives fit in the program.
+     */
+    @Test
+    public void testApfFilterManyKeepaliveAcks() throws Exception {
+        final MockIpClientCallback cb = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.multicastFilter = DROP_MULTICAST;
+        config.ieee802_3Filter = DROP_802_3_FRAMES;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, cb,
+                mNetworkQuirkMetrics);
+        final byte[] emptyProgram = cb.assertProgramUpdateAndGet();
+        final int numKeepalives = 24;
+        final int srcPort = 12345;
+        final int dstPort = 443;
+
+        // One IPv4 and one IPv6 keepalive per remote address, all from the same local addresses.
+        for (int i = 0; i < numKeepalives; i++) {
+            final TcpKeepalivePacketDataParcelable parcel = new TcpKeepalivePacketDataParcelable();
+            parcel.srcAddress = IPV4_KEEPALIVE_SRC_ADDR;
+            parcel.srcPort = srcPort + i;
+            parcel.dstAddress = new byte[] {10, 0, 1, (byte) i};
+            parcel.dstPort = dstPort;
+            parcel.seq = 1000 * i;
+            parcel.ack = 2000 * i;
+            apfFilter.addTcpKeepalivePacketFilter(2 * i, parcel);
+
+            final TcpKeepalivePacketDataParcelable ipv6Parcel =
+                    new TcpKeepalivePacketDataParcelable();
+            ipv6Parcel.srcAddress = IPV6_KEEPALIVE_SRC_ADDR;
+            ipv6Parcel.srcPort = srcPort + i;
+            ipv6Parcel.dstAddress = IPV6_KEEPALIVE_DST_ADDR.clone();
+            ipv6Parcel.dstAddress[14] = (byte) i;
+            ipv6Parcel.dstPort = dstPort;
+            ipv6Parcel.seq = 1000 * i;
+            ipv6Parcel.ack = 2000 * i;
+            apfFilter.addTcpKeepalivePacketFilter(2 * i + 1, ipv6Parcel);
+        }
+        final byte[] program = cb.assertProgramUpdateAndGet();
+
+        for (int i = 0; i < numKeepalives; i++) {
+            final byte[] remoteV4 = {10, 0, 1, (byte) i};
+            final byte[] remoteV6 = IPV6_KEEPALIVE_DST_ADDR.clone();
+            remoteV6[14] = (byte) i;
+            assertDrop(program, ipv4TcpPacket(remoteV4, IPV4_KEEPALIVE_SRC_ADDR, dstPort,
+                    srcPort + i, 2000 * i, 1000 * i + 1, 0 /* dataLength */));
+            assertDrop(program, ipv6TcpPacket(remoteV6, IPV6_KEEPALIVE_SRC_ADDR, dstPort,
+                    srcPort + i, 2000 * i, 1000 * i + 1));
+            // Acks of another connection to the same remote address are passed.
+            assertPass(program, ipv4TcpPacket(remoteV4, IPV4_KEEPALIVE_SRC_ADDR, dstPort,
+                    srcPort + i + 1, 2000 * i, 1000 * i + 1, 0 /* dataLength */));
+            assertPass(program, ipv6TcpPacket(remoteV6, IPV6_KEEPALIVE_SRC_ADDR, dstPort,
+                    srcPort + i + 1, 2000 * i, 1000 * i + 1));
+            // So are acks of this connection to another local address.
+            assertPass(program, ipv4TcpPacket(remoteV4, IPV4_ANOTHER_ADDR, dstPort,
+                    srcPort + i, 2000 * i, 1000 * i + 1, 0 /* dataLength */));
+            assertPass(program, ipv6TcpPacket(remoteV6, IPV6_ANOTHER_ADDR, dstPort,
+                    srcPort + i, 2000 * i, 1000 * i + 1));
+        }
+
+        // Each keepalive compares its ports, sequence and ack numbers and remote address, plus a
+        // few instructions. The checks shared by all keepalives are only emitted once.
+        final int maxIpv4KeepaliveSize = 12 + 4 + 16;
+        final int maxIpv6KeepaliveSize = 12 + 16 + 16;
+        final int maxSharedSize = 256;
+        final int growth = program.length - emptyProgram.length;
+        assertTrue("Program grew by " + growth + " bytes", growth
+                <= numKeepalives * (maxIpv4KeepaliveSize + maxIpv6KeepaliveSize) + maxSharedSize);
+
+        apfFilter.shutdown();
+    }
+
+    private static byte[] ipv4TcpPacket(byte[] sip, byte[] dip, int sport,
+            int dport, int seq, int ack, int dataLength) {
+        final int totalLength = dataLength + IPV4_HEADER_LEN + IPV4_TCP_HEADER_LEN;
+
+        ByteBuffer packet = ByteBuffer.wrap(new byte[totalLength + ETH_HEADER_LEN]);
+
+        // Ethertype and IPv4 header
         setIpv4VersionFields(packet);
         packet.putShort(IPV4_TOTAL_LENGTH_OFFSET, (short) totalLength);
         packet.put(IPV4_PROTOCOL_OFFSET, (byte) IPPROTO_TCP);
@@ -2202,8 +3036,15 @@ public class ApfTest {
 
     private static byte[] ipv6TcpPacket(byte[] sip, byte[] tip, int sport,
             int dport, int seq, int ack) {
-        ByteBuffer packet = ByteBuffer.wrap(new byte[100]);
+        return ipv6TcpPacket(sip, tip, sport, dport, seq, ack, 0 /* dataLength */);
+    }
+
+    private static byte[] ipv6TcpPacket(byte[] sip, byte[] tip, int sport,
+            int dport, int seq, int ack, int dataLength) {
+        final int payloadLength = IPV4_TCP_HEADER_LEN + dataLength;
+        ByteBuffer packet = ByteBuffer.wrap(new byte[IPV6_PAYLOAD_OFFSET + payloadLength]);
         setIpv6VersionFields(packet);
+        packet.putShort(IPV6_PAYLOAD_LENGTH_OFFSET, (short) payloadLength);
         packet.put(IPV6_NEXT_HEADER_OFFSET, (byte) IPPROTO_TCP);
         put(packet, IPV6_SRC_ADDR_OFFSET, sip);
         put(packet, IPV6_DEST_ADDR_OFFSET, tip);
@@ -2211,6 +3052,10 @@ public class ApfTest {
         packet.putShort(IPV6_TCP_DEST_PORT_OFFSET, (short) dport);
         packet.putInt(IPV6_TCP_SEQ_NUM_OFFSET, seq);
         packet.putInt(IPV6_TCP_ACK_NUM_OFFSET, ack);
+        // TCP header length 5(20 bytes), reserved 3 bits, NS=0
+        packet.put(IPV6_TCP_HEADER_LENGTH_OFFSET, (byte) 0x50);
+        // TCP flags: ACK set
+        packet.put(IPV6_TCP_HEADER_FLAG_OFFSET, (byte) 0x10);
         return packet.array();
     }
 
@@ -2289,7 +3134,7 @@ public class ApfTest {
         return packet.array();
     }
 
-    private static class RaPacketBuilder {
+    static class RaPacketBuilder {
         final ByteArrayOutputStream mPacket = new ByteArrayOutputStream();
         int mFlowLabel = 0x12345;
         int mReachableTime = 30_000;
@@ -2779,6 +3624,36 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
+    @Test
+    public void testProgramRefreshedWhenRaFilterExpires() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final long startTimeMs = 1_000_000;
+        doReturn(startTimeMs).when(mClock).elapsedRealtime();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, getDefaultConfig(),
+                ipClientCallback, mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+        verify(mDependencies, never()).setAlarm(anyLong(), any());
+
+        // The RA filter lasts for a sixth of the router lifetime.
+        final byte[] ra = new RaPacketBuilder(1800 /* router lifetime */).build();
+        apfFilter.pretendPacketReceived(ra);
+        byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        assertDrop(program, ra);
+        final long expiryTimeMs = startTimeMs + 300_000;
+        final ArgumentCaptor<AlarmManager.OnAlarmListener> listenerCaptor =
+                ArgumentCaptor.forClass(AlarmManager.OnAlarmListener.class);
+        verify(mDependencies).setAlarm(eq(expiryTimeMs), listenerCaptor.capture());
+
+        // When the alarm goes off, the expired filter is removed from the program.
+        doReturn(expiryTimeMs).when(mClock).elapsedRealtime();
+        ipClientCallback.resetApfProgramWait();
+        listenerCaptor.getValue().onAlarm();
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, ra);
+
+        apfFilter.shutdown();
+    }
+
     @Test
     public void testMatchedRaUpdatesLifetime() throws Exception {
         final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
@@ -3230,6 +4105,399 @@ public class ApfTest {
         verifyApfProgramOverSize(true /* isLegacy */);
     }
 
+    private byte[] installRasAndGetProgram(ApfConfiguration config, byte[]... ras)
+            throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        for (byte[] ra : ras) {
+            apfFilter.pretendPacketReceived(ra);
+            program = ipClientCallback.assertProgramUpdateAndGet();
+        }
+        apfFilter.shutdown();
+        return program;
+    }
+
+    @Test
+    public void testMergeRaFilters() throws Exception {
+        final RaPacketBuilder builder1 = new RaPacketBuilder(1800 /* router lft */);
+        builder1.addPioOption(600, 300, "2001:db8:a::/64");
+        final byte[] ra1 = builder1.build();
+        final RaPacketBuilder builder2 = new RaPacketBuilder(1800 /* router lft */);
+        builder2.addPioOption(600, 300, "2001:db8:b::/64");
+        final byte[] ra2 = builder2.build();
+        final byte[] ra3 = new RaPacketBuilder(1800 /* router lft */).build();
+        final RaPacketBuilder builder4 = new RaPacketBuilder(1800 /* router lft */);
+        builder4.addPioOption(600, 300, "2001:db8:c::/64");
+        final byte[] ra1NewPrefix = builder4.build();
+        final RaPacketBuilder builder5 = new RaPacketBuilder(1800 /* router lft */);
+        builder5.addPioOption(0, 0, "2001:db8:a::/64");
+        final byte[] ra1Deprecated = builder5.build();
+
+        final byte[] program = installRasAndGetProgram(getDefaultConfig(), ra1, ra2, ra3);
+        final ApfConfiguration mergeConfig = getDefaultConfig();
+        mergeConfig.shouldMergeRaFilters = true;
+        final byte[] mergedProgram = installRasAndGetProgram(mergeConfig, ra1, ra2, ra3);
+        assertTrue(mergedProgram.length < program.length);
+
+        for (byte[] p : new byte[][] { program, mergedProgram }) {
+            assertDrop(p, ra1);
+            assertDrop(p, ra2);
+            assertDrop(p, ra3);
+            assertPass(p, ra1NewPrefix);
+            assertPass(p, ra1Deprecated);
+        }
+    }
+
+    @Test
+    public void testOptimizedProgramEquivalence() throws Exception {
+        final RaPacketBuilder builder1 = new RaPacketBuilder(1800 /* router lft */);
+        builder1.addPioOption(600, 300, "2001:db8:a::/64");
+        final byte[] ra1 = builder1.build();
+        final byte[] ra2 = buildLargeRa();
+        final byte[] ra1Expired = new RaPacketBuilder(0 /* router lft */).build();
+        final byte[] arpRequest = arpRequestBroadcast(new byte[] {10, 0, 0, 1});
+        final byte[] arpReply = garpReply();
+        final byte[] ipv4 = new byte[100];
+        ByteBuffer.wrap(ipv4).putShort(ETH_ETHERTYPE_OFFSET, (short) ETH_P_IP);
+        final byte[] ipv6 = new byte[100];
+        ByteBuffer.wrap(ipv6).putShort(ETH_ETHERTYPE_OFFSET, (short) ETH_P_IPV6);
+        final byte[] truncatedRa = Arrays.copyOf(ra2, 70);
+
+        final ApfConfiguration optimizedConfig = getDefaultConfig();
+        optimizedConfig.shouldOptimizeProgram = true;
+        final ApfConfiguration mergedOptimizedConfig = getDefaultConfig();
+        mergedOptimizedConfig.shouldMergeRaFilters = true;
+        mergedOptimizedConfig.shouldOptimizeProgram = true;
+        final byte[] program = installRasAndGetProgram(getDefaultConfig(), ra1, ra2);
+        final byte[] optimized = installRasAndGetProgram(optimizedConfig, ra1, ra2);
+        final byte[] mergedOptimized = installRasAndGetProgram(mergedOptimizedConfig, ra1, ra2);
+        assertTrue(optimized.length <= program.length);
+
+        for (byte[] packet : new byte[][] {
+                ra1, ra2, ra1Expired, arpRequest, arpReply, ipv4, ipv6, truncatedRa }) {
+            for (int filterAge : new int[] { 0, 1000, 2000 }) {
+                final int expected = ApfJniUtils.apfSimulate(mApfVersion, program, packet,
+                        null /* data */, filterAge);
+                assertEquals(expected, ApfJniUtils.apfSimulate(mApfVersion, optimized, packet,
+                        null /* data */, filterAge));
+                assertEquals(expected, ApfJniUtils.apfSimulate(mApfVersion, mergedOptimized,
+                        packet, null /* data */, filterAge));
+            }
+        }
+    }
+
+    @Test
+    public void testApfProgramOverSize_smallerRaStillFiltered() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(2, 512, ARPHRD_ETHER);
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final byte[] smallRa = new RaPacketBuilder(1800 /* router lft */).build();
+        apfFilter.pretendPacketReceived(smallRa);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // The large RA is the most recently seen one but does not fit. It must be skipped without
+        // evicting the filter for the small RA, which still fits.
+        final byte[] largeRa = buildLargeRa();
+        apfFilter.pretendPacketReceived(largeRa);
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        verify(mNetworkQuirkMetrics).setEvent(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+        assertPass(program, largeRa);
+        assertDrop(program, smallRa);
+        apfFilter.shutdown();
+    }
+
+    /**
+     * Returns the capabilities of an APFv4 interpreter whose program memory only has room for
+     * {@code extraBytes} more than the program that {@code config} initially installs.
+     */
+    private ApfCapabilities getCapabilitiesWithRoomFor(ApfConfiguration config, int extraBytes)
+            throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        config.apfCapabilities = new ApfCapabilities(4, 4096, ARPHRD_ETHER);
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final int programLength = ipClientCallback.assertProgramUpdateAndGet().length;
+        apfFilter.shutdown();
+        return new ApfCapabilities(4, programLength + Counter.totalSize() + extraBytes,
+                ARPHRD_ETHER);
+    }
+
+    @Test
+    public void testApfProgramOverSize_keepalivesLeftOut() throws Exception {
+        final ApfConfiguration config = getDefaultConfig();
+        config.multicastFilter = DROP_MULTICAST;
+        config.apfCapabilities = getCapabilitiesWithRoomFor(config, 600);
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // Far more keepalives than fit. Previously, the program would not be installed at all.
+        final int numKeepalives = 10;
+        final int dstPort = 54321;
+        final int seqNum = 2123456789;
+        final int ackNum = 1234567890;
+        for (int slot = 0; slot < numKeepalives; slot++) {
+            final TcpKeepalivePacketDataParcelable parcel = new TcpKeepalivePacketDataParcelable();
+            parcel.srcAddress = IPV4_KEEPALIVE_SRC_ADDR;
+            parcel.srcPort = 12345 + slot;
+            parcel.dstAddress = IPV4_KEEPALIVE_DST_ADDR;
+            parcel.dstPort = dstPort;
+            parcel.seq = seqNum;
+            parcel.ack = ackNum;
+            apfFilter.addTcpKeepalivePacketFilter(slot, parcel);
+        }
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        verify(mNetworkQuirkMetrics, atLeastOnce()).setEvent(
+                NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+
+        // The keepalives added first are kept, and the acks to the others reach the host. The
+        // checks shared by all the keepalives are only budgeted once, so at least three fit.
+        for (int slot = 0; slot < 3; slot++) {
+            assertDrop(program, ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
+                    dstPort, 12345 + slot, ackNum, seqNum + 1, 0 /* dataLength */));
+        }
+        assertPass(program, ipv4TcpPacket(IPV4_KEEPALIVE_DST_ADDR, IPV4_KEEPALIVE_SRC_ADDR,
+                dstPort, 12345 + numKeepalives - 1, ackNum, seqNum + 1, 0 /* dataLength */));
+        final String dump = dumpApfFilter(apfFilter);
+        assertTrue(dump, dump.contains("Slot " + (numKeepalives - 1) + ": "));
+        assertTrue(dump, dump.contains("(left out of the program)"));
+        assertFalse(dump, dump.contains("Filters left out for size: 0"));
+        apfFilter.shutdown();
+    }
+
+    @Test
+    public void testApfProgramOverSize_mdnsAllowListDegradesToPassAll() throws Exception {
+        final ApfConfiguration config = getDefaultConfig();
+        config.multicastFilter = DROP_MULTICAST;
+        config.apfCapabilities = getCapabilitiesWithRoomFor(config, 1200);
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final List<String[]> allowList = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            allowList.add(new String[] {"service-instance-" + i, "_tcp", "local"});
+        }
+        for (String[] labels : allowList) {
+            apfFilter.addToMdnsAllowList(labels);
+        }
+        byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        verify(mNetworkQuirkMetrics, atLeastOnce()).setEvent(
+                NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+
+        // The allowlist does not fit, so all mDNS packets are passed instead of dropping the ones
+        // that match it.
+        assertPass(program, makeMdnsV4Packet("service-instance-0._tcp.local"));
+        assertPass(program, makeMdnsV4Packet("ffff.local"));
+        assertTrue(dumpApfFilter(apfFilter).contains("passing all mDNS packets"));
+
+        // Other changes to the program do not try the allowlist again.
+        reset(mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        apfFilter.setLinkProperties(lp);
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        verify(mNetworkQuirkMetrics, never()).setEvent(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+        assertPass(program, makeMdnsV4Packet("ffff.local"));
+        assertTrue(dumpApfFilter(apfFilter).contains("passing all mDNS packets"));
+
+        // Once the allowlist fits again, the mDNS packets that do not match it are dropped.
+        for (String[] labels : allowList.subList(1, allowList.size())) {
+            apfFilter.removeFromAllowList(labels);
+        }
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        assertPass(program, makeMdnsV4Packet("service-instance-0._tcp.local"));
+        assertDrop(program, makeMdnsV4Packet("ffff.local"));
+        assertFalse(dumpApfFilter(apfFilter).contains("passing all mDNS packets"));
+        apfFilter.shutdown();
+    }
+
+    @Test
+    public void testInstallCoalescing() throws Exception {
+        final HandlerThread handlerThread = new HandlerThread("ApfTest");
+        handlerThread.start();
+        final Handler handler = new Handler(handlerThread.getLooper());
+        doReturn(handler).when(mDependencies).getHandler();
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.installCoalescingWindowMs = 10;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        // The initial program is installed synchronously.
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // Block the handler so that the deferred install cannot run before the test expects it.
+        final ConditionVariable handlerBlocked = new ConditionVariable();
+        handler.post(() -> handlerBlocked.block());
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.setMulticastFilter(DROP_MULTICAST);
+        apfFilter.setDozeMode(true);
+        apfFilter.setMulticastFilter(ALLOW_MULTICAST);
+        ipClientCallback.assertNoProgramUpdate();
+
+        // All three changes are installed in one program.
+        handlerBlocked.open();
+        ipClientCallback.assertProgramUpdateAndGet();
+        ipClientCallback.resetApfProgramWait();
+        ipClientCallback.assertNoProgramUpdate();
+
+        apfFilter.shutdown();
+        handlerThread.quitSafely();
+    }
+
+    @Test
+    public void testInstallCoalescing_laterRequestsDoNotPostpone() throws Exception {
+        final HandlerThread handlerThread = new HandlerThread("ApfTest");
+        handlerThread.start();
+        final Handler handler = new Handler(handlerThread.getLooper());
+        doReturn(handler).when(mDependencies).getHandler();
+        doReturn(1_000L).when(mClock).elapsedRealtime();
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.installCoalescingWindowMs = 60_000;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        apfFilter.setMulticastFilter(DROP_MULTICAST);
+        assertTrue(dumpApfFilter(apfFilter).contains("Program install deferred for 60000ms"));
+
+        // A change later in the window is installed with the first one, at the end of the window.
+        doReturn(31_000L).when(mClock).elapsedRealtime();
+        apfFilter.setDozeMode(true);
+        assertTrue(dumpApfFilter(apfFilter).contains("Program install deferred for 30000ms"));
+
+        apfFilter.shutdown();
+        assertFalse(dumpApfFilter(apfFilter).contains("Program install deferred"));
+        handlerThread.quitSafely();
+    }
+
+    @Test
+    public void testRaFloodInstallsOncePerTokenBucketPeriod() throws Exception {
+        final HandlerThread handlerThread = new HandlerThread("ApfTest");
+        handlerThread.start();
+        final Handler handler = new Handler(handlerThread.getLooper());
+        doReturn(handler).when(mDependencies).getHandler();
+        final AtomicInteger numInstalls = new AtomicInteger();
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback() {
+            @Override
+            public boolean installPacketFilter(byte[] filter) {
+                numInstalls.incrementAndGet();
+                return super.installPacketFilter(filter);
+            }
+        };
+        final ApfConfiguration config = getDefaultConfig();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // The token bucket starts with 20 tokens, so the first 20 new RAs are installed at once.
+        int raNum = 0;
+        for (int i = 0; i < 20; i++) {
+            final byte[] ra = buildFloodRa(raNum++);
+            apfFilter.processRa(ra, ra.length);
+        }
+        final int tokenBucketPeriodMs = 3_000;
+        for (int period = 0; period < 2; period++) {
+            // Once the bucket is empty, a flood of RAs is installed once per period, when the
+            // bucket generates its next token.
+            final int installsBefore = numInstalls.get();
+            final long floodStartMs = SystemClock.elapsedRealtime();
+            while (SystemClock.elapsedRealtime() < floodStartMs + tokenBucketPeriodMs - 500) {
+                final byte[] ra = buildFloodRa(raNum++);
+                apfFilter.processRa(ra, ra.length);
+                SystemClock.sleep(50);
+            }
+            assertEquals(installsBefore, numInstalls.get());
+            final long deadlineMs = floodStartMs + tokenBucketPeriodMs + 1_000;
+            while (numInstalls.get() == installsBefore
+                    && SystemClock.elapsedRealtime() < deadlineMs) {
+                SystemClock.sleep(10);
+            }
+            assertEquals(installsBefore + 1, numInstalls.get());
+        }
+
+        apfFilter.shutdown();
+        handlerThread.quitSafely();
+    }
+
+    private static byte[] buildFloodRa(int i) throws Exception {
+        final RaPacketBuilder ra = new RaPacketBuilder(1800 /* router lft */);
+        ra.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8:" + i + "::/64");
+        return ra.build();
+    }
+
+    private void verifyMaxRas(int maxRas, boolean expectOldestRaFiltered) throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.maxRas = maxRas;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final byte[][] ras = new byte[12][];
+        byte[] program = null;
+        for (int i = 0; i < ras.length; i++) {
+            final RaPacketBuilder ra = new RaPacketBuilder(1800 /* router lft */);
+            ra.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8:" + i + "::/64");
+            ras[i] = ra.build();
+            apfFilter.pretendPacketReceived(ras[i]);
+            program = ipClientCallback.assertProgramUpdateAndGet();
+        }
+
+        if (expectOldestRaFiltered) {
+            assertDrop(program, ras[0]);
+        } else {
+            assertPass(program, ras[0]);
+        }
+        assertDrop(program, ras[ras.length - 1]);
+        apfFilter.shutdown();
+    }
+
+    @Test
+    public void testMaxRas() throws Exception {
+        // By default, the least recently seen RAs are evicted past 10 RAs.
+        verifyMaxRas(0 /* maxRas */, false /* expectOldestRaFiltered */);
+        verifyMaxRas(12 /* maxRas */, true /* expectOldestRaFiltered */);
+    }
+
+    @Test
+    public void testRaRefreshKeepsOtherRasWithSameSource() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // Same source address and length, so both RAs are indexed under the same match key.
+        final RaPacketBuilder ra1 = new RaPacketBuilder(1800 /* router lft */);
+        ra1.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8:1::/64");
+        final RaPacketBuilder ra2 = new RaPacketBuilder(1800 /* router lft */);
+        ra2.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8:2::/64");
+        apfFilter.pretendPacketReceived(ra1.build());
+        ipClientCallback.assertProgramUpdateAndGet();
+        apfFilter.pretendPacketReceived(ra2.build());
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        // Refreshing ra1 with a longer lifetime replaces it, and only it.
+        final RaPacketBuilder refreshedRa1 = new RaPacketBuilder(3600 /* router lft */);
+        refreshedRa1.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8:1::/64");
+        final byte[] refreshedPacket = refreshedRa1.build();
+        apfFilter.pretendPacketReceived(refreshedPacket);
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        assertDrop(program, refreshedPacket);
+        assertDrop(program, ra2.build());
+        apfFilter.shutdown();
+    }
+
     private void verifyGenerateApfProgramException(boolean isLegacy) throws Exception {
         final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
         final ApfConfiguration config = getDefaultConfig();
@@ -3260,6 +4528,159 @@ public class ApfTest {
         verifyGenerateApfProgramException(true /* isLegacy */);
     }
 
+    private static String dumpApfFilter(ApfFilter apfFilter) {
+        final StringWriter sw = new StringWriter();
+        apfFilter.dump(new IndentingPrintWriter(sw, "  "));
+        return sw.toString();
+    }
+
+    @Test
+    public void testApfFilterRuleCounters() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(4, 4096, ARPHRD_ETHER);
+        config.multicastFilter = DROP_MULTICAST;
+        config.shouldCountRules = true;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        apfFilter.setLinkProperties(lp);
+        apfFilter.addToMdnsAllowList(new String[]{"test", "local"});
+        final byte[] ra = buildLargeRa();
+        apfFilter.pretendPacketReceived(ra);
+        byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        // Rules counted by the prologue come before the RA filters.
+        final byte[] data = new byte[Counter.totalSize() + ApfRuleCounterTracker.totalSize(2)];
+        final int mdnsRuleOffset = ApfRuleCounterTracker.getCounterOffset(0);
+        final int raRuleOffset = ApfRuleCounterTracker.getCounterOffset(1);
+        // The snapshot requested when installing the program is read before it is installed.
+        apfFilter.setDataSnapshot(data.clone());
+
+        ApfTestUtils.assertVerdict(mApfVersion, DROP, program, ra, data);
+        ApfTestUtils.assertVerdict(mApfVersion, DROP, program, ra, data);
+        ApfTestUtils.assertVerdict(mApfVersion, PASS, program, makeMdnsV4Packet("test.local"),
+                data);
+        ApfTestUtils.assertVerdict(mApfVersion, DROP, program, makeMdnsV4Packet("ffff.local"),
+                data);
+        assertEquals(2, ApfCounterTracker.getCounterValue(data, raRuleOffset));
+        assertEquals(1, ApfCounterTracker.getCounterValue(data, mdnsRuleOffset));
+
+        apfFilter.setDataSnapshot(data.clone());
+        String dump = dumpApfFilter(apfFilter);
+        assertTrue(dump, dump.contains("0: mDNS test.local: 1"));
+        assertTrue(dump, dump.matches("(?s).*1: RA \\d+: 2\n.*"));
+        assertTrue(dump, dump.contains("Dropped: 2"));
+        assertTrue(dump, dump.contains("Unused rules: 0"));
+
+        // Without the mDNS rule, the RA uses counter 0, which still contains the mDNS hits.
+        apfFilter.removeFromAllowList(new String[]{"test", "local"});
+        program = ipClientCallback.assertProgramUpdateAndGet();
+        apfFilter.setDataSnapshot(data.clone());
+        ApfTestUtils.assertVerdict(mApfVersion, DROP, program, ra, data);
+        assertEquals(2, ApfCounterTracker.getCounterValue(data, mdnsRuleOffset));
+
+        apfFilter.setDataSnapshot(data.clone());
+        dump = dumpApfFilter(apfFilter);
+        assertTrue(dump, dump.matches("(?s).*0: RA \\d+: 3\n.*"));
+        assertTrue(dump, dump.contains("Dropped: 3"));
+
+        apfFilter.shutdown();
+    }
+
+    /**
+     * Replays {@code trace} through {@code program}, checking that the Java simulator and the
+     * native interpreter agree on each verdict.
+     * @return the verdicts, and the average number of instructions executed per packet.
+     */
+    private Pair<int[], Double> replayTrace(byte[] program, List<byte[]> trace, byte[] data) {
+        final ApfV4Simulator simulator = new ApfV4Simulator(program, data);
+        final byte[] nativeData = data.clone();
+        final int[] verdicts = new int[trace.size()];
+        long instructions = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            final byte[] pkt = trace.get(i);
+            verdicts[i] = simulator.run(pkt, 0 /* filterAge */);
+            instructions += simulator.getInstructionCount();
+            assertEquals(toHexString(pkt), ApfJniUtils.apfSimulate(4, program, pkt, nativeData,
+                    0 /* filterAge */), verdicts[i]);
+        }
+        return new Pair<>(verdicts, (double) instructions / trace.size());
+    }
+
+    /**
+     * Replays a trace that is mostly IPv6, then IPv4, then ARP, and checks that reordering the
+     * filters by the packets they handle does not change any verdict and reduces the average
+     * number of instructions executed per packet.
+     */
+    @Test
+    public void testApfFilterReorderingByHits() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.apfCapabilities = new ApfCapabilities(4, 4096, ARPHRD_ETHER);
+        config.multicastFilter = DROP_MULTICAST;
+        config.shouldReorderFilters = true;
+        doReturn(1000L).when(mClock).elapsedRealtime();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 24));
+        apfFilter.setLinkProperties(lp);
+        final byte[] defaultProgram = ipClientCallback.assertProgramUpdateAndGet();
+
+        final List<byte[]> trace = new ArrayList<>();
+        for (int i = 0; i < 60; i++) trace.add(makeIpv6Packet(IPPROTO_UDP).array());
+        for (int i = 0; i < 30; i++) trace.add(makeIpv4Packet(IPPROTO_UDP).array());
+        for (int i = 0; i < 10; i++) trace.add(arpRequestBroadcast(ANOTHER_IPV4_ADDR));
+
+        final byte[] data = new byte[Counter.totalSize()];
+        apfFilter.setDataSnapshot(data.clone());
+        final Pair<int[], Double> before = replayTrace(defaultProgram, trace, data);
+        doReturn(61_000L).when(mClock).elapsedRealtime();
+        apfFilter.setDataSnapshot(data.clone());
+
+        final byte[] reorderedProgram = ipClientCallback.assertProgramUpdateAndGet();
+        final String dump = dumpApfFilter(apfFilter);
+        assertTrue(dump, dump.contains("Filter order: [IPV6, IPV4, ARP]"));
+        final Pair<int[], Double> after = replayTrace(reorderedProgram, trace, data);
+        Log.i(TAG, String.format("Instructions per packet: %.2f by default, %.2f reordered",
+                before.second, after.second));
+        Assert.assertArrayEquals(before.first, after.first);
+        assertTrue(after.second < before.second);
+
+        // The same hits in the next interval do not change the order again.
+        replayTrace(reorderedProgram, trace, data);
+        doReturn(121_000L).when(mClock).elapsedRealtime();
+        apfFilter.setDataSnapshot(data.clone());
+        ipClientCallback.assertNoProgramUpdate();
+
+        apfFilter.shutdown();
+    }
+
+    @Test
+    public void testFilterBlockForCounter() {
+        // forCounter() throws for counters that were not assigned a filter block.
+        for (Counter c : Counter.values()) {
+            ApfFilter.FilterBlock.forCounter(c);
+        }
+        assertEquals(ApfFilter.FilterBlock.ARP,
+                ApfFilter.FilterBlock.forCounter(Counter.DROPPED_ARP_NON_IPV4));
+        assertEquals(ApfFilter.FilterBlock.ARP,
+                ApfFilter.FilterBlock.forCounter(Counter.DROPPED_GARP_REPLY));
+        assertEquals(ApfFilter.FilterBlock.IPV4,
+                ApfFilter.FilterBlock.forCounter(Counter.PASSED_DHCP));
+        assertEquals(ApfFilter.FilterBlock.IPV4,
+                ApfFilter.FilterBlock.forCounter(Counter.DROPPED_IPV4_NATT_KEEPALIVE));
+        assertEquals(ApfFilter.FilterBlock.IPV6,
+                ApfFilter.FilterBlock.forCounter(Counter.DROPPED_RA));
+        assertEquals(ApfFilter.FilterBlock.IPV6,
+                ApfFilter.FilterBlock.forCounter(Counter.PASSED_IPV6_ICMP));
+        assertEquals(null, ApfFilter.FilterBlock.forCounter(Counter.DROPPED_MDNS));
+        assertEquals(null, ApfFilter.FilterBlock.forCounter(Counter.PASSED_NON_IP_UNICAST));
+        assertEquals(null, ApfFilter.FilterBlock.forCounter(Counter.TOTAL_PACKETS));
+    }
+
     private void verifyApfSessionInfoMetrics(boolean isLegacy) throws Exception {
         final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
         final ApfConfiguration config = getDefaultConfig();
@@ -3441,6 +4862,151 @@ public class ApfTest {
         verifyIpClientRaInfoMetrics(true /* isLegacy */);
     }
 
+    @Test
+    public void testIpClientRaInfoMetrics_ignoredRa() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        final long startTimeMs = 12345;
+        doReturn(startTimeMs).when(mClock).elapsedRealtime();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final RaPacketBuilder ra = new RaPacketBuilder(1800 /* routerLft */);
+        ra.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8::/64");
+        ra.addRdnssOption(0 /* lifetime */, "2001:4860:4860::8888");
+        apfFilter.pretendPacketReceived(ra.build());
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        // Lifetimes that decreased by less than two thirds are dropped by the RA filter, so the RA
+        // is ignored without being parsed. It still counts towards the lifetime metrics.
+        final RaPacketBuilder ignoredRa = new RaPacketBuilder(1700 /* routerLft */);
+        ignoredRa.addPioOption(3000 /* valid */, 1800 /* preferred */, "2001:db8::/64");
+        ignoredRa.addRdnssOption(0 /* lifetime */, "2001:4860:4860::8888");
+        final byte[] ignoredPacket = ignoredRa.build();
+        assertDrop(program, ignoredPacket);
+        apfFilter.pretendPacketReceived(ignoredPacket);
+        ipClientCallback.assertNoProgramUpdate();
+
+        doReturn(startTimeMs + config.minMetricsSessionDurationMs).when(mClock).elapsedRealtime();
+        apfFilter.shutdown();
+        verify(mIpClientRaInfoMetrics).setMaxNumberOfDistinctRas(1);
+        verify(mIpClientRaInfoMetrics).setNumberOfZeroLifetimeRas(2);
+        verify(mIpClientRaInfoMetrics).setLowestRouterLifetimeSeconds(1700);
+        verify(mIpClientRaInfoMetrics).setLowestPioValidLifetimeSeconds(3000);
+        verify(mIpClientRaInfoMetrics).statsWrite();
+    }
+
+    // Processes an RA and then a repeat of it that the RA filter drops, either through the fast
+    // path that recognizes the repeat before taking the lock, or through the slow path that
+    // parses it, and checks that both paths report the same metrics.
+    private void verifyRepeatedRaMetrics(boolean useFastPath) throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        final long startTimeMs = 12345;
+        doReturn(startTimeMs).when(mClock).elapsedRealtime();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final RaPacketBuilder ra = new RaPacketBuilder(1800 /* routerLft */);
+        ra.addPioOption(3600 /* valid */, 1800 /* preferred */, "2001:db8::/64");
+        ra.addRdnssOption(0 /* lifetime */, "2001:4860:4860::8888");
+        final byte[] packet = ra.build();
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(packet, packet.length);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final RaPacketBuilder repeatedRa = new RaPacketBuilder(1700 /* routerLft */);
+        repeatedRa.addPioOption(3000 /* valid */, 1800 /* preferred */, "2001:db8::/64");
+        repeatedRa.addRdnssOption(0 /* lifetime */, "2001:4860:4860::8888");
+        final byte[] repeatedPacket = repeatedRa.build();
+        // Matching against an empty snapshot finds no RA to ignore the repeat with before taking
+        // the lock, so it takes the slow path, which matches it against the known RAs.
+        final ApfFilter.RaSnapshot snapshot = useFastPath
+                ? apfFilter.getRasSnapshot() : ApfFilter.RaSnapshot.EMPTY;
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(snapshot, repeatedPacket, repeatedPacket.length);
+        ipClientCallback.assertNoProgramUpdate();
+        assertEquals(1, apfFilter.getRasSnapshot().ras.size());
+
+        doReturn(startTimeMs + config.minMetricsSessionDurationMs).when(mClock).elapsedRealtime();
+        apfFilter.shutdown();
+        verify(mIpClientRaInfoMetrics).setMaxNumberOfDistinctRas(1);
+        verify(mIpClientRaInfoMetrics).setNumberOfZeroLifetimeRas(2);
+        verify(mIpClientRaInfoMetrics).setNumberOfParsingErrorRas(0);
+        verify(mIpClientRaInfoMetrics).setLowestRouterLifetimeSeconds(1700);
+        verify(mIpClientRaInfoMetrics).setLowestPioValidLifetimeSeconds(3000);
+        verify(mIpClientRaInfoMetrics).statsWrite();
+    }
+
+    @Test
+    public void testProcessRa_fastPathIgnoresRepeatedRa() throws Exception {
+        verifyRepeatedRaMetrics(true /* useFastPath */);
+    }
+
+    @Test
+    public void testProcessRa_slowPathIgnoresRepeatedRa() throws Exception {
+        verifyRepeatedRaMetrics(false /* useFastPath */);
+    }
+
+    @Test
+    public void testProcessRa_staleSnapshot() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, getDefaultConfig(),
+                ipClientCallback, mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final byte[] packet = new RaPacketBuilder(1800 /* routerLft */).build();
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(packet, packet.length);
+        ipClientCallback.assertProgramUpdateAndGet();
+        final ApfFilter.RaSnapshot staleSnapshot = apfFilter.getRasSnapshot();
+
+        // A lifetime that decreased by more than two thirds replaces the known RA.
+        final byte[] updatedPacket = new RaPacketBuilder(300 /* routerLft */).build();
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(updatedPacket, updatedPacket.length);
+        ipClientCallback.assertProgramUpdateAndGet();
+        final ApfFilter.Ra updatedRa = apfFilter.getRasSnapshot().ras.get(0);
+
+        // The stale snapshot only has the replaced RA, which does not drop a repeat of the update.
+        // The repeat must be matched again against the current RAs, and ignored, instead of being
+        // added as a new RA.
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(staleSnapshot, updatedPacket, updatedPacket.length);
+        ipClientCallback.assertNoProgramUpdate();
+        assertEquals(List.of(updatedRa), apfFilter.getRasSnapshot().ras);
+        apfFilter.shutdown();
+    }
+
+    @Test
+    public void testProcessRa_matchExpiresBeforeUpdate() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, getDefaultConfig(),
+                ipClientCallback, mNetworkQuirkMetrics, mDependencies, mClock);
+        ipClientCallback.assertProgramUpdateAndGet();
+
+        final int routerLifetime = 1800;
+        final byte[] packet = new RaPacketBuilder(routerLifetime).build();
+        ipClientCallback.resetApfProgramWait();
+        apfFilter.processRa(packet, packet.length);
+        ipClientCallback.assertProgramUpdateAndGet();
+        // The RA that a repeat was matched against without holding the lock.
+        final ApfFilter.Ra oldRa = apfFilter.getRasSnapshot().ras.get(0);
+
+        // The filter for the matched RA expires before the lock is taken, so the repeat is added
+        // as a new RA instead of being ignored.
+        apfFilter.increaseCurrentTimeSeconds(routerLifetime + 1);
+        final ApfFilter.Ra repeatedRa = apfFilter.new Ra(packet, packet.length);
+        synchronized (apfFilter) {
+            assertEquals(ApfFilter.ProcessRaResult.ADDED,
+                    apfFilter.processRaLocked(repeatedRa, oldRa));
+        }
+        assertEquals(List.of(repeatedRa), apfFilter.getRasSnapshot().ras);
+        apfFilter.shutdown();
+    }
+
     private void verifyNoMetricsWrittenForShortDuration(boolean isLegacy) throws Exception {
         final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
         final ApfConfiguration config = getDefaultConfig();
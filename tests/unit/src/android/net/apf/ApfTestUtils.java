@@ -278,7 +278,8 @@ public class ApfTestUtils {
         public TestApfFilter(Context context, ApfConfiguration config,
                 MockIpClientCallback ipClientCallback, NetworkQuirkMetrics networkQuirkMetrics)
                 throws Exception {
-            this(context, config, ipClientCallback, networkQuirkMetrics, new Dependencies(context),
+            this(context, config, ipClientCallback, networkQuirkMetrics,
+                    new Dependencies(context, null /* handler */),
                     false /* throwsExceptionWhenGeneratesProgram */, new ApfFilter.Clock());
         }
 
@@ -383,7 +384,7 @@ public class ApfTestUtils {
 
         @Override
         @GuardedBy("this")
-        protected ApfV4Generator emitPrologueLocked() throws IllegalInstructionException {
+        protected ApfV4GeneratorBase<?> emitPrologueLocked() throws IllegalInstructionException {
             if (mThrowsExceptionWhenGeneratesProgram) {
                 throw new IllegalStateException();
             }
@@ -407,7 +408,7 @@ public class ApfTestUtils {
                 MockIpClientCallback ipClientCallback, IpConnectivityLog ipConnectivityLog,
                 NetworkQuirkMetrics networkQuirkMetrics) throws Exception {
             this(context, config, ipClientCallback, ipConnectivityLog, networkQuirkMetrics,
-                    new ApfFilter.Dependencies(context),
+                    new ApfFilter.Dependencies(context, null /* handler */),
                     false /* throwsExceptionWhenGeneratesProgram */, new ApfFilter.Clock());
         }
 
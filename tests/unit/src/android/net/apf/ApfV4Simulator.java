@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf;
+
+import static android.net.apf.ApfTestUtils.DROP;
+import static android.net.apf.ApfTestUtils.PASS;
+import static android.net.apf.BaseApfGenerator.FILTER_AGE_MEMORY_SLOT;
+import static android.net.apf.BaseApfGenerator.IPV4_HEADER_SIZE_MEMORY_SLOT;
+import static android.net.apf.BaseApfGenerator.MEMORY_SLOTS;
+import static android.net.apf.BaseApfGenerator.PACKET_SIZE_MEMORY_SLOT;
+
+import android.net.apf.BaseApfGenerator.ExtendedOpcodes;
+import android.net.apf.BaseApfGenerator.Opcodes;
+
+/**
+ * A Java implementation of the APFv4 interpreter that also counts the instructions it executes.
+ *
+ * The native interpreter run by {@link ApfJniUtils#apfSimulate} only returns the verdict, which
+ * is not enough to compare the cost of programs that produce the same verdicts. This follows
+ * hardware/google/apf/apf_interpreter.c, and only supports the APFv4 instruction set.
+ */
+public class ApfV4Simulator {
+    private static final int ETH_HEADER_LEN = 14;
+
+    private final byte[] mProgram;
+    private final byte[] mData;
+    // The program followed by the data, as seen by the interpreter.
+    private final byte[] mRam;
+    private int mInstructionCount;
+
+    /**
+     * @param program the program to run.
+     * @param data the data region that follows the program, or null. Counters written by the
+     *             program are copied back to it after each packet.
+     */
+    public ApfV4Simulator(byte[] program, byte[] data) {
+        mProgram = program;
+        mData = data;
+        mRam = new byte[program.length + (data != null ? data.length : 0)];
+        System.arraycopy(program, 0, mRam, 0, program.length);
+    }
+
+    /**
+     * Returns the number of instructions executed for the last packet.
+     */
+    public int getInstructionCount() {
+        return mInstructionCount;
+    }
+
+    /**
+     * Run the program on {@code packet}.
+     *
+     * @return {@link ApfTestUtils#PASS} or {@link ApfTestUtils#DROP}.
+     */
+    public int run(byte[] packet, int filterAge) {
+        if (mData != null) {
+            System.arraycopy(mData, 0, mRam, mProgram.length, mData.length);
+        }
+        final int verdict = interpret(packet, filterAge);
+        if (mData != null) {
+            System.arraycopy(mRam, mProgram.length, mData, 0, mData.length);
+        }
+        return verdict;
+    }
+
+    private int interpret(byte[] packet, int filterAge) {
+        mInstructionCount = 0;
+        final int programLen = mProgram.length;
+        final int ramLen = mRam.length;
+        final int[] regs = new int[2];
+        final int[] memory = new int[MEMORY_SLOTS];
+        memory[PACKET_SIZE_MEMORY_SLOT] = packet.length;
+        memory[FILTER_AGE_MEMORY_SLOT] = filterAge;
+        if (packet.length <= ETH_HEADER_LEN) return PASS;
+        // Only populate if IP version is IPv4.
+        if ((packet[ETH_HEADER_LEN] & 0xf0) == 0x40) {
+            memory[IPV4_HEADER_SIZE_MEMORY_SLOT] = (packet[ETH_HEADER_LEN] & 15) * 4;
+        }
+
+        int pc = 0;
+        // Bound execution time like the interpreter: no program has more instructions than bytes.
+        int instructionsRemaining = programLen;
+        do {
+            if (pc == programLen) return PASS;
+            if (pc == programLen + 1) return DROP;
+            if (pc < 0 || pc > programLen) return PASS;
+            mInstructionCount++;
+
+            final int bytecode = mRam[pc++] & 0xff;
+            final int opcode = bytecode >> 3;
+            final int reg = bytecode & 1;
+            final int lenField = (bytecode >> 1) & 3;
+            int imm = 0;
+            int signedImm = 0;
+            int immLen = 0;
+            if (lenField != 0) {
+                immLen = 1 << (lenField - 1);
+                if (pc + immLen > programLen) return PASS;
+                for (int i = 0; i < immLen; i++) imm = (imm << 8) | (mRam[pc++] & 0xff);
+                // Sign extend the immediate.
+                signedImm = imm << (32 - immLen * 8) >> (32 - immLen * 8);
+            }
+
+            if (opcode >= Opcodes.LDB.value && opcode <= Opcodes.LDWX.value) {
+                int offs = imm;
+                if (opcode >= Opcodes.LDBX.value) offs += regs[1];
+                final int loadSize;
+                if (opcode == Opcodes.LDB.value || opcode == Opcodes.LDBX.value) {
+                    loadSize = 1;
+                } else if (opcode == Opcodes.LDH.value || opcode == Opcodes.LDHX.value) {
+                    loadSize = 2;
+                } else {
+                    loadSize = 4;
+                }
+                if (!inBounds(offs, loadSize, packet.length)) return PASS;
+                int val = 0;
+                for (int i = 0; i < loadSize; i++) val = (val << 8) | (packet[offs + i] & 0xff);
+                regs[reg] = val;
+            } else if (opcode == Opcodes.JMP.value) {
+                pc += imm;
+            } else if (opcode >= Opcodes.JEQ.value && opcode <= Opcodes.JNEBS.value) {
+                int cmpImm = 0;
+                if (reg == 1 && opcode != Opcodes.JNEBS.value) {
+                    cmpImm = regs[1];
+                } else if (lenField != 0) {
+                    if (pc + immLen > programLen) return PASS;
+                    for (int i = 0; i < immLen; i++) cmpImm = (cmpImm << 8) | (mRam[pc++] & 0xff);
+                }
+                if (opcode == Opcodes.JEQ.value) {
+                    if (regs[0] == cmpImm) pc += imm;
+                } else if (opcode == Opcodes.JNE.value) {
+                    if (regs[0] != cmpImm) pc += imm;
+                } else if (opcode == Opcodes.JGT.value) {
+                    if (Integer.compareUnsigned(regs[0], cmpImm) > 0) pc += imm;
+                } else if (opcode == Opcodes.JLT.value) {
+                    if (Integer.compareUnsigned(regs[0], cmpImm) < 0) pc += imm;
+                } else if (opcode == Opcodes.JSET.value) {
+                    if ((regs[0] & cmpImm) != 0) pc += imm;
+                } else {
+                    // JNEBS: cmpImm is the number of bytes to compare, which follow the
+                    // instruction, with the packet bytes at the offset in the register.
+                    if (cmpImm < 0 || pc + cmpImm > programLen) return PASS;
+                    if (!inBounds(regs[reg], cmpImm, packet.length)) return PASS;
+                    for (int i = 0; i < cmpImm; i++) {
+                        if (mRam[pc + i] != packet[regs[reg] + i]) {
+                            pc += imm;
+                            break;
+                        }
+                    }
+                    pc += cmpImm;
+                }
+            } else if (opcode == Opcodes.ADD.value) {
+                regs[0] += reg == 1 ? regs[1] : imm;
+            } else if (opcode == Opcodes.MUL.value) {
+                regs[0] *= reg == 1 ? regs[1] : imm;
+            } else if (opcode == Opcodes.DIV.value) {
+                final int divisor = reg == 1 ? regs[1] : imm;
+                if (divisor == 0) return PASS;
+                regs[0] = Integer.divideUnsigned(regs[0], divisor);
+            } else if (opcode == Opcodes.AND.value) {
+                regs[0] &= reg == 1 ? regs[1] : imm;
+            } else if (opcode == Opcodes.OR.value) {
+                regs[0] |= reg == 1 ? regs[1] : imm;
+            } else if (opcode == Opcodes.SH.value) {
+                final int shift = reg == 1 ? regs[1] : signedImm;
+                regs[0] = shift > 0 ? regs[0] << shift : regs[0] >>> -shift;
+            } else if (opcode == Opcodes.LI.value) {
+                regs[reg] = signedImm;
+            } else if (opcode == Opcodes.EXT.value) {
+                if (imm >= ExtendedOpcodes.LDM.value
+                        && imm < ExtendedOpcodes.LDM.value + MEMORY_SLOTS) {
+                    regs[reg] = memory[imm - ExtendedOpcodes.LDM.value];
+                } else if (imm >= ExtendedOpcodes.STM.value
+                        && imm < ExtendedOpcodes.STM.value + MEMORY_SLOTS) {
+                    memory[imm - ExtendedOpcodes.STM.value] = regs[reg];
+                } else if (imm == ExtendedOpcodes.NOT.value) {
+                    regs[reg] = ~regs[reg];
+                } else if (imm == ExtendedOpcodes.NEG.value) {
+                    regs[reg] = -regs[reg];
+                } else if (imm == ExtendedOpcodes.SWAP.value) {
+                    final int tmp = regs[0];
+                    regs[0] = regs[1];
+                    regs[1] = tmp;
+                } else if (imm == ExtendedOpcodes.MOVE.value) {
+                    regs[reg] = regs[reg ^ 1];
+                } else {
+                    // Unknown extended opcode
+                    return PASS;
+                }
+            } else if (opcode == Opcodes.LDDW.value || opcode == Opcodes.STDW.value) {
+                int offs = regs[reg ^ 1] + signedImm;
+                // Negative offsets wrap around the end of the address space.
+                if (offs < 0) offs += ramLen;
+                if (offs < programLen || !inBounds(offs, 4, ramLen)) return PASS;
+                if (opcode == Opcodes.LDDW.value) {
+                    int val = 0;
+                    for (int i = 0; i < 4; i++) val = (val << 8) | (mRam[offs + i] & 0xff);
+                    regs[reg] = val;
+                } else {
+                    for (int i = 0; i < 4; i++) {
+                        mRam[offs + i] = (byte) (regs[reg] >>> (24 - 8 * i));
+                    }
+                }
+            } else {
+                // Unknown opcode
+                return PASS;
+            }
+        } while (instructionsRemaining-- > 0);
+        return PASS;
+    }
+
+    private static boolean inBounds(int offs, int size, int length) {
+        return offs >= 0 && size >= 0 && (long) offs + size <= length;
+    }
+}
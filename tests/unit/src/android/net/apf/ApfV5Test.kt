@@ -782,6 +782,75 @@ class ApfV5Test {
         assertEquals(0xff, ApfCounterTracker.getCounterValue(counterBytes, Counter.TOTAL_PACKETS))
     }
 
+    @Test
+    fun testDecodeCounters() {
+        val counterBytes = intArrayOf(0xff, 0, 0, 0, 0x78, 0x56, 0x34, 0x12)
+                .map { it.toByte() }.toByteArray()
+        val values = ApfCounterTracker.decodeCounters(counterBytes, 4)
+        assertEquals(0x12345678, values[Counter.ENDIANNESS.value()])
+        assertEquals(0xff, values[Counter.TOTAL_PACKETS.value()])
+        // Counters that do not fit in the data are 0.
+        assertEquals(0, values[Counter.PASSED_ALLOCATE_FAILURE.value()])
+        assertEquals(0, ApfCounterTracker.decodeCounters(byteArrayOf(), 4).sum())
+    }
+
+    @Test
+    fun testCounterDeltas() {
+        val tracker = ApfCounterTracker()
+        val data = ByteArray(Counter.totalSize()) { 0 }
+        fun setCounter(c: Counter, value: Int) {
+            val offset = data.size + c.offset()
+            for (i in 0 until 4) {
+                data[offset + i] = (value shr (24 - 8 * i)).toByte()
+            }
+        }
+
+        setCounter(Counter.TOTAL_PACKETS, 100)
+        setCounter(Counter.DROPPED_MDNS, 40)
+        tracker.updateCountersFromData(data, 1000)
+        assertEquals(0, tracker.counterDeltas.size)
+
+        setCounter(Counter.TOTAL_PACKETS, 160)
+        setCounter(Counter.DROPPED_MDNS, 70)
+        setCounter(Counter.DROPPED_RA, 10)
+        setCounter(Counter.FILTER_AGE_SECONDS, 10)
+        tracker.updateCountersFromData(data, 11_000)
+        var deltas = tracker.counterDeltas.last()
+        assertEquals(1000, deltas.startTimeMs)
+        assertEquals(11_000, deltas.endTimeMs)
+        assertEquals(60, deltas.getDelta(Counter.TOTAL_PACKETS))
+        assertEquals(30, deltas.getDelta(Counter.DROPPED_MDNS))
+        assertEquals(3.0, deltas.getRate(Counter.DROPPED_MDNS), 0.001)
+        // The filter age is not a packet count.
+        assertEquals(0, deltas.getDelta(Counter.FILTER_AGE_SECONDS))
+        assertEquals(40, deltas.totalDropped)
+        assertEquals(240, tracker.maxDroppedPacketsPerMinute)
+
+        // Snapshots read within the same millisecond do not lose any increase.
+        setCounter(Counter.DROPPED_MDNS, 75)
+        tracker.updateCountersFromData(data, 11_000)
+        setCounter(Counter.DROPPED_MDNS, 80)
+        tracker.updateCountersFromData(data, 71_000)
+        deltas = tracker.counterDeltas.last()
+        assertEquals(11_000, deltas.startTimeMs)
+        assertEquals(10, deltas.getDelta(Counter.DROPPED_MDNS))
+        assertEquals(240, tracker.maxDroppedPacketsPerMinute)
+
+        // If the APF memory is cleared, the counters count up from 0.
+        setCounter(Counter.DROPPED_MDNS, 5)
+        tracker.updateCountersFromData(data, 72_000)
+        assertEquals(5, tracker.counterDeltas.last().getDelta(Counter.DROPPED_MDNS))
+        // The session counters keep the highest value.
+        assertEquals(80, tracker.counters[Counter.DROPPED_MDNS])
+
+        for (i in 0 until ApfCounterTracker.MAX_COUNTER_DELTAS) {
+            tracker.updateCountersFromData(data, 73_000L + i)
+        }
+        assertEquals(ApfCounterTracker.MAX_COUNTER_DELTAS, tracker.counterDeltas.size)
+        assertEquals(72_000, tracker.counterDeltas.first().startTimeMs)
+        assertEquals(5 + ApfCounterTracker.MAX_COUNTER_DELTAS, tracker.numSnapshots)
+    }
+
     private fun decodeCountersIntoMap(counterBytes: ByteArray): Map<Counter, Long> {
         val counters = Counter::class.java.enumConstants
         val ret = HashMap<Counter, Long>()
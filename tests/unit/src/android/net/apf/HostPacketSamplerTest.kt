@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf
+
+import android.net.apf.ApfFilter.FilterBlock
+import android.net.apf.HostPacketSampler.Section
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val ETH_P_ARP = 0x0806
+private const val ETH_P_IP = 0x0800
+private const val ETH_P_IPV6 = 0x86dd
+private const val IPPROTO_TCP = 6
+private const val IPPROTO_UDP = 17
+private const val IPPROTO_ICMPV6 = 58
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class HostPacketSamplerTest {
+    private val unicastMac = byteArrayOf(2, 0, 0, 0, 0, 1)
+    private val broadcastMac = ByteArray(6) { 0xff.toByte() }
+
+    private fun ether(ethertype: Int, dstMac: ByteArray = unicastMac) =
+            ByteBuffer.allocate(100).put(dstMac).put(ByteArray(6)).putShort(ethertype.toShort())
+
+    // Returns an IPv4 packet with a 20-byte header, followed by a UDP or TCP destination port.
+    private fun ipv4(
+        protocol: Int,
+        dst: String,
+        dstPort: Int = 0,
+        dstMac: ByteArray = unicastMac
+    ): ByteArray = ether(ETH_P_IP, dstMac)
+            .put(0x45.toByte()).put(ByteArray(8)).put(protocol.toByte()).put(ByteArray(6))
+            .put(InetAddress.parseNumericAddress(dst).address)
+            .putShort(0).putShort(dstPort.toShort())
+            .array()
+
+    // Returns an IPv6 packet, followed by an ICMPv6 type or a UDP or TCP destination port.
+    private fun ipv6(nextHeader: Int, dst: String, icmpTypeOrPort: Int = 0): ByteArray {
+        val buf = ether(ETH_P_IPV6)
+                .put(0x60.toByte()).put(ByteArray(5)).put(nextHeader.toByte()).put(ByteArray(17))
+                .put(InetAddress.parseNumericAddress(dst).address)
+        if (nextHeader == IPPROTO_ICMPV6) {
+            buf.put(icmpTypeOrPort.toByte())
+        } else {
+            buf.putShort(0).putShort(icmpTypeOrPort.toShort())
+        }
+        return buf.array()
+    }
+
+    private fun classify(packet: ByteArray) = HostPacketSampler.classify(packet, packet.size)
+
+    @Test
+    fun testClassifyEthernet() {
+        assertEquals(Section.ETHER_802_3, classify(ether(100).array()))
+        assertEquals(Section.ARP, classify(ether(ETH_P_ARP).array()))
+        assertEquals(Section.OTHER_ETHERTYPE, classify(ether(0x88cc).array()))
+        assertEquals(Section.OTHER_ETHERTYPE, classify(ByteArray(10)))
+    }
+
+    @Test
+    fun testClassifyIPv4() {
+        assertEquals(Section.IPV4_DHCP,
+                classify(ipv4(IPPROTO_UDP, "255.255.255.255", 68, broadcastMac)))
+        assertEquals(Section.IPV4_MDNS, classify(ipv4(IPPROTO_UDP, "224.0.0.251", 5353)))
+        assertEquals(Section.IPV4_MULTICAST, classify(ipv4(IPPROTO_UDP, "239.255.255.250", 1900)))
+        assertEquals(Section.IPV4_BROADCAST,
+                classify(ipv4(IPPROTO_UDP, "192.0.2.255", 137, broadcastMac)))
+        assertEquals(Section.IPV4_BROADCAST, classify(ipv4(IPPROTO_UDP, "255.255.255.255", 137)))
+        assertEquals(Section.IPV4_TCP, classify(ipv4(IPPROTO_TCP, "192.0.2.1", 443)))
+        assertEquals(Section.IPV4_OTHER, classify(ipv4(IPPROTO_UDP, "192.0.2.1", 53)))
+
+        val truncated = ipv4(IPPROTO_UDP, "224.0.0.251", 5353)
+        assertEquals(Section.IPV4_OTHER, HostPacketSampler.classify(truncated, 30))
+    }
+
+    @Test
+    fun testClassifyIPv6() {
+        assertEquals(Section.IPV6_RA, classify(ipv6(IPPROTO_ICMPV6, "ff02::1", 134)))
+        assertEquals(Section.IPV6_NS, classify(ipv6(IPPROTO_ICMPV6, "ff02::1:ff00:1", 135)))
+        assertEquals(Section.IPV6_NA, classify(ipv6(IPPROTO_ICMPV6, "2001:db8::1", 136)))
+        assertEquals(Section.IPV6_OTHER_ICMP, classify(ipv6(IPPROTO_ICMPV6, "2001:db8::1", 128)))
+        assertEquals(Section.IPV6_MDNS, classify(ipv6(IPPROTO_UDP, "ff02::fb", 5353)))
+        assertEquals(Section.IPV6_NON_ICMP_MULTICAST, classify(ipv6(IPPROTO_UDP, "ff02::c", 1900)))
+        assertEquals(Section.IPV6_TCP, classify(ipv6(IPPROTO_TCP, "2001:db8::1", 443)))
+        assertEquals(Section.IPV6_OTHER, classify(ipv6(IPPROTO_UDP, "2001:db8::1", 53)))
+    }
+
+    @Test
+    fun testSectionFilterBlocks() {
+        assertEquals(null, Section.ETHER_802_3.filterBlock)
+        assertEquals(FilterBlock.ARP, Section.ARP.filterBlock)
+        assertEquals(FilterBlock.IPV4, Section.IPV4_DHCP.filterBlock)
+        assertEquals(FilterBlock.IPV6, Section.IPV6_RA.filterBlock)
+    }
+}
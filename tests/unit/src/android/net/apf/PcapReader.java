@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the packets of a packet capture file in the classic libpcap format.
+ *
+ * Unlike the packet capture functions of {@link ApfJniUtils}, this does not need libpcap, so
+ * traces can be replayed by {@link ApfV4Simulator} without any native code.
+ */
+public class PcapReader {
+    private static final int MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int MAGIC_NANOS = 0xa1b23c4d;
+    private static final int GLOBAL_HEADER_LEN = 24;
+    private static final int RECORD_HEADER_LEN = 16;
+    private static final int LINKTYPE_ETHERNET = 1;
+
+    private PcapReader() {}
+
+    /**
+     * Read all the packets in {@code in}, which must contain an Ethernet capture.
+     *
+     * Packets truncated by the capture snap length are returned as captured.
+     */
+    public static List<byte[]> readPackets(InputStream in) throws IOException {
+        final DataInputStream din = new DataInputStream(in);
+        final ByteBuffer header = readFully(din, GLOBAL_HEADER_LEN);
+        final int magic = header.getInt(0);
+        if (magic != MAGIC_MICROS && magic != MAGIC_NANOS) {
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            final int swapped = header.getInt(0);
+            if (swapped != MAGIC_MICROS && swapped != MAGIC_NANOS) {
+                throw new IOException("Not a pcap file, magic " + Integer.toHexString(magic));
+            }
+        }
+        final int linkType = header.getInt(20);
+        if (linkType != LINKTYPE_ETHERNET) {
+            throw new IOException("Unsupported link type " + linkType);
+        }
+
+        final List<byte[]> packets = new ArrayList<>();
+        while (true) {
+            final ByteBuffer record;
+            try {
+                record = readFully(din, RECORD_HEADER_LEN);
+            } catch (EOFException e) {
+                return packets;
+            }
+            record.order(header.order());
+            final int capturedLen = record.getInt(8);
+            if (capturedLen < 0) throw new IOException("Invalid packet length " + capturedLen);
+            packets.add(readFully(din, capturedLen).array());
+        }
+    }
+
+    private static ByteBuffer readFully(DataInputStream in, int len) throws IOException {
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import java.net.InetAddress
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProcfsParsingUtilsTest {
+    // Group addresses are printed in host byte order, which is little-endian on all supported
+    // devices.
+    private val igmpLines = listOf(
+            "Idx\tDevice    : Count Querier\tGroup    Users Timer\tReporter",
+            "1\tlo        :     1      V3",
+            "\t\t\t\t010000E0     1 0:00000000\t\t0",
+            "2\twlan0     :     3      V3",
+            "\t\t\t\tFB0000E0     1 0:00000000\t\t0",
+            "\t\t\t\tFAFFFFEF     1 0:00000000\t\t0",
+            "\t\t\t\t010000E0     1 0:00000000\t\t0",
+            "3\tverylongname0:     1      V3",
+            "\t\t\t\t020000E0     1 0:00000000\t\t0"
+    )
+
+    private val igmp6Lines = listOf(
+            "1    lo              ff020000000000000000000000000001     1 0000000C 0",
+            "2    wlan0           ff0200000000000000000001ff000001     1 00000004 0",
+            "2    wlan0           ff0200000000000000000000000000fb     1 00000004 0",
+            "2    wlan0           ff020000000000000000000000000001     1 0000000C 0"
+    )
+
+    private fun addrs(vararg addrs: String) = addrs.map { InetAddress.parseNumericAddress(it) }
+
+    @Test
+    fun testParseIPv4MulticastAddresses() {
+        assertEquals(addrs("224.0.0.251", "239.255.255.250", "224.0.0.1"),
+                ProcfsParsingUtils.parseIPv4MulticastAddresses(igmpLines, "wlan0"))
+        assertEquals(addrs("224.0.0.1"),
+                ProcfsParsingUtils.parseIPv4MulticastAddresses(igmpLines, "lo"))
+        assertEquals(addrs("224.0.0.2"),
+                ProcfsParsingUtils.parseIPv4MulticastAddresses(igmpLines, "verylongname0"))
+        assertEquals(emptyList(),
+                ProcfsParsingUtils.parseIPv4MulticastAddresses(igmpLines, "eth0"))
+        assertEquals(emptyList(), ProcfsParsingUtils.parseIPv4MulticastAddresses(listOf(), "lo"))
+    }
+
+    @Test
+    fun testParseIPv6MulticastAddresses() {
+        assertEquals(addrs("ff02::1:ff00:1", "ff02::fb", "ff02::1"),
+                ProcfsParsingUtils.parseIPv6MulticastAddresses(igmp6Lines, "wlan0"))
+        assertEquals(addrs("ff02::1"),
+                ProcfsParsingUtils.parseIPv6MulticastAddresses(igmp6Lines, "lo"))
+        assertEquals(emptyList(),
+                ProcfsParsingUtils.parseIPv6MulticastAddresses(igmp6Lines, "eth0"))
+    }
+}
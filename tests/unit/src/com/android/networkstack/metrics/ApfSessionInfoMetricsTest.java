@@ -16,7 +16,12 @@
 
 package com.android.networkstack.metrics;
 
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.verify;
+
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 
 import android.net.apf.ApfCounterTracker.Counter;
 import android.stats.connectivity.CounterName;
@@ -26,6 +31,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.MockitoSession;
 
 /**
  * Tests for ApfSessionInfoMetrics.
@@ -42,6 +48,10 @@ public class ApfSessionInfoMetricsTest {
         mMetrics.setApfSessionDurationSeconds(123);
         mMetrics.setNumOfTimesApfProgramUpdated(456);
         mMetrics.setMaxProgramSize(1234);
+        mMetrics.setMaxNumOfRuleCounters(12);
+        mMetrics.setNumOfUnusedRules(3);
+        mMetrics.setNumOfCounterSnapshots(7);
+        mMetrics.setMaxDroppedPacketsPerMinute(1L << 40);
         mMetrics.addApfCounter(Counter.TOTAL_PACKETS, 5678);
         mMetrics.addApfCounter(Counter.PASSED_ARP_UNICAST_REPLY, 1010);
         mMetrics.addApfCounter(Counter.DROPPED_MDNS, 333);
@@ -51,6 +61,10 @@ public class ApfSessionInfoMetricsTest {
         assertEquals(123, mStats.getApfSessionDurationSeconds());
         assertEquals(456, mStats.getNumOfTimesApfProgramUpdated());
         assertEquals(1234, mStats.getMaxProgramSize());
+        assertEquals(12, mStats.getMaxNumOfRuleCounters());
+        assertEquals(3, mStats.getNumOfUnusedRules());
+        assertEquals(7, mStats.getNumOfCounterSnapshots());
+        assertEquals(Integer.MAX_VALUE, mStats.getMaxDroppedPacketsPerMinute());
 
         // ApfCounter count: 3 (CN_TOTAL_PACKETS, CN_PASSED_ARP_UNICAST_REPLY, CN_DROPPED_MDNS)
         final ApfCounterList apfCounterList = mStats.getApfCounterList();
@@ -72,6 +86,32 @@ public class ApfSessionInfoMetricsTest {
         assertEquals(333, apfCounter.getCounterValue());
     }
 
+    @Test
+    public void testApfSessionInfoMetrics_VerifyStatsWrite() throws Exception {
+        final MockitoSession session =
+                mockitoSession().spyStatic(NetworkStackStatsLog.class).startMocking();
+        try {
+            final ApfSessionInfoMetrics metrics = new ApfSessionInfoMetrics();
+            metrics.setVersion(4);
+            metrics.setMemorySize(4096);
+            metrics.setApfSessionDurationSeconds(123);
+            metrics.setNumOfTimesApfProgramUpdated(456);
+            metrics.setMaxProgramSize(1234);
+            metrics.statsWrite();
+
+            verify(() -> NetworkStackStatsLog.write(
+                    eq(NetworkStackStatsLog.APF_SESSION_INFO_REPORTED),
+                    eq(4) /* version */,
+                    eq(4096) /* memorySize */,
+                    any(byte[].class) /* apfCounterList */,
+                    eq(123) /* apfSessionDurationSeconds */,
+                    eq(456) /* numOfTimesApfProgramUpdated */,
+                    eq(1234) /* maxProgramSize */));
+        } finally {
+            session.finishMocking();
+        }
+    }
+
     @Test
     public void testApfSessionInfoMetrics_VerifyMaxApfCounter() throws Exception {
         ApfSessionInfoReported mStats;
@@ -143,5 +183,8 @@ public class ApfSessionInfoMetricsTest {
         verifyCounterName(Counter.DROPPED_IPV4_TCP_PORT7_UNICAST, CounterName.CN_UNKNOWN);
         verifyCounterName(Counter.DROPPED_ARP_NON_IPV4, CounterName.CN_DROPPED_ARP_NON_IPV4);
         verifyCounterName(Counter.DROPPED_ARP_UNKNOWN, CounterName.CN_DROPPED_ARP_UNKNOWN);
+        verifyCounterName(Counter.DROPPED_ARP_REQUEST_REPLIED, CounterName.CN_UNKNOWN);
+        verifyCounterName(Counter.DROPPED_IPV6_NS_REPLIED, CounterName.CN_UNKNOWN);
+        verifyCounterName(Counter.DROPPED_MDNS_REPLIED, CounterName.CN_UNKNOWN);
     }
 }